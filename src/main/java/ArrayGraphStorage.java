@@ -0,0 +1,86 @@
+/**
+ * The plain layout: coordinates as doubles and adjacency in compressed sparse row form,
+ * where the edges leaving v are firstEdge(v) until endEdge(v) and edge e leads to
+ * target(e). The fastest layout, and the one graphs are built in before any other
+ * layout is derived from it.
+ */
+public class ArrayGraphStorage implements GraphStorage {
+
+    private final double[] lons;
+    private final double[] lats;
+    private final int[] offsets;
+    private final int[] targets;
+    private final int maxDegree;
+
+    /**
+     * Takes ownership of the given arrays.
+     * @param lons The longitude of each vertex.
+     * @param lats The latitude of each vertex.
+     * @param offsets Edges leaving v are offsets[v] until offsets[v + 1].
+     * @param targets The vertex each edge leads to.
+     */
+    ArrayGraphStorage(double[] lons, double[] lats, int[] offsets, int[] targets) {
+        this.lons = lons;
+        this.lats = lats;
+        this.offsets = offsets;
+        this.targets = targets;
+        int max = 0;
+        for (int v = 0; v < lons.length; v++) {
+            max = Math.max(max, offsets[v + 1] - offsets[v]);
+        }
+        maxDegree = max;
+    }
+
+    @Override
+    public int numVertices() {
+        return lons.length;
+    }
+
+    @Override
+    public double lon(int v) {
+        return lons[v];
+    }
+
+    @Override
+    public double lat(int v) {
+        return lats[v];
+    }
+
+    @Override
+    public int degree(int v) {
+        return offsets[v + 1] - offsets[v];
+    }
+
+    @Override
+    public int maxDegree() {
+        return maxDegree;
+    }
+
+    @Override
+    public int neighbors(int v, int[] into) {
+        int first = offsets[v];
+        int degree = offsets[v + 1] - first;
+        System.arraycopy(targets, first, into, 0, degree);
+        return degree;
+    }
+
+    @Override
+    public long sizeInBytes() {
+        return 8L * lons.length + 8L * lats.length + 4L * offsets.length + 4L * targets.length;
+    }
+
+    /** The first edge leaving vertex v. */
+    int firstEdge(int v) {
+        return offsets[v];
+    }
+
+    /** One past the last edge leaving vertex v. */
+    int endEdge(int v) {
+        return offsets[v + 1];
+    }
+
+    /** The vertex edge e leads to. */
+    int target(int e) {
+        return targets[e];
+    }
+}
@@ -0,0 +1,334 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Prefix index over the cleaned names of all named locations. The distinct cleaned names
+ * are kept in one sorted array, so the names matching a prefix always form a contiguous
+ * range [lo, hi) of it, found with two binary searches.
+ *
+ * Incremental search: every result carries an opaque cursor naming the matched range.
+ * When the user types one more character, the client sends the new term with the old
+ * cursor and the search narrows from that range instead of starting over. Short prefixes,
+ * which almost every query passes through, are additionally served from a small cache.
+ */
+public class Autocomplete {
+
+    /** Prefixes up to this length have their results cached. */
+    private static final int CACHED_PREFIX_LENGTH = 3;
+    /** Maximum number of cached prefixes. */
+    private static final int CACHE_SIZE = 4096;
+    /** Number of leading matches kept for each cached prefix. */
+    private static final int CACHED_WINDOW = 50;
+
+    private static final AtomicInteger GENERATIONS = new AtomicInteger();
+
+    private final NameDictionary names;
+    /** Distinct cleaned names of all locations, sorted. */
+    private final String[] keys;
+    /** Full names of keys[i] are nameIds[nameOffsets[i]] until nameIds[nameOffsets[i + 1]]. */
+    private final int[] nameOffsets;
+    private final int[] nameIds;
+    /** Distinguishes cursors of this index from those of an index over another graph. */
+    private final int generation = GENERATIONS.incrementAndGet();
+
+    private final Map<String, Result> cache = new LinkedHashMap<String, Result>(256, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Result> eldest) {
+            return size() > CACHE_SIZE;
+        }
+    };
+
+    /**
+     * Builds the index over all records.
+     * @param names The dictionary the records' names belong to.
+     * @param records The named locations.
+     */
+    public Autocomplete(NameDictionary names, LocationRecords records) {
+        this.names = names;
+
+        /* Distinct full names of each cleaned name, in first-seen order. */
+        int[] firstName = new int[names.cleanedSize()];
+        Arrays.fill(firstName, -1);
+        boolean[] seenName = new boolean[names.size()];
+        List<List<Integer>> byCleaned = new ArrayList<>();
+        List<Integer> cleanedIds = new ArrayList<>();
+        for (int r = 0; r < records.size(); r++) {
+            int nameId = records.nameId(r);
+            if (seenName[nameId]) {
+                continue;
+            }
+            seenName[nameId] = true;
+            int c = names.cleanedId(nameId);
+            if (firstName[c] == -1) {
+                firstName[c] = byCleaned.size();
+                byCleaned.add(new ArrayList<>());
+                cleanedIds.add(c);
+            }
+            byCleaned.get(firstName[c]).add(nameId);
+        }
+
+        Integer[] order = new Integer[cleanedIds.size()];
+        for (int i = 0; i < order.length; i++) {
+            order[i] = i;
+        }
+        Arrays.sort(order, (a, b) -> names.cleaned(cleanedIds.get(a))
+                .compareTo(names.cleaned(cleanedIds.get(b))));
+
+        keys = new String[order.length];
+        nameOffsets = new int[order.length + 1];
+        int total = 0;
+        for (List<Integer> l : byCleaned) {
+            total += l.size();
+        }
+        nameIds = new int[total];
+        int pos = 0;
+        for (int i = 0; i < order.length; i++) {
+            keys[i] = names.cleaned(cleanedIds.get(order[i]));
+            nameOffsets[i] = pos;
+            for (int nameId : byCleaned.get(order[i])) {
+                nameIds[pos++] = nameId;
+            }
+        }
+        nameOffsets[order.length] = pos;
+    }
+
+    private Autocomplete(NameDictionary names, String[] keys, int[] nameOffsets,
+                         int[] nameIds) {
+        this.names = names;
+        this.keys = keys;
+        this.nameOffsets = nameOffsets;
+        this.nameIds = nameIds;
+    }
+
+    /**
+     * This index with some names taken out and others put in, e.g. after changes to the
+     * locations, built by merging instead of sorting all names again. Names put in follow
+     * the names of the same cleaned name already there. This index is not modified, and
+     * its cursors do not carry over.
+     * @param names The dictionary after the change, which gives the names of this index
+     *              the ids they have here, e.g. a copy of the one this index was built with.
+     * @param removed Ids of the names no location has any more.
+     * @param added Ids of the names only locations after the change have.
+     * @return The index after the change.
+     */
+    Autocomplete withNames(NameDictionary names, int[] removed, int[] added) {
+        int[] gone = removed.clone();
+        Arrays.sort(gone);
+        Integer[] order = new Integer[added.length];
+        for (int i = 0; i < order.length; i++) {
+            order[i] = added[i];
+        }
+        Arrays.sort(order, (a, b) -> cleaned(names, a).compareTo(cleaned(names, b)));
+
+        String[] newKeys = new String[keys.length + order.length];
+        int[] newOffsets = new int[newKeys.length + 1];
+        int[] newIds = new int[nameIds.length + order.length];
+        int k = 0;
+        int pos = 0;
+        int a = 0;
+        for (int i = 0; i <= keys.length; i++) {
+            /* Cleaned names only added names have, before keys[i]. */
+            while (a < order.length
+                    && (i == keys.length || cleaned(names, order[a]).compareTo(keys[i]) < 0)) {
+                String key = cleaned(names, order[a]);
+                newKeys[k] = key;
+                newOffsets[k++] = pos;
+                while (a < order.length && cleaned(names, order[a]).equals(key)) {
+                    newIds[pos++] = order[a++];
+                }
+            }
+            if (i == keys.length) {
+                break;
+            }
+            int start = pos;
+            for (int n = nameOffsets[i]; n < nameOffsets[i + 1]; n++) {
+                if (Arrays.binarySearch(gone, nameIds[n]) < 0) {
+                    newIds[pos++] = nameIds[n];
+                }
+            }
+            while (a < order.length && cleaned(names, order[a]).equals(keys[i])) {
+                newIds[pos++] = order[a++];
+            }
+            if (pos > start) {
+                newKeys[k] = keys[i];
+                newOffsets[k++] = start;
+            }
+        }
+        newOffsets[k] = pos;
+        return new Autocomplete(names, Arrays.copyOf(newKeys, k),
+                Arrays.copyOf(newOffsets, k + 1), Arrays.copyOf(newIds, pos));
+    }
+
+    private static String cleaned(NameDictionary names, int nameId) {
+        return names.cleaned(names.cleanedId(nameId));
+    }
+
+    /**
+     * Collects the full names of every location whose cleaned name starts with prefix.
+     * @param prefix An already cleaned prefix.
+     * @return The matching full names, ordered by cleaned name.
+     */
+    List<String> matches(String prefix) {
+        if (prefix.isEmpty()) {
+            return new ArrayList<>();
+        }
+        int lo = lowerBound(prefix, 0, keys.length);
+        int hi = upperBound(prefix, lo, keys.length);
+        return collect(lo, hi, 0, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Prefix search that can continue from an earlier one.
+     * @param prefix An already cleaned prefix.
+     * @param cursor The cursor of the previous search in this session, or null. It is
+     *               only used if prefix extends the prefix that cursor was made for.
+     * @param offset Index of the first match to return.
+     * @param limit Maximum number of matches to return.
+     * @return The requested window of matches with a cursor for the next keystroke.
+     */
+    Result search(String prefix, String cursor, int offset, int limit) {
+        if (prefix.isEmpty()) {
+            return new Result(encode(0, 0, 0), new ArrayList<>(), 0);
+        }
+        boolean cacheable = prefix.length() <= CACHED_PREFIX_LENGTH;
+        if (cacheable && offset + limit <= CACHED_WINDOW) {
+            Result cached;
+            synchronized (cache) {
+                cached = cache.get(prefix);
+            }
+            if (cached != null) {
+                return cached.window(offset, limit);
+            }
+        }
+
+        int from = 0;
+        int to = keys.length;
+        int[] range = decode(cursor);
+        if (range != null && range[0] < range[1] && range[2] <= prefix.length()
+                && prefix.startsWith(keys[range[0]].substring(0, range[2]))) {
+            from = range[0];
+            to = range[1];
+        }
+        int lo = lowerBound(prefix, from, to);
+        int hi = upperBound(prefix, lo, to);
+
+        if (cacheable) {
+            Result full = new Result(encode(lo, hi, prefix.length()),
+                    collect(lo, hi, 0, CACHED_WINDOW), count(lo, hi));
+            synchronized (cache) {
+                cache.put(prefix, full);
+            }
+            if (offset + limit <= CACHED_WINDOW) {
+                return full.window(offset, limit);
+            }
+        }
+        return new Result(encode(lo, hi, prefix.length()), collect(lo, hi, offset, limit),
+                count(lo, hi));
+    }
+
+    /** First index in [from, to) whose key is not less than prefix. */
+    private int lowerBound(String prefix, int from, int to) {
+        int lo = from;
+        int hi = to;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (keys[mid].compareTo(prefix) < 0) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+
+    /** First index in [from, to) whose key does not start with prefix; keys[from] >= prefix. */
+    private int upperBound(String prefix, int from, int to) {
+        int lo = from;
+        int hi = to;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (keys[mid].startsWith(prefix)) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+
+    private int count(int lo, int hi) {
+        return nameOffsets[hi] - nameOffsets[lo];
+    }
+
+    private List<String> collect(int lo, int hi, int offset, int limit) {
+        List<String> result = new ArrayList<>();
+        int start = nameOffsets[lo] + offset;
+        int end = (int) Math.min((long) start + limit, nameOffsets[hi]);
+        for (int i = start; i < end; i++) {
+            result.add(names.name(nameIds[i]));
+        }
+        return result;
+    }
+
+    private String encode(int lo, int hi, int length) {
+        return Integer.toString(generation, 36) + "." + Integer.toString(lo, 36) + "."
+                + Integer.toString(hi, 36) + "." + Integer.toString(length, 36);
+    }
+
+    /** Returns {lo, hi, prefix length} of a cursor from this index, or null. */
+    private int[] decode(String cursor) {
+        if (cursor == null) {
+            return null;
+        }
+        String[] parts = cursor.split("\\.");
+        if (parts.length != 4) {
+            return null;
+        }
+        try {
+            if (Integer.parseInt(parts[0], 36) != generation) {
+                return null;
+            }
+            int lo = Integer.parseInt(parts[1], 36);
+            int hi = Integer.parseInt(parts[2], 36);
+            int length = Integer.parseInt(parts[3], 36);
+            if (lo < 0 || hi > keys.length || lo > hi || length < 0
+                    || (lo < hi && length > keys[lo].length())) {
+                return null;
+            }
+            return new int[]{lo, hi, length};
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    /**
+     * One window of prefix search results. Serialized as the /search response in
+     * session mode.
+     */
+    static class Result {
+        /** Opaque cursor to send along with the next, longer, prefix. */
+        final String cursor;
+        /** The full names in the requested window. */
+        final List<String> matches;
+        /** Total number of matches for the prefix. */
+        final int total;
+
+        Result(String cursor, List<String> matches, int total) {
+            this.cursor = cursor;
+            this.matches = matches;
+            this.total = total;
+        }
+
+        private Result window(int offset, int limit) {
+            int from = Math.min(offset, matches.size());
+            int to = (int) Math.min((long) from + limit, matches.size());
+            return new Result(cursor, Collections.unmodifiableList(matches.subList(from, to)),
+                    total);
+        }
+    }
+}
@@ -0,0 +1,433 @@
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.nio.ShortBuffer;
+
+/**
+ * Fixed-length columns of primitives, which the parts of a GraphDB that grow with the map
+ * are made of: its edge columns, its OSM id index, the contracted graph and its
+ * customizations, the component labels and the segment indexes. HEAP keeps the columns
+ * in arrays. OFF_HEAP keeps them in direct buffers outside the heap, like
+ * OffHeapGraphStorage, so that neither the heap nor the work of the garbage collector
+ * grows with the map; reads cost about the same. Which one a graph uses follows its
+ * GraphDB.StorageFormat, see of.
+ *
+ * Columns start out zeroed. Several threads may fill one at once as long as they write to
+ * different indices; once filled, any number of threads may read it.
+ */
+public abstract class Columns {
+
+    /** Columns in arrays on the heap. */
+    static final Columns HEAP = new Heap();
+    /**
+     * Columns in direct buffers. The JVM caps direct memory with -XX:MaxDirectMemorySize,
+     * which defaults to the maximum heap size; raise it for large regions. Each column
+     * holds at most 2 GB. The memory is released when the column is collected.
+     */
+    static final Columns OFF_HEAP = new OffHeap();
+
+    /** The columns of graphs stored in format. */
+    static Columns of(GraphDB.StorageFormat format) {
+        return format == GraphDB.StorageFormat.OFF_HEAP ? OFF_HEAP : HEAP;
+    }
+
+    abstract Ints ints(int length);
+
+    abstract Longs longs(int length);
+
+    abstract Bytes bytes(int length);
+
+    abstract Doubles doubles(int length);
+
+    /** A column of doubles held at single precision, i.e. rounded to the nearest float. */
+    abstract Doubles floats(int length);
+
+    /**
+     * A column of doubles held as 16-bit fixed-point numbers, i.e. rounded to the nearest
+     * multiple of 1 / scale, which must stay within 32767 of them from 0.
+     */
+    abstract Doubles fixedPoint(int length, double scale);
+
+    /** A column holding values. HEAP takes ownership of values instead of copying them. */
+    Ints ints(int[] values) {
+        Ints column = ints(values.length);
+        for (int i = 0; i < values.length; i++) {
+            column.set(i, values[i]);
+        }
+        return column;
+    }
+
+    /** A column holding values. HEAP takes ownership of values instead of copying them. */
+    Bytes bytes(byte[] values) {
+        Bytes column = bytes(values.length);
+        for (int i = 0; i < values.length; i++) {
+            column.set(i, values[i]);
+        }
+        return column;
+    }
+
+    /** A column holding values. HEAP takes ownership of values instead of copying them. */
+    Doubles doubles(double[] values) {
+        Doubles column = doubles(values.length);
+        for (int i = 0; i < values.length; i++) {
+            column.set(i, values[i]);
+        }
+        return column;
+    }
+
+    abstract static class Ints {
+        abstract int get(int i);
+
+        abstract void set(int i, int value);
+
+        abstract int length();
+
+        long sizeInBytes() {
+            return 4L * length();
+        }
+    }
+
+    abstract static class Longs {
+        abstract long get(int i);
+
+        abstract void set(int i, long value);
+
+        abstract int length();
+
+        /** Sets every element to value. */
+        void fill(long value) {
+            for (int i = length() - 1; i >= 0; i--) {
+                set(i, value);
+            }
+        }
+
+        long sizeInBytes() {
+            return 8L * length();
+        }
+    }
+
+    abstract static class Bytes {
+        abstract byte get(int i);
+
+        abstract void set(int i, byte value);
+
+        abstract int length();
+
+        long sizeInBytes() {
+            return length();
+        }
+    }
+
+    abstract static class Doubles {
+        abstract double get(int i);
+
+        /** Sets element i to value, or to the nearest value the column can hold. */
+        abstract void set(int i, double value);
+
+        abstract int length();
+
+        long sizeInBytes() {
+            return 8L * length();
+        }
+    }
+
+    private static class Heap extends Columns {
+        @Override
+        Ints ints(int length) {
+            return ints(new int[length]);
+        }
+
+        @Override
+        Ints ints(int[] values) {
+            return new Ints() {
+                @Override
+                int get(int i) {
+                    return values[i];
+                }
+
+                @Override
+                void set(int i, int value) {
+                    values[i] = value;
+                }
+
+                @Override
+                int length() {
+                    return values.length;
+                }
+            };
+        }
+
+        @Override
+        Longs longs(int length) {
+            long[] values = new long[length];
+            return new Longs() {
+                @Override
+                long get(int i) {
+                    return values[i];
+                }
+
+                @Override
+                void set(int i, long value) {
+                    values[i] = value;
+                }
+
+                @Override
+                int length() {
+                    return values.length;
+                }
+            };
+        }
+
+        @Override
+        Bytes bytes(int length) {
+            return bytes(new byte[length]);
+        }
+
+        @Override
+        Bytes bytes(byte[] values) {
+            return new Bytes() {
+                @Override
+                byte get(int i) {
+                    return values[i];
+                }
+
+                @Override
+                void set(int i, byte value) {
+                    values[i] = value;
+                }
+
+                @Override
+                int length() {
+                    return values.length;
+                }
+            };
+        }
+
+        @Override
+        Doubles doubles(int length) {
+            return doubles(new double[length]);
+        }
+
+        @Override
+        Doubles doubles(double[] values) {
+            return new Doubles() {
+                @Override
+                double get(int i) {
+                    return values[i];
+                }
+
+                @Override
+                void set(int i, double value) {
+                    values[i] = value;
+                }
+
+                @Override
+                int length() {
+                    return values.length;
+                }
+            };
+        }
+
+        @Override
+        Doubles floats(int length) {
+            float[] values = new float[length];
+            return new Doubles() {
+                @Override
+                double get(int i) {
+                    return values[i];
+                }
+
+                @Override
+                void set(int i, double value) {
+                    values[i] = (float) value;
+                }
+
+                @Override
+                int length() {
+                    return values.length;
+                }
+
+                @Override
+                long sizeInBytes() {
+                    return 4L * values.length;
+                }
+            };
+        }
+
+        @Override
+        Doubles fixedPoint(int length, double scale) {
+            short[] values = new short[length];
+            return new Doubles() {
+                @Override
+                double get(int i) {
+                    return values[i] / scale;
+                }
+
+                @Override
+                void set(int i, double value) {
+                    values[i] = (short) Math.round(value * scale);
+                }
+
+                @Override
+                int length() {
+                    return values.length;
+                }
+
+                @Override
+                long sizeInBytes() {
+                    return 2L * values.length;
+                }
+            };
+        }
+    }
+
+    private static class OffHeap extends Columns {
+        @Override
+        Ints ints(int length) {
+            IntBuffer values = allocate(length, 4).asIntBuffer();
+            return new Ints() {
+                @Override
+                int get(int i) {
+                    return values.get(i);
+                }
+
+                @Override
+                void set(int i, int value) {
+                    values.put(i, value);
+                }
+
+                @Override
+                int length() {
+                    return values.capacity();
+                }
+            };
+        }
+
+        @Override
+        Longs longs(int length) {
+            LongBuffer values = allocate(length, 8).asLongBuffer();
+            return new Longs() {
+                @Override
+                long get(int i) {
+                    return values.get(i);
+                }
+
+                @Override
+                void set(int i, long value) {
+                    values.put(i, value);
+                }
+
+                @Override
+                int length() {
+                    return values.capacity();
+                }
+            };
+        }
+
+        @Override
+        Bytes bytes(int length) {
+            ByteBuffer values = allocate(length, 1);
+            return new Bytes() {
+                @Override
+                byte get(int i) {
+                    return values.get(i);
+                }
+
+                @Override
+                void set(int i, byte value) {
+                    values.put(i, value);
+                }
+
+                @Override
+                int length() {
+                    return values.capacity();
+                }
+            };
+        }
+
+        @Override
+        Doubles doubles(int length) {
+            DoubleBuffer values = allocate(length, 8).asDoubleBuffer();
+            return new Doubles() {
+                @Override
+                double get(int i) {
+                    return values.get(i);
+                }
+
+                @Override
+                void set(int i, double value) {
+                    values.put(i, value);
+                }
+
+                @Override
+                int length() {
+                    return values.capacity();
+                }
+            };
+        }
+
+        @Override
+        Doubles floats(int length) {
+            FloatBuffer values = allocate(length, 4).asFloatBuffer();
+            return new Doubles() {
+                @Override
+                double get(int i) {
+                    return values.get(i);
+                }
+
+                @Override
+                void set(int i, double value) {
+                    values.put(i, (float) value);
+                }
+
+                @Override
+                int length() {
+                    return values.capacity();
+                }
+
+                @Override
+                long sizeInBytes() {
+                    return 4L * values.capacity();
+                }
+            };
+        }
+
+        @Override
+        Doubles fixedPoint(int length, double scale) {
+            ShortBuffer values = allocate(length, 2).asShortBuffer();
+            return new Doubles() {
+                @Override
+                double get(int i) {
+                    return values.get(i) / scale;
+                }
+
+                @Override
+                void set(int i, double value) {
+                    values.put(i, (short) Math.round(value * scale));
+                }
+
+                @Override
+                int length() {
+                    return values.capacity();
+                }
+
+                @Override
+                long sizeInBytes() {
+                    return 2L * values.capacity();
+                }
+            };
+        }
+
+        private static ByteBuffer allocate(int length, int width) {
+            long bytes = (long) length * width;
+            if (bytes > Integer.MAX_VALUE) {
+                throw new IllegalArgumentException("Graph column of " + bytes
+                        + " bytes exceeds the 2 GB a buffer can hold");
+            }
+            return ByteBuffer.allocateDirect((int) bytes).order(ByteOrder.nativeOrder());
+        }
+    }
+}
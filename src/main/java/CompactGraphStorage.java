@@ -0,0 +1,196 @@
+import java.util.Arrays;
+
+/**
+ * The compact layout, for fitting large regions into the heap.
+ *
+ * Coordinates are fixed-point ints in units of 1e-7 degrees (about a centimeter), the
+ * precision OSM itself stores, relative to the center of the MapServer root tile.
+ * Longitudes wrap around the antimeridian, so any point on earth fits. Coordinates read
+ * from OSM files come back exactly; use quantizeLon and quantizeLat to round others to
+ * what this layout can hold before deriving anything from them.
+ *
+ * Each adjacency list is sorted and written as varints: the first neighbor as the
+ * zigzag-coded difference to the vertex itself, every further one as the difference to
+ * the one before. Vertices numbered along a space-filling curve have nearby neighbors,
+ * so most lists take a byte or two per edge instead of four.
+ */
+public class CompactGraphStorage implements GraphStorage {
+
+    /** Fixed-point units per degree. */
+    private static final double SCALE = 1e7;
+    /** Fixed-point units around the earth. */
+    private static final long TURN = 360L * 10_000_000;
+    private static final long CENTER_LON =
+            Math.round((MapServer.ROOT_ULLON + MapServer.ROOT_LRLON) / 2 * SCALE);
+    private static final long CENTER_LAT =
+            Math.round((MapServer.ROOT_ULLAT + MapServer.ROOT_LRLAT) / 2 * SCALE);
+
+    private final int[] lons;
+    private final int[] lats;
+    /** The adjacency list of v is the bytes from adjacency[offsets[v]] on. */
+    private final int[] offsets;
+    /** The number of neighbors of each vertex; degrees beyond 255 are capped, see degree. */
+    private final byte[] degrees;
+    private final byte[] adjacency;
+    private final int maxDegree;
+
+    /**
+     * Encodes another layout.
+     * @param plain The layout to encode; its coordinates should be quantized already.
+     */
+    CompactGraphStorage(GraphStorage plain) {
+        int n = plain.numVertices();
+        lons = new int[n];
+        lats = new int[n];
+        offsets = new int[n + 1];
+        degrees = new byte[n];
+        maxDegree = plain.maxDegree();
+
+        int[] neighbors = new int[maxDegree];
+        byte[] bytes = new byte[Math.max(16, n * 4)];
+        int size = 0;
+        for (int v = 0; v < n; v++) {
+            lons[v] = encodeLon(plain.lon(v));
+            lats[v] = encodeLat(plain.lat(v));
+
+            int degree = plain.neighbors(v, neighbors);
+            Arrays.sort(neighbors, 0, degree);
+            degrees[v] = (byte) Math.min(degree, 255);
+            if (size + 5 * (degree + 1) > bytes.length) {
+                bytes = Arrays.copyOf(bytes, Math.max(bytes.length * 2, size + 5 * (degree + 1)));
+            }
+            offsets[v] = size;
+            if (degree >= 255) {
+                size = writeVarint(bytes, size, degree);
+            }
+            int previous = v;
+            for (int i = 0; i < degree; i++) {
+                int delta = neighbors[i] - previous;
+                size = writeVarint(bytes, size, i == 0 ? (delta << 1) ^ (delta >> 31) : delta);
+                previous = neighbors[i];
+            }
+        }
+        offsets[n] = size;
+        adjacency = Arrays.copyOf(bytes, size);
+    }
+
+    private static int writeVarint(byte[] bytes, int at, int value) {
+        while ((value & ~0x7f) != 0) {
+            bytes[at++] = (byte) (value & 0x7f | 0x80);
+            value >>>= 7;
+        }
+        bytes[at++] = (byte) value;
+        return at;
+    }
+
+    /**
+     * Rounds a longitude to the nearest one the compact layout can hold.
+     */
+    static double quantizeLon(double lon) {
+        return decodeLon(encodeLon(lon));
+    }
+
+    /**
+     * Rounds a latitude to the nearest one the compact layout can hold.
+     */
+    static double quantizeLat(double lat) {
+        return decodeLat(encodeLat(lat));
+    }
+
+    private static int encodeLon(double lon) {
+        /* Wrap into [-180, 180) degrees from the center, so the offset fits an int. */
+        return (int) (Math.floorMod(Math.round(lon * SCALE) - CENTER_LON + TURN / 2, TURN)
+                - TURN / 2);
+    }
+
+    private static double decodeLon(int fixed) {
+        long lon = CENTER_LON + fixed;
+        if (lon > TURN / 2) {
+            lon -= TURN;
+        } else if (lon < -TURN / 2) {
+            lon += TURN;
+        }
+        return lon / SCALE;
+    }
+
+    private static int encodeLat(double lat) {
+        return (int) (Math.round(lat * SCALE) - CENTER_LAT);
+    }
+
+    private static double decodeLat(int fixed) {
+        return (CENTER_LAT + fixed) / SCALE;
+    }
+
+    @Override
+    public int numVertices() {
+        return lons.length;
+    }
+
+    @Override
+    public double lon(int v) {
+        return decodeLon(lons[v]);
+    }
+
+    @Override
+    public double lat(int v) {
+        return decodeLat(lats[v]);
+    }
+
+    @Override
+    public int degree(int v) {
+        int degree = degrees[v] & 0xff;
+        if (degree < 255) {
+            return degree;
+        }
+        /* Large degrees are written in front of the list. */
+        int at = offsets[v];
+        int value = 0;
+        for (int shift = 0; ; shift += 7) {
+            byte b = adjacency[at++];
+            value |= (b & 0x7f) << shift;
+            if (b >= 0) {
+                return value;
+            }
+        }
+    }
+
+    @Override
+    public int maxDegree() {
+        return maxDegree;
+    }
+
+    @Override
+    public int neighbors(int v, int[] into) {
+        int at = offsets[v];
+        int degree = degrees[v] & 0xff;
+        if (degree == 255) {
+            degree = degree(v);
+            while (adjacency[at++] < 0) {
+                /* Skip the degree. */
+            }
+        }
+        int previous = v;
+        for (int i = 0; i < degree; i++) {
+            int value = adjacency[at++];
+            if (value < 0) {
+                value &= 0x7f;
+                for (int shift = 7; ; shift += 7) {
+                    byte b = adjacency[at++];
+                    value |= (b & 0x7f) << shift;
+                    if (b >= 0) {
+                        break;
+                    }
+                }
+            }
+            previous += i == 0 ? (value >>> 1) ^ -(value & 1) : value;
+            into[i] = previous;
+        }
+        return degree;
+    }
+
+    @Override
+    public long sizeInBytes() {
+        return 4L * lons.length + 4L * lats.length + 4L * offsets.length + degrees.length
+                + adjacency.length;
+    }
+}
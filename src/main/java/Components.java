@@ -0,0 +1,229 @@
+import java.util.Arrays;
+
+/**
+ * Connected-component labels of the vertices of a GraphDB. clean() only removes isolated
+ * nodes, so the graph may still fall apart into several pieces, e.g. a parking lot loop
+ * whose connecting driveway is not an allowed highway type.
+ *
+ * Weak components ignore edge directions; no path connects vertices in different weak
+ * components. Strong components follow them; every vertex of a strong component can
+ * reach every other. The graph's edges all come in pairs today, so both labelings agree,
+ * but only the strong one stays exact once edges become one-way.
+ *
+ * Components are numbered densely from 0, each in order of its lowest vertex.
+ */
+public class Components {
+
+    private final Columns.Ints weak;
+    private final Columns.Ints weakSizes;
+    private final int largestWeak;
+    private final Columns.Ints strong;
+    private final int numStrong;
+
+    /**
+     * Labels the vertices of g. Takes time linear in its size.
+     * @param g The graph to label, in the plain layout it is built in.
+     * @param columns Where to keep the labels.
+     */
+    Components(ArrayGraphStorage g, Columns columns) {
+        int[] weakLabels = weakComponents(g);
+        int numWeak = 0;
+        for (int label : weakLabels) {
+            numWeak = Math.max(numWeak, label + 1);
+        }
+        int[] sizes = new int[numWeak];
+        for (int label : weakLabels) {
+            sizes[label]++;
+        }
+        int largest = 0;
+        for (int c = 1; c < numWeak; c++) {
+            if (sizes[c] > sizes[largest]) {
+                largest = c;
+            }
+        }
+        largestWeak = largest;
+        weak = columns.ints(weakLabels);
+        weakSizes = columns.ints(sizes);
+
+        int[] strongLabels = strongComponents(g);
+        int count = 0;
+        for (int label : strongLabels) {
+            count = Math.max(count, label + 1);
+        }
+        numStrong = count;
+        strong = columns.ints(strongLabels);
+    }
+
+    /** Labels weak components by breadth-first search over the edges in both directions. */
+    private static int[] weakComponents(ArrayGraphStorage g) {
+        int n = g.numVertices();
+        /* Following edges backwards needs the reverse adjacency. */
+        int[] reverseOffsets = new int[n + 1];
+        for (int v = 0; v < n; v++) {
+            for (int e = g.firstEdge(v); e < g.endEdge(v); e++) {
+                reverseOffsets[g.target(e) + 1]++;
+            }
+        }
+        for (int v = 0; v < n; v++) {
+            reverseOffsets[v + 1] += reverseOffsets[v];
+        }
+        int[] reverseTargets = new int[reverseOffsets[n]];
+        int[] fill = Arrays.copyOf(reverseOffsets, n);
+        for (int v = 0; v < n; v++) {
+            for (int e = g.firstEdge(v); e < g.endEdge(v); e++) {
+                reverseTargets[fill[g.target(e)]++] = v;
+            }
+        }
+
+        int[] labels = new int[n];
+        Arrays.fill(labels, -1);
+        int[] queue = new int[n];
+        int numLabels = 0;
+        for (int root = 0; root < n; root++) {
+            if (labels[root] >= 0) {
+                continue;
+            }
+            int label = numLabels++;
+            labels[root] = label;
+            int head = 0;
+            int tail = 0;
+            queue[tail++] = root;
+            while (head < tail) {
+                int v = queue[head++];
+                for (int e = g.firstEdge(v); e < g.endEdge(v); e++) {
+                    int w = g.target(e);
+                    if (labels[w] < 0) {
+                        labels[w] = label;
+                        queue[tail++] = w;
+                    }
+                }
+                for (int i = reverseOffsets[v]; i < reverseOffsets[v + 1]; i++) {
+                    int w = reverseTargets[i];
+                    if (labels[w] < 0) {
+                        labels[w] = label;
+                        queue[tail++] = w;
+                    }
+                }
+            }
+        }
+        return labels;
+    }
+
+    /**
+     * Labels strong components with Tarjan's algorithm, run iteratively so that long
+     * roads do not overflow the call stack.
+     */
+    private static int[] strongComponents(ArrayGraphStorage g) {
+        int n = g.numVertices();
+        int[] index = new int[n];
+        int[] low = new int[n];
+        Arrays.fill(index, -1);
+        int[] labels = new int[n];
+        Arrays.fill(labels, -1);
+
+        int[] stack = new int[n];
+        int stackSize = 0;
+        /* The depth-first path: vertices and the next edge to try at each. */
+        int[] path = new int[n];
+        int[] nextEdge = new int[n];
+        int depth;
+        int counter = 0;
+        int numLabels = 0;
+        int[] order = new int[n];
+
+        for (int root = 0; root < n; root++) {
+            if (index[root] >= 0) {
+                continue;
+            }
+            depth = 0;
+            path[0] = root;
+            nextEdge[0] = g.firstEdge(root);
+            index[root] = counter;
+            low[root] = counter++;
+            stack[stackSize++] = root;
+
+            while (depth >= 0) {
+                int v = path[depth];
+                if (nextEdge[depth] < g.endEdge(v)) {
+                    int w = g.target(nextEdge[depth]++);
+                    if (index[w] < 0) {
+                        index[w] = counter;
+                        low[w] = counter++;
+                        stack[stackSize++] = w;
+                        depth++;
+                        path[depth] = w;
+                        nextEdge[depth] = g.firstEdge(w);
+                    } else if (labels[w] < 0) {
+                        low[v] = Math.min(low[v], index[w]);
+                    }
+                    continue;
+                }
+                if (low[v] == index[v]) {
+                    /* v is the root of a strong component; it is what is above v on the
+                    stack. Tarjan finds components in reverse topological order, so they
+                    are renumbered below. */
+                    int w;
+                    do {
+                        w = stack[--stackSize];
+                        labels[w] = numLabels;
+                    } while (w != v);
+                    numLabels++;
+                }
+                depth--;
+                if (depth >= 0) {
+                    int parent = path[depth];
+                    low[parent] = Math.min(low[parent], low[v]);
+                }
+            }
+        }
+
+        /* Number the components in order of their lowest vertex. */
+        Arrays.fill(order, -1);
+        int next = 0;
+        for (int v = 0; v < n; v++) {
+            if (order[labels[v]] < 0) {
+                order[labels[v]] = next++;
+            }
+            labels[v] = order[labels[v]];
+        }
+        return labels;
+    }
+
+    /** The weak component of vertex v. */
+    int weak(int v) {
+        return weak.get(v);
+    }
+
+    /** The strong component of vertex v. */
+    int strong(int v) {
+        return strong.get(v);
+    }
+
+    /** Number of weak components. */
+    int numWeak() {
+        return weakSizes.length();
+    }
+
+    /** Number of strong components. */
+    int numStrong() {
+        return numStrong;
+    }
+
+    /** Number of vertices in weak component c. */
+    int weakSize(int c) {
+        return weakSizes.get(c);
+    }
+
+    /** The weak component with the most vertices; the lowest such if there are several. */
+    int largestWeak() {
+        return largestWeak;
+    }
+
+    /**
+     * Whether a path from vertex v to vertex w might exist. If this is false there is
+     * certainly none, so no search is needed to find that out.
+     */
+    boolean mayReach(int v, int w) {
+        return weak.get(v) == weak.get(w);
+    }
+}
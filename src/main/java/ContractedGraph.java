@@ -0,0 +1,563 @@
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.IntStream;
+
+/**
+ * The routing graph of a GraphDB with its chains of degree-2 vertices contracted away.
+ * Most vertices of an OSM road graph are shape points in the middle of a road with
+ * exactly two neighbors; only intersections and dead ends are real decision points.
+ *
+ * The vertices kept are the core vertices: every vertex that does not have exactly two
+ * edges to two distinct other vertices. Each maximal path between core vertices whose
+ * interior consists of degree-2 vertices becomes one shortcut edge, carrying the
+ * interior vertices as its geometry. Every chain is a shortcut in both directions; a
+ * closed ring without any core vertex gets one of its vertices promoted to core.
+ *
+ * Core vertices are numbered densely from 0. Shortcuts leaving core vertex c are
+ * firstEdge(c) until endEdge(c); shortcut e leads to target(e), passing through the
+ * GraphDB vertices via(e, 0) until via(e, viaCount(e)).
+ *
+ * Which shortcuts exist does not depend on what they cost, so routing is prepared in two
+ * phases, as with customizable contraction hierarchies: the contraction is done once
+ * per graph, and customize then weighs the shortcuts for one cost model at a time, in a
+ * single parallel pass over the edges.
+ *
+ * Turns are only possible at core vertices; a chain can only be driven straight through.
+ * Each core vertex therefore has a table of its turns, with one entry for every pair of
+ * an edge arriving and an edge leaving it: the turn class from the angle between them,
+ * see turnClass, or FORBIDDEN_TURN where a turn restriction forbids it. The table takes
+ * one byte per pair, rather than a graph of turns with a vertex per edge; customize
+ * assigns each class its cost.
+ *
+ * For A*, the core vertices are also kept projected onto a plane, scaled so that the
+ * straight-line distance between any two points of the map's bounding box there never
+ * exceeds their great-circle distance; see lowerBound.
+ *
+ * The graph and its customizations are built in arrays and kept in the Columns of the
+ * graph's storage format, so those of an off-heap graph are off the heap.
+ */
+public class ContractedGraph {
+
+    /** Miles per degree of a great circle, on the earth GraphDB.distance assumes. */
+    private static final double MILES_PER_DEGREE = 3963 * Math.PI / 180;
+
+    /** Turn class of turning back onto the edge just arrived on. */
+    static final int U_TURN = Router.NavigationDirection.NUM_DIRECTIONS;
+    /** Turn class of a turn a turn restriction forbids. */
+    static final int FORBIDDEN_TURN = U_TURN + 1;
+    /** Number of turn classes; the others are the NavigationDirection constants. */
+    static final int NUM_TURN_CLASSES = FORBIDDEN_TURN + 1;
+
+    /** Where the graph and its customizations are kept. */
+    private final Columns columns;
+    /** Number of core vertices. */
+    private final int numCore;
+    /** GraphDB vertex of each core vertex. */
+    private final Columns.Ints coreVertex;
+    /** Core vertex of each GraphDB vertex, or -1 if it lies inside a chain. */
+    private final Columns.Ints coreOf;
+
+    /** Shortcuts leaving core vertex c are offsets[c] until offsets[c + 1]. */
+    private final Columns.Ints offsets;
+    /** Target core vertex of each shortcut. */
+    private final Columns.Ints targets;
+    /** Interior vertices of shortcut e are via[viaOffsets[e]] until via[viaOffsets[e + 1]]. */
+    private final Columns.Ints viaOffsets;
+    /** GraphDB vertices inside the shortcuts, in travel order. */
+    private final Columns.Ints via;
+    /**
+     * The GraphDB edges leaving vertex v are firstEdges[v] until firstEdges[v + 1], sorted
+     * by target; see customize for how they give the edges along a shortcut.
+     */
+    private final Columns.Ints firstEdges;
+
+    /** For a vertex inside a chain, the index into via of one of its entries; else -1. */
+    private final Columns.Ints viaIndexOf;
+    /** The shortcut each entry of via belongs to. */
+    private final Columns.Ints viaEdge;
+    /** The shortcut running the opposite way of each shortcut. */
+    private final Columns.Ints reverse;
+
+    /**
+     * Turn classes at core vertex c: arriving on the edge from the i-th neighbor and
+     * leaving to the j-th is turns[turnOffsets[c] + i * degree + j], for its degree.
+     */
+    private final Columns.Ints turnOffsets;
+    private final Columns.Bytes turns;
+
+    /** Miles per degree of longitude and of latitude in the projection. */
+    private final double xScale;
+    private final double yScale;
+    /** Projected coordinates of each core vertex. */
+    private final Columns.Doubles xs;
+    private final Columns.Doubles ys;
+
+    /**
+     * Contracts the graph of g. Takes time linear in its size.
+     * @param g The graph to contract, in the plain layout it is built in, with the edges
+     *          leaving each vertex sorted by target.
+     * @param firstEdges The first edge leaving each vertex of g, as GraphDB keeps them
+     *                   (see GraphDB.firstEdge); kept to find the edges along shortcuts.
+     * @param edgeBearings The initial bearing of each edge of g, see GraphDB.edgeBearing.
+     * @param restrictions The turn restrictions of g; those at vertices that end up inside
+     *                     a chain are ignored, as chains have no turns.
+     * @param columns Where to keep the graph and its customizations.
+     */
+    ContractedGraph(ArrayGraphStorage g, Columns.Ints firstEdges, Columns.Doubles edgeBearings,
+                    List<TurnRestriction> restrictions, Columns columns) {
+        this.columns = columns;
+        this.firstEdges = firstEdges;
+        int n = g.numVertices();
+        int[] coreOf = new int[n];
+        int cores = 0;
+        for (int v = 0; v < n; v++) {
+            coreOf[v] = isChainVertex(g, v) ? -1 : cores++;
+        }
+
+        /* Rings of chain vertices have no core vertex to start from. Mark every chain vertex
+        reachable from a core vertex; what remains are rings, of which one vertex each is
+        promoted to core. */
+        boolean[] reached = new boolean[n];
+        for (int v = 0; v < n; v++) {
+            if (coreOf[v] >= 0) {
+                for (int edge = g.firstEdge(v); edge < g.endEdge(v); edge++) {
+                    markChain(g, v, g.target(edge), coreOf, reached);
+                }
+            }
+        }
+        for (int v = 0; v < n; v++) {
+            if (!reached[v] && coreOf[v] < 0) {
+                coreOf[v] = cores++;
+                markChain(g, v, g.target(g.firstEdge(v)), coreOf, reached);
+            }
+        }
+        numCore = cores;
+        int[] coreVertex = new int[numCore];
+        for (int v = 0; v < n; v++) {
+            if (coreOf[v] >= 0) {
+                coreVertex[coreOf[v]] = v;
+            }
+        }
+
+        /* Every edge leaving a core vertex starts exactly one shortcut. */
+        int[] offsets = new int[numCore + 1];
+        for (int c = 0; c < numCore; c++) {
+            int v = coreVertex[c];
+            offsets[c + 1] = offsets[c] + g.endEdge(v) - g.firstEdge(v);
+        }
+        int numEdges = offsets[numCore];
+        int[] targets = new int[numEdges];
+        int[] viaOffsets = new int[numEdges + 1];
+        int[] reverse = new int[numEdges];
+
+        /* Each chain vertex appears in the two shortcuts through it. The reverse of a
+        shortcut starts with the reverse of its last edge, and the shortcuts leaving a core
+        vertex are in the order of its edges. */
+        int[] viaBuffer = new int[2 * (n - numCore)];
+        int e = 0;
+        int size = 0;
+        for (int c = 0; c < numCore; c++) {
+            int from = coreVertex[c];
+            for (int edge = g.firstEdge(from); edge < g.endEdge(from); edge++, e++) {
+                int previous = from;
+                int current = g.target(edge);
+                int last = edge;
+                while (coreOf[current] < 0) {
+                    viaBuffer[size] = current;
+                    size++;
+                    last = otherEdge(g, current, previous);
+                    previous = current;
+                    current = g.target(last);
+                }
+                targets[e] = coreOf[current];
+                viaOffsets[e + 1] = size;
+                int back = reverseEdge(g, previous, last);
+                reverse[e] = offsets[targets[e]] + back - g.firstEdge(current);
+            }
+        }
+        int[] via = Arrays.copyOf(viaBuffer, size);
+
+        int[] viaIndexOf = new int[n];
+        Arrays.fill(viaIndexOf, -1);
+        int[] viaEdge = new int[size];
+        for (e = 0; e < numEdges; e++) {
+            for (int i = viaOffsets[e]; i < viaOffsets[e + 1]; i++) {
+                viaEdge[i] = e;
+                viaIndexOf[via[i]] = i;
+            }
+        }
+
+        int[] turnOffsets = new int[numCore + 1];
+        for (int c = 0; c < numCore; c++) {
+            int degree = offsets[c + 1] - offsets[c];
+            turnOffsets[c + 1] = turnOffsets[c] + degree * degree;
+        }
+        byte[] turns = new byte[turnOffsets[numCore]];
+        IntStream.range(0, numCore).parallel().forEach(c -> {
+            int first = g.firstEdge(coreVertex[c]);
+            int degree = offsets[c + 1] - offsets[c];
+            for (int i = 0; i < degree; i++) {
+                for (int j = 0; j < degree; j++) {
+                    turns[turnOffsets[c] + i * degree + j] = (byte) (i == j ? U_TURN
+                            : turnClass(edgeBearings.get(first + i),
+                                    edgeBearings.get(first + j)));
+                }
+            }
+        });
+        for (TurnRestriction r : restrictions) {
+            int c = coreOf[r.vertex];
+            if (c < 0) {
+                continue;
+            }
+            int degree = offsets[c + 1] - offsets[c];
+            for (int j = 0; j < degree; j++) {
+                boolean named = false;
+                for (int to : r.to) {
+                    named |= j == to;
+                }
+                if (named != r.only) {
+                    turns[turnOffsets[c] + r.from * degree + j] = FORBIDDEN_TURN;
+                }
+            }
+        }
+
+        double minLon = Double.POSITIVE_INFINITY;
+        double maxLon = Double.NEGATIVE_INFINITY;
+        double minLat = Double.POSITIVE_INFINITY;
+        double maxLat = Double.NEGATIVE_INFINITY;
+        for (int v = 0; v < n; v++) {
+            minLon = Math.min(minLon, g.lon(v));
+            maxLon = Math.max(maxLon, g.lon(v));
+            minLat = Math.min(minLat, g.lat(v));
+            maxLat = Math.max(maxLat, g.lat(v));
+        }
+        /* An equirectangular projection with the smallest scale of longitude anywhere in the
+        box underestimates east-west distances; shrinking it by the relative error of the
+        flat approximation, which grows with the square of the box's extent, makes it a
+        lower bound in every direction. Maps too large for that get a zero bound. */
+        double shrink = 0;
+        if (n > 0) {
+            double spanLon = Math.toRadians(maxLon - minLon);
+            double spanLat = Math.toRadians(maxLat - minLat);
+            shrink = Math.max(0, 1 - (spanLon * spanLon + spanLat * spanLat) / 8);
+        }
+        double cosMin = Math.max(0, Math.min(Math.cos(Math.toRadians(minLat)),
+                Math.cos(Math.toRadians(maxLat))));
+        yScale = shrink * MILES_PER_DEGREE;
+        xScale = yScale * cosMin;
+        double[] xs = new double[numCore];
+        double[] ys = new double[numCore];
+        for (int c = 0; c < numCore; c++) {
+            xs[c] = x(g.lon(coreVertex[c]));
+            ys[c] = y(g.lat(coreVertex[c]));
+        }
+
+        this.coreOf = columns.ints(coreOf);
+        this.coreVertex = columns.ints(coreVertex);
+        this.offsets = columns.ints(offsets);
+        this.targets = columns.ints(targets);
+        this.viaOffsets = columns.ints(viaOffsets);
+        this.via = columns.ints(via);
+        this.viaIndexOf = columns.ints(viaIndexOf);
+        this.viaEdge = columns.ints(viaEdge);
+        this.reverse = columns.ints(reverse);
+        this.turnOffsets = columns.ints(turnOffsets);
+        this.turns = columns.bytes(turns);
+        this.xs = columns.doubles(xs);
+        this.ys = columns.doubles(ys);
+    }
+
+    /**
+     * Weighs the shortcuts for one cost model, by summing the costs of the edges along
+     * each. Takes time linear in the size of the graph and runs in parallel.
+     * @param edgeCosts The cost of each edge of the graph this was contracted from.
+     * @param costPerMile A factor that turns lowerBound into a lower bound on the cost of
+     *                    getting from one vertex to another, see Customization.
+     * @param turnCosts The cost of a turn of each turn class, non-negative; or null to
+     *                  route without turn costs and restrictions.
+     * @return The weighted shortcuts.
+     */
+    Customization customize(double[] edgeCosts, double costPerMile, double[] turnCosts) {
+        Columns.Doubles weights = columns.doubles(numEdges());
+        Columns.Doubles viaCosts = columns.doubles(via.length());
+        IntStream.range(0, numCore).parallel().forEach(c -> {
+            int from = coreVertex.get(c);
+            for (int e = offsets.get(c); e < offsets.get(c + 1); e++) {
+                /* Shortcuts start with the edges of their core vertex in order. A chain
+                vertex has two edges, sorted by target, so the one onwards is the second
+                exactly if it leads to the higher of the two neighbors. */
+                double cost = edgeCosts[firstEdges.get(from) + e - offsets.get(c)];
+                int previous = from;
+                int end = viaOffsets.get(e + 1);
+                for (int i = viaOffsets.get(e); i < end; i++) {
+                    viaCosts.set(i, cost);
+                    int current = via.get(i);
+                    int next = i + 1 < end ? via.get(i + 1) : coreVertex.get(targets.get(e));
+                    cost += edgeCosts[firstEdges.get(current) + (next > previous ? 1 : 0)];
+                    previous = current;
+                }
+                weights.set(e, cost);
+            }
+        });
+        return new Customization(weights, viaCosts, costPerMile, turnCosts);
+    }
+
+    /**
+     * The edge of g running the opposite way of edge, which leaves vertex v. Of several
+     * edges between the same two vertices, the k-th one way is paired with the k-th the
+     * other way, which are the two halves of the same stretch of way.
+     */
+    private static int reverseEdge(ArrayGraphStorage g, int v, int edge) {
+        int w = g.target(edge);
+        int k = 0;
+        while (edge - k > g.firstEdge(v) && g.target(edge - k - 1) == w) {
+            k++;
+        }
+        int back = g.firstEdge(w);
+        while (g.target(back) != v) {
+            back++;
+        }
+        return back + k;
+    }
+
+    /**
+     * The class of the turn from an edge arriving at a vertex onto an edge leaving it.
+     * @param backBearing The bearing of the edge from the vertex back along the arriving
+     *                    edge, so the arriving direction is its opposite.
+     * @param outBearing The bearing of the leaving edge.
+     * @return A NavigationDirection constant other than START.
+     */
+    static int turnClass(double backBearing, double outBearing) {
+        double angle = outBearing - backBearing - 180;
+        angle -= 360 * Math.ceil((angle - 180) / 360);
+        return Router.NavigationDirection.classify(angle);
+    }
+
+    /** Whether v has exactly two edges, to two distinct vertices other than itself. */
+    private static boolean isChainVertex(ArrayGraphStorage g, int v) {
+        int first = g.firstEdge(v);
+        if (g.endEdge(v) - first != 2) {
+            return false;
+        }
+        int a = g.target(first);
+        int b = g.target(first + 1);
+        return a != b && a != v && b != v;
+    }
+
+    /** Marks the chain vertices from current up to the next core vertex as reached. */
+    private static void markChain(ArrayGraphStorage g, int previous, int current, int[] coreOf,
+                                  boolean[] reached) {
+        while (coreOf[current] < 0 && !reached[current]) {
+            reached[current] = true;
+            int next = otherNeighbor(g, current, previous);
+            previous = current;
+            current = next;
+        }
+    }
+
+    /** The neighbor of chain vertex v that is not previous. */
+    private static int otherNeighbor(ArrayGraphStorage g, int v, int previous) {
+        return g.target(otherEdge(g, v, previous));
+    }
+
+    /** The edge leaving chain vertex v that does not lead to previous. */
+    private static int otherEdge(ArrayGraphStorage g, int v, int previous) {
+        int first = g.firstEdge(v);
+        return g.target(first) != previous ? first : first + 1;
+    }
+
+    /** Number of core vertices; they are numbered 0 until numCore(). */
+    int numCore() {
+        return numCore;
+    }
+
+    /** The GraphDB vertex of core vertex c. */
+    int vertex(int c) {
+        return coreVertex.get(c);
+    }
+
+    /** The core vertex of GraphDB vertex v, or -1 if v lies inside a chain. */
+    int coreOf(int v) {
+        return coreOf.get(v);
+    }
+
+    /** The first shortcut leaving core vertex c. */
+    int firstEdge(int c) {
+        return offsets.get(c);
+    }
+
+    /** One past the last shortcut leaving core vertex c. */
+    int endEdge(int c) {
+        return offsets.get(c + 1);
+    }
+
+    /** The core vertex shortcut e leads to. */
+    int target(int e) {
+        return targets.get(e);
+    }
+
+    /** Number of vertices shortcut e passes through between its ends. */
+    int viaCount(int e) {
+        return viaOffsets.get(e + 1) - viaOffsets.get(e);
+    }
+
+    /** The i-th GraphDB vertex shortcut e passes through. */
+    int via(int e, int i) {
+        return via.get(viaOffsets.get(e) + i);
+    }
+
+    /**
+     * @param v A GraphDB vertex inside a chain.
+     * @return A shortcut passing through v; the other one runs the opposite way.
+     */
+    int edgeThrough(int v) {
+        return viaEdge.get(viaIndexOf.get(v));
+    }
+
+    /**
+     * @param v A GraphDB vertex inside a chain.
+     * @return The position of v in edgeThrough(v), see via(int, int).
+     */
+    int positionIn(int v) {
+        int i = viaIndexOf.get(v);
+        return i - viaOffsets.get(viaEdge.get(i));
+    }
+
+    /** Number of shortcuts; they are numbered 0 until numEdges(). */
+    int numEdges() {
+        return targets.length();
+    }
+
+    /** The shortcut along the same chain as shortcut e, in the opposite direction. */
+    int reverse(int e) {
+        return reverse.get(e);
+    }
+
+    /**
+     * The index among the shortcuts leaving target(e) of the one leading back along e, which
+     * identifies e as the arriving edge in turnClass(int, int, int).
+     */
+    int backIndex(int e) {
+        return reverse.get(e) - offsets.get(targets.get(e));
+    }
+
+    /**
+     * The class of a turn at core vertex c: arriving along the reverse of its i-th
+     * shortcut and leaving along its j-th, both counted from firstEdge(c).
+     * @return A NavigationDirection constant other than START, U_TURN, or FORBIDDEN_TURN.
+     */
+    int turnClass(int c, int i, int j) {
+        return turns.get(turnOffsets.get(c) + i * (offsets.get(c + 1) - offsets.get(c)) + j);
+    }
+
+    /** The projected x coordinate of a longitude. */
+    double x(double lon) {
+        return lon * xScale;
+    }
+
+    /** The projected y coordinate of a latitude. */
+    double y(double lat) {
+        return lat * yScale;
+    }
+
+    /**
+     * A lower bound on the great-circle distance in miles from core vertex c to the point
+     * projected to (x, y), which must lie within the graph's bounding box. It is the
+     * distance in the plane, so it obeys the triangle inequality and is a consistent A*
+     * heuristic; computing it takes no trigonometry.
+     */
+    double lowerBound(int c, double x, double y) {
+        double dx = xs.get(c) - x;
+        double dy = ys.get(c) - y;
+        return Math.sqrt(dx * dx + dy * dy);
+    }
+
+    /** The core vertex shortcut e starts at. */
+    int source(int e) {
+        int lo = 0;
+        int hi = numCore;
+        while (hi - lo > 1) {
+            int mid = (lo + hi) >>> 1;
+            if (offsets.get(mid) <= e) {
+                lo = mid;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+
+    /**
+     * A turn restriction at a vertex of the graph a ContractedGraph is built from: turns
+     * from the edge to its from-th neighbor onto the edges to its to-th neighbors are
+     * forbidden, or, if only is set, all other turns from that edge are.
+     */
+    static class TurnRestriction {
+        final int vertex;
+        final int from;
+        final int[] to;
+        final boolean only;
+
+        TurnRestriction(int vertex, int from, int[] to, boolean only) {
+            this.vertex = vertex;
+            this.from = from;
+            this.to = to;
+            this.only = only;
+        }
+    }
+
+    /**
+     * The costs of the shortcuts under one cost model, e.g. a RouteProfile. Shortcut e
+     * costs weight(e); getting from its start to the i-th vertex it passes through costs
+     * viaCost(e, i). Any path from a core vertex c to a point (x, y) costs at least
+     * costPerMile() * lowerBound(c, x, y). If hasTurnCosts(), turning at core vertices
+     * costs turnCost on top, which is infinite for forbidden turns.
+     */
+    class Customization {
+        private final Columns.Doubles weights;
+        private final Columns.Doubles viaCosts;
+        private final double costPerMile;
+        private final double[] turnCosts;
+
+        private Customization(Columns.Doubles weights, Columns.Doubles viaCosts,
+                              double costPerMile,
+                              double[] turnCosts) {
+            this.weights = weights;
+            this.viaCosts = viaCosts;
+            this.costPerMile = costPerMile;
+            if (turnCosts != null) {
+                turnCosts = Arrays.copyOf(turnCosts, NUM_TURN_CLASSES);
+                turnCosts[FORBIDDEN_TURN] = Double.POSITIVE_INFINITY;
+            }
+            this.turnCosts = turnCosts;
+        }
+
+        /** Whether turns cost anything and turn restrictions apply. */
+        boolean hasTurnCosts() {
+            return turnCosts != null;
+        }
+
+        /**
+         * The cost of a turn at core vertex c, see turnClass(int, int, int); 0 if not
+         * hasTurnCosts().
+         */
+        double turnCost(int c, int i, int j) {
+            return turnCosts == null ? 0 : turnCosts[turnClass(c, i, j)];
+        }
+
+        /** The cost of shortcut e. */
+        double weight(int e) {
+            return weights.get(e);
+        }
+
+        /** The cost from the start of shortcut e to the i-th vertex it passes through. */
+        double viaCost(int e, int i) {
+            return viaCosts.get(viaOffsets.get(e) + i);
+        }
+
+        /** The least cost of a path per mile of lowerBound between its ends. */
+        double costPerMile() {
+            return costPerMile;
+        }
+    }
+}
@@ -1,10 +1,10 @@
 import org.xml.sax.Attributes;
 import org.xml.sax.SAXException;
 import org.xml.sax.helpers.DefaultHandler;
-import java.util.Map;
-import java.util.HashMap;
 
-import java.util.*;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
 
 /**
  *  Parses OSM XML files using an XML SAX parser. Used to construct the graph of roads for
@@ -23,6 +23,9 @@ import java.util.*;
  *  element in the file. This is a very common but strange-when-you-first-see it pattern.
  *  It is similar to the Visitor pattern we discussed for graphs.
  *
+ *  Finished nodes and valid ways are handed to an OsmSink; the handler itself only keeps
+ *  the element it is currently inside of.
+ *
  *  @author Alan Yao, Maurice Lee
  */
 public class GraphBuildingHandler extends DefaultHandler {
@@ -32,21 +35,166 @@ public class GraphBuildingHandler extends DefaultHandler {
      * roads, but in practice we walk all over them with such impunity that we forget cars can
      * actually drive on them.
      */
-    private static final Set<String> ALLOWED_HIGHWAY_TYPES = new HashSet<>(Arrays.asList
-            ("motorway", "trunk", "primary", "secondary", "tertiary", "unclassified",
+    private static final List<String> ALLOWED_HIGHWAY_TYPES = Collections.unmodifiableList(
+            Arrays.asList("motorway", "trunk", "primary", "secondary", "tertiary", "unclassified",
                     "residential", "living_street", "motorway_link", "trunk_link", "primary_link",
                     "secondary_link", "tertiary_link"));
+    /**
+     * Speed in km/h assumed on ways of each allowed highway type, in the same order, when
+     * they have no usable maxspeed tag. Typical speeds driven rather than legal limits.
+     */
+    private static final int[] DEFAULT_SPEEDS = {90, 85, 65, 55, 40, 25, 25, 10, 45, 40, 30,
+        25, 20};
+    /** Kilometers per mile, and per nautical mile, for maxspeed units. */
+    private static final double KM_PER_MILE = 1.609344;
+    private static final double KM_PER_NAUTICAL_MILE = 1.852;
+    /** The largest speed in km/h the graph stores; speeds are kept in one unsigned byte. */
+    static final int MAX_SPEED = 255;
+    /**
+     * The values of the restriction tag of turn restriction relations that are used. The
+     * "no_" ones forbid the turn from the from way onto the to way; the "only_" ones forbid
+     * every other turn from the from way.
+     */
+    private static final List<String> TURN_RESTRICTIONS = Collections.unmodifiableList(
+            Arrays.asList("no_left_turn", "no_right_turn", "no_straight_on", "no_u_turn",
+                    "no_entry", "no_exit", "only_left_turn", "only_right_turn",
+                    "only_straight_on", "only_u_turn"));
     private String activeState = "";
-    private final GraphDB g;
-    private static Map<String, String> nodes = new HashMap<>();
-    private static Map<String, ArrayList> way = new HashMap<>();
-    static boolean validRoute = false;
+    private final OsmSink sink;
+
+    /* The node currently being read. */
+    private long nodeId;
+    private double nodeLon;
+    private double nodeLat;
+    private String nodeName = "";
+
+    /* The way currently being read. */
+    private long wayId;
+    private long[] wayRefs = new long[64];
+    private int wayRefCount;
+    private String wayHighway;
+    private String wayName = "";
+    private String wayMaxspeed = "";
+    private boolean validRoute = false;
+
+    /* The relation currently being read, with how often each member role was seen. */
+    private long relationId;
+    private long relationFrom;
+    private long relationVia;
+    private long relationTo;
+    private int relationFroms;
+    private int relationVias;
+    private int relationTos;
+    private boolean relationIsRestriction;
+    private String relationRestriction;
+
     /**
      * Create a new GraphBuildingHandler.
-     * @param g The graph to populate with the XML data.
+     * @param sink The sink to hand nodes and valid ways to.
+     */
+    public GraphBuildingHandler(OsmSink sink) {
+        this.sink = sink;
+    }
+
+    /**
+     * @param highway The value of a way's highway tag.
+     * @return Whether ways of that highway type belong in the graph.
+     */
+    static boolean isAllowedHighway(String highway) {
+        return ALLOWED_HIGHWAY_TYPES.contains(highway);
+    }
+
+    /**
+     * @param highway The value of a way's highway tag.
+     * @return The highway class of that type, i.e. its index in the allowed types, or -1
+     * if ways of that type do not belong in the graph.
+     */
+    static int highwayClass(String highway) {
+        return ALLOWED_HIGHWAY_TYPES.indexOf(highway);
+    }
+
+    /**
+     * @param highwayClass A highway class, see highwayClass(String).
+     * @return The highway type of that class.
+     */
+    static String highwayType(int highwayClass) {
+        return ALLOWED_HIGHWAY_TYPES.get(highwayClass);
+    }
+
+    /** Number of highway classes. */
+    static int numHighwayClasses() {
+        return ALLOWED_HIGHWAY_TYPES.size();
+    }
+
+    /**
+     * @param highwayClass A highway class, see highwayClass(String).
+     * @return The speed in km/h assumed on ways of that class without a maxspeed.
+     */
+    static int defaultSpeed(int highwayClass) {
+        return DEFAULT_SPEEDS[highwayClass];
+    }
+
+    /**
+     * @param restriction The value of a relation's restriction tag.
+     * @return Whether it is a turn restriction the graph uses, see TURN_RESTRICTIONS.
+     */
+    static boolean isTurnRestriction(String restriction) {
+        return TURN_RESTRICTIONS.contains(restriction);
+    }
+
+    /**
+     * @param restriction The value of a relation's restriction tag.
+     * @return Its index in the used turn restrictions, or -1 if it is not one of them.
      */
-    public GraphBuildingHandler(GraphDB g) {
-        this.g = g;
+    static int restrictionKind(String restriction) {
+        return TURN_RESTRICTIONS.indexOf(restriction);
+    }
+
+    /**
+     * @param restrictionKind A kind of turn restriction, see restrictionKind(String).
+     * @return The value of the restriction tag of that kind.
+     */
+    static String restrictionType(int restrictionKind) {
+        return TURN_RESTRICTIONS.get(restrictionKind);
+    }
+
+    /** Whether a kind of turn restriction allows only the given turn, not forbids it. */
+    static boolean isOnlyRestriction(int restrictionKind) {
+        return TURN_RESTRICTIONS.get(restrictionKind).startsWith("only_");
+    }
+
+    /**
+     * Parses the value of a maxspeed tag: a number in km/h, or followed by "mph" or
+     * "knots", e.g. "50", "30 mph". Of several values separated by ";" the first counts.
+     * @param maxspeed The value of a maxspeed tag.
+     * @return The speed in km/h, rounded and at most MAX_SPEED, or 0 if the value is
+     * missing or symbolic, e.g. "none", "walk" or "DE:urban".
+     */
+    static int parseMaxspeed(String maxspeed) {
+        int end = maxspeed.indexOf(';');
+        String value = (end < 0 ? maxspeed : maxspeed.substring(0, end)).trim();
+        int i = 0;
+        while (i < value.length()
+                && (Character.isDigit(value.charAt(i)) || value.charAt(i) == '.')) {
+            i++;
+        }
+        double speed;
+        try {
+            speed = Double.parseDouble(value.substring(0, i));
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+        String unit = value.substring(i).trim();
+        if (unit.equals("mph")) {
+            speed *= KM_PER_MILE;
+        } else if (unit.equals("knots")) {
+            speed *= KM_PER_NAUTICAL_MILE;
+        } else if (!unit.isEmpty() && !unit.equals("km/h") && !unit.equals("kmh")
+                && !unit.equals("kph")) {
+            return 0;
+        }
+        long rounded = Math.round(speed);
+        return rounded <= 0 ? 0 : (int) Math.min(rounded, MAX_SPEED);
     }
 
     /**
@@ -66,69 +214,83 @@ public class GraphBuildingHandler extends DefaultHandler {
     @Override
     public void startElement(String uri, String localName, String qName, Attributes attributes)
             throws SAXException {
-        /* Some example code on how you might begin to parse XML files. */
         if (qName.equals("node")) {
             /* We encountered a new <node...> tag. */
             activeState = "node";
-            //System.out.println("Node id: " + attributes.getValue("id"));
-            //System.out.println("Node lon: " + attributes.getValue("lon"));
-            //System.out.println("Node lat: " + attributes.getValue("lat"));
-            nodes.put("id", attributes.getValue("id"));
-            nodes.put("lon", attributes.getValue("lon"));
-            nodes.put("lat", attributes.getValue("lat"));
-
-            /* TODO Use the above information to save a "node" to somewhere. */
-            /* Hint: A graph-like structure would be nice. */
+            nodeId = Long.parseLong(attributes.getValue("id"));
+            nodeLon = Double.parseDouble(attributes.getValue("lon"));
+            nodeLat = Double.parseDouble(attributes.getValue("lat"));
+            nodeName = "";
 
         } else if (qName.equals("way")) {
             /* We encountered a new <way...> tag. */
             activeState = "way";
-            way.put("nodes", new ArrayList());
+            wayId = Long.parseLong(attributes.getValue("id"));
+            wayRefCount = 0;
+            wayHighway = null;
+            wayName = "";
+            wayMaxspeed = "";
+            validRoute = false;
 
         } else if (activeState.equals("way") && qName.equals("nd")) {
-            /* While looking at a way, we found a <nd...> tag. */
-            //System.out.println("Id of a node in this way: " + attributes.getValue("ref"));
-
-            /* TODO Use the above id to make "possible" connections between the nodes in this way */
-            /* Hint1: It would be useful to remember what was the last node in this way. */
-            /* Hint2: Not all ways are valid. So, directly connecting the nodes here would be
-            cumbersome since you might have to remove the connections if you later see a tag that
-            makes this way invalid. Instead, think of keeping a list of possible connections and
-            remember whether this way is valid or not. */
-            way.get("nodes").add(attributes.getValue("ref"));
-
-
+            /* While looking at a way, we found a <nd...> tag. Not all ways are valid, so
+            only remember the node until the end of the way. */
+            if (wayRefCount == wayRefs.length) {
+                wayRefs = Arrays.copyOf(wayRefs, wayRefCount * 2);
+            }
+            wayRefs[wayRefCount++] = Long.parseLong(attributes.getValue("ref"));
 
         } else if (activeState.equals("way") && qName.equals("tag")) {
             /* While looking at a way, we found a <tag...> tag. */
             String k = attributes.getValue("k");
             String v = attributes.getValue("v");
             if (k.equals("maxspeed")) {
-                //System.out.println("Max Speed: " + v);
-                /* TODO set the max speed of the "current way" here. */
+                wayMaxspeed = v;
             } else if (k.equals("highway")) {
-                //System.out.println("Highway type: " + v);
-                /* TODO Figure out whether this way and its connections are valid. */
-                /* Hint: Setting a "flag" is good enough! */
+                wayHighway = v;
+                validRoute = isAllowedHighway(v);
+            } else if (k.equals("name")) {
+                wayName = v;
+            }
+        } else if (qName.equals("relation")) {
+            /* We encountered a new <relation...> tag; only turn restrictions are kept. */
+            activeState = "relation";
+            relationId = Long.parseLong(attributes.getValue("id"));
+            relationFroms = 0;
+            relationVias = 0;
+            relationTos = 0;
+            relationIsRestriction = false;
+            relationRestriction = null;
 
-                if ( ALLOWED_HIGHWAY_TYPES.contains(v) )
-                    validRoute = true;
+        } else if (activeState.equals("relation") && qName.equals("member")) {
+            String type = attributes.getValue("type");
+            String role = attributes.getValue("role");
+            long ref = Long.parseLong(attributes.getValue("ref"));
+            /* A member of the wrong type counts twice, which rules the relation out. */
+            if ("from".equals(role)) {
+                relationFrom = ref;
+                relationFroms += "way".equals(type) ? 1 : 2;
+            } else if ("via".equals(role)) {
+                relationVia = ref;
+                relationVias += "node".equals(type) ? 1 : 2;
+            } else if ("to".equals(role)) {
+                relationTo = ref;
+                relationTos += "way".equals(type) ? 1 : 2;
+            }
 
-            } else if (k.equals("name")) {
-                ArrayList temp = new ArrayList();
-                temp.add(v);
-                way.put("name", temp);
+        } else if (activeState.equals("relation") && qName.equals("tag")) {
+            String k = attributes.getValue("k");
+            String v = attributes.getValue("v");
+            if (k.equals("type")) {
+                relationIsRestriction = v.equals("restriction");
+            } else if (k.equals("restriction")) {
+                relationRestriction = v;
             }
-//            System.out.println("Tag with k=" + k + ", v=" + v + ".");
+
         } else if (activeState.equals("node") && qName.equals("tag") && attributes.getValue("k")
                 .equals("name")) {
             /* While looking at a node, we found a <tag...> with k="name". */
-            /* TODO Create a location. */
-            /* Hint: Since we found this <tag...> INSIDE a node, we should probably remember which
-            node this tag belongs to. Remember XML is parsed top-to-bottom, so probably it's the
-            last node that you looked at (check the first if-case). */
-//            System.out.println("Node's name: " + attributes.getValue("v"));
-            nodes.put("name", attributes.getValue("v"));
+            nodeName = attributes.getValue("v");
         }
     }
 
@@ -147,33 +309,25 @@ public class GraphBuildingHandler extends DefaultHandler {
     public void endElement(String uri, String localName, String qName) throws SAXException {
         if (qName.equals("way")) {
             /* We are done looking at a way. (We finished looking at the nodes, speeds, etc...)*/
-            /* Hint1: If you have stored the possible connections for this way, here's your
-            chance to actually connect the nodes together if the way is valid. */
-//            System.out.println("Finishing a way...");
-
             if (validRoute) {
-
-                if (!way.containsKey("name")) {
-                    ArrayList<String> temp = new ArrayList<>();
-                    temp.add("");
-                    way.put("name", temp);
-                }
-
-                g.addEdges(way);
+                sink.way(wayId, Arrays.copyOf(wayRefs, wayRefCount), wayHighway, wayName,
+                        wayMaxspeed);
             }
-
-            way.clear();
             activeState = "";
             validRoute = false;
 
-        }
-
-        else if (qName.equals("node")) {
-            if ( ! nodes.containsKey("name") )
-                nodes.put("name", "");
+        } else if (qName.equals("node")) {
+            sink.node(nodeId, nodeLon, nodeLat, nodeName);
+            activeState = "";
 
-            g.addNode(nodes);
-            nodes.clear();
+        } else if (qName.equals("relation")) {
+            /* Restrictions via ways, or with several from or to ways, are not supported. */
+            if (relationIsRestriction && relationRestriction != null
+                    && isTurnRestriction(relationRestriction)
+                    && relationFroms == 1 && relationVias == 1 && relationTos == 1) {
+                sink.restriction(relationId, relationFrom, relationVia, relationTo,
+                        relationRestriction);
+            }
             activeState = "";
         }
     }
@@ -1,143 +1,953 @@
-import org.xml.sax.SAXException;
-
-import java.io.File;
-import java.io.FileInputStream;
 import java.io.IOException;
-import javax.xml.parsers.ParserConfigurationException;
-import javax.xml.parsers.SAXParser;
-import javax.xml.parsers.SAXParserFactory;
-import java.util.*;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.IntConsumer;
+import java.util.function.IntPredicate;
+import java.util.stream.IntStream;
 
 /**
  * Graph for storing all of the intersection (vertex) and road (edge) information.
- * Uses your GraphBuildingHandler to convert the XML files into a graph. Your
- * code must include the vertices, adjacent, distance, closest, lat, and lon
- * methods. You'll also need to include instance variables and methods for
- * modifying the graph (e.g. addNode and addEdge).
+ * Uses OsmIngester (and through it GraphBuildingHandler) to read the OSM file, then
+ * builds the graph from the raw data.
+ *
+ * Vertices are numbered densely from 0: vertex v has OSM id osmIds[v], and its
+ * coordinates and neighbors are kept in a GraphStorage, in the layout storageFormat
+ * selects. The public methods taking a long are addressed by OSM id, as before.
+ *
+ * Everything else that grows with the map, from the edge columns to the contracted graph
+ * and the segment indexes, is kept in the Columns of the storage format. An off-heap
+ * graph therefore keeps only its names, its named locations and their search index on
+ * the heap; it does not keep the raw data it was built from either, but reads it again
+ * when applyChanges or writeSnapshot need it.
+ *
+ * A graph with changes applied is built from the changed raw data, but numbers the
+ * vertices it shares with the graph before in the same order, patches the indexes of the
+ * graph before and takes over what the changes leave as it was, see build.
  *
  * @author Alan Yao, Josh Hug
  */
 public class GraphDB {
-    /** Your instance variables for storing the graph. You should consider
-     * creating helper classes, e.g. Node, Edge, etc. */
+    /**
+     * The raw data the graph was built from, kept for applyChanges and writeSnapshot; null
+     * for an off-heap graph, see data().
+     */
+    private final OsmData data;
+    /** The OSM file the raw data was read from. */
+    private final String sourcePath;
+    /** The OSM change files applied to the file since, in order. */
+    private final List<String> changePaths;
+    /** The layout the graph is stored in. */
+    private StorageFormat format;
+    private NameDictionary names;
+    private LocationRecords locations;
+    private Autocomplete autocomplete;
+
+    /** Number of vertices. */
+    private int numVertices;
+    /** OSM id of each vertex. */
+    private Columns.Longs osmIds;
+    /** Coordinates and adjacency lists of the vertices. */
+    private GraphStorage storage;
+    /** Name id of the way each vertex was last seen on, see wayName. */
+    private Columns.Ints wayNameIds;
+    /**
+     * Edges leaving v are edgeOffsets[v] until edgeOffsets[v + 1], in the order the
+     * storage lists the neighbors of v in, which every layout sorts them in.
+     */
+    private Columns.Ints edgeOffsets;
+    /** Length of each edge in miles; single precision in a compact graph. */
+    private Columns.Doubles edgeWeights;
+    /** Initial bearing of each edge in degrees, see bearing, at the storage's precision. */
+    private Columns.Doubles edgeBearings;
+    /** Speed on each edge in km/h, as an unsigned byte; never 0. */
+    private Columns.Bytes edgeSpeeds;
+    /** Highway class of the way of each edge, see GraphBuildingHandler.highwayClass. */
+    private Columns.Bytes edgeClasses;
+    /** Name id of the way of each edge, see edgeWayName. */
+    private Columns.Ints edgeNameIds;
+
+    /** Kilometers per mile. */
+    private static final double KM_PER_MILE = 1.609344;
+    /** Fixed-point units per degree of the edge bearings of a compact graph. */
+    private static final double BEARING_SCALE = 100;
+    /** OSM id to vertex. */
+    private LongIntMap vertexIndex;
+    /**
+     * The box the Hilbert curve the vertices are numbered along is laid over, as its
+     * minimum and maximum longitude and latitude; null if they are in file order.
+     */
+    private double[] frame;
+    /**
+     * Once more than 1 in OUTSIDE_LIMIT vertices of a graph with changes applied lie
+     * outside frame, they are numbered along a curve over a new box.
+     */
+    private static final int OUTSIDE_LIMIT = 64;
+    /** The graph with its chains of degree-2 vertices contracted, which Router searches. */
+    private ContractedGraph contracted;
+    /** The contracted graph weighed for each profile routed with so far, see customize. */
+    private final Map<RouteProfile, ContractedGraph.Customization> customizations =
+            new ConcurrentHashMap<>();
+    /** The turn restrictions the contracted graph was built with. */
+    private List<ContractedGraph.TurnRestriction> restrictions;
+    /** Connected-component labels of the vertices. */
+    private Components components;
+    /** The road segments, for finding what is nearest to a location. */
+    private SegmentIndex segments;
+    /** The named locations, as points, for finding the one nearest to a location. */
+    private SegmentIndex places;
 
     /**
-     * Example constructor shows how to create and start an XML parser.
-     * You do not need to modify this constructor, but you're welcome to do so.
-     * @param dbPath Path to the XML file to be parsed.
+     * Normalizer behind cleanString, which ingestion and search both go through. Set by
+     * the graphdb.names system property: ascii, the default, or folding, which
+     * additionally folds accents and "&amp;", at the cost of no longer matching the
+     * "[^a-zA-Z ]" spec exactly.
      */
-    private Map<Long, Node> adjacencyList;
-    private Map<String, ArrayList<Map<String, Object>>> nameMap;
-    private Trie t;
+    private static final StringNormalizer NAME_NORMALIZER =
+            parseNameNormalizer(System.getProperty("graphdb.names"));
 
+    /**
+     * The normalizer a value of the graphdb.names property names, in any case.
+     * @param value The value, or null if the property is not set.
+     * @return The normalizer; StringNormalizer.ASCII, after a warning, if value names none.
+     */
+    static StringNormalizer parseNameNormalizer(String value) {
+        if (value == null) {
+            return StringNormalizer.ASCII;
+        }
+        switch (value.trim().toLowerCase(Locale.ROOT)) {
+            case "ascii":
+                return StringNormalizer.ASCII;
+            case "folding":
+                return StringNormalizer.FOLDING;
+            default:
+                System.err.println("Unknown graphdb.names \"" + value
+                        + "\", expected one of [ascii, folding]; using ascii.");
+                return StringNormalizer.ASCII;
+        }
+    }
+
+    /** Orders vertices can be numbered in, see clean. */
+    enum VertexOrder {
+        /** The order the nodes appear in in the OSM file. */
+        FILE,
+        /** Along a Hilbert curve over the map, for locality of reference while routing. */
+        HILBERT
+    }
+
+    /** The order graphs built from now on number their vertices in. */
+    static volatile VertexOrder vertexOrder = VertexOrder.HILBERT;
+
+    /** Layouts the vertices can be stored in, see GraphStorage. */
+    enum StorageFormat {
+        /** ArrayGraphStorage: doubles and plain int adjacency. */
+        ARRAYS,
+        /**
+         * CompactGraphStorage: fixed-point coordinates and varint-coded adjacency, with
+         * edge lengths as floats and bearings in hundredths of a degree.
+         */
+        COMPACT,
+        /**
+         * OffHeapGraphStorage: the plain layout in direct buffers outside the heap, with
+         * the rest of the graph in Columns.OFF_HEAP and the raw data not kept.
+         */
+        OFF_HEAP
+    }
+
+    /**
+     * The layout graphs built from now on store their vertices in. Defaults to the value
+     * of the graphdb.storage system property (e.g. -Dgraphdb.storage=compact or off_heap),
+     * or ARRAYS.
+     */
+    static volatile StorageFormat storageFormat =
+            parseStorageFormat(System.getProperty("graphdb.storage"));
+
+    /**
+     * The storage format a value of the graphdb.storage property names, in any case.
+     * @param value The value, or null if the property is not set.
+     * @return The format; ARRAYS, after a warning, if value names none.
+     */
+    static StorageFormat parseStorageFormat(String value) {
+        if (value == null) {
+            return StorageFormat.ARRAYS;
+        }
+        try {
+            return StorageFormat.valueOf(value.trim().toUpperCase(Locale.ROOT));
+        } catch (IllegalArgumentException e) {
+            System.err.println("Unknown graphdb.storage \"" + value + "\", expected one of "
+                    + Arrays.toString(StorageFormat.values()) + "; using ARRAYS.");
+            return StorageFormat.ARRAYS;
+        }
+    }
+
+    /**
+     * Reads and builds the graph for an OSM file.
+     * @param dbPath Path to the OSM file to be parsed; .osm, .osm.gz and .osm.bz2 are supported.
+     */
     public GraphDB(String dbPath) {
+        names = new NameDictionary();
+        OsmData read;
         try {
-            File inputFile = new File(dbPath);
-            FileInputStream inputStream = new FileInputStream(inputFile);
-            // GZIPInputStream stream = new GZIPInputStream(inputStream);
-
-            SAXParserFactory factory = SAXParserFactory.newInstance();
-            SAXParser saxParser = factory.newSAXParser();
-            adjacencyList = new HashMap<>();
-            nameMap = new HashMap<>();
-            t = new Trie();
-            GraphBuildingHandler gbh = new GraphBuildingHandler(this);
-            saxParser.parse(inputStream, gbh);
-        } catch (ParserConfigurationException | SAXException | IOException e) {
+            read = OsmIngester.ingest(dbPath, names);
+        } catch (IOException e) {
             e.printStackTrace();
+            read = new OsmData(names);
         }
-        clean();
+        StorageFormat format = storageFormat;
+        build(read, format, null);
+        data = format == StorageFormat.OFF_HEAP ? null : read;
+        sourcePath = dbPath;
+        changePaths = new ArrayList<>();
     }
 
-    /*
-        Code to add nodes and edges as GraphBuildingHandler parses XML
+    /**
+     * Reads and builds the graph for an OSM file, like the constructor, but fails instead
+     * of building an empty graph if the file cannot be read.
+     * @param dbPath Path to the OSM file to be parsed.
+     * @return The graph.
+     * @throws IOException If the file cannot be read or parsed.
      */
+    static GraphDB read(String dbPath) throws IOException {
+        return new GraphDB(OsmIngester.ingest(dbPath, new NameDictionary()), dbPath,
+                new ArrayList<>(), null);
+    }
 
-    public void addNode(Map<String, String> nodeParams) {
-        Node node = new Node(nodeParams.get("lon"), nodeParams.get("lat"), nodeParams.get("name"));
-        adjacencyList.put(Long.parseLong(nodeParams.get("id")), node);
-        insertIntoNameMap(nodeParams.get("lon"), nodeParams.get("lat"), nodeParams.get("name"), nodeParams.get("id"));
+    /**
+     * Builds the graph for data, taking over what it can from previous, see build.
+     * @param previous A graph data is a changed version of, or null.
+     */
+    private GraphDB(OsmData data, String sourcePath, List<String> changePaths,
+                    GraphDB previous) {
+        this.names = data.names;
+        StorageFormat format = storageFormat;
+        build(data, format, previous);
+        this.data = format == StorageFormat.OFF_HEAP ? null : data;
+        this.sourcePath = sourcePath;
+        this.changePaths = changePaths;
+    }
+
+    /**
+     * Applies an OSM change file, e.g. a daily diff, without re-reading the whole map.
+     * This graph is not modified and stays usable while the new one is built. The new graph
+     * shares the parts the changes leave as they were with it, which neither modifies.
+     * @param changePath Path to an .osc, .osc.gz or .osc.bz2 file.
+     * @return The graph with the changes applied.
+     * @throws IOException If the change file, or for an off-heap graph the files it was
+     *                     built from, cannot be read or parsed.
+     */
+    GraphDB applyChanges(String changePath) throws IOException {
+        OsmChange change = OsmIngester.readChange(changePath);
+        List<String> applied = new ArrayList<>(changePaths);
+        applied.add(changePath);
+        return new GraphDB(data().withChanges(change), sourcePath, applied, this);
+    }
+
+    /**
+     * Writes the data this graph was built from as an OSM XML file that builds the same
+     * graph, e.g. to persist applied changes. Tags the graph does not use are not written.
+     * @param path The file to write; gzip compressed if it ends in .gz.
+     * @throws IOException If the file cannot be written, or for an off-heap graph the
+     *                     files it was built from cannot be read.
+     */
+    void writeSnapshot(String path) throws IOException {
+        OsmXmlWriter.write(data(), path);
+    }
 
-        if (cleanString(nodeParams.get("name")) != "" && cleanString(nodeParams.get("name")) != " ") {
-            t.insert(cleanString(nodeParams.get("name")), nodeParams.get("name"));
+    /**
+     * The raw data the graph was built from. An off-heap graph does not keep it, so it
+     * reads its OSM file again and applies its change files to it in order; those files
+     * have to stay where they are for that.
+     */
+    private OsmData data() throws IOException {
+        if (data != null) {
+            return data;
+        }
+        /* Interning into a copy of the names gives each name the id it has here, which
+        the name index of a graph with changes applied relies on. */
+        OsmData read = OsmIngester.ingest(sourcePath, names.copy());
+        for (String changePath : changePaths) {
+            read = read.withChanges(OsmIngester.readChange(changePath));
         }
+        return read;
     }
 
-    public void addEdges(Map<String, ArrayList> edgeParams) {
-        ArrayList<String> temp = edgeParams.get("nodes");
-        ArrayList<String> name = edgeParams.get("name");
+    /**
+     * Builds the graph from raw map data. The search index over the location names is
+     * built on another thread while the adjacency columns are built.
+     *
+     * If data is a changed version of the data of a previous graph in the same format,
+     * the graph is built from previous where the changes allow:
+     * <ul>
+     * <li>The vertices of both keep their order. New vertices go where their positions on
+     * the Hilbert curve of previous put them among those, or with vertices in file order
+     * after them. Once more than 1 in OUTSIDE_LIMIT vertices lie outside the box that
+     * curve is laid over, the vertices are numbered along a new curve instead.</li>
+     * <li>Edges whose ends are where they were keep their lengths and bearings.</li>
+     * <li>The segment index and the index of the named locations are patched, see
+     * SegmentIndex.patch: only the segments of vertices whose edges changed, and only
+     * locations that are new or moved, are placed anew. The name index takes out the
+     * names no location has any more and puts in the new ones.</li>
+     * <li>Parts that depend on nothing the changes touched are taken over whole: the OSM
+     * ids and their index if the vertices are the same, and if every vertex has the same
+     * coordinates and the same neighbors, the storage, the edge columns, the components
+     * and the segment index, as well as the contracted graph and its customizations as
+     * far as the turn restrictions, speeds and classes are the same.</li>
+     * </ul>
+     * The adjacency, the contracted graph and the components depend on the whole graph,
+     * so any change to the edges builds them anew, as for a graph read from a file.
+     */
+    private void build(OsmData data, StorageFormat format, GraphDB previous) {
+        this.format = format;
+        GraphDB base = previous != null && previous.format == format ? previous : null;
+        locations = data.locations;
+        /* The record of each location of base, by OSM id, or -1 if it is gone. */
+        int[] recordOf = base != null ? recordsOf(base.locations, locations) : null;
+        CompletableFuture<Autocomplete> search = base != null
+                ? CompletableFuture.completedFuture(updateAutocomplete(base, recordOf))
+                : CompletableFuture.supplyAsync(() -> new Autocomplete(names, locations));
+
+        /* Translate the node ids of every way into node indices; -1 for unknown nodes. */
+        int[] refNodes = new int[data.wayRefCount()];
+        IntStream.range(0, refNodes.length).parallel()
+                .forEach(i -> refNodes[i] = data.nodeIndex.get(data.wayRefs[i]));
+
+        /* Consecutive nodes of a way are connected in both directions. */
+        int[] degree = new int[data.nodeCount];
+        for (int w = 0; w < data.wayCount; w++) {
+            for (int i = data.wayRefOffsets[w] + 1; i < data.wayRefOffsets[w + 1]; i++) {
+                if (refNodes[i - 1] >= 0 && refNodes[i] >= 0) {
+                    degree[refNodes[i - 1]] += 1;
+                    degree[refNodes[i]] += 1;
+                }
+            }
+        }
 
+        Columns columns = Columns.of(format);
+        /* The vertex of base each node was, or -1. */
+        int[] previousVertex = new int[data.nodeCount];
+        IntStream.range(0, data.nodeCount).parallel().forEach(node -> previousVertex[node] =
+                base != null && degree[node] > 0 ? base.vertexIndex.get(data.nodeIds[node])
+                        : -1);
+        int[] vertexOf = clean(data, degree, previousVertex, base);
+        /* The vertex of base each vertex was, or -1 for new ones. */
+        int[] previousOf = new int[numVertices];
+        for (int node = 0; node < data.nodeCount; node++) {
+            if (vertexOf[node] >= 0) {
+                previousOf[vertexOf[node]] = previousVertex[node];
+            }
+        }
+        /* Whether the vertices of base kept their order, and whether they are all there
+        is, numbered alike. */
+        boolean ordered = base != null;
+        int kept = 0;
+        int last = -1;
+        for (int v = 0; v < numVertices; v++) {
+            if (previousOf[v] >= 0) {
+                ordered &= previousOf[v] > last;
+                last = previousOf[v];
+                kept++;
+            }
+        }
+        boolean sameVertices = ordered && kept == numVertices
+                && numVertices == base.numVertices;
+        if (sameVertices) {
+            osmIds = base.osmIds;
+            vertexIndex = base.vertexIndex;
+        } else {
+            osmIds = columns.longs(numVertices);
+            vertexIndex = new LongIntMap(numVertices, columns);
+            for (int node = 0; node < data.nodeCount; node++) {
+                int v = vertexOf[node];
+                if (v >= 0) {
+                    osmIds.set(v, data.nodeIds[node]);
+                    vertexIndex.put(data.nodeIds[node], v);
+                }
+            }
+        }
 
-        for (int i = 1; i < temp.size(); ++i) {
-            addEdge(Long.parseLong(temp.get(i-1)), Long.parseLong(temp.get(i)), name.get(0));
-            addEdge(Long.parseLong(temp.get(i)), Long.parseLong(temp.get(i-1)), name.get(0));
+        double[] lons = new double[numVertices];
+        double[] lats = new double[numVertices];
+        for (int node = 0; node < data.nodeCount; node++) {
+            int v = vertexOf[node];
+            if (v >= 0) {
+                lons[v] = data.nodeLons[node];
+                lats[v] = data.nodeLats[node];
+                if (format == StorageFormat.COMPACT) {
+                    /* Round first, so everything derived agrees with what is stored. */
+                    lons[v] = CompactGraphStorage.quantizeLon(lons[v]);
+                    lats[v] = CompactGraphStorage.quantizeLat(lats[v]);
+                }
+            }
         }
 
-        //Node node = adjacencyList.get(Long.parseLong(temp.get(temp.size() - 1)));
-        //node.addWayNameToNode(name.get(0));
+        int[] adjOffsets = new int[numVertices + 1];
+        for (int node = 0; node < data.nodeCount; node++) {
+            if (vertexOf[node] >= 0) {
+                adjOffsets[vertexOf[node] + 1] = degree[node];
+            }
+        }
+        Arrays.parallelPrefix(adjOffsets, Integer::sum);
+
+        int[] adjTargets = new int[adjOffsets[numVertices]];
+        byte[] adjSpeeds = new byte[adjTargets.length];
+        byte[] adjClasses = new byte[adjTargets.length];
+        int[] adjNames = new int[adjTargets.length];
+        int[] vertexNames = new int[numVertices];
+        int[] fill = Arrays.copyOf(adjOffsets, numVertices);
+        for (int w = 0; w < data.wayCount; w++) {
+            int wayNameId = data.wayNameIds[w];
+            byte speed = data.wayMaxspeeds[w] != 0 ? data.wayMaxspeeds[w]
+                    : (byte) GraphBuildingHandler.defaultSpeed(data.wayHighways[w]);
+            for (int i = data.wayRefOffsets[w] + 1; i < data.wayRefOffsets[w + 1]; i++) {
+                if (refNodes[i - 1] < 0 || refNodes[i] < 0) {
+                    continue;
+                }
+                int a = vertexOf[refNodes[i - 1]];
+                int b = vertexOf[refNodes[i]];
+                adjSpeeds[fill[a]] = speed;
+                adjClasses[fill[a]] = data.wayHighways[w];
+                adjNames[fill[a]] = wayNameId;
+                adjTargets[fill[a]++] = b;
+                adjSpeeds[fill[b]] = speed;
+                adjClasses[fill[b]] = data.wayHighways[w];
+                adjNames[fill[b]] = wayNameId;
+                adjTargets[fill[b]++] = a;
+                vertexNames[a] = wayNameId;
+                vertexNames[b] = wayNameId;
+            }
+        }
+        wayNameIds = columns.ints(vertexNames);
+
+        /* Sorted adjacency lists compress better, and sorting them here means every layout
+        lists them in the same order, so the edge columns below line up with all of them.
+        As base numbers the vertices the graphs share in the same order, a vertex with the
+        same neighbors as in base also lists them in the same order. */
+        edgeOffsets = columns.ints(adjOffsets);
+        if (format == StorageFormat.COMPACT) {
+            edgeWeights = columns.floats(adjTargets.length);
+            edgeBearings = columns.fixedPoint(adjTargets.length, BEARING_SCALE);
+        } else {
+            edgeWeights = columns.doubles(adjTargets.length);
+            edgeBearings = columns.floats(adjTargets.length);
+        }
+        /* Whether each vertex has the same edges as in base. */
+        boolean[] sameAs = new boolean[numVertices];
+        int unchanged = IntStream.range(0, numVertices).parallel().map(v -> {
+            sortEdges(adjTargets, adjSpeeds, adjClasses, adjNames, adjOffsets[v],
+                    adjOffsets[v + 1]);
+            int old = previousOf[v];
+            if (base != null && old >= 0
+                    && base.sameEdges(old, v, lons, lats, adjOffsets, adjTargets, previousOf)) {
+                int first = base.edgeOffsets.get(old);
+                for (int e = adjOffsets[v]; e < adjOffsets[v + 1]; e++) {
+                    edgeWeights.set(e, base.edgeWeights.get(first + e - adjOffsets[v]));
+                    edgeBearings.set(e, base.edgeBearings.get(first + e - adjOffsets[v]));
+                }
+                sameAs[v] = true;
+                return 1;
+            }
+            for (int e = adjOffsets[v]; e < adjOffsets[v + 1]; e++) {
+                int t = adjTargets[e];
+                edgeWeights.set(e, distance(lons[v], lats[v], lons[t], lats[t]));
+                edgeBearings.set(e, bearing(lons[v], lats[v], lons[t], lats[t]));
+            }
+            return 0;
+        }).sum();
+        /* Every vertex is one of base, in the same place, with the same neighbors. */
+        boolean sameGraph = sameVertices && unchanged == numVertices;
+        boolean sameSpeeds = sameGraph && sameBytes(base.edgeSpeeds, adjSpeeds);
+        boolean sameClasses = sameGraph && sameBytes(base.edgeClasses, adjClasses);
+        edgeSpeeds = sameSpeeds ? base.edgeSpeeds : columns.bytes(adjSpeeds);
+        edgeClasses = sameClasses ? base.edgeClasses : columns.bytes(adjClasses);
+        edgeNameIds = columns.ints(adjNames);
+
+        ArrayGraphStorage plain = new ArrayGraphStorage(lons, lats, adjOffsets, adjTargets);
+        restrictions = turnRestrictions(data, refNodes, vertexOf, plain);
+        if (sameGraph) {
+            edgeOffsets = base.edgeOffsets;
+            edgeWeights = base.edgeWeights;
+            edgeBearings = base.edgeBearings;
+        }
+        if (sameGraph && sameRestrictions(base.restrictions, restrictions)) {
+            contracted = base.contracted;
+            if (sameSpeeds && sameClasses) {
+                customizations.putAll(base.customizations);
+            }
+        } else {
+            contracted = new ContractedGraph(plain, edgeOffsets, edgeBearings, restrictions,
+                    columns);
+        }
+        customize(RouteProfile.SHORTEST);
+        customize(RouteProfile.FASTEST);
+        if (sameGraph) {
+            components = base.components;
+            storage = base.storage;
+            segments = base.segments;
+        } else {
+            components = new Components(plain, columns);
+            if (format == StorageFormat.COMPACT) {
+                storage = new CompactGraphStorage(plain);
+            } else if (format == StorageFormat.OFF_HEAP) {
+                storage = new OffHeapGraphStorage(plain);
+            } else {
+                storage = plain;
+            }
+            /* Segments keep their orientation from the lower vertex only if the vertices
+            kept their order. */
+            segments = ordered
+                    ? patchSegments(base, adjOffsets, adjTargets, previousOf, sameAs, columns)
+                    : new SegmentIndex(storage, columns);
+        }
+        places = base != null ? patchPlaces(base, recordOf, columns)
+                : SegmentIndex.ofPoints(locations.size(), locations::lon, locations::lat,
+                        columns);
+        autocomplete = search.join();
+    }
+
+    /**
+     * The segment index of base patched for this graph: segments from vertices with the
+     * same edges as in base stay, and those of the other vertices are indexed anew.
+     * @param offsets The edges of the vertices, see ArrayGraphStorage; targets likewise.
+     * @param previousOf The vertex of base each vertex was, or -1.
+     * @param sameAs Whether each vertex has the same edges as in base.
+     */
+    private SegmentIndex patchSegments(GraphDB base, int[] offsets, int[] targets,
+                                       int[] previousOf, boolean[] sameAs, Columns columns) {
+        int[] newOf = new int[base.numVertices];
+        Arrays.fill(newOf, -1);
+        int count = 0;
+        for (int v = 0; v < numVertices; v++) {
+            if (previousOf[v] >= 0) {
+                newOf[previousOf[v]] = v;
+            }
+            for (int e = offsets[v]; e < offsets[v + 1] && !sameAs[v]; e++) {
+                count += v <= targets[e] ? 1 : 0;
+            }
+        }
+        int[][] added = new int[3][count];
+        int s = 0;
+        for (int v = 0; v < numVertices; v++) {
+            for (int e = offsets[v]; e < offsets[v + 1] && !sameAs[v]; e++) {
+                if (v <= targets[e]) {
+                    added[0][s] = v;
+                    added[1][s] = targets[e];
+                    added[2][s++] = e;
+                }
+            }
+        }
+        return base.segments.patch(storage::lon, storage::lat, numVertices, newOf, (v, e) -> {
+            int w = newOf[v];
+            return w >= 0 && sameAs[w] ? offsets[w] + e - base.edgeOffsets.get(v) : -1;
+        }, added, columns);
+    }
+
+    /**
+     * The index of the named locations of base patched for those of this graph: locations
+     * that stayed where they were keep their places, and the others are placed anew.
+     * @param recordOf The record of each location of base, or -1 if it is gone.
+     */
+    private SegmentIndex patchPlaces(GraphDB base, int[] recordOf, Columns columns) {
+        int[] newOf = new int[recordOf.length];
+        boolean[] placed = new boolean[locations.size()];
+        int count = locations.size();
+        for (int r = 0; r < recordOf.length; r++) {
+            int s = recordOf[r];
+            boolean stayed = s >= 0 && locations.lon(s) == base.locations.lon(r)
+                    && locations.lat(s) == base.locations.lat(r);
+            newOf[r] = stayed ? s : -1;
+            if (stayed) {
+                placed[s] = true;
+                count--;
+            }
+        }
+        int[] points = new int[count];
+        int p = 0;
+        for (int s = 0; s < placed.length; s++) {
+            if (!placed[s]) {
+                points[p++] = s;
+            }
+        }
+        return base.places.patch(locations::lon, locations::lat, locations.size(), newOf,
+                (r, e) -> newOf[r], new int[][] {points, points, points}, columns);
+    }
+
+    /** The record of b with the OSM id of each record of a, or -1 if there is none. */
+    private static int[] recordsOf(LocationRecords a, LocationRecords b) {
+        LongIntMap index = new LongIntMap(b.size(), Columns.HEAP);
+        for (int r = 0; r < b.size(); r++) {
+            index.put(b.id(r), r);
+        }
+        int[] recordOf = new int[a.size()];
+        Arrays.setAll(recordOf, r -> index.get(a.id(r)));
+        return recordOf;
+    }
+
+    /**
+     * The name index of base updated for the named locations of this graph: names no
+     * location has any more are taken out, and names only locations that are new or
+     * renamed have are put in. The names of the other locations are not looked at.
+     * @param recordOf The record of each location of base, or -1 if it is gone.
+     */
+    private Autocomplete updateAutocomplete(GraphDB base, int[] recordOf) {
+        BitSet gone = new BitSet();
+        BitSet come = new BitSet();
+        boolean[] renamed = new boolean[locations.size()];
+        Arrays.fill(renamed, true);
+        for (int r = 0; r < recordOf.length; r++) {
+            int s = recordOf[r];
+            if (s >= 0 && locations.nameId(s) == base.locations.nameId(r)) {
+                renamed[s] = false;
+            } else {
+                gone.set(base.locations.nameId(r));
+            }
+        }
+        for (int s = 0; s < renamed.length; s++) {
+            if (renamed[s]) {
+                come.set(locations.nameId(s));
+            }
+        }
+        int[] removed = gone.stream().filter(n -> !locations.hasName(n)).toArray();
+        int[] added = come.stream().filter(n -> !base.locations.hasName(n)).toArray();
+        return removed.length == 0 && added.length == 0 ? base.autocomplete
+                : base.autocomplete.withNames(names, removed, added);
+    }
+
+    /**
+     * Whether vertex old of this graph is where vertex v of a graph being built is, with
+     * edges to the vertices the edges of v lead to, in the same order and where they are.
+     * @param lons The longitudes of the vertices being built; lats likewise.
+     * @param offsets The edges of the vertices being built, see ArrayGraphStorage.
+     * @param previousOf The vertex of this graph each vertex being built was, or -1.
+     */
+    private boolean sameEdges(int old, int v, double[] lons, double[] lats, int[] offsets,
+                              int[] targets, int[] previousOf) {
+        int degree = offsets[v + 1] - offsets[v];
+        if (storage.degree(old) != degree || storage.lon(old) != lons[v]
+                || storage.lat(old) != lats[v]) {
+            return false;
+        }
+        int[] neighbors = new int[degree];
+        storage.neighbors(old, neighbors);
+        for (int i = 0; i < degree; i++) {
+            int t = targets[offsets[v] + i];
+            if (previousOf[t] != neighbors[i] || storage.lon(neighbors[i]) != lons[t]
+                    || storage.lat(neighbors[i]) != lats[t]) {
+                return false;
+            }
+        }
+        return true;
+    }
 
+    private static boolean sameBytes(Columns.Bytes column, byte[] values) {
+        if (column.length() != values.length) {
+            return false;
+        }
+        for (int i = 0; i < values.length; i++) {
+            if (column.get(i) != values[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean sameRestrictions(List<ContractedGraph.TurnRestriction> a,
+                                            List<ContractedGraph.TurnRestriction> b) {
+        if (a.size() != b.size()) {
+            return false;
+        }
+        for (int i = 0; i < a.size(); i++) {
+            ContractedGraph.TurnRestriction x = a.get(i);
+            ContractedGraph.TurnRestriction y = b.get(i);
+            if (x.vertex != y.vertex || x.from != y.from || x.only != y.only
+                    || !Arrays.equals(x.to, y.to)) {
+                return false;
+            }
+        }
+        return true;
     }
 
-    public boolean addEdge(Long id_1, Long id_2, String wayName) {
-        Node node = adjacencyList.get(id_1);
+    /**
+     * Finds the vertices and edges the turn restrictions of data apply to. Restrictions
+     * whose ways or via node are not in the graph, or whose ways do not pass through the
+     * via node, are dropped.
+     */
+    private static List<ContractedGraph.TurnRestriction> turnRestrictions(
+            OsmData data, int[] refNodes, int[] vertexOf, ArrayGraphStorage g) {
+        List<ContractedGraph.TurnRestriction> restrictions = new ArrayList<>();
+        if (data.restrictionCount == 0) {
+            return restrictions;
+        }
+        Map<Long, Integer> wayIndex = new HashMap<>();
+        for (int r = 0; r < data.restrictionCount; r++) {
+            wayIndex.put(data.restrictionFroms[r], -1);
+            wayIndex.put(data.restrictionTos[r], -1);
+        }
+        for (int w = 0; w < data.wayCount; w++) {
+            wayIndex.replace(data.wayIds[w], w);
+        }
+        for (int r = 0; r < data.restrictionCount; r++) {
+            int node = data.nodeIndex.get(data.restrictionVias[r]);
+            int v = node >= 0 ? vertexOf[node] : -1;
+            int fromWay = wayIndex.get(data.restrictionFroms[r]);
+            int toWay = wayIndex.get(data.restrictionTos[r]);
+            if (v < 0 || fromWay < 0 || toWay < 0) {
+                continue;
+            }
+            int[] to = neighborsAlong(data, refNodes, vertexOf, g, toWay, node, v);
+            boolean only = GraphBuildingHandler.isOnlyRestriction(data.restrictionKinds[r]);
+            for (int from : neighborsAlong(data, refNodes, vertexOf, g, fromWay, node, v)) {
+                restrictions.add(new ContractedGraph.TurnRestriction(v, from, to, only));
+            }
+        }
+        return restrictions;
+    }
 
-        if (node != null) {
-            node.addEdge(id_2);
+    /**
+     * The positions in the adjacency of vertex v, the vertex of node, of its neighbors
+     * next to it along way w. Usually there is one, as restrictions are between ways that
+     * start or end at their via node.
+     */
+    private static int[] neighborsAlong(OsmData data, int[] refNodes, int[] vertexOf,
+                                        ArrayGraphStorage g, int w, int node, int v) {
+        int[] positions = new int[0];
+        int first = data.wayRefOffsets[w];
+        int end = data.wayRefOffsets[w + 1];
+        for (int i = first; i < end; i++) {
+            if (refNodes[i] != node) {
+                continue;
+            }
+            for (int j = i - 1; j <= i + 1; j += 2) {
+                if (j < first || j >= end || refNodes[j] < 0) {
+                    continue;
+                }
+                int neighbor = vertexOf[refNodes[j]];
+                for (int e = g.firstEdge(v); e < g.endEdge(v); e++) {
+                    if (g.target(e) == neighbor) {
+                        positions = Arrays.copyOf(positions, positions.length + 1);
+                        positions[positions.length - 1] = e - g.firstEdge(v);
+                    }
+                }
+            }
+        }
+        return positions;
+    }
 
-            node.addWayNameToNode(wayName);
-            return true;
+    /**
+     * Sorts the edges from until to by target, moving their speeds, classes and names
+     * along. Adjacency lists are short, so insertion sort it is.
+     */
+    private static void sortEdges(int[] targets, byte[] speeds, byte[] classes, int[] nameIds,
+                                  int from, int to) {
+        for (int i = from + 1; i < to; i++) {
+            int target = targets[i];
+            byte speed = speeds[i];
+            byte highwayClass = classes[i];
+            int nameId = nameIds[i];
+            int j = i;
+            while (j > from && targets[j - 1] > target) {
+                targets[j] = targets[j - 1];
+                speeds[j] = speeds[j - 1];
+                classes[j] = classes[j - 1];
+                nameIds[j] = nameIds[j - 1];
+                j--;
+            }
+            targets[j] = target;
+            speeds[j] = speed;
+            classes[j] = highwayClass;
+            nameIds[j] = nameId;
         }
-        return false;
     }
 
-    public ArrayList<Map<String, Object>> locations(String s) {
-        return nameMap.get(cleanString(s));
+    /**
+     * Collect the named locations whose cleaned name matches the cleaned s.
+     * @param s A full name of a location.
+     * @return Indices into locationRecords() of the matches; empty if there are none.
+     */
+    int[] locations(String s) {
+        return locations.find(cleanString(s));
+    }
+
+    /**
+     * @return The columnar records of all named locations; see locations(String).
+     */
+    LocationRecords locationRecords() {
+        return locations;
     }
 
     /**
      * Helper to process strings into their "cleaned" form, ignoring punctuation and capitalization.
+     * Ingestion and search both go through here, so they always agree on the cleaned form.
      * @param s Input string.
      * @return Cleaned string.
      */
     static String cleanString(String s) {
-        return s.replaceAll("[^a-zA-Z ]", "").toLowerCase();
+        return NAME_NORMALIZER.normalize(s);
     }
 
     /**
      *  Remove nodes with no connections from the graph.
      *  While this does not guarantee that any two nodes in the remaining graph are connected,
      *  we can reasonably assume this since typically roads are connected.
+     *  The remaining nodes become the vertices, numbered as vertexOrder says, or if
+     *  data is a changed version of the data of previous, as previous numbers them.
+     *  @param data The raw map data.
+     *  @param degree The number of edges at each node of data.
+     *  @param previousVertex The vertex of previous each node of data was, or -1.
+     *  @param previous The graph data is a changed version of, or null.
+     *  @return The vertex of each node of data, or -1 for removed nodes.
      */
-    private void clean() {
-        // TODO: Your code here.
-        Iterator it = adjacencyList.entrySet().iterator();
+    private int[] clean(OsmData data, int[] degree, int[] previousVertex, GraphDB previous) {
+        int[] vertexOf = new int[data.nodeCount];
+        numVertices = 0;
+        for (int node = 0; node < data.nodeCount; node++) {
+            vertexOf[node] = degree[node] > 0 ? numVertices++ : -1;
+        }
+        if (previous != null && previous.frame == null) {
+            renumberAfter(previous, previousVertex, vertexOf);
+        } else if (previous != null && !outgrown(previous.frame, data, vertexOf)) {
+            frame = previous.frame;
+            insertAlongHilbertCurve(previous, data, previousVertex, vertexOf);
+        } else if (previous != null || vertexOrder == VertexOrder.HILBERT) {
+            renumberAlongHilbertCurve(data, vertexOf);
+        }
+        return vertexOf;
+    }
 
-        while (it.hasNext()) {
-            Map.Entry pair = (Map.Entry) it.next();
-            Object node = (Node) pair.getValue();
-            if (((Node) node).edges.size() == 0) {
-                it.remove();
+    /**
+     * Renumbers the vertices so that those previous has too keep their order, and the
+     * new ones follow them in file order.
+     */
+    private void renumberAfter(GraphDB previous, int[] previousVertex, int[] vertexOf) {
+        /* Sort (previous vertex, node) pairs packed into longs; new vertices
+        all sort as vertex previous.numVertices. */
+        long[] keys = new long[numVertices];
+        int k = 0;
+        for (int node = 0; node < vertexOf.length; node++) {
+            if (vertexOf[node] >= 0) {
+                int old = previousVertex[node];
+                long rank = old >= 0 ? old : previous.numVertices;
+                keys[k++] = rank << 32 | node;
             }
         }
+        Arrays.parallelSort(keys);
+        for (int v = 0; v < numVertices; v++) {
+            vertexOf[(int) keys[v]] = v;
+        }
     }
 
-    private void insertIntoNameMap(String lon, String lat, String name, String id) {
-        Map<String, Object> temp = new HashMap<>();
-        temp.put("lat", Double.parseDouble(lat));
-        temp.put("lon", Double.parseDouble(lon));
-        temp.put("name", name);
-        temp.put("id", Long.parseLong(id));
+    /**
+     * Renumbers the vertices so that those previous has too keep their order, and each
+     * new one goes where its position on the Hilbert curve of previous puts it among them,
+     * after those at the same position. A vertex that moved keeps its place, so the order
+     * drifts from the curve a little with every change that moves vertices.
+     */
+    private void insertAlongHilbertCurve(GraphDB previous, OsmData data, int[] previousVertex,
+                                         int[] vertexOf) {
+        int[] kept = new int[previous.numVertices];
+        Arrays.fill(kept, -1);
+        long[] keys = new long[numVertices];
+        int numNew = 0;
+        for (int node = 0; node < data.nodeCount; node++) {
+            if (vertexOf[node] >= 0) {
+                if (previousVertex[node] >= 0) {
+                    kept[previousVertex[node]] = node;
+                } else {
+                    keys[numNew++] = HilbertCurve.pack(curvePosition(data, node), node);
+                }
+            }
+        }
+        int numKept = 0;
+        for (int node : kept) {
+            if (node >= 0) {
+                kept[numKept++] = node;
+            }
+        }
+        Arrays.sort(keys, 0, numNew);
+        int v = 0;
+        int i = 0;
+        for (int j = 0; j < numNew; j++) {
+            int node = (int) keys[j];
+            long position = curvePosition(data, node);
+            /* The first kept vertex past the new one, from where the one before went. */
+            int low = i;
+            int high = numKept;
+            while (low < high) {
+                int mid = (low + high) >>> 1;
+                if (curvePosition(data, kept[mid]) <= position) {
+                    low = mid + 1;
+                } else {
+                    high = mid;
+                }
+            }
+            while (i < low) {
+                vertexOf[kept[i++]] = v++;
+            }
+            vertexOf[node] = v++;
+        }
+        while (i < numKept) {
+            vertexOf[kept[i++]] = v++;
+        }
+    }
 
-        String cleanName = cleanString(name);
-        if (cleanName != "") {
-            if (nameMap.get(cleanName) == null) {
-                ArrayList<Map<String, Object>> alist = new ArrayList<>();
-                alist.add(temp);
-                nameMap.put(cleanName, alist);
-            } else {
-                nameMap.get(cleanName).add(temp);
+    /**
+     * Whether more than 1 in OUTSIDE_LIMIT vertices lie outside frame, where the curve
+     * over it no longer tells them apart.
+     */
+    private boolean outgrown(double[] frame, OsmData data, int[] vertexOf) {
+        int outside = 0;
+        for (int node = 0; node < data.nodeCount; node++) {
+            if (vertexOf[node] >= 0 && (data.nodeLons[node] < frame[0]
+                    || data.nodeLons[node] > frame[1] || data.nodeLats[node] < frame[2]
+                    || data.nodeLats[node] > frame[3])) {
+                outside++;
             }
         }
+        return (long) outside * OUTSIDE_LIMIT > numVertices;
+    }
+
+    /** The position of node on the Hilbert curve over frame. */
+    private long curvePosition(OsmData data, int node) {
+        return HilbertCurve.index(HilbertCurve.cell(data.nodeLons[node], frame[0], frame[1]),
+                HilbertCurve.cell(data.nodeLats[node], frame[2], frame[3]));
+    }
+
+    /**
+     * Renumbers the vertices in the order of a Hilbert curve over their bounding box, so
+     * that vertices close together on the map, which searches visit together, are also
+     * close together in the vertex columns. Vertices in the same curve cell keep their
+     * file order.
+     */
+    private void renumberAlongHilbertCurve(OsmData data, int[] vertexOf) {
+        frame = new double[] {Double.POSITIVE_INFINITY, Double.NEGATIVE_INFINITY,
+                Double.POSITIVE_INFINITY, Double.NEGATIVE_INFINITY};
+        for (int node = 0; node < data.nodeCount; node++) {
+            if (vertexOf[node] >= 0) {
+                frame[0] = Math.min(frame[0], data.nodeLons[node]);
+                frame[1] = Math.max(frame[1], data.nodeLons[node]);
+                frame[2] = Math.min(frame[2], data.nodeLats[node]);
+                frame[3] = Math.max(frame[3], data.nodeLats[node]);
+            }
+        }
+
+        /* Sort (curve position, node) pairs packed into longs. */
+        long[] keys = new long[numVertices];
+        int k = 0;
+        for (int node = 0; node < data.nodeCount; node++) {
+            if (vertexOf[node] >= 0) {
+                keys[k++] = HilbertCurve.pack(curvePosition(data, node), node);
+            }
+        }
+        Arrays.parallelSort(keys);
+        for (int v = 0; v < numVertices; v++) {
+            vertexOf[(int) keys[v]] = v;
+        }
     }
 
     /**
@@ -145,8 +955,17 @@ public class GraphDB {
      * @return An iterable of id's of all vertices in the graph.
      */
     Iterable<Long> vertices() {
-        //YOUR CODE HERE, this currently returns only an empty list.
-        return adjacencyList.keySet();
+        return new AbstractList<Long>() {
+            @Override
+            public Long get(int v) {
+                return osmIds.get(v);
+            }
+
+            @Override
+            public int size() {
+                return numVertices;
+            }
+        };
     }
 
     /**
@@ -155,10 +974,23 @@ public class GraphDB {
      * @return An iterable of the ids of the neighbors of v.
      */
     Iterable<Long> adjacent(long v) {
-        Node node = adjacencyList.get(v);
-        if (node == null)
+        int vertex = vertexIndex.get(v);
+        if (vertex < 0) {
             return null;
-        return node.edges;
+        }
+        int[] neighbors = new int[storage.degree(vertex)];
+        storage.neighbors(vertex, neighbors);
+        return new AbstractList<Long>() {
+            @Override
+            public Long get(int i) {
+                return osmIds.get(neighbors[i]);
+            }
+
+            @Override
+            public int size() {
+                return neighbors.length;
+            }
+        };
     }
 
     /**
@@ -219,23 +1051,77 @@ public class GraphDB {
      * @return The id of the node in the graph closest to the target.
      */
     long closest(double lon, double lat) {
-        double minDistance = Double.MAX_VALUE;
-        double currentDistance = 0;
-        long closestNodeId = 0;
+        return closest(lon, lat, false);
+    }
+
+    /**
+     * Returns the vertex closest to the given longitude and latitude, optionally only
+     * considering the largest connected component. Snapping there avoids starting a route
+     * on a small piece of road that nothing else can be reached from.
+     * @param lon The target longitude.
+     * @param lat The target latitude.
+     * @param largestComponent Whether to only consider the largest weak component.
+     * @return The id of the closest such node in the graph.
+     */
+    long closest(double lon, double lat, boolean largestComponent) {
+        int closest = segments.nearestVertex(lon, lat, inComponent(largestComponent));
+        return closest < 0 ? 0 : osmIds.get(closest);
+    }
 
-        Iterator it = adjacencyList.entrySet().iterator();
+    /**
+     * Returns the point on a road nearest to the given longitude and latitude, which
+     * unlike the nearest vertex is on the road a location is actually next to, e.g. in
+     * the middle of a long block. Router can route from and to such points.
+     * @param lon The target longitude.
+     * @param lat The target latitude.
+     * @param largestComponent Whether to only consider the largest weak component.
+     * @return The point, or null if the graph has no edges.
+     */
+    SegmentIndex.Snap snap(double lon, double lat, boolean largestComponent) {
+        return segments.nearestSegment(lon, lat, inComponent(largestComponent));
+    }
 
-        while (it.hasNext()) {
-            Map.Entry pair = (Map.Entry) it.next();
-            Object node = (Node) pair.getValue();
-            currentDistance = distance(lon, lat, Double.parseDouble(((Node) node).lon), Double.parseDouble(((Node) node).lat));
-            if (currentDistance < minDistance) {
-                minDistance = currentDistance;
-                closestNodeId = (Long) pair.getKey();
-            }
-        }
+    /**
+     * Returns the named location nearest to the given longitude and latitude by distance,
+     * from an index over the locations rather than a scan of them.
+     * @param lon The target longitude.
+     * @param lat The target latitude.
+     * @return The index into locationRecords() of the location, or -1 if there are none.
+     */
+    int nearestLocation(double lon, double lat) {
+        return places.nearestVertex(lon, lat, null);
+    }
 
-        return closestNodeId;
+    /**
+     * Visits the named locations in a box, thinned to at most limit of them spread over
+     * the box, see SegmentIndex.within.
+     * @param visitor Receives the index into locationRecords() of each location visited.
+     * @return The number of locations in the box, visited or not.
+     */
+    int locationsWithin(double minLon, double minLat, double maxLon, double maxLat, int limit,
+                        IntConsumer visitor) {
+        return places.within(minLon, minLat, maxLon, maxLat, limit,
+                (r, source, target) -> visitor.accept(r));
+    }
+
+    /**
+     * Visits the road segments crossing a box, thinned to at most limit of them spread
+     * over the box, see SegmentIndex.within. Each segment is visited as one of its two
+     * edges.
+     * @return The number of segments crossing the box, visited or not.
+     */
+    int segmentsWithin(double minLon, double minLat, double maxLon, double maxLat, int limit,
+                       SegmentIndex.Visitor visitor) {
+        return segments.within(minLon, minLat, maxLon, maxLat, limit, visitor);
+    }
+
+    /** Accepts the vertices of the largest weak component, or null to accept all. */
+    private IntPredicate inComponent(boolean largestComponent) {
+        if (!largestComponent) {
+            return null;
+        }
+        int largest = components.largestWeak();
+        return v -> components.weak(v) == largest;
     }
 
     /**
@@ -244,9 +1130,7 @@ public class GraphDB {
      * @return The longitude of the vertex.
      */
     double lon(long v) {
-        Node node = adjacencyList.get(v);
-        return Double.parseDouble(node.lon);
-
+        return storage.lon(vertex(v));
     }
 
     /**
@@ -255,149 +1139,250 @@ public class GraphDB {
      * @return The latitude of the vertex.
      */
     double lat(long v) {
-        Node node = adjacencyList.get(v);
-        return Double.parseDouble(node.lat);
+        return storage.lat(vertex(v));
     }
 
     /**
      * Gets the way name the vertex is on
      * @param v the id of the vertex
-     * @return The way name of the vertex
+     * @return The way name of the vertex; empty if the way has none
      */
     String wayName(Long v) {
-        Node node = adjacencyList.get(v);
-        return node.way_name;
+        return names.name(wayNameIds.get(vertex(v)));
     }
 
-    ArrayList<String> matchingLocations(String prefix) {
-        ArrayList<String> alist = new ArrayList<>();
-        HashSet<String> temp = (HashSet<String>) t.collect(cleanString(prefix));
-
-        for (String loc : temp)
-            alist.add(loc);
+    /*
+        Vertex-indexed access, for code that walks the graph many times per request.
+     */
 
-        return alist;
+    /** Number of vertices; vertices are numbered 0 until numVertices(). */
+    int numVertices() {
+        return numVertices;
     }
 
     /**
-     * Class to represent a single node in the graph which consists of
-     * a longitude, latitude, name (optional), way name (optional), and
-     * a list of adjacent vertices.
+     * @param id The OSM id of a vertex.
+     * @return The vertex with that id, or -1 if there is none.
      */
-    private class Node {
+    int vertexOf(long id) {
+        return vertexIndex.get(id);
+    }
 
-        private String lon;
-        private String lat;
-        private String name;
-        private String way_name;
-        private ArrayList edges = new ArrayList<>();
+    /** The OSM id of vertex v. */
+    long osmId(int v) {
+        return osmIds.get(v);
+    }
 
-        public Node(String lon, String lat, String name) {
-            this.lon = lon;
-            this.lat = lat;
-            this.name = name;
-        }
+    /** The longitude of vertex v. */
+    double lonAt(int v) {
+        return storage.lon(v);
+    }
 
-        public void addWayNameToNode(String way_name) {
-            if (way_name != "")
-                this.way_name = way_name;
-            else
-                this.way_name = "unknown road";
-        }
+    /** The latitude of vertex v. */
+    double latAt(int v) {
+        return storage.lat(v);
+    }
+
+    /** The number of edges leaving vertex v. */
+    int degree(int v) {
+        return storage.degree(v);
+    }
 
-        public void addEdge(Long id) {
-            edges.add(id);
+    /** The largest degree of any vertex. */
+    int maxDegree() {
+        return storage.maxDegree();
+    }
+
+    /**
+     * Writes the vertices adjacent to vertex v into into.
+     * @param v A vertex.
+     * @param into Where to write them; must have room for degree(v) of them.
+     * @return The number of vertices written, i.e. degree(v).
+     */
+    int neighbors(int v, int[] into) {
+        return storage.neighbors(v, into);
+    }
+
+    /**
+     * The edge from vertex v to vertex w; of several, e.g. along two ways, the first.
+     * @return The edge, or -1 if v and w are not adjacent.
+     */
+    int edge(int v, int w) {
+        int[] neighbors = new int[storage.degree(v)];
+        int degree = storage.neighbors(v, neighbors);
+        int i = Arrays.binarySearch(neighbors, 0, degree, w);
+        while (i > 0 && neighbors[i - 1] == w) {
+            i--;
         }
+        return i < 0 ? -1 : edgeOffsets.get(v) + i;
     }
 
-    private static class Trie {
+    /** The first edge leaving vertex v; the edges leaving it are numbered consecutively. */
+    int firstEdge(int v) {
+        return edgeOffsets.get(v);
+    }
 
-        static final int SIZE = 26;
 
-        static TrieNode root;
+    /** The length of edge e in miles. */
+    double edgeWeight(int e) {
+        return edgeWeights.get(e);
+    }
 
-        Trie() {
-            root = new TrieNode();
-        }
+    /** The initial bearing of edge e in degrees, between -180 and 180. */
+    double edgeBearing(int e) {
+        return edgeBearings.get(e);
+    }
 
-        static void insert(String key, String value) {
-            TrieNode temp = root;
-            int size = key.length();
-            int index;
+    /** The speed on edge e in km/h: its way's maxspeed, or its highway class's default. */
+    int edgeSpeed(int e) {
+        return edgeSpeeds.get(e) & 0xFF;
+    }
 
-            for (int i = 0; i < size; i++) {
-                if (key.charAt(i) == ' ')
-                    continue;
+    /** The time it takes to travel edge e at edgeSpeed(e), in seconds. */
+    double edgeTime(int e) {
+        return edgeWeights.get(e) * KM_PER_MILE / edgeSpeed(e) * 3600;
+    }
 
-                index = (int) key.charAt(i) - 'a';
-                if (temp.children[index] == null) {
-                    temp.children[index] = new TrieNode();
-                }
-                temp = temp.children[index];
-            }
-            temp.isEndOfWord = true;
-            temp.fullName = value;
-        }
+    /** The highway class of the way of edge e, see GraphBuildingHandler.highwayClass. */
+    int edgeClass(int e) {
+        return edgeClasses.get(e);
+    }
 
-        static Set<String> collect(String prefix) {
-            System.out.println(prefix);
-            Set<String> matches = new HashSet<>();
+    /**
+     * The name of the way of edge e, or the empty string if it has none, which is how
+     * directions_results.txt writes unnamed ways in directions. Unlike wayName, which
+     * names one of the ways through a vertex, this is the way the edge is a segment of.
+     */
+    String edgeWayName(int e) {
+        return names.name(edgeNameIds.get(e));
+    }
 
-            TrieNode temp = root;
-            int size = prefix.length();
-            int index;
+    /** The cost of edge e under profile: its length or time, times its class's multiplier. */
+    double edgeCost(int e, RouteProfile profile) {
+        double base = profile.metric() == Router.Metric.TIME ? edgeTime(e) : edgeWeight(e);
+        return base * profile.multiplier(edgeClasses.get(e));
+    }
 
-            for (int i = 0; i < size - 1; i++) {
-                if (prefix.charAt(i) == ' ')
-                    continue;
+    /**
+     * The contracted graph weighed for a profile. The first call for a profile takes one
+     * parallel pass over the edges; the result is kept for later calls, so routing with
+     * any number of profiles shares one graph.
+     * @param profile The cost model.
+     * @return The weights of the shortcuts of contracted() under profile.
+     */
+    ContractedGraph.Customization customize(RouteProfile profile) {
+        return customizations.computeIfAbsent(profile, p -> {
+            double[] costs = new double[edgeWeights.length()];
+            IntStream.range(0, costs.length).parallel().forEach(e -> costs[e] = edgeCost(e, p));
+            /* No edge is cheaper per mile than this, so no path is either. */
+            double costPerMile = IntStream.range(0, costs.length).parallel()
+                    .filter(e -> edgeWeights.get(e) > 0)
+                    .mapToDouble(e -> costs[e] / edgeWeights.get(e))
+                    .min().orElse(0);
+            return contracted.customize(costs, costPerMile, p.turnCosts());
+        });
+    }
 
-                index = prefix.charAt(i) - 'a';
+    /** A new iterator over the edges of the graph; see EdgeIterator. */
+    EdgeIterator edges() {
+        return new EdgeIterator();
+    }
 
-                if(temp.children[index] == null)
-                    return matches;
-                temp = temp.children[index];
-            }
-            index = size - 1;
-            if (temp.children[index] == null)
-                return matches;
-            else {
-                if (temp.isEndOfWord)
-                    matches.add(prefix);
+    /**
+     * Iterates over the edges leaving one vertex, with their precomputed lengths,
+     * bearings and speeds. An iterator can be reused for any number of vertices:
+     * <pre>
+     * for (it.reset(v); it.next();) {
+     *     ... it.target() ... it.weight() ...
+     * }
+     * </pre>
+     */
+    class EdgeIterator {
+        private final int[] targets = new int[storage.maxDegree()];
+        private int first;
+        private int degree;
+        private int i;
 
-                temp = temp.children[index];
-            }
+        private EdgeIterator() {
+        }
+
+        /** Starts iterating over the edges leaving vertex v. */
+        EdgeIterator reset(int v) {
+            degree = storage.neighbors(v, targets);
+            first = edgeOffsets.get(v);
+            i = -1;
+            return this;
+        }
 
-            collectHelper(temp, matches);
+        /** Moves to the next edge; false once there is none left. */
+        boolean next() {
+            return ++i < degree;
+        }
 
-            return matches;
+        /** The current edge, as accepted by edgeWeight and edgeBearing. */
+        int edge() {
+            return first + i;
         }
 
-        static void collectHelper(TrieNode root, Set<String> matches) {
-            System.out.println("Helper Called");
-            for (int i = 0; i < root.children.length; i++) {
+        /** The vertex the current edge leads to. */
+        int target() {
+            return targets[i];
+        }
 
-                if (root.isEndOfWord)
-                    matches.add(root.fullName);
+        /** The length of the current edge in miles. */
+        double weight() {
+            return edgeWeights.get(first + i);
+        }
 
-                if (root.children[i] == null)
-                    continue;
+        /** The initial bearing of the current edge in degrees. */
+        double bearing() {
+            return edgeBearings.get(first + i);
+        }
 
-                collectHelper(root.children[i], matches);
-            }
+        /** The speed on the current edge in km/h. */
+        int speed() {
+            return edgeSpeeds.get(first + i) & 0xFF;
         }
+    }
 
-        private static class TrieNode {
-            TrieNode[] children = new TrieNode[SIZE];
-            boolean isEndOfWord;
-            String fullName;
+    /** The layout the vertices are stored in. */
+    GraphStorage storage() {
+        return storage;
+    }
 
-            TrieNode() {
-                for (TrieNode node : children)
-                    node = null;
-                isEndOfWord = false;
-            }
+    /** The graph with its chains of degree-2 vertices contracted into shortcuts. */
+    ContractedGraph contracted() {
+        return contracted;
+    }
+
+    /** The connected-component labels of the vertices. */
+    Components components() {
+        return components;
+    }
+
+    /** Looks up the vertex of an OSM id that must be in the graph. */
+    private int vertex(long id) {
+        int v = vertexIndex.get(id);
+        if (v < 0) {
+            throw new IllegalArgumentException("No vertex with id " + id);
         }
+        return v;
     }
 
+    /**
+     * Collects the full names of all locations whose cleaned name starts with the
+     * cleaned prefix.
+     * @param prefix Prefix string, in any case and with or without punctuation.
+     * @return The matching full names.
+     */
+    List<String> matchingLocations(String prefix) {
+        return autocomplete.matches(cleanString(prefix));
+    }
 
+    /**
+     * @return The prefix index used for incremental search sessions.
+     */
+    Autocomplete autocomplete() {
+        return autocomplete;
+    }
 }
@@ -0,0 +1,34 @@
+/**
+ * Where a GraphDB keeps the coordinates and adjacency lists of its vertices. The layouts
+ * trade memory for speed differently; which one a graph uses is chosen when it is built,
+ * see GraphDB.storageFormat. Every layout is read-only once built and safe to read from
+ * several threads.
+ */
+public interface GraphStorage {
+
+    /** Number of vertices; they are numbered 0 until numVertices(). */
+    int numVertices();
+
+    /** The longitude of vertex v. */
+    double lon(int v);
+
+    /** The latitude of vertex v. */
+    double lat(int v);
+
+    /** The number of edges leaving vertex v. */
+    int degree(int v);
+
+    /** The largest degree of any vertex; 0 for an empty graph. */
+    int maxDegree();
+
+    /**
+     * Writes the vertices the edges leaving v lead to into into, in the layout's order.
+     * @param v A vertex.
+     * @param into Where to write the neighbors; must have room for degree(v) of them.
+     * @return The number of neighbors written, i.e. degree(v).
+     */
+    int neighbors(int v, int[] into);
+
+    /** Approximate number of bytes the layout occupies. */
+    long sizeInBytes();
+}
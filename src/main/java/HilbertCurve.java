@@ -0,0 +1,64 @@
+/**
+ * Positions on a Hilbert curve, which visits every cell of a square grid such that cells
+ * close together on the curve are close together in the grid. Sorting points by their
+ * position on it puts points that are near each other on the map near each other in
+ * memory as well.
+ */
+public class HilbertCurve {
+
+    /** The curve covers a grid of 2^ORDER by 2^ORDER cells. */
+    static final int ORDER = 16;
+    /** Number of cells along each side of the grid. */
+    static final int SIDE = 1 << ORDER;
+
+    private HilbertCurve() {
+    }
+
+    /**
+     * @param x The column of a cell, 0 until SIDE.
+     * @param y The row of a cell, 0 until SIDE.
+     * @return The position of the cell on the curve, 0 until SIDE * SIDE.
+     */
+    static long index(int x, int y) {
+        long d = 0;
+        for (int s = SIDE >>> 1; s > 0; s >>>= 1) {
+            int rx = (x & s) != 0 ? 1 : 0;
+            int ry = (y & s) != 0 ? 1 : 0;
+            d += (long) s * s * ((3 * rx) ^ ry);
+            /* Rotate the quadrant so the curve inside it runs the right way. */
+            if (ry == 0) {
+                if (rx == 1) {
+                    x = SIDE - 1 - x;
+                    y = SIDE - 1 - y;
+                }
+                int t = x;
+                x = y;
+                y = t;
+            }
+        }
+        return d;
+    }
+
+    /**
+     * Packs a position on the curve and a number, e.g. of a point, into a long, so that
+     * sorting the longs sorts by position first and number second. Positions use all 32
+     * upper bits, so the sign bit is flipped to keep the second half of the curve last.
+     * @param position A position on the curve, 0 until SIDE * SIDE.
+     * @param number A non-negative int; (int) on the packed long gives it back.
+     */
+    static long pack(long position, int number) {
+        return (position << 32 | number) ^ Long.MIN_VALUE;
+    }
+
+    /**
+     * Maps a coordinate within [min, max] to a row or column of the grid.
+     * @return The cell, 0 until SIDE.
+     */
+    static int cell(double value, double min, double max) {
+        if (max <= min) {
+            return 0;
+        }
+        int cell = (int) ((value - min) / (max - min) * SIDE);
+        return Math.max(0, Math.min(SIDE - 1, cell));
+    }
+}
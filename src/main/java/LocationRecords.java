@@ -0,0 +1,143 @@
+import java.util.Arrays;
+
+/**
+ * Columnar store of the named locations (nodes with a name tag) in the map. Record r is
+ * described by the r-th entry of each column; names are ids into the shared
+ * NameDictionary. Records with the same cleaned name are chained together so that a
+ * lookup by cleaned name walks only its own matches, without any per-record objects.
+ */
+public class LocationRecords {
+
+    private static final int INITIAL_CAPACITY = 256;
+
+    private final NameDictionary names;
+
+    private long[] ids = new long[INITIAL_CAPACITY];
+    private double[] lons = new double[INITIAL_CAPACITY];
+    private double[] lats = new double[INITIAL_CAPACITY];
+    private int[] nameIds = new int[INITIAL_CAPACITY];
+    /** Next record with the same cleaned name, or -1. */
+    private int[] next = new int[INITIAL_CAPACITY];
+    private int size;
+
+    /** First and last record of each cleaned name, indexed by cleaned-name id. */
+    private int[] head = new int[INITIAL_CAPACITY];
+    private int[] tail = new int[INITIAL_CAPACITY];
+    /** Number of records of each cleaned name, indexed by cleaned-name id. */
+    private int[] count = new int[INITIAL_CAPACITY];
+
+    public LocationRecords(NameDictionary names) {
+        this.names = names;
+    }
+
+    /**
+     * Adds a named location.
+     * @param id The OSM id of the node.
+     * @param lon The longitude of the node.
+     * @param lat The latitude of the node.
+     * @param nameId The dictionary id of the node's name.
+     */
+    void add(long id, double lon, double lat, int nameId) {
+        if (size == ids.length) {
+            growRecords();
+        }
+        int r = size++;
+        ids[r] = id;
+        lons[r] = lon;
+        lats[r] = lat;
+        nameIds[r] = nameId;
+        next[r] = -1;
+
+        int c = names.cleanedId(nameId);
+        if (c >= head.length) {
+            growChains(c);
+        }
+        if (count[c] == 0) {
+            head[c] = r;
+        } else {
+            next[tail[c]] = r;
+        }
+        tail[c] = r;
+        count[c] += 1;
+    }
+
+    /**
+     * Returns the records whose name cleans to the given cleaned string.
+     * @param cleaned An already cleaned name.
+     * @return The matching record indices in insertion order; empty if there are none.
+     */
+    int[] find(String cleaned) {
+        int c = names.lookupCleaned(cleaned);
+        if (c < 0 || c >= count.length || count[c] == 0) {
+            return new int[0];
+        }
+        int[] result = new int[count[c]];
+        int i = 0;
+        for (int r = head[c]; r != -1; r = next[r]) {
+            result[i++] = r;
+        }
+        return result;
+    }
+
+    /**
+     * Whether any record has the name with the given id; looks only at the records whose
+     * names clean alike.
+     * @param nameId An id of the dictionary of these records, or of a copy made later.
+     */
+    boolean hasName(int nameId) {
+        if (nameId >= names.size()) {
+            return false;
+        }
+        int c = names.cleanedId(nameId);
+        if (c >= count.length || count[c] == 0) {
+            return false;
+        }
+        for (int r = head[c]; r != -1; r = next[r]) {
+            if (nameIds[r] == nameId) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    long id(int r) {
+        return ids[r];
+    }
+
+    double lon(int r) {
+        return lons[r];
+    }
+
+    double lat(int r) {
+        return lats[r];
+    }
+
+    String name(int r) {
+        return names.name(nameIds[r]);
+    }
+
+    int nameId(int r) {
+        return nameIds[r];
+    }
+
+    /** Number of records. */
+    int size() {
+        return size;
+    }
+
+    private void growRecords() {
+        int capacity = ids.length * 2;
+        ids = Arrays.copyOf(ids, capacity);
+        lons = Arrays.copyOf(lons, capacity);
+        lats = Arrays.copyOf(lats, capacity);
+        nameIds = Arrays.copyOf(nameIds, capacity);
+        next = Arrays.copyOf(next, capacity);
+    }
+
+    private void growChains(int cleanedId) {
+        int capacity = Math.max(head.length * 2, cleanedId + 1);
+        head = Arrays.copyOf(head, capacity);
+        tail = Arrays.copyOf(tail, capacity);
+        count = Arrays.copyOf(count, capacity);
+    }
+}
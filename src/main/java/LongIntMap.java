@@ -0,0 +1,116 @@
+/**
+ * Open-addressing hash map from long keys (OSM ids) to int values (column indices),
+ * without boxing either. Used to translate OSM ids to the dense indices the graph
+ * columns are addressed by. Lookups are safe to run concurrently once no more puts
+ * are made. The table is kept in Columns, so the index of an off-heap graph is off the
+ * heap as well.
+ */
+public class LongIntMap {
+
+    private static final long EMPTY = Long.MIN_VALUE;
+    /** Value returned by get for absent keys. */
+    static final int MISSING = -1;
+
+    private final Columns columns;
+    private Columns.Longs keys;
+    private Columns.Ints values;
+    private int size;
+    private int mask;
+
+    public LongIntMap() {
+        this(16);
+    }
+
+    /**
+     * @param expected The number of keys expected; the map grows past it if needed.
+     */
+    public LongIntMap(int expected) {
+        this(expected, Columns.HEAP);
+    }
+
+    /**
+     * @param expected The number of keys expected; the map grows past it if needed.
+     * @param columns Where to keep the table.
+     */
+    LongIntMap(int expected, Columns columns) {
+        this.columns = columns;
+        int capacity = Integer.highestOneBit(Math.max(4, expected * 2 - 1)) << 1;
+        allocate(capacity);
+    }
+
+    private void allocate(int capacity) {
+        keys = columns.longs(capacity);
+        values = columns.ints(capacity);
+        keys.fill(EMPTY);
+        mask = capacity - 1;
+    }
+
+    /**
+     * Associates value with key, replacing any previous value.
+     * @param key Any long except Long.MIN_VALUE.
+     * @param value The value.
+     */
+    void put(long key, int value) {
+        if (key == EMPTY) {
+            throw new IllegalArgumentException("Key " + key + " is reserved.");
+        }
+        int slot = slot(key);
+        if (keys.get(slot) == EMPTY) {
+            keys.set(slot, key);
+            size++;
+            if (size * 2 > keys.length()) {
+                values.set(slot, value);
+                rehash();
+                return;
+            }
+        }
+        values.set(slot, value);
+    }
+
+    /**
+     * @param key The key.
+     * @return Its value, or MISSING if the key is absent.
+     */
+    int get(long key) {
+        if (key == EMPTY) {
+            return MISSING;
+        }
+        int slot = slot(key);
+        return keys.get(slot) == EMPTY ? MISSING : values.get(slot);
+    }
+
+    /** Number of keys in the map. */
+    int size() {
+        return size;
+    }
+
+    /** Finds the slot holding key, or the empty slot where it would go. */
+    private int slot(long key) {
+        int slot = hash(key) & mask;
+        long found = keys.get(slot);
+        while (found != EMPTY && found != key) {
+            slot = (slot + 1) & mask;
+            found = keys.get(slot);
+        }
+        return slot;
+    }
+
+    private static int hash(long key) {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32));
+    }
+
+    private void rehash() {
+        Columns.Longs oldKeys = keys;
+        Columns.Ints oldValues = values;
+        allocate(oldKeys.length() * 2);
+        for (int i = 0; i < oldKeys.length(); i++) {
+            long key = oldKeys.get(i);
+            if (key != EMPTY) {
+                int slot = slot(key);
+                keys.set(slot, key);
+                values.set(slot, oldValues.get(i));
+            }
+        }
+    }
+}
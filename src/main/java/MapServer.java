@@ -2,16 +2,31 @@ import java.awt.Graphics;
 import java.awt.Graphics2D;
 import java.awt.BasicStroke;
 import java.awt.Color;
+import java.io.BufferedWriter;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
 import java.util.*;
 import java.awt.image.BufferedImage;
 import javax.imageio.ImageIO;
 import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.security.MessageDigest;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Supplier;
 
 
 /* Maven is used to pull in these dependencies. */
 import com.google.gson.Gson;
+import com.google.gson.stream.JsonWriter;
 
 import static spark.Spark.*;
 
@@ -42,6 +57,14 @@ public class MapServer {
     public static final Color ROUTE_STROKE_COLOR = new Color(108, 181, 230, 200);
     /** The tile images are in the IMG_ROOT folder. */
     private static final String IMG_ROOT = "../library-sp18/data/proj3_imgs/";
+    /**
+     * Rendered tiles are kept under TILE_CACHE_ROOT, in a directory per map data version,
+     * which is deleted once that version is no longer served.
+     */
+    private static final File TILE_CACHE_ROOT =
+            new File(System.getProperty("java.io.tmpdir"), "bearmaps-tiles");
+    /** The most bytes of rendered tiles kept per map data version. */
+    private static final long TILE_CACHE_BYTES = 256L << 20;
     /**
      * The OSM XML file path. Downloaded from <a href="http://download.bbbike.org/osm/">here</a>
      * using custom region selection.
@@ -61,10 +84,49 @@ public class MapServer {
      * Each route request to the server will have the following parameters
      * as keys in the params map.<br>
      * start_lat : start point latitude,<br> start_lon : start point longitude,<br>
-     * end_lat : end point latitude, <br>end_lon : end point longitude.
+     * end_lat : end point latitude, <br>end_lon : end point longitude.<br>
+     * Optionally, largest_component=true snaps both points into the largest connected
+     * part of the road graph, and metric=time finds the quickest rather than the shortest
+     * route (metric=distance, the default). profile=name picks a RouteProfile instead,
+     * e.g. avoid_motorways; it takes precedence over metric. Both points are snapped onto
+     * the nearest road (snap=road, the default), or snap=node to the nearest node.
+     * The route is also returned as an encoded polyline, simplified to within
+     * polyline_tolerance meters (default 0, every node) with polyline_precision decimals
+     * (default 5, as Google's polylines have).
+     * The search settles at most max_settled vertices and takes at most timeout_ms
+     * milliseconds, each capped at and defaulting to the server's limit. If it runs out,
+     * routing_status is exceeded and there is no route, unless epsilon &gt; 1 is given: a
+     * route costing at most epsilon times the cheapest is then searched for, and
+     * routing_status is approximate if one is found.
      **/
     private static final String[] REQUIRED_ROUTE_REQUEST_PARAMS = {"start_lat", "start_lon",
         "end_lat", "end_lon"};
+    /**
+     * Each reverse geocoding request to the server will have the following parameters
+     * as keys in the params map.<br>
+     * lat : latitude of the location to describe,<br> lon : its longitude.
+     **/
+    private static final String[] REQUIRED_REVERSE_REQUEST_PARAMS = {"lat", "lon"};
+    /**
+     * Each features request to the server will have the following parameters
+     * as keys in the params map.<br>
+     * ullat, ullon, lrlat, lrlon : the query box, as for rastering,<br>
+     * w : user viewport window width in pixels, which decides the depth as for rastering.<br>
+     * Optionally, layers=places or layers=roads returns only that layer; both by default.
+     **/
+    private static final String[] REQUIRED_FEATURES_REQUEST_PARAMS = {"ullat", "ullon",
+        "lrlat", "lrlon", "w"};
+    /**
+     * Each vector tile request to the server will have the following parameters
+     * as keys in the params map.<br>
+     * depth : the depth of the tile,<br> x : its column,<br> y : its row; the same
+     * numbers as in the names of the images rastering returns, see VectorTiles.
+     **/
+    private static final String[] REQUIRED_TILE_REQUEST_PARAMS = {"depth", "x", "y"};
+    /** Most named places a features response has at depth 0; doubled per level deeper. */
+    private static final int PLACE_LIMIT_AT_ROOT = 100;
+    /** Most road segments a features response has at depth 0; doubled per level deeper. */
+    private static final int ROAD_LIMIT_AT_ROOT = 2000;
 
     /**
      * The result of rastering must be a map containing all of the
@@ -73,11 +135,89 @@ public class MapServer {
     private static final String[] REQUIRED_RASTER_RESULT_PARAMS = {"render_grid", "raster_ul_lon",
         "raster_ul_lat", "raster_lr_lon", "raster_lr_lat", "depth", "query_success"};
 
-    private static Rasterer rasterer;
-    private static GraphDB graph;
-    private static List<Long> route = new LinkedList<>();
+    /** Decimals of the coordinates in route polylines unless polyline_precision is given. */
+    private static final int DEFAULT_POLYLINE_PRECISION = 5;
+    /** Most decimals of the coordinates in route polylines; more exceed the data's. */
+    private static final int MAX_POLYLINE_PRECISION = 7;
+
+    /** Most vertices a route search may settle; see Router.Budget. */
+    private static final int ROUTE_MAX_SETTLED = 1_000_000;
+    /** Most milliseconds a route search may take. */
+    private static final int ROUTE_TIMEOUT_MS = 2_000;
+
+    /** Number of matches returned per incremental search request unless limit is given. */
+    private static final int DEFAULT_SEARCH_WINDOW = 20;
+
+    /**
+     * The map data currently being served. Request handlers read it once and use that
+     * version throughout, so a reload never changes the data under a running request.
+     */
+    private static final AtomicReference<MapData> current = new AtomicReference<>();
+    /** Runs reloads one at a time, off the request threads. */
+    private static final ExecutorService reloader = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "map-reloader");
+        t.setDaemon(true);
+        return t;
+    });
+    /** The highest version asked for so far, published or not; see MapData.version. */
+    private static final AtomicInteger requestedVersion = new AtomicInteger();
+    /** The reload waiting to start, if any, so that more requests for one join it. */
+    private static PendingReload pendingReload;
+    /** Why the last reload or change failed, or null if the last one was published. */
+    private static volatile String reloadError;
+    /**
+     * System property holding the token /reload requires, sent as "Authorization: Bearer
+     * token". Without one, /reload is only accepted from the loopback interface.
+     */
+    private static final String RELOAD_TOKEN_PROPERTY = "bearmaps.reload.token";
+    /** HTTP response for a request that was accepted but is still being processed. */
+    private static final int ACCEPTED_RESPONSE = 202;
+    /** The most recently found route, together with the graph it was found in. */
+    private static volatile CurrentRoute route = CurrentRoute.NONE;
     /* Define any static variables here. Do not define any instance variables of MapServer. */
 
+    /**
+     * One version of the map data: a graph and everything derived from it. Never modified
+     * once published; a reload publishes a new one instead.
+     */
+    static class MapData {
+        final GraphDB graph;
+        final Rasterer rasterer;
+        /** The vector tiles of graph, built as they are requested. */
+        final VectorTiles tiles;
+        /** The tile images of graph, rendered as they are requested if not stored. */
+        final TileRenderer renderer;
+        /** 1 for the data loaded at startup, then one more for every reload. */
+        final int version;
+        /** Time it took to build this version, in milliseconds. */
+        final long loadMillis;
+
+        MapData(GraphDB graph, Rasterer rasterer, int version, long loadMillis) {
+            this.graph = graph;
+            this.rasterer = rasterer;
+            this.tiles = new VectorTiles(graph);
+            this.renderer = new TileRenderer(graph, new File(IMG_ROOT),
+                    new File(TILE_CACHE_ROOT, "v" + version), TILE_CACHE_BYTES);
+            this.version = version;
+            this.loadMillis = loadMillis;
+        }
+    }
+
+    /** A route, as the OSM ids of its vertices in the graph it was found in. */
+    private static class CurrentRoute {
+        static final CurrentRoute NONE = new CurrentRoute(null, new LinkedList<>());
+
+        final GraphDB graph;
+        final List<Long> ids;
+        /** The coordinates of the route, for drawing it. */
+        final RouteGeometry geometry;
+
+        CurrentRoute(GraphDB graph, List<Long> ids) {
+            this.graph = graph;
+            this.ids = ids;
+            this.geometry = graph == null ? RouteGeometry.NONE : new RouteGeometry(graph, ids);
+        }
+    }
 
     /**
      * Place any initialization statements that will be run before the server main loop here.
@@ -85,8 +225,117 @@ public class MapServer {
      * This is for testing purposes, and you may fail tests otherwise.
      **/
     public static void initialize() {
-        graph = new GraphDB(OSM_DB_PATH);
-        rasterer = new Rasterer();
+        deleteTileCaches();
+        publish(() -> new GraphDB(OSM_DB_PATH), requestedVersion.incrementAndGet());
+    }
+
+    /**
+     * Re-reads the OSM file and swaps the new data in once it is completely built. Requests
+     * keep being served from the current data in the meantime, and keep being served from
+     * it if the file cannot be read. Reloads run one at a time, in the order they were
+     * asked for; asking again while a reload waits to start joins that reload.
+     * @return The reload.
+     */
+    static PendingReload reload() {
+        synchronized (reloader) {
+            if (pendingReload == null || pendingReload.started) {
+                PendingReload reload = new PendingReload(requestedVersion.incrementAndGet());
+                pendingReload = reload;
+                reload.result = reloader.submit(() -> {
+                    reload.started = true;
+                    return publishOrRecord(() -> {
+                        try {
+                            return GraphDB.read(OSM_DB_PATH);
+                        } catch (IOException e) {
+                            throw new UncheckedIOException(e);
+                        }
+                    }, reload.version);
+                });
+            }
+            return pendingReload;
+        }
+    }
+
+    /** A reload asked for, and the version it is to publish. */
+    static class PendingReload {
+        /** The version the reload publishes, if it succeeds. */
+        final int version;
+        /** The newly published data, once it is published. */
+        Future<MapData> result;
+        private volatile boolean started;
+
+        private PendingReload(int version) {
+            this.version = version;
+        }
+    }
+
+    /**
+     * Applies an OSM change file to the current graph and swaps the result in, like
+     * reload() but without re-reading the whole map.
+     * @param changePath Path to an .osc, .osc.gz or .osc.bz2 file.
+     * @return The newly published data, once it is published.
+     */
+    static Future<MapData> applyChanges(String changePath) {
+        synchronized (reloader) {
+            int version = requestedVersion.incrementAndGet();
+            return reloader.submit(() -> publishOrRecord(() -> {
+                try {
+                    return current.get().graph.applyChanges(changePath);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }, version));
+        }
+    }
+
+    /** Publishes like publish, recording the failure for /status if it fails. */
+    private static MapData publishOrRecord(Supplier<GraphDB> build, int version) {
+        try {
+            MapData published = publish(build, version);
+            reloadError = null;
+            return published;
+        } catch (RuntimeException e) {
+            e.printStackTrace();
+            reloadError = "Version " + version + " failed: " + e.getMessage();
+            throw e;
+        }
+    }
+
+    /** Builds a graph and all data derived from it, then publishes it as version. */
+    private static synchronized MapData publish(Supplier<GraphDB> build, int version) {
+        long start = System.nanoTime();
+        GraphDB graph = build.get();
+        Rasterer rasterer = new Rasterer(TileRenderer.MAX_DEPTH);
+        long loadMillis = (System.nanoTime() - start) / 1_000_000;
+
+        MapData next = new MapData(graph, rasterer, version, loadMillis);
+        MapData previous = current.getAndSet(next);
+        if (previous != null) {
+            previous.renderer.discard();
+        }
+        System.out.printf("Serving map data version %d, built in %.2f s%n",
+                next.version, loadMillis / 1000.0);
+        return next;
+    }
+
+    /** Deletes the tile caches left by earlier runs of the server. */
+    private static void deleteTileCaches() {
+        File[] versions = TILE_CACHE_ROOT.listFiles();
+        if (versions == null) {
+            return;
+        }
+        for (File version : versions) {
+            File[] tiles = version.listFiles();
+            for (File tile : tiles == null ? new File[0] : tiles) {
+                tile.delete();
+            }
+            version.delete();
+        }
+    }
+
+    /** The map data currently being served. */
+    static MapData current() {
+        return current.get();
     }
 
     public static void main(String[] args) {
@@ -108,12 +357,13 @@ public class MapServer {
             /* The png image is written to the ByteArrayOutputStream */
             ByteArrayOutputStream os = new ByteArrayOutputStream();
             /* getMapRaster() does almost all the work for this API call */
-            Map<String, Object> rasteredImgParams = rasterer.getMapRaster(params);
+            MapData data = current.get();
+            Map<String, Object> rasteredImgParams = data.rasterer.getMapRaster(params);
 
             boolean rasterSuccess = validateRasteredImgParams(rasteredImgParams);
 
             if (rasterSuccess) {
-                writeImagesToOutputStream(rasteredImgParams, os);
+                writeImagesToOutputStream(rasteredImgParams, data.renderer, os);
                 String encodedImage = Base64.getEncoder().encodeToString(os.toByteArray());
                 rasteredImgParams.put("b64_encoded_image_data", encodedImage);
             }
@@ -127,17 +377,80 @@ public class MapServer {
         get("/route", (req, res) -> {
             HashMap<String, Double> params =
                     getRequestParams(req, REQUIRED_ROUTE_REQUEST_PARAMS);
-            route = Router.shortestPath(graph, params.get("start_lon"), params.get("start_lat"),
-                    params.get("end_lon"), params.get("end_lat"));
-            String directions = getDirectionsText();
+            GraphDB graph = current.get().graph;
+            boolean largestComponent = "true".equals(req.queryParams("largest_component"));
+            RouteProfile profile = getProfile(req.queryParams("profile"),
+                    req.queryParams("metric"));
+            Router.Snapping snapping = getSnapping(req.queryParams("snap"));
+            int tolerance = getIntParam(req, "polyline_tolerance", 0);
+            int precision = getIntParam(req, "polyline_precision", DEFAULT_POLYLINE_PRECISION);
+            if (precision > MAX_POLYLINE_PRECISION) {
+                halt(HALT_RESPONSE, "Incorrect parameters - polyline_precision is at most "
+                        + MAX_POLYLINE_PRECISION + ".");
+            }
+            Router.Budget budget = new Router.Budget(
+                    Math.min(getIntParam(req, "max_settled", ROUTE_MAX_SETTLED),
+                            ROUTE_MAX_SETTLED),
+                    Math.min(getIntParam(req, "timeout_ms", ROUTE_TIMEOUT_MS), ROUTE_TIMEOUT_MS),
+                    getEpsilon(req.queryParams("epsilon")));
+            CurrentRoute found = new CurrentRoute(graph, Router.shortestPath(graph,
+                    params.get("start_lon"), params.get("start_lat"),
+                    params.get("end_lon"), params.get("end_lat"), largestComponent, profile,
+                    snapping, budget));
+            route = found;
+            String directions = getDirectionsText(found);
             Map<String, Object> routeParams = new HashMap<>();
-            routeParams.put("routing_success", !route.isEmpty());
+            routeParams.put("routing_success", !found.ids.isEmpty());
+            routeParams.put("routing_status",
+                    budget.outcome().name().toLowerCase(Locale.ROOT));
+            routeParams.put("settled", budget.settled());
             routeParams.put("directions_success", directions.length() > 0);
             routeParams.put("directions", directions);
+            routeParams.putAll(getPolyline(found, tolerance, precision));
             Gson gson = new Gson();
             return gson.toJson(routeParams);
         });
 
+        /* Define the reverse geocoding endpoint, naming what is near a location. */
+        get("/reverse", (req, res) -> {
+            HashMap<String, Double> params =
+                    getRequestParams(req, REQUIRED_REVERSE_REQUEST_PARAMS);
+            return new Gson().toJson(getReverse(params.get("lon"), params.get("lat")));
+        });
+
+        /* Define the endpoint for the features in a viewport, streamed out as they are
+         * found rather than collected first. */
+        get("/features", (req, res) -> {
+            HashMap<String, Double> params =
+                    getRequestParams(req, REQUIRED_FEATURES_REQUEST_PARAMS);
+            String layers = req.queryParams("layers");
+            boolean places = layers == null || layers.equals("places");
+            boolean roads = layers == null || layers.equals("roads");
+            if (!places && !roads) {
+                halt(HALT_RESPONSE, "Incorrect parameters - layers must be places or roads.");
+            }
+            res.type("application/json");
+            Writer out = new BufferedWriter(new OutputStreamWriter(
+                    res.raw().getOutputStream(), StandardCharsets.UTF_8));
+            writeFeatures(current.get().graph, params, places, roads, out);
+            out.flush();
+            return "";
+        });
+
+        /* Define the vector tile endpoint, answering with the encoded tile. */
+        get("/vector_tile", (req, res) -> {
+            HashMap<String, Double> params = getRequestParams(req, REQUIRED_TILE_REQUEST_PARAMS);
+            int depth = params.get("depth").intValue();
+            int x = params.get("x").intValue();
+            int y = params.get("y").intValue();
+            if (depth != params.get("depth") || x != params.get("x") || y != params.get("y")
+                    || !VectorTiles.exists(depth, x, y)) {
+                halt(HALT_RESPONSE, "Incorrect parameters - no such tile.");
+            }
+            res.type("application/octet-stream");
+            return current.get().tiles.tile(depth, x, y);
+        });
+
         /* Define the API endpoint for clearing the current route. */
         get("/clear_route", (req, res) -> {
             clearRoute();
@@ -153,6 +466,12 @@ public class MapServer {
             if (reqParams.contains("full")) {
                 List<Map<String, Object>> data = getLocations(term);
                 return gson.toJson(data);
+            } else if (reqParams.contains("session")) {
+                /* Incremental prefix search, narrowing from the previous keystroke. */
+                int offset = getIntParam(req, "offset", 0);
+                int limit = getIntParam(req, "limit", DEFAULT_SEARCH_WINDOW);
+                return gson.toJson(getLocationsByPrefix(term, req.queryParams("cursor"),
+                        offset, limit));
             } else {
                 /* Search for prefix matching strings. */
                 List<String> matches = getLocationsByPrefix(term);
@@ -160,6 +479,23 @@ public class MapServer {
             }
         });
 
+        /* Define the API endpoint for rebuilding the map data from the OSM file. The
+         * response is sent at once, with the version the new data will be served as;
+         * /status tells when it is. */
+        post("/reload", (req, res) -> {
+            if (!mayReload(req)) {
+                halt(HALT_RESPONSE, "Forbidden - reloading needs the reload token.");
+            }
+            int version = reload().version;
+            res.status(ACCEPTED_RESPONSE);
+            Map<String, Object> status = status(current.get());
+            status.put("reload_version", version);
+            return new Gson().toJson(status);
+        });
+
+        /* Define the API endpoint reporting which map data is being served. */
+        get("/status", (req, res) -> new Gson().toJson(status(current.get())));
+
         /* Define map application redirect */
         get("/", (request, response) -> {
             response.redirect("/map.html", 301);
@@ -167,6 +503,45 @@ public class MapServer {
         });
     }
 
+    /**
+     * Whether a request may reload the map: it carries the configured reload token, or
+     * comes from the loopback interface if there is none.
+     */
+    private static boolean mayReload(spark.Request req) {
+        String token = System.getProperty(RELOAD_TOKEN_PROPERTY);
+        if (token == null || token.isEmpty()) {
+            try {
+                return InetAddress.getByName(req.ip()).isLoopbackAddress();
+            } catch (UnknownHostException e) {
+                return false;
+            }
+        }
+        String authorization = req.headers("Authorization");
+        return authorization != null && MessageDigest.isEqual(
+                ("Bearer " + token).getBytes(StandardCharsets.UTF_8),
+                authorization.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * The fields of the /status and /reload responses: the version being served, the
+     * highest version asked for, and why the last reload failed if it did.
+     */
+    private static Map<String, Object> status(MapData data) {
+        Map<String, Object> status = new HashMap<>();
+        status.put("version", data.version);
+        status.put("requested_version", requestedVersion.get());
+        if (reloadError != null) {
+            status.put("reload_error", reloadError);
+        }
+        status.put("load_ms", data.loadMillis);
+        status.put("vertices", data.graph.numVertices());
+        for (Router.Outcome outcome : Router.Outcome.values()) {
+            status.put("routes_" + outcome.name().toLowerCase(Locale.ROOT),
+                    Router.searches(outcome));
+        }
+        return status;
+    }
+
     /**
      * Validate & return a parameter map of the required request parameters.
      * Requires that all input parameters are doubles.
@@ -193,12 +568,105 @@ public class MapServer {
         return params;
     }
 
+    /**
+     * Returns an optional non-negative integer request parameter.
+     * @param req HTTP Request.
+     * @param param Name of the parameter.
+     * @param defaultValue Value to use if the parameter is absent.
+     * @return The parameter's value.
+     */
+    private static int getIntParam(spark.Request req, String param, int defaultValue) {
+        String value = req.queryParams(param);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            int result = Integer.parseInt(value);
+            if (result >= 0) {
+                return result;
+            }
+        } catch (NumberFormatException e) {
+            e.printStackTrace();
+        }
+        halt(HALT_RESPONSE, "Incorrect parameters - provide non-negative integers.");
+        return defaultValue;
+    }
+
+    /**
+     * Picks the profile of a route request from its optional profile and metric parameters.
+     * @param name The profile parameter, or null if it is absent.
+     * @param metric The metric parameter, or null if it is absent.
+     * @return The registered profile of that name, else the plain profile of the metric.
+     */
+    private static RouteProfile getProfile(String name, String metric) {
+        if (name == null) {
+            return RouteProfile.of(getMetric(metric));
+        }
+        RouteProfile profile = RouteProfile.named(name);
+        if (profile == null) {
+            halt(HALT_RESPONSE, "Incorrect parameters - unknown profile.");
+        }
+        return profile;
+    }
+
+    /**
+     * Parses the optional metric parameter of a route request.
+     * @param value The parameter's value, or null if it is absent.
+     * @return The metric it names; DISTANCE if it is absent.
+     */
+    private static Router.Metric getMetric(String value) {
+        if (value == null || value.equals("distance")) {
+            return Router.Metric.DISTANCE;
+        } else if (value.equals("time")) {
+            return Router.Metric.TIME;
+        }
+        halt(HALT_RESPONSE, "Incorrect parameters - metric must be distance or time.");
+        return Router.Metric.DISTANCE;
+    }
+
+    /**
+     * Parses the optional snap parameter of a route request.
+     * @param value The parameter's value, or null if it is absent.
+     * @return The snapping it names; SEGMENT if it is absent.
+     */
+    private static Router.Snapping getSnapping(String value) {
+        if (value == null || value.equals("road")) {
+            return Router.Snapping.SEGMENT;
+        } else if (value.equals("node")) {
+            return Router.Snapping.VERTEX;
+        }
+        halt(HALT_RESPONSE, "Incorrect parameters - snap must be road or node.");
+        return Router.Snapping.SEGMENT;
+    }
+
+    /**
+     * Parses the optional epsilon parameter of a route request.
+     * @param value The parameter, or null if it is absent.
+     * @return The weight of the fallback search; 1, for none, if it is absent.
+     */
+    private static double getEpsilon(String value) {
+        if (value == null) {
+            return 1;
+        }
+        try {
+            double epsilon = Double.parseDouble(value);
+            if (epsilon >= 1 && !Double.isInfinite(epsilon)) {
+                return epsilon;
+            }
+        } catch (NumberFormatException e) {
+            e.printStackTrace();
+        }
+        halt(HALT_RESPONSE, "Incorrect parameters - epsilon must be a number of at least 1.");
+        return 1;
+    }
+
     /**
      * Writes the images corresponding to rasteredImgParams to the output stream.
      * In Spring 2016, students had to do this on their own, but in 2017,
      * we have made this into provided code since it was just a bit too low level.
      */
     private static void writeImagesToOutputStream(Map<String, Object> rasteredImageParams,
+                                                  TileRenderer tiles,
                                                   ByteArrayOutputStream os) {
         String[][] renderGrid = (String[][]) rasteredImageParams.get("render_grid");
         int numVertTiles = renderGrid.length;
@@ -211,7 +679,7 @@ public class MapServer {
 
         for (int r = 0; r < numVertTiles; r += 1) {
             for (int c = 0; c < numHorizTiles; c += 1) {
-                graphic.drawImage(getImage(IMG_ROOT + renderGrid[r][c]), x, y, null);
+                graphic.drawImage(tiles.tile(renderGrid[r][c]), x, y, null);
                 x += MapServer.TILE_SIZE;
                 if (x >= img.getWidth()) {
                     x = 0;
@@ -226,20 +694,14 @@ public class MapServer {
         double lrlon = (double) rasteredImageParams.get("raster_lr_lon"); //tiles.get(0).ulp;
         double lrlat = (double) rasteredImageParams.get("raster_lr_lat"); //tiles.get(0).ulp;
 
-        final double wdpp = (lrlon - ullon) / img.getWidth();
-        final double hdpp = (ullat - lrlat) / img.getHeight();
-        if (route != null && !route.isEmpty()) {
+        RouteGeometry drawn = route.geometry;
+        if (drawn.size() > 1) {
             Graphics2D g2d = (Graphics2D) graphic;
             g2d.setColor(MapServer.ROUTE_STROKE_COLOR);
             g2d.setStroke(new BasicStroke(MapServer.ROUTE_STROKE_WIDTH_PX,
                     BasicStroke.CAP_ROUND, BasicStroke.JOIN_ROUND));
-            route.stream().reduce((v, w) -> {
-                g2d.drawLine((int) ((graph.lon(v) - ullon) * (1 / wdpp)),
-                             (int) ((ullat - graph.lat(v)) * (1 / hdpp)),
-                             (int) ((graph.lon(w) - ullon) * (1 / wdpp)),
-                             (int) ((ullat - graph.lat(w)) * (1 / hdpp)));
-                return w;
-            });
+            g2d.draw(drawn.path(ullon, ullat, lrlon, lrlat, img.getWidth(), img.getHeight(),
+                    MapServer.ROUTE_STROKE_WIDTH_PX));
         }
 
         rasteredImageParams.put("raster_width", img.getWidth());
@@ -253,24 +715,11 @@ public class MapServer {
 
     }
 
-    private static BufferedImage getImage(String imgPath) {
-        BufferedImage tileImg = null;
-        if (tileImg == null) {
-            try {
-                File in = new File(imgPath);
-                tileImg = ImageIO.read(in);
-            } catch (IOException | NullPointerException e) {
-                e.printStackTrace();
-            }
-        }
-        return tileImg;
-    }
-
     /**
      * Clear the current found route, if it exists.
      */
     public static void clearRoute() {
-        route = new LinkedList<Long>();
+        route = CurrentRoute.NONE;
     }
 
     /**
@@ -281,8 +730,24 @@ public class MapServer {
      * cleaned <code>prefix</code>.
      */
     public static List<String> getLocationsByPrefix(String prefix) {
-        ArrayList<String> locs = graph.matchingLocations(prefix);
-        return locs;
+        return current.get().graph.matchingLocations(prefix);
+    }
+
+    /**
+     * One step of an incremental prefix search. Each response carries a cursor; passing it
+     * back with the next, longer, prefix lets the search narrow from the previous matches
+     * instead of starting over.
+     * @param prefix Prefix string to be searched for, in any case and with or without
+     *               punctuation.
+     * @param cursor The cursor returned for the previous prefix in this session, or null.
+     * @param offset Index of the first match to return.
+     * @param limit Maximum number of matches to return.
+     * @return The matches in the requested window, their total count and a new cursor.
+     */
+    public static Autocomplete.Result getLocationsByPrefix(String prefix, String cursor,
+                                                           int offset, int limit) {
+        return current.get().graph.autocomplete()
+                .search(GraphDB.cleanString(prefix), cursor, offset, limit);
     }
 
     /**
@@ -298,10 +763,173 @@ public class MapServer {
      * "id" : Number, The id of the node. <br>
      */
     public static List<Map<String, Object>> getLocations(String locationName) {
+        GraphDB graph = current.get().graph;
+        LocationRecords records = graph.locationRecords();
+        List<Map<String, Object>> locations = new ArrayList<>();
+        for (int r : graph.locations(locationName)) {
+            Map<String, Object> location = new HashMap<>();
+            location.put("lat", records.lat(r));
+            location.put("lon", records.lon(r));
+            location.put("name", records.name(r));
+            location.put("id", records.id(r));
+            locations.add(location);
+        }
+        return locations;
+    }
 
-        System.out.println(graph.locations(locationName));
-        System.out.println("Called");
-        return graph.locations(locationName);
+    /**
+     * The geometry of a route in the fields of the /route response.
+     * @param found The route.
+     * @param toleranceMeters How far in meters the polyline may stray from the route.
+     * @param precision The number of decimals of the polyline's coordinates.
+     * @return A map of parameters for the Json response as specified: <br>
+     * "polyline" : String, the route as a Google encoded polyline; empty if there is no
+     * route. <br>
+     * "polyline_points" : Number, the number of points the polyline has. <br>
+     * "distance" : Number, the length of the route in miles. <br>
+     * "nodes" : Number, the number of nodes along the route.
+     */
+    private static Map<String, Object> getPolyline(CurrentRoute found, int toleranceMeters,
+                                                   int precision) {
+        boolean[] keep = found.geometry.simplified(toleranceMeters);
+        int points = 0;
+        for (boolean kept : keep) {
+            points += kept ? 1 : 0;
+        }
+        Map<String, Object> polyline = new HashMap<>();
+        polyline.put("polyline", found.geometry.encoded(keep, precision));
+        polyline.put("polyline_points", points);
+        polyline.put("distance", found.geometry.length());
+        polyline.put("nodes", found.ids.size());
+        return polyline;
+    }
+
+    /**
+     * Describe a location by the named location and the road nearest to it, both found
+     * through spatial indexes, so the cost does not grow with the size of the map.
+     * @param lon The longitude of the location.
+     * @param lat The latitude of the location.
+     * @return A map of parameters for the Json response as specified: <br>
+     * "place" : The nearest named location, as getLocations describes a location, with
+     * "distance" : Number, its distance in miles; absent if there are no locations. <br>
+     * "road" : The nearest point on a road, with "name" : String, the name of its way,
+     * "lat", "lon" and "distance"; absent if there are no roads.
+     */
+    public static Map<String, Object> getReverse(double lon, double lat) {
+        GraphDB graph = current.get().graph;
+        Map<String, Object> result = new HashMap<>();
+        int r = graph.nearestLocation(lon, lat);
+        if (r >= 0) {
+            LocationRecords records = graph.locationRecords();
+            Map<String, Object> place = new HashMap<>();
+            place.put("lat", records.lat(r));
+            place.put("lon", records.lon(r));
+            place.put("name", records.name(r));
+            place.put("id", records.id(r));
+            place.put("distance", GraphDB.distance(lon, lat, records.lon(r), records.lat(r)));
+            result.put("place", place);
+        }
+        SegmentIndex.Snap snap = graph.snap(lon, lat, false);
+        if (snap != null) {
+            Map<String, Object> road = new HashMap<>();
+            road.put("name", graph.edgeWayName(snap.edge));
+            road.put("lat", snap.lat);
+            road.put("lon", snap.lon);
+            road.put("distance", snap.distance);
+            result.put("road", road);
+        }
+        return result;
+    }
+
+    /**
+     * Write the named places and road segments in a query box as Json. At low depths,
+     * i.e. in large boxes, each layer is thinned to a number of features that doubles
+     * with every level, spread over the box.
+     * @param graph The graph to take the features from.
+     * @param params The query box and viewport width, see REQUIRED_FEATURES_REQUEST_PARAMS.
+     * @param places Whether to write the named places.
+     * @param roads Whether to write the road segments.
+     * @param out Where to write the Json response as specified: <br>
+     * "depth" : Number, the depth of the tiles a raster of the box would have. <br>
+     * "places" : Array, the named places written, each as getLocations describes a
+     * location; absent unless places. <br>
+     * "places_found" : Number, how many places are in the box, written or not. <br>
+     * "roads" : Array, the road segments written, each with "name" : String, the name of
+     * its way, "highway" : String, its highway type, "from" and "to" : Number, the ids of
+     * its nodes, and "coords" : Array, [from lon, from lat, to lon, to lat]; absent unless
+     * roads. <br>
+     * "roads_found" : Number, how many road segments cross the box, written or not.
+     * @throws IOException If out cannot be written to.
+     */
+    public static void writeFeatures(GraphDB graph, Map<String, Double> params, boolean places,
+                                     boolean roads, Writer out) throws IOException {
+        double minLon = Math.min(params.get("ullon"), params.get("lrlon"));
+        double maxLon = Math.max(params.get("ullon"), params.get("lrlon"));
+        double minLat = Math.min(params.get("ullat"), params.get("lrlat"));
+        double maxLat = Math.max(params.get("ullat"), params.get("lrlat"));
+        int depth = Rasterer.getDepthLevel(Rasterer.getLonDPP(maxLon, minLon, params.get("w")));
+        JsonWriter json = new JsonWriter(out);
+        json.beginObject();
+        json.name("depth").value(depth);
+        try {
+            if (places) {
+                LocationRecords records = graph.locationRecords();
+                json.name("places").beginArray();
+                int found = graph.locationsWithin(minLon, minLat, maxLon, maxLat,
+                        PLACE_LIMIT_AT_ROOT << depth, r -> {
+                            try {
+                                writePlace(json, records, r);
+                            } catch (IOException e) {
+                                throw new UncheckedIOException(e);
+                            }
+                        });
+                json.endArray();
+                json.name("places_found").value(found);
+            }
+            if (roads) {
+                json.name("roads").beginArray();
+                int found = graph.segmentsWithin(minLon, minLat, maxLon, maxLat,
+                        ROAD_LIMIT_AT_ROOT << depth, (edge, v, w) -> {
+                            try {
+                                writeRoad(json, graph, edge, v, w);
+                            } catch (IOException e) {
+                                throw new UncheckedIOException(e);
+                            }
+                        });
+                json.endArray();
+                json.name("roads_found").value(found);
+            }
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+        json.endObject();
+        json.flush();
+    }
+
+    /** Writes location record r of records as a /features place. */
+    private static void writePlace(JsonWriter json, LocationRecords records, int r)
+            throws IOException {
+        json.beginObject();
+        json.name("lat").value(records.lat(r));
+        json.name("lon").value(records.lon(r));
+        json.name("name").value(records.name(r));
+        json.name("id").value(records.id(r));
+        json.endObject();
+    }
+
+    /** Writes the segment of edge from vertex v to vertex w as a /features road. */
+    private static void writeRoad(JsonWriter json, GraphDB graph, int edge, int v, int w)
+            throws IOException {
+        json.beginObject();
+        json.name("name").value(graph.edgeWayName(edge));
+        json.name("highway").value(GraphBuildingHandler.highwayType(graph.edgeClass(edge)));
+        json.name("from").value(graph.osmId(v));
+        json.name("to").value(graph.osmId(w));
+        json.name("coords").beginArray()
+                .value(graph.lonAt(v)).value(graph.latAt(v))
+                .value(graph.lonAt(w)).value(graph.latAt(w))
+                .endArray();
+        json.endObject();
     }
 
     /**
@@ -326,11 +954,15 @@ public class MapServer {
     }
 
     /**
-     * Takes the route of this MapServer and converts it into an HTML friendly
+     * Takes a route of this MapServer and converts it into an HTML friendly
      * String to be passed to the frontend.
      */
-    private static String getDirectionsText() {
-        List<Router.NavigationDirection> directions = Router.routeDirections(graph, route);
+    private static String getDirectionsText(CurrentRoute found) {
+        if (found.ids.isEmpty()) {
+            return "";
+        }
+        List<Router.NavigationDirection> directions =
+                Router.routeDirections(found.graph, found.ids);
         if (directions == null || directions.isEmpty()) {
           return "";
         }
@@ -0,0 +1,122 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Shared dictionary of the names seen while building a GraphDB. Every distinct name,
+ * and every distinct cleaned form of a name, is stored exactly once and referred to
+ * everywhere else by an int id. A street like "Telegraph Avenue" that appears on
+ * hundreds of nodes therefore costs one String, not hundreds.
+ *
+ * Name ids and cleaned-name ids are separate id spaces: several names may share one
+ * cleaned form (e.g. "Peet's Coffee" and "Peets Coffee").
+ */
+public class NameDictionary {
+
+    /** Id of the empty name, always present. */
+    static final int EMPTY = 0;
+
+    private final Map<String, Integer> nameIds = new HashMap<>();
+    private final Map<String, Integer> cleanedIds = new HashMap<>();
+    private final List<String> names = new ArrayList<>();
+    private final List<String> cleanedNames = new ArrayList<>();
+    private int[] cleanedIdOfName = new int[16];
+
+    public NameDictionary() {
+        intern("");
+    }
+
+    private NameDictionary(NameDictionary other) {
+        nameIds.putAll(other.nameIds);
+        cleanedIds.putAll(other.cleanedIds);
+        names.addAll(other.names);
+        cleanedNames.addAll(other.cleanedNames);
+        cleanedIdOfName = other.cleanedIdOfName.clone();
+    }
+
+    /**
+     * Returns an independent copy with the same ids, so names can be added to the copy
+     * while readers of this dictionary carry on undisturbed.
+     */
+    NameDictionary copy() {
+        return new NameDictionary(this);
+    }
+
+    /**
+     * Returns the id of name, adding it (and its cleaned form) if it is new.
+     * @param name The full name.
+     * @return The id of the name.
+     */
+    int intern(String name) {
+        Integer id = nameIds.get(name);
+        if (id != null) {
+            return id;
+        }
+        int newId = names.size();
+        names.add(name);
+        nameIds.put(name, newId);
+
+        if (newId == cleanedIdOfName.length) {
+            cleanedIdOfName = Arrays.copyOf(cleanedIdOfName, newId * 2);
+        }
+        cleanedIdOfName[newId] = internCleaned(GraphDB.cleanString(name));
+        return newId;
+    }
+
+    private int internCleaned(String cleaned) {
+        Integer id = cleanedIds.get(cleaned);
+        if (id != null) {
+            return id;
+        }
+        int newId = cleanedNames.size();
+        cleanedNames.add(cleaned);
+        cleanedIds.put(cleaned, newId);
+        return newId;
+    }
+
+    /**
+     * @param id A name id.
+     * @return The full name with that id.
+     */
+    String name(int id) {
+        return names.get(id);
+    }
+
+    /**
+     * @param id A name id.
+     * @return The id of the cleaned form of that name.
+     */
+    int cleanedId(int id) {
+        return cleanedIdOfName[id];
+    }
+
+    /**
+     * @param cleanedId A cleaned-name id.
+     * @return The cleaned name with that id.
+     */
+    String cleaned(int cleanedId) {
+        return cleanedNames.get(cleanedId);
+    }
+
+    /**
+     * Looks up an already cleaned string.
+     * @param cleaned A cleaned name.
+     * @return Its cleaned-name id, or -1 if no name cleans to it.
+     */
+    int lookupCleaned(String cleaned) {
+        Integer id = cleanedIds.get(cleaned);
+        return id == null ? -1 : id;
+    }
+
+    /** Number of distinct names, including the empty name. */
+    int size() {
+        return names.size();
+    }
+
+    /** Number of distinct cleaned names. */
+    int cleanedSize() {
+        return cleanedNames.size();
+    }
+}
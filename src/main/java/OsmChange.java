@@ -0,0 +1,156 @@
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The changes of an OSM change file (.osc) that matter to the graph: the nodes, routable
+ * ways and turn restrictions that are created or modified, and the ids of those that are
+ * deleted.
+ * Later entries for the same id replace earlier ones, as in the file itself.
+ *
+ * A way that is modified into one that is no longer routable counts as deleted, see
+ * OsmChangeHandler; likewise a relation that is no longer a turn restriction. Apply a
+ * change with OsmData.withChanges.
+ */
+public class OsmChange implements OsmSink {
+
+    private final Map<Long, Node> nodes = new LinkedHashMap<>();
+    private final Map<Long, Way> ways = new LinkedHashMap<>();
+    private final Set<Long> deletedNodes = new HashSet<>();
+    private final Set<Long> deletedWays = new HashSet<>();
+    private final Map<Long, Restriction> restrictions = new LinkedHashMap<>();
+    private final Set<Long> deletedRelations = new HashSet<>();
+
+    @Override
+    public void node(long id, double lon, double lat, String name) {
+        deletedNodes.remove(id);
+        nodes.remove(id);
+        nodes.put(id, new Node(id, lon, lat, name));
+    }
+
+    @Override
+    public void way(long id, long[] refs, String highway, String name, String maxspeed) {
+        deletedWays.remove(id);
+        ways.remove(id);
+        ways.put(id, new Way(id, refs, highway, name, maxspeed));
+    }
+
+    @Override
+    public void restriction(long id, long fromWay, long viaNode, long toWay,
+                            String restriction) {
+        deletedRelations.remove(id);
+        restrictions.remove(id);
+        restrictions.put(id, new Restriction(id, fromWay, viaNode, toWay, restriction));
+    }
+
+    /** Records that the node with this OSM id is deleted. */
+    void deleteNode(long id) {
+        nodes.remove(id);
+        deletedNodes.add(id);
+    }
+
+    /** Records that the way with this OSM id is deleted, or no longer routable. */
+    void deleteWay(long id) {
+        ways.remove(id);
+        deletedWays.add(id);
+    }
+
+    /** Records that the relation with this OSM id is deleted, or no longer a restriction. */
+    void deleteRelation(long id) {
+        restrictions.remove(id);
+        deletedRelations.add(id);
+    }
+
+    /** Whether the node with this OSM id is created, modified or deleted. */
+    boolean touchesNode(long id) {
+        return nodes.containsKey(id) || deletedNodes.contains(id);
+    }
+
+    /** Whether the way with this OSM id is created, modified or deleted. */
+    boolean touchesWay(long id) {
+        return ways.containsKey(id) || deletedWays.contains(id);
+    }
+
+    /** Whether the relation with this OSM id is created, modified or deleted. */
+    boolean touchesRelation(long id) {
+        return restrictions.containsKey(id) || deletedRelations.contains(id);
+    }
+
+    /** Hands the created and modified nodes to sink, in file order. */
+    void replayNodes(OsmSink sink) {
+        for (Node n : nodes.values()) {
+            sink.node(n.id, n.lon, n.lat, n.name);
+        }
+    }
+
+    /** Hands the created and modified routable ways to sink, in file order. */
+    void replayWays(OsmSink sink) {
+        for (Way w : ways.values()) {
+            sink.way(w.id, w.refs, w.highway, w.name, w.maxspeed);
+        }
+    }
+
+    /** Hands the created and modified turn restrictions to sink, in file order. */
+    void replayRestrictions(OsmSink sink) {
+        for (Restriction r : restrictions.values()) {
+            sink.restriction(r.id, r.fromWay, r.viaNode, r.toWay, r.restriction);
+        }
+    }
+
+    /** Number of created or modified nodes, ways and turn restrictions. */
+    int upserts() {
+        return nodes.size() + ways.size() + restrictions.size();
+    }
+
+    /** Number of deleted nodes, ways and relations. */
+    int deletions() {
+        return deletedNodes.size() + deletedWays.size() + deletedRelations.size();
+    }
+
+    private static class Node {
+        final long id;
+        final double lon;
+        final double lat;
+        final String name;
+
+        Node(long id, double lon, double lat, String name) {
+            this.id = id;
+            this.lon = lon;
+            this.lat = lat;
+            this.name = name;
+        }
+    }
+
+    private static class Way {
+        final long id;
+        final long[] refs;
+        final String highway;
+        final String name;
+        final String maxspeed;
+
+        Way(long id, long[] refs, String highway, String name, String maxspeed) {
+            this.id = id;
+            this.refs = refs;
+            this.highway = highway;
+            this.name = name;
+            this.maxspeed = maxspeed;
+        }
+    }
+
+    private static class Restriction {
+        final long id;
+        final long fromWay;
+        final long viaNode;
+        final long toWay;
+        final String restriction;
+
+        Restriction(long id, long fromWay, long viaNode, long toWay, String restriction) {
+            this.id = id;
+            this.fromWay = fromWay;
+            this.viaNode = viaNode;
+            this.toWay = toWay;
+            this.restriction = restriction;
+        }
+    }
+}
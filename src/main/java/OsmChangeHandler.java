@@ -0,0 +1,63 @@
+import org.xml.sax.Attributes;
+import org.xml.sax.SAXException;
+import org.xml.sax.helpers.DefaultHandler;
+
+/**
+ * Parses OSM change files (osmChange XML, usually .osc or .osc.gz) into an OsmChange.
+ * See the OSM documentation on
+ * <a href="http://wiki.openstreetmap.org/wiki/OsmChange">the osmChange format</a>.
+ *
+ * Elements inside create and modify sections are read by a GraphBuildingHandler, so a
+ * changed way is kept under exactly the rules that apply when reading a whole file.
+ * Elements inside delete sections only contribute their ids.
+ */
+public class OsmChangeHandler extends DefaultHandler {
+
+    private final OsmChange change;
+    private final GraphBuildingHandler elements;
+    /** The section currently being read: "create", "modify", "delete", or "". */
+    private String action = "";
+
+    /**
+     * @param change The change to record the file's contents into.
+     */
+    public OsmChangeHandler(OsmChange change) {
+        this.change = change;
+        this.elements = new GraphBuildingHandler(change);
+    }
+
+    @Override
+    public void startElement(String uri, String localName, String qName, Attributes attributes)
+            throws SAXException {
+        if (qName.equals("create") || qName.equals("modify") || qName.equals("delete")) {
+            action = qName;
+        } else if (action.equals("delete")) {
+            if (qName.equals("node")) {
+                change.deleteNode(Long.parseLong(attributes.getValue("id")));
+            } else if (qName.equals("way")) {
+                change.deleteWay(Long.parseLong(attributes.getValue("id")));
+            } else if (qName.equals("relation")) {
+                change.deleteRelation(Long.parseLong(attributes.getValue("id")));
+            }
+        } else if (!action.isEmpty()) {
+            if (qName.equals("way")) {
+                /* The handler only passes the way on if it is still routable; if it is not,
+                this deletion is what remains. */
+                change.deleteWay(Long.parseLong(attributes.getValue("id")));
+            } else if (qName.equals("relation")) {
+                /* Likewise for relations that are no longer turn restrictions. */
+                change.deleteRelation(Long.parseLong(attributes.getValue("id")));
+            }
+            elements.startElement(uri, localName, qName, attributes);
+        }
+    }
+
+    @Override
+    public void endElement(String uri, String localName, String qName) throws SAXException {
+        if (qName.equals("create") || qName.equals("modify") || qName.equals("delete")) {
+            action = "";
+        } else if (!action.isEmpty() && !action.equals("delete")) {
+            elements.endElement(uri, localName, qName);
+        }
+    }
+}
@@ -0,0 +1,180 @@
+import java.util.Arrays;
+
+/**
+ * The raw map data a GraphDB is built from, as read from an OSM file: every node and
+ * every routable way, stored in growable primitive columns in file order. Names are
+ * interned into the shared NameDictionary and named nodes are recorded as locations as
+ * they arrive.
+ *
+ * Node i has OSM id nodeIds[i]; way w has OSM id wayIds[w] and refers to the OSM node
+ * ids wayRefs[wayRefOffsets[w]] until wayRefs[wayRefOffsets[w + 1]]. Turn restriction r
+ * has OSM id restrictionIds[r] and restricts turns from the way restrictionFroms[r] via
+ * the node restrictionVias[r] onto the way restrictionTos[r].
+ *
+ * Once a graph has been built from it, an OsmData is never modified again; changes are
+ * applied by withChanges, which returns a new OsmData.
+ */
+public class OsmData implements OsmSink {
+
+    private static final int INITIAL_CAPACITY = 1024;
+
+    final NameDictionary names;
+    final LocationRecords locations;
+
+    int nodeCount;
+    long[] nodeIds = new long[INITIAL_CAPACITY];
+    double[] nodeLons = new double[INITIAL_CAPACITY];
+    double[] nodeLats = new double[INITIAL_CAPACITY];
+    /** Dictionary id of each node's name; NameDictionary.EMPTY if it has none. */
+    int[] nodeNameIds = new int[INITIAL_CAPACITY];
+    /** OSM node id to node index. */
+    final LongIntMap nodeIndex = new LongIntMap(INITIAL_CAPACITY);
+
+    int wayCount;
+    long[] wayIds = new long[INITIAL_CAPACITY];
+    int[] wayNameIds = new int[INITIAL_CAPACITY];
+    /** Highway class of each way, see GraphBuildingHandler.highwayClass. */
+    byte[] wayHighways = new byte[INITIAL_CAPACITY];
+    /**
+     * Maxspeed of each way in km/h as an unsigned byte, see
+     * GraphBuildingHandler.parseMaxspeed; 0 if it has none.
+     */
+    byte[] wayMaxspeeds = new byte[INITIAL_CAPACITY];
+    int[] wayRefOffsets = new int[INITIAL_CAPACITY + 1];
+    long[] wayRefs = new long[INITIAL_CAPACITY * 4];
+
+    int restrictionCount;
+    long[] restrictionIds = new long[INITIAL_CAPACITY];
+    long[] restrictionFroms = new long[INITIAL_CAPACITY];
+    long[] restrictionVias = new long[INITIAL_CAPACITY];
+    long[] restrictionTos = new long[INITIAL_CAPACITY];
+    /** Kind of each restriction, see GraphBuildingHandler.restrictionKind. */
+    byte[] restrictionKinds = new byte[INITIAL_CAPACITY];
+
+    /**
+     * @param names The dictionary to intern names into.
+     */
+    public OsmData(NameDictionary names) {
+        this.names = names;
+        this.locations = new LocationRecords(names);
+    }
+
+    @Override
+    public void node(long id, double lon, double lat, String name) {
+        addNode(id, lon, lat, name.isEmpty() ? NameDictionary.EMPTY : names.intern(name));
+    }
+
+    @Override
+    public void way(long id, long[] refs, String highway, String name, String maxspeed) {
+        addWay(id, refs, 0, refs.length, names.intern(name),
+                (byte) GraphBuildingHandler.highwayClass(highway),
+                (byte) GraphBuildingHandler.parseMaxspeed(maxspeed));
+    }
+
+    @Override
+    public void restriction(long id, long fromWay, long viaNode, long toWay,
+                            String restriction) {
+        addRestriction(id, fromWay, viaNode, toWay,
+                (byte) GraphBuildingHandler.restrictionKind(restriction));
+    }
+
+    private void addNode(long id, double lon, double lat, int nameId) {
+        if (nodeCount == nodeIds.length) {
+            int capacity = nodeCount * 2;
+            nodeIds = Arrays.copyOf(nodeIds, capacity);
+            nodeLons = Arrays.copyOf(nodeLons, capacity);
+            nodeLats = Arrays.copyOf(nodeLats, capacity);
+            nodeNameIds = Arrays.copyOf(nodeNameIds, capacity);
+        }
+        nodeIds[nodeCount] = id;
+        nodeLons[nodeCount] = lon;
+        nodeLats[nodeCount] = lat;
+        nodeNameIds[nodeCount] = nameId;
+        nodeIndex.put(id, nodeCount);
+        nodeCount++;
+
+        if (nameId != NameDictionary.EMPTY
+                && !StringNormalizer.isBlank(names.cleaned(names.cleanedId(nameId)))) {
+            locations.add(id, lon, lat, nameId);
+        }
+    }
+
+    private void addWay(long id, long[] refs, int from, int to, int nameId, byte highway,
+                        byte maxspeed) {
+        if (wayCount == wayIds.length) {
+            int capacity = wayCount * 2;
+            wayIds = Arrays.copyOf(wayIds, capacity);
+            wayNameIds = Arrays.copyOf(wayNameIds, capacity);
+            wayHighways = Arrays.copyOf(wayHighways, capacity);
+            wayMaxspeeds = Arrays.copyOf(wayMaxspeeds, capacity);
+            wayRefOffsets = Arrays.copyOf(wayRefOffsets, capacity + 1);
+        }
+        int start = wayRefOffsets[wayCount];
+        int length = to - from;
+        if (start + length > wayRefs.length) {
+            wayRefs = Arrays.copyOf(wayRefs, Math.max(wayRefs.length * 2, start + length));
+        }
+        System.arraycopy(refs, from, wayRefs, start, length);
+
+        wayIds[wayCount] = id;
+        wayNameIds[wayCount] = nameId;
+        wayHighways[wayCount] = highway;
+        wayMaxspeeds[wayCount] = maxspeed;
+        wayRefOffsets[wayCount + 1] = start + length;
+        wayCount++;
+    }
+
+    private void addRestriction(long id, long fromWay, long viaNode, long toWay, byte kind) {
+        if (restrictionCount == restrictionIds.length) {
+            int capacity = restrictionCount * 2;
+            restrictionIds = Arrays.copyOf(restrictionIds, capacity);
+            restrictionFroms = Arrays.copyOf(restrictionFroms, capacity);
+            restrictionVias = Arrays.copyOf(restrictionVias, capacity);
+            restrictionTos = Arrays.copyOf(restrictionTos, capacity);
+            restrictionKinds = Arrays.copyOf(restrictionKinds, capacity);
+        }
+        restrictionIds[restrictionCount] = id;
+        restrictionFroms[restrictionCount] = fromWay;
+        restrictionVias[restrictionCount] = viaNode;
+        restrictionTos[restrictionCount] = toWay;
+        restrictionKinds[restrictionCount] = kind;
+        restrictionCount++;
+    }
+
+    /** Total number of node references over all ways. */
+    int wayRefCount() {
+        return wayRefOffsets[wayCount];
+    }
+
+    /**
+     * Returns a copy of this data with a change applied; this data is left as it is, so
+     * graphs built from it can keep serving requests meanwhile. Unchanged nodes and ways
+     * and restrictions keep their relative order; created and modified ones follow them.
+     * @param change The creations, modifications and deletions to apply.
+     * @return The changed data, with its own copy of the name dictionary.
+     */
+    OsmData withChanges(OsmChange change) {
+        OsmData result = new OsmData(names.copy());
+        for (int i = 0; i < nodeCount; i++) {
+            if (!change.touchesNode(nodeIds[i])) {
+                result.addNode(nodeIds[i], nodeLons[i], nodeLats[i], nodeNameIds[i]);
+            }
+        }
+        change.replayNodes(result);
+        for (int w = 0; w < wayCount; w++) {
+            if (!change.touchesWay(wayIds[w])) {
+                result.addWay(wayIds[w], wayRefs, wayRefOffsets[w], wayRefOffsets[w + 1],
+                        wayNameIds[w], wayHighways[w], wayMaxspeeds[w]);
+            }
+        }
+        change.replayWays(result);
+        for (int r = 0; r < restrictionCount; r++) {
+            if (!change.touchesRelation(restrictionIds[r])) {
+                result.addRestriction(restrictionIds[r], restrictionFroms[r], restrictionVias[r],
+                        restrictionTos[r], restrictionKinds[r]);
+            }
+        }
+        change.replayRestrictions(result);
+        return result;
+    }
+}
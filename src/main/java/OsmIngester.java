@@ -0,0 +1,490 @@
+import org.apache.commons.compress.compressors.bzip2.BZip2CompressorInputStream;
+import org.xml.sax.SAXException;
+
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.parsers.SAXParserFactory;
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.BooleanSupplier;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Reads an OSM file into OsmData as a pipeline of threads:
+ * <ol>
+ *     <li>a reader thread reads the file and decompresses it (.osm.gz, .osm.bz2),</li>
+ *     <li>a parser thread tokenizes the XML with GraphBuildingHandler and groups the
+ *     nodes, ways and restrictions it finds into batches,</li>
+ *     <li>the calling thread appends the batches to the OsmData columns.</li>
+ * </ol>
+ * The stages are connected by bounded queues, so a slow stage throttles the ones before
+ * it rather than buffering the whole file. Progress and throughput are printed while the
+ * file is read.
+ *
+ * Files ending in .pbf are read with PbfReader instead, which decodes blocks in parallel.
+ */
+public class OsmIngester {
+
+    /** Number of nodes or ways per batch handed from the parser to the builder. */
+    private static final int BATCH_SIZE = 4096;
+    /** Number of batches, and of read-ahead chunks, that may be in flight. */
+    private static final int QUEUE_CAPACITY = 16;
+    /** Size of the chunks the reader thread reads ahead. */
+    private static final int CHUNK_SIZE = 1 << 16;
+    /** How often a producer waiting for room in a queue checks whether it is abandoned. */
+    private static final long ABANDON_POLL_MS = 100;
+    /** Minimum time between progress reports. */
+    private static final long REPORT_INTERVAL_MS = 2000;
+
+    private OsmIngester() {
+    }
+
+    /**
+     * Reads the OSM file at path, which may be gzip or bzip2 compressed XML, or PBF.
+     * @param path Path of an .osm, .osm.gz, .osm.bz2 or .osm.pbf file (.xml in place of .osm
+     *             works too).
+     * @param names The dictionary to intern names into.
+     * @return The nodes and routable ways of the file.
+     * @throws IOException If the file cannot be read or parsed.
+     */
+    static OsmData ingest(String path, NameDictionary names) throws IOException {
+        OsmData data = new OsmData(names);
+        ingest(path, data);
+        return data;
+    }
+
+    /**
+     * Reads the OSM file at path into sink, in file order.
+     * @param path Path of an .osm, .osm.gz, .osm.bz2 or .osm.pbf file.
+     * @param sink Where to pass the elements of the file; called on the calling thread.
+     * @throws IOException If the file cannot be read or parsed.
+     */
+    static void ingest(String path, OsmSink sink) throws IOException {
+        File file = new File(path);
+        CountingInputStream raw = new CountingInputStream(new FileInputStream(file));
+        Progress progress = new Progress(file.getName(), file.length(), raw);
+
+        if (path.endsWith(".pbf")) {
+            try (InputStream in = new BufferedInputStream(raw, CHUNK_SIZE)) {
+                PbfReader.read(in, new CountingSink(sink, progress),
+                        Runtime.getRuntime().availableProcessors());
+            }
+            progress.done();
+            return;
+        }
+
+        BlockingQueue<Batch> batches = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+        /* Set once the batches are no longer taken, so the parser stops queueing them. */
+        AtomicBoolean abandoned = new AtomicBoolean();
+        Throwable[] parseError = new Throwable[1];
+        Thread parser = new Thread(() -> {
+            try (InputStream in = new ReadAheadInputStream(decompress(path, raw))) {
+                BatchingSink batching = new BatchingSink(batches);
+                SAXParserFactory.newInstance().newSAXParser()
+                        .parse(in, new GraphBuildingHandler(batching));
+                batching.flush();
+            } catch (ParserConfigurationException | SAXException | IOException
+                    | RuntimeException e) {
+                parseError[0] = e;
+            } finally {
+                putUnlessAbandoned(batches, Batch.END, abandoned::get);
+            }
+        }, "osm-parser");
+        parser.setDaemon(true);
+        parser.start();
+
+        try {
+            for (Batch batch = batches.take(); batch != Batch.END; batch = batches.take()) {
+                batch.replay(sink);
+                progress.add(batch.nodeCount, batch.wayCount);
+            }
+            parser.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while reading " + path);
+        } finally {
+            /* On failure nobody takes the remaining batches: make room for any put the
+            parser is blocked in, and stop it. */
+            abandoned.set(true);
+            batches.clear();
+            parser.interrupt();
+        }
+
+        if (parseError[0] != null) {
+            if (parseError[0] instanceof IOException) {
+                throw (IOException) parseError[0];
+            }
+            throw new IOException("Could not parse " + path, parseError[0]);
+        }
+        progress.done();
+    }
+
+    /**
+     * Reads an OSM change file.
+     * @param path Path of an .osc, .osc.gz or .osc.bz2 file.
+     * @return The changes to nodes and routable ways in the file.
+     * @throws IOException If the file cannot be read or parsed.
+     */
+    static OsmChange readChange(String path) throws IOException {
+        OsmChange change = new OsmChange();
+        try (InputStream in = decompress(path,
+                new BufferedInputStream(new FileInputStream(path), CHUNK_SIZE))) {
+            SAXParserFactory.newInstance().newSAXParser()
+                    .parse(in, new OsmChangeHandler(change));
+        } catch (ParserConfigurationException | SAXException e) {
+            throw new IOException("Could not parse " + path, e);
+        }
+        return change;
+    }
+
+    /** Wraps in in the decompressor matching the file name, if any. */
+    private static InputStream decompress(String path, InputStream in) throws IOException {
+        if (path.endsWith(".gz")) {
+            return new GZIPInputStream(in, CHUNK_SIZE);
+        } else if (path.endsWith(".bz2")) {
+            return new BZip2CompressorInputStream(in, true);
+        }
+        return in;
+    }
+
+    /**
+     * Puts item into queue, even if interrupted, unless the queue is abandoned by its
+     * consumer, so that a producer never blocks forever on a queue nobody takes from.
+     * @param abandoned Whether the consumer is gone; looked at while waiting for room.
+     */
+    private static <T> void putUnlessAbandoned(BlockingQueue<T> queue, T item,
+                                               BooleanSupplier abandoned) {
+        boolean interrupted = false;
+        while (!abandoned.getAsBoolean()) {
+            try {
+                if (queue.offer(item, ABANDON_POLL_MS, TimeUnit.MILLISECONDS)) {
+                    break;
+                }
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * A run of consecutive nodes, ways and restrictions. Each kind is kept apart, which
+     * only reorders elements of different kinds; the order within each kind is kept.
+     */
+    private static class Batch {
+        static final Batch END = new Batch();
+
+        int nodeCount;
+        final long[] nodeIds = new long[BATCH_SIZE];
+        final double[] nodeLons = new double[BATCH_SIZE];
+        final double[] nodeLats = new double[BATCH_SIZE];
+        final String[] nodeNames = new String[BATCH_SIZE];
+
+        int wayCount;
+        final long[] wayIds = new long[BATCH_SIZE];
+        final long[][] wayRefs = new long[BATCH_SIZE][];
+        final String[] wayHighways = new String[BATCH_SIZE];
+        final String[] wayNames = new String[BATCH_SIZE];
+        final String[] wayMaxspeeds = new String[BATCH_SIZE];
+
+        int restrictionCount;
+        final long[] restrictionIds = new long[BATCH_SIZE];
+        final long[] restrictionFroms = new long[BATCH_SIZE];
+        final long[] restrictionVias = new long[BATCH_SIZE];
+        final long[] restrictionTos = new long[BATCH_SIZE];
+        final String[] restrictionTypes = new String[BATCH_SIZE];
+
+        void replay(OsmSink sink) {
+            for (int i = 0; i < nodeCount; i++) {
+                sink.node(nodeIds[i], nodeLons[i], nodeLats[i], nodeNames[i]);
+            }
+            for (int i = 0; i < wayCount; i++) {
+                sink.way(wayIds[i], wayRefs[i], wayHighways[i], wayNames[i], wayMaxspeeds[i]);
+            }
+            for (int i = 0; i < restrictionCount; i++) {
+                sink.restriction(restrictionIds[i], restrictionFroms[i], restrictionVias[i],
+                        restrictionTos[i], restrictionTypes[i]);
+            }
+        }
+    }
+
+    /** Collects the parser's output into batches and queues each one once it is full. */
+    private static class BatchingSink implements OsmSink {
+        private final BlockingQueue<Batch> queue;
+        private Batch batch = new Batch();
+
+        BatchingSink(BlockingQueue<Batch> queue) {
+            this.queue = queue;
+        }
+
+        @Override
+        public void node(long id, double lon, double lat, String name) {
+            int i = batch.nodeCount++;
+            batch.nodeIds[i] = id;
+            batch.nodeLons[i] = lon;
+            batch.nodeLats[i] = lat;
+            batch.nodeNames[i] = name;
+            if (batch.nodeCount == BATCH_SIZE) {
+                flush();
+            }
+        }
+
+        @Override
+        public void way(long id, long[] refs, String highway, String name, String maxspeed) {
+            int i = batch.wayCount++;
+            batch.wayIds[i] = id;
+            batch.wayRefs[i] = refs;
+            batch.wayHighways[i] = highway;
+            batch.wayNames[i] = name;
+            batch.wayMaxspeeds[i] = maxspeed;
+            if (batch.wayCount == BATCH_SIZE) {
+                flush();
+            }
+        }
+
+        @Override
+        public void restriction(long id, long fromWay, long viaNode, long toWay,
+                                String restriction) {
+            int i = batch.restrictionCount++;
+            batch.restrictionIds[i] = id;
+            batch.restrictionFroms[i] = fromWay;
+            batch.restrictionVias[i] = viaNode;
+            batch.restrictionTos[i] = toWay;
+            batch.restrictionTypes[i] = restriction;
+            if (batch.restrictionCount == BATCH_SIZE) {
+                flush();
+            }
+        }
+
+        /** Queues the current batch, if it holds anything. */
+        void flush() {
+            if (batch.nodeCount == 0 && batch.wayCount == 0 && batch.restrictionCount == 0) {
+                return;
+            }
+            try {
+                queue.put(batch);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Interrupted while queueing a batch", e);
+            }
+            batch = new Batch();
+        }
+    }
+
+    /** Passes elements on to another sink, reporting progress every BATCH_SIZE of them. */
+    private static class CountingSink implements OsmSink {
+        private final OsmSink sink;
+        private final Progress progress;
+        private int nodes;
+        private int ways;
+
+        CountingSink(OsmSink sink, Progress progress) {
+            this.sink = sink;
+            this.progress = progress;
+        }
+
+        @Override
+        public void node(long id, double lon, double lat, String name) {
+            sink.node(id, lon, lat, name);
+            if (++nodes == BATCH_SIZE) {
+                report();
+            }
+        }
+
+        @Override
+        public void way(long id, long[] refs, String highway, String name, String maxspeed) {
+            sink.way(id, refs, highway, name, maxspeed);
+            if (++ways == BATCH_SIZE) {
+                report();
+            }
+        }
+
+        @Override
+        public void restriction(long id, long fromWay, long viaNode, long toWay,
+                                String restriction) {
+            sink.restriction(id, fromWay, viaNode, toWay, restriction);
+        }
+
+        private void report() {
+            progress.add(nodes, ways);
+            nodes = 0;
+            ways = 0;
+        }
+    }
+
+    /**
+     * Reads its source on a background thread, up to QUEUE_CAPACITY chunks ahead of the
+     * reader. Used to overlap file reading and decompression with parsing.
+     */
+    private static class ReadAheadInputStream extends InputStream {
+        private static final byte[] EOF = new byte[0];
+
+        private final BlockingQueue<byte[]> chunks = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+        private final Thread reader;
+        private volatile IOException error;
+        private volatile boolean closed;
+        private byte[] chunk = new byte[0];
+        private int pos;
+
+        ReadAheadInputStream(InputStream source) {
+            reader = new Thread(() -> {
+                try (InputStream in = source) {
+                    int len = CHUNK_SIZE;
+                    while (len == CHUNK_SIZE) {
+                        byte[] buf = new byte[CHUNK_SIZE];
+                        len = 0;
+                        for (int n = 0; n >= 0 && len < CHUNK_SIZE; len += n) {
+                            n = in.read(buf, len, CHUNK_SIZE - len);
+                            if (n < 0) {
+                                break;
+                            }
+                        }
+                        if (len > 0) {
+                            chunks.put(len == CHUNK_SIZE ? buf : Arrays.copyOf(buf, len));
+                        }
+                    }
+                } catch (IOException e) {
+                    error = e;
+                } catch (InterruptedException e) {
+                    return;
+                }
+                putUnlessAbandoned(chunks, EOF, () -> closed);
+            }, "osm-reader");
+            reader.setDaemon(true);
+            reader.start();
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (!fill()) {
+                return -1;
+            }
+            return chunk[pos++] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            if (!fill()) {
+                return -1;
+            }
+            int n = Math.min(len, chunk.length - pos);
+            System.arraycopy(chunk, pos, b, off, n);
+            pos += n;
+            return n;
+        }
+
+        /** Makes sure there are unread bytes in chunk; returns false at end of stream. */
+        private boolean fill() throws IOException {
+            while (pos == chunk.length) {
+                if (chunk == EOF) {
+                    return false;
+                }
+                try {
+                    chunk = chunks.take();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException();
+                }
+                pos = 0;
+                if (chunk == EOF && error != null) {
+                    throw error;
+                }
+            }
+            return true;
+        }
+
+        @Override
+        public void close() {
+            closed = true;
+            chunks.clear();
+            reader.interrupt();
+        }
+    }
+
+    /** Counts the bytes read through it, for progress reporting. */
+    private static class CountingInputStream extends FilterInputStream {
+        private volatile long count;
+
+        CountingInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b >= 0) {
+                count++;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = super.read(b, off, len);
+            if (n > 0) {
+                count += n;
+            }
+            return n;
+        }
+
+        long count() {
+            return count;
+        }
+    }
+
+    /** Prints how far into the file the ingestion is and how fast it goes. */
+    private static class Progress {
+        private final String name;
+        private final long fileSize;
+        private final CountingInputStream in;
+        private final long start = System.nanoTime();
+        private long lastReport = start;
+        private long nodes;
+        private long ways;
+
+        Progress(String name, long fileSize, CountingInputStream in) {
+            this.name = name;
+            this.fileSize = fileSize;
+            this.in = in;
+        }
+
+        void add(int newNodes, int newWays) {
+            nodes += newNodes;
+            ways += newWays;
+            long now = System.nanoTime();
+            if ((now - lastReport) / 1_000_000 >= REPORT_INTERVAL_MS) {
+                lastReport = now;
+                double read = in.count() / 1e6;
+                System.out.println(String.format(
+                        "Ingesting %s: %.0f%% (%.1f of %.1f MB, %.1f MB/s), %d nodes, %d ways",
+                        name, 100.0 * in.count() / Math.max(1, fileSize), read, fileSize / 1e6,
+                        read / seconds(now), nodes, ways));
+            }
+        }
+
+        void done() {
+            double elapsed = seconds(System.nanoTime());
+            System.out.println(String.format(
+                    "Ingested %d nodes and %d ways from %s in %.2f s (%.1f MB/s, %.0f nodes/s)",
+                    nodes, ways, name, elapsed, fileSize / 1e6 / elapsed, nodes / elapsed));
+        }
+
+        private double seconds(long now) {
+            return Math.max(1e-9, (now - start) / 1e9);
+        }
+    }
+}
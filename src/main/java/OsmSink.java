@@ -0,0 +1,38 @@
+/**
+ * Receives the map elements an OSM reader finds, in file order. Readers only pass on
+ * what the graph needs: every node, the ways whose highway type is one of
+ * GraphBuildingHandler's allowed types, and turn restrictions.
+ */
+public interface OsmSink {
+
+    /**
+     * Called for every node.
+     * @param id The OSM id of the node.
+     * @param lon The longitude of the node.
+     * @param lat The latitude of the node.
+     * @param name The value of the node's name tag, or "" if it has none.
+     */
+    void node(long id, double lon, double lat, String name);
+
+    /**
+     * Called for every way with an allowed highway type.
+     * @param id The OSM id of the way.
+     * @param refs The OSM ids of the way's nodes, in order. The sink may keep the array.
+     * @param highway The value of the way's highway tag.
+     * @param name The value of the way's name tag, or "" if it has none.
+     * @param maxspeed The value of the way's maxspeed tag, or "" if it has none.
+     */
+    void way(long id, long[] refs, String highway, String name, String maxspeed);
+
+    /**
+     * Called for every turn restriction relation of the simple form: a from way, a via node
+     * and a to way, and a restriction GraphBuildingHandler.isTurnRestriction accepts. The
+     * ways need not be routable.
+     * @param id The OSM id of the relation.
+     * @param fromWay The OSM id of the way the restricted turn comes from.
+     * @param viaNode The OSM id of the node the turn is made at.
+     * @param toWay The OSM id of the way the restricted turn goes to.
+     * @param restriction The value of the relation's restriction tag, e.g. "no_left_turn".
+     */
+    void restriction(long id, long fromWay, long viaNode, long toWay, String restriction);
+}
@@ -0,0 +1,129 @@
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamWriter;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Writes OsmData back out as OSM XML, so a graph that has had changes applied can be
+ * reloaded later without replaying them. Only what OsmData keeps is written: nodes with
+ * their name tags, routable ways with their node references, highway, name and
+ * maxspeed tags, and turn restriction relations. Maxspeeds are written as parsed, in km/h.
+ */
+public class OsmXmlWriter {
+
+    private OsmXmlWriter() {
+    }
+
+    /**
+     * Writes data to path, gzip compressed if path ends in .gz. The file is written next
+     * to path first and then moved into place, so readers never see half a file.
+     * @param data The data to write.
+     * @param path The file to write.
+     * @throws IOException If the file cannot be written.
+     */
+    static void write(OsmData data, String path) throws IOException {
+        File target = new File(path);
+        File partial = new File(path + ".part");
+        try (OutputStream file = new BufferedOutputStream(new FileOutputStream(partial), 1 << 16);
+             OutputStream out = path.endsWith(".gz") ? new GZIPOutputStream(file, 1 << 16) : file) {
+            write(data, out);
+        }
+        Files.move(partial.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Writes data to out as uncompressed OSM XML. Does not close out.
+     * @param data The data to write.
+     * @param out The stream to write to.
+     * @throws IOException If out cannot be written.
+     */
+    static void write(OsmData data, OutputStream out) throws IOException {
+        try {
+            XMLStreamWriter xml = XMLOutputFactory.newInstance()
+                    .createXMLStreamWriter(out, "UTF-8");
+            xml.writeStartDocument("UTF-8", "1.0");
+            xml.writeCharacters("\n");
+            xml.writeStartElement("osm");
+            xml.writeAttribute("version", "0.6");
+            xml.writeAttribute("generator", "GraphDB");
+            xml.writeCharacters("\n");
+
+            for (int i = 0; i < data.nodeCount; i++) {
+                int nameId = data.nodeNameIds[i];
+                if (nameId == NameDictionary.EMPTY) {
+                    xml.writeEmptyElement("node");
+                } else {
+                    xml.writeStartElement("node");
+                }
+                xml.writeAttribute("id", Long.toString(data.nodeIds[i]));
+                xml.writeAttribute("lat", Double.toString(data.nodeLats[i]));
+                xml.writeAttribute("lon", Double.toString(data.nodeLons[i]));
+                if (nameId != NameDictionary.EMPTY) {
+                    writeTag(xml, "name", data.names.name(nameId));
+                    xml.writeEndElement();
+                }
+                xml.writeCharacters("\n");
+            }
+
+            for (int w = 0; w < data.wayCount; w++) {
+                xml.writeStartElement("way");
+                xml.writeAttribute("id", Long.toString(data.wayIds[w]));
+                for (int i = data.wayRefOffsets[w]; i < data.wayRefOffsets[w + 1]; i++) {
+                    xml.writeEmptyElement("nd");
+                    xml.writeAttribute("ref", Long.toString(data.wayRefs[i]));
+                }
+                writeTag(xml, "highway", GraphBuildingHandler.highwayType(data.wayHighways[w]));
+                if (data.wayNameIds[w] != NameDictionary.EMPTY) {
+                    writeTag(xml, "name", data.names.name(data.wayNameIds[w]));
+                }
+                if (data.wayMaxspeeds[w] != 0) {
+                    writeTag(xml, "maxspeed", Integer.toString(data.wayMaxspeeds[w] & 0xFF));
+                }
+                xml.writeEndElement();
+                xml.writeCharacters("\n");
+            }
+
+            for (int r = 0; r < data.restrictionCount; r++) {
+                xml.writeStartElement("relation");
+                xml.writeAttribute("id", Long.toString(data.restrictionIds[r]));
+                writeMember(xml, "way", data.restrictionFroms[r], "from");
+                writeMember(xml, "node", data.restrictionVias[r], "via");
+                writeMember(xml, "way", data.restrictionTos[r], "to");
+                writeTag(xml, "type", "restriction");
+                writeTag(xml, "restriction",
+                        GraphBuildingHandler.restrictionType(data.restrictionKinds[r]));
+                xml.writeEndElement();
+                xml.writeCharacters("\n");
+            }
+
+            xml.writeEndElement();
+            xml.writeEndDocument();
+            xml.flush();
+        } catch (XMLStreamException e) {
+            throw new IOException("Could not write OSM XML", e);
+        }
+    }
+
+    private static void writeMember(XMLStreamWriter xml, String type, long ref, String role)
+            throws XMLStreamException {
+        xml.writeEmptyElement("member");
+        xml.writeAttribute("type", type);
+        xml.writeAttribute("ref", Long.toString(ref));
+        xml.writeAttribute("role", role);
+    }
+
+    private static void writeTag(XMLStreamWriter xml, String k, String v)
+            throws XMLStreamException {
+        xml.writeEmptyElement("tag");
+        xml.writeAttribute("k", k);
+        xml.writeAttribute("v", v);
+    }
+}
@@ -0,0 +1,710 @@
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Reads OSM PBF files (.osm.pbf), the compact binary format most OSM extracts are
+ * published in. See <a href="https://wiki.openstreetmap.org/wiki/PBF_Format">PBF Format</a>.
+ *
+ * A PBF file is a sequence of independently compressed blobs. The file is read on the
+ * calling thread, blobs are inflated and decoded in parallel on a thread pool, and the
+ * decoded elements are handed to the OsmSink in file order, with the same semantics as
+ * GraphBuildingHandler: every node with its name tag, the ways with an allowed highway
+ * type with their name and maxspeed tags, and the simple turn restriction relations.
+ *
+ * The protobuf messages are decoded directly from their wire format, reading only the
+ * fields the graph needs.
+ */
+public class PbfReader {
+
+    /** Largest BlobHeader the format allows. */
+    private static final int MAX_HEADER_SIZE = 64 * 1024;
+    /** Largest uncompressed Blob the format allows. */
+    private static final int MAX_BLOB_SIZE = 32 * 1024 * 1024;
+    private static final String[] SUPPORTED_FEATURES = {"OsmSchema-V0.6", "DenseNodes"};
+
+    private PbfReader() {
+    }
+
+    /**
+     * Reads a PBF stream.
+     * @param in The PBF data.
+     * @param sink Receives the nodes and routable ways, in file order.
+     * @param threads Number of threads to decode blobs on.
+     * @throws IOException If the stream cannot be read or is not valid PBF.
+     */
+    static void read(InputStream in, OsmSink sink, int threads) throws IOException {
+        DataInputStream data = new DataInputStream(in);
+        ExecutorService pool = Executors.newFixedThreadPool(threads, r -> {
+            Thread t = new Thread(r, "pbf-decoder");
+            t.setDaemon(true);
+            return t;
+        });
+        Deque<Future<Block>> pending = new ArrayDeque<>();
+        try {
+            while (true) {
+                int headerSize;
+                try {
+                    headerSize = data.readInt();
+                } catch (EOFException e) {
+                    break;
+                }
+                if (headerSize < 0 || headerSize > MAX_HEADER_SIZE) {
+                    throw new IOException("Invalid PBF blob header size " + headerSize);
+                }
+                byte[] header = new byte[headerSize];
+                data.readFully(header);
+                String type = null;
+                int blobSize = -1;
+                ProtoReader h = new ProtoReader(header, 0, headerSize);
+                while (h.next()) {
+                    if (h.field == 1) {
+                        type = h.string();
+                    } else if (h.field == 3) {
+                        blobSize = (int) h.varint();
+                    } else {
+                        h.skip();
+                    }
+                }
+                if (blobSize < 0 || blobSize > MAX_BLOB_SIZE) {
+                    throw new IOException("Invalid PBF blob size " + blobSize);
+                }
+                byte[] blob = new byte[blobSize];
+                data.readFully(blob);
+
+                if ("OSMHeader".equals(type)) {
+                    checkHeader(inflate(blob));
+                } else if ("OSMData".equals(type)) {
+                    pending.add(pool.submit(() -> decodeBlock(inflate(blob))));
+                    if (pending.size() > 2 * threads) {
+                        pending.remove().get().replay(sink);
+                    }
+                }
+                /* Unknown blob types may be skipped, per the format. */
+            }
+            while (!pending.isEmpty()) {
+                pending.remove().get().replay(sink);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while decoding PBF", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException("Could not decode PBF block", e.getCause());
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    /** Returns the uncompressed contents of a Blob message. */
+    private static byte[] inflate(byte[] blob) throws IOException {
+        ProtoReader b = new ProtoReader(blob, 0, blob.length);
+        int rawSize = -1;
+        int dataStart = -1;
+        int dataEnd = -1;
+        boolean compressed = false;
+        while (b.next()) {
+            if (b.field == 1 || b.field == 3) {
+                compressed = b.field == 3;
+                dataEnd = b.lengthDelimited();
+                dataStart = b.pos;
+                b.pos = dataEnd;
+            } else if (b.field == 2) {
+                rawSize = (int) b.varint();
+            } else if (b.field == 4 || b.field == 5 || b.field == 7) {
+                throw new IOException("Unsupported PBF blob compression (field " + b.field + ")");
+            } else {
+                b.skip();
+            }
+        }
+        if (dataStart < 0) {
+            throw new IOException("PBF blob without data");
+        }
+        if (!compressed) {
+            return Arrays.copyOfRange(blob, dataStart, dataEnd);
+        }
+        if (rawSize < 0 || rawSize > MAX_BLOB_SIZE) {
+            throw new IOException("Invalid PBF raw size " + rawSize);
+        }
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(blob, dataStart, dataEnd - dataStart);
+            byte[] raw = new byte[rawSize];
+            int n = 0;
+            while (n < rawSize && !inflater.finished()) {
+                int k = inflater.inflate(raw, n, rawSize - n);
+                if (k == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    break;
+                }
+                n += k;
+            }
+            if (n != rawSize) {
+                throw new IOException("Truncated PBF blob");
+            }
+            return raw;
+        } catch (DataFormatException e) {
+            throw new IOException("Corrupt PBF blob", e);
+        } finally {
+            inflater.end();
+        }
+    }
+
+    /** Fails if the HeaderBlock requires features this reader does not have. */
+    private static void checkHeader(byte[] header) throws IOException {
+        ProtoReader h = new ProtoReader(header, 0, header.length);
+        while (h.next()) {
+            if (h.field == 4) {
+                String feature = h.string();
+                if (!Arrays.asList(SUPPORTED_FEATURES).contains(feature)) {
+                    throw new IOException("Unsupported PBF feature " + feature);
+                }
+            } else {
+                h.skip();
+            }
+        }
+    }
+
+    /** Decodes a PrimitiveBlock. */
+    private static Block decodeBlock(byte[] data) throws IOException {
+        ProtoReader p = new ProtoReader(data, 0, data.length);
+        int stringsStart = -1;
+        int stringsEnd = -1;
+        long granularity = 100;
+        long latOffset = 0;
+        long lonOffset = 0;
+        /* The string table and offsets may come after the groups, so find them first. */
+        while (p.next()) {
+            if (p.field == 1) {
+                stringsEnd = p.lengthDelimited();
+                stringsStart = p.pos;
+                p.pos = stringsEnd;
+            } else if (p.field == 17) {
+                granularity = p.varint();
+            } else if (p.field == 19) {
+                latOffset = p.varint();
+            } else if (p.field == 20) {
+                lonOffset = p.varint();
+            } else {
+                p.skip();
+            }
+        }
+        Strings strings = new Strings(data, stringsStart, stringsEnd);
+        Block block = new Block(strings, granularity, latOffset, lonOffset);
+
+        p = new ProtoReader(data, 0, data.length);
+        while (p.next()) {
+            if (p.field == 2) {
+                int end = p.lengthDelimited();
+                decodeGroup(new ProtoReader(data, p.pos, end), block);
+                p.pos = end;
+            } else {
+                p.skip();
+            }
+        }
+        return block;
+    }
+
+    private static void decodeGroup(ProtoReader g, Block block) throws IOException {
+        while (g.next()) {
+            if (g.field >= 1 && g.field <= 4) {
+                int end = g.lengthDelimited();
+                ProtoReader m = new ProtoReader(g.buf, g.pos, end);
+                if (g.field == 1) {
+                    decodeNode(m, block);
+                } else if (g.field == 2) {
+                    decodeDenseNodes(m, block);
+                } else if (g.field == 3) {
+                    decodeWay(m, block);
+                } else {
+                    decodeRelation(m, block);
+                }
+                g.pos = end;
+            } else {
+                g.skip();
+            }
+        }
+    }
+
+    private static void decodeNode(ProtoReader m, Block block) throws IOException {
+        long id = 0;
+        long lat = 0;
+        long lon = 0;
+        int[] keys = new int[0];
+        int[] vals = new int[0];
+        while (m.next()) {
+            if (m.field == 1) {
+                id = m.sint();
+            } else if (m.field == 2) {
+                keys = m.packedInts();
+            } else if (m.field == 3) {
+                vals = m.packedInts();
+            } else if (m.field == 8) {
+                lat = m.sint();
+            } else if (m.field == 9) {
+                lon = m.sint();
+            } else {
+                m.skip();
+            }
+        }
+        String name = "";
+        for (int i = 0; i < keys.length && i < vals.length; i++) {
+            if (block.strings.equals(keys[i], "name")) {
+                name = block.strings.get(vals[i]);
+            }
+        }
+        block.node(id, lon, lat, name);
+    }
+
+    private static void decodeDenseNodes(ProtoReader m, Block block) throws IOException {
+        long[] ids = null;
+        long[] lats = null;
+        long[] lons = null;
+        int[] keysVals = null;
+        while (m.next()) {
+            if (m.field == 1) {
+                ids = m.packedSints();
+            } else if (m.field == 8) {
+                lats = m.packedSints();
+            } else if (m.field == 9) {
+                lons = m.packedSints();
+            } else if (m.field == 10) {
+                keysVals = m.packedInts();
+            } else {
+                m.skip();
+            }
+        }
+        if (ids == null) {
+            return;
+        }
+        if (lats == null || lons == null || lats.length != ids.length || lons.length != ids.length) {
+            throw new IOException("Malformed PBF dense nodes");
+        }
+        long id = 0;
+        long lat = 0;
+        long lon = 0;
+        int kv = 0;
+        for (int i = 0; i < ids.length; i++) {
+            id += ids[i];
+            lat += lats[i];
+            lon += lons[i];
+            String name = "";
+            /* keys_vals holds key, value pairs for each node, each node's ended by a 0. */
+            while (keysVals != null && kv < keysVals.length && keysVals[kv] != 0) {
+                if (kv + 1 < keysVals.length && block.strings.equals(keysVals[kv], "name")) {
+                    name = block.strings.get(keysVals[kv + 1]);
+                }
+                kv += 2;
+            }
+            kv++;
+            block.node(id, lon, lat, name);
+        }
+    }
+
+    private static void decodeWay(ProtoReader m, Block block) throws IOException {
+        long id = 0;
+        int[] keys = new int[0];
+        int[] vals = new int[0];
+        long[] refs = new long[0];
+        while (m.next()) {
+            if (m.field == 1) {
+                id = m.varint();
+            } else if (m.field == 2) {
+                keys = m.packedInts();
+            } else if (m.field == 3) {
+                vals = m.packedInts();
+            } else if (m.field == 8) {
+                refs = m.packedSints();
+            } else {
+                m.skip();
+            }
+        }
+        String highway = null;
+        String name = "";
+        String maxspeed = "";
+        for (int i = 0; i < keys.length && i < vals.length; i++) {
+            Strings s = block.strings;
+            if (s.equals(keys[i], "highway")) {
+                highway = s.get(vals[i]);
+            } else if (s.equals(keys[i], "name")) {
+                name = s.get(vals[i]);
+            } else if (s.equals(keys[i], "maxspeed")) {
+                maxspeed = s.get(vals[i]);
+            }
+        }
+        if (highway == null || !GraphBuildingHandler.isAllowedHighway(highway)) {
+            return;
+        }
+        /* Refs are delta coded. */
+        for (int i = 1; i < refs.length; i++) {
+            refs[i] += refs[i - 1];
+        }
+        block.way(id, refs, highway, name, maxspeed);
+    }
+
+    /** Member types of a relation, as the format numbers them. */
+    private static final int MEMBER_NODE = 0;
+    private static final int MEMBER_WAY = 1;
+
+    private static void decodeRelation(ProtoReader m, Block block) throws IOException {
+        long id = 0;
+        int[] keys = new int[0];
+        int[] vals = new int[0];
+        int[] roles = new int[0];
+        long[] memberIds = new long[0];
+        int[] types = new int[0];
+        while (m.next()) {
+            if (m.field == 1) {
+                id = m.varint();
+            } else if (m.field == 2) {
+                keys = m.packedInts();
+            } else if (m.field == 3) {
+                vals = m.packedInts();
+            } else if (m.field == 8) {
+                roles = m.packedInts();
+            } else if (m.field == 9) {
+                memberIds = m.packedSints();
+            } else if (m.field == 10) {
+                types = m.packedInts();
+            } else {
+                m.skip();
+            }
+        }
+        Strings s = block.strings;
+        boolean isRestriction = false;
+        String restriction = null;
+        for (int i = 0; i < keys.length && i < vals.length; i++) {
+            if (s.equals(keys[i], "type")) {
+                isRestriction = s.equals(vals[i], "restriction");
+            } else if (s.equals(keys[i], "restriction")) {
+                restriction = s.get(vals[i]);
+            }
+        }
+        if (!isRestriction || restriction == null
+                || !GraphBuildingHandler.isTurnRestriction(restriction)
+                || roles.length != memberIds.length || types.length != memberIds.length) {
+            return;
+        }
+        /* As GraphBuildingHandler does: one way from, one node via and one way to. */
+        long from = 0;
+        long via = 0;
+        long to = 0;
+        int froms = 0;
+        int vias = 0;
+        int tos = 0;
+        long memberId = 0;
+        for (int i = 0; i < memberIds.length; i++) {
+            memberId += memberIds[i];
+            if (s.equals(roles[i], "from")) {
+                from = memberId;
+                froms += types[i] == MEMBER_WAY ? 1 : 2;
+            } else if (s.equals(roles[i], "via")) {
+                via = memberId;
+                vias += types[i] == MEMBER_NODE ? 1 : 2;
+            } else if (s.equals(roles[i], "to")) {
+                to = memberId;
+                tos += types[i] == MEMBER_WAY ? 1 : 2;
+            }
+        }
+        if (froms == 1 && vias == 1 && tos == 1) {
+            block.restriction(id, from, via, to, restriction);
+        }
+    }
+
+    /**
+     * The string table of a block. Strings are only decoded when asked for, and tag keys
+     * are compared as bytes, so most of the table is never turned into Strings.
+     */
+    private static class Strings {
+        private final byte[] data;
+        private int[] starts = new int[64];
+        private int[] ends = new int[64];
+        private String[] decoded;
+        private int size;
+
+        Strings(byte[] data, int from, int to) throws IOException {
+            this.data = data;
+            if (from >= 0) {
+                ProtoReader t = new ProtoReader(data, from, to);
+                while (t.next()) {
+                    if (t.field == 1) {
+                        if (size == starts.length) {
+                            starts = Arrays.copyOf(starts, size * 2);
+                            ends = Arrays.copyOf(ends, size * 2);
+                        }
+                        ends[size] = t.lengthDelimited();
+                        starts[size] = t.pos;
+                        t.pos = ends[size];
+                        size++;
+                    } else {
+                        t.skip();
+                    }
+                }
+            }
+            decoded = new String[size];
+        }
+
+        String get(int i) throws IOException {
+            check(i);
+            if (decoded[i] == null) {
+                decoded[i] = new String(data, starts[i], ends[i] - starts[i],
+                        StandardCharsets.UTF_8);
+            }
+            return decoded[i];
+        }
+
+        /** Whether string i is the ASCII string s. */
+        boolean equals(int i, String s) throws IOException {
+            check(i);
+            if (ends[i] - starts[i] != s.length()) {
+                return false;
+            }
+            for (int k = 0; k < s.length(); k++) {
+                if (data[starts[i] + k] != s.charAt(k)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private void check(int i) throws IOException {
+            if (i < 0 || i >= size) {
+                throw new IOException("PBF string index " + i + " out of range");
+            }
+        }
+    }
+
+    /** The decoded elements of one PrimitiveBlock, in order, in coordinates of degrees. */
+    private static class Block {
+        final Strings strings;
+        private final long granularity;
+        private final long latOffset;
+        private final long lonOffset;
+
+        private int nodeCount;
+        private long[] nodeIds = new long[256];
+        private double[] nodeLons = new double[256];
+        private double[] nodeLats = new double[256];
+        private String[] nodeNames = new String[256];
+
+        private int wayCount;
+        private long[] wayIds = new long[64];
+        private long[][] wayRefs = new long[64][];
+        private String[] wayHighways = new String[64];
+        private String[] wayNames = new String[64];
+        private String[] wayMaxspeeds = new String[64];
+
+        private int restrictionCount;
+        private long[] restrictionIds = new long[8];
+        private long[] restrictionFroms = new long[8];
+        private long[] restrictionVias = new long[8];
+        private long[] restrictionTos = new long[8];
+        private String[] restrictionTypes = new String[8];
+
+        Block(Strings strings, long granularity, long latOffset, long lonOffset) {
+            this.strings = strings;
+            this.granularity = granularity;
+            this.latOffset = latOffset;
+            this.lonOffset = lonOffset;
+        }
+
+        void node(long id, long lon, long lat, String name) {
+            if (nodeCount == nodeIds.length) {
+                int capacity = nodeCount * 2;
+                nodeIds = Arrays.copyOf(nodeIds, capacity);
+                nodeLons = Arrays.copyOf(nodeLons, capacity);
+                nodeLats = Arrays.copyOf(nodeLats, capacity);
+                nodeNames = Arrays.copyOf(nodeNames, capacity);
+            }
+            nodeIds[nodeCount] = id;
+            /* Dividing, rather than multiplying by 1e-9, gives the same double as parsing
+            the decimal degrees of the XML format would. */
+            nodeLons[nodeCount] = (lonOffset + granularity * lon) / 1e9;
+            nodeLats[nodeCount] = (latOffset + granularity * lat) / 1e9;
+            nodeNames[nodeCount] = name;
+            nodeCount++;
+        }
+
+        void way(long id, long[] refs, String highway, String name, String maxspeed) {
+            if (wayCount == wayIds.length) {
+                int capacity = wayCount * 2;
+                wayIds = Arrays.copyOf(wayIds, capacity);
+                wayRefs = Arrays.copyOf(wayRefs, capacity);
+                wayHighways = Arrays.copyOf(wayHighways, capacity);
+                wayNames = Arrays.copyOf(wayNames, capacity);
+                wayMaxspeeds = Arrays.copyOf(wayMaxspeeds, capacity);
+            }
+            wayIds[wayCount] = id;
+            wayRefs[wayCount] = refs;
+            wayHighways[wayCount] = highway;
+            wayNames[wayCount] = name;
+            wayMaxspeeds[wayCount] = maxspeed;
+            wayCount++;
+        }
+
+        void restriction(long id, long fromWay, long viaNode, long toWay, String restriction) {
+            if (restrictionCount == restrictionIds.length) {
+                int capacity = restrictionCount * 2;
+                restrictionIds = Arrays.copyOf(restrictionIds, capacity);
+                restrictionFroms = Arrays.copyOf(restrictionFroms, capacity);
+                restrictionVias = Arrays.copyOf(restrictionVias, capacity);
+                restrictionTos = Arrays.copyOf(restrictionTos, capacity);
+                restrictionTypes = Arrays.copyOf(restrictionTypes, capacity);
+            }
+            restrictionIds[restrictionCount] = id;
+            restrictionFroms[restrictionCount] = fromWay;
+            restrictionVias[restrictionCount] = viaNode;
+            restrictionTos[restrictionCount] = toWay;
+            restrictionTypes[restrictionCount] = restriction;
+            restrictionCount++;
+        }
+
+        void replay(OsmSink sink) {
+            for (int i = 0; i < nodeCount; i++) {
+                sink.node(nodeIds[i], nodeLons[i], nodeLats[i], nodeNames[i]);
+            }
+            for (int i = 0; i < wayCount; i++) {
+                sink.way(wayIds[i], wayRefs[i], wayHighways[i], wayNames[i], wayMaxspeeds[i]);
+            }
+            for (int i = 0; i < restrictionCount; i++) {
+                sink.restriction(restrictionIds[i], restrictionFroms[i], restrictionVias[i],
+                        restrictionTos[i], restrictionTypes[i]);
+            }
+        }
+    }
+
+    /**
+     * Minimal reader of the protobuf wire format over a byte range. Call next() to advance
+     * to each field, then read its value with the method matching its type, or skip() it.
+     */
+    static class ProtoReader {
+        final byte[] buf;
+        int pos;
+        private final int end;
+        int field;
+        private int wireType;
+
+        ProtoReader(byte[] buf, int from, int to) {
+            this.buf = buf;
+            this.pos = from;
+            this.end = to;
+        }
+
+        /** Advances to the next field; returns false at the end of the message. */
+        boolean next() throws IOException {
+            if (pos >= end) {
+                return false;
+            }
+            long key = varint();
+            field = (int) (key >>> 3);
+            wireType = (int) (key & 7);
+            return true;
+        }
+
+        long varint() throws IOException {
+            long result = 0;
+            for (int shift = 0; shift < 64; shift += 7) {
+                if (pos >= end) {
+                    throw new IOException("Truncated PBF varint");
+                }
+                byte b = buf[pos++];
+                result |= (long) (b & 0x7f) << shift;
+                if (b >= 0) {
+                    return result;
+                }
+            }
+            throw new IOException("Malformed PBF varint");
+        }
+
+        /** Reads a zigzag encoded sint32/sint64. */
+        long sint() throws IOException {
+            long v = varint();
+            return (v >>> 1) ^ -(v & 1);
+        }
+
+        /** Reads the length of a length-delimited field; returns where its value ends. */
+        int lengthDelimited() throws IOException {
+            if (wireType != 2) {
+                throw new IOException("PBF field " + field + " is not length-delimited");
+            }
+            long length = varint();
+            if (length < 0 || length > end - pos) {
+                throw new IOException("PBF field " + field + " overruns its message");
+            }
+            return pos + (int) length;
+        }
+
+        String string() throws IOException {
+            int to = lengthDelimited();
+            String s = new String(buf, pos, to - pos, StandardCharsets.UTF_8);
+            pos = to;
+            return s;
+        }
+
+        /** Reads a packed repeated uint32/int32 field. */
+        int[] packedInts() throws IOException {
+            int to = lengthDelimited();
+            int[] result = new int[16];
+            int n = 0;
+            ProtoReader r = new ProtoReader(buf, pos, to);
+            while (r.pos < to) {
+                if (n == result.length) {
+                    result = Arrays.copyOf(result, n * 2);
+                }
+                result[n++] = (int) r.varint();
+            }
+            pos = to;
+            return n == result.length ? result : Arrays.copyOf(result, n);
+        }
+
+        /** Reads a packed repeated sint64 field. */
+        long[] packedSints() throws IOException {
+            int to = lengthDelimited();
+            long[] result = new long[16];
+            int n = 0;
+            ProtoReader r = new ProtoReader(buf, pos, to);
+            while (r.pos < to) {
+                if (n == result.length) {
+                    result = Arrays.copyOf(result, n * 2);
+                }
+                result[n++] = r.sint();
+            }
+            pos = to;
+            return n == result.length ? result : Arrays.copyOf(result, n);
+        }
+
+        void skip() throws IOException {
+            switch (wireType) {
+                case 0:
+                    varint();
+                    break;
+                case 1:
+                    pos += 8;
+                    break;
+                case 2:
+                    pos = lengthDelimited();
+                    break;
+                case 5:
+                    pos += 4;
+                    break;
+                default:
+                    throw new IOException("Unsupported PBF wire type " + wireType);
+            }
+            if (pos > end) {
+                throw new IOException("PBF field " + field + " overruns its message");
+            }
+        }
+    }
+}
@@ -0,0 +1,102 @@
+import java.util.Arrays;
+
+/**
+ * Operations on polylines given as their x and y coordinates, alternating, in one array,
+ * as VectorTiles and RouteGeometry keep them; for coordinates on the map, x is the
+ * longitude and y the latitude.
+ */
+public class Polylines {
+
+    private Polylines() {
+    }
+
+    /**
+     * Simplifies a polyline with Douglas-Peucker: keeps its ends, and of the points
+     * between two kept points the farthest from the segment between them, as long as that
+     * is farther than tolerance.
+     * @param line The x and y of each point, alternating.
+     * @param size The number of points of line to simplify, from its start.
+     * @param tolerance The largest distance a dropped point may be from the line kept.
+     * @return Whether each point is kept.
+     */
+    static boolean[] douglasPeucker(double[] line, int size, double tolerance) {
+        boolean[] keep = new boolean[size];
+        if (size <= 2) {
+            Arrays.fill(keep, true);
+            return keep;
+        }
+        keep[0] = true;
+        keep[size - 1] = true;
+        int[] stack = new int[2 * size];
+        int top = 0;
+        stack[top++] = 0;
+        stack[top++] = size - 1;
+        while (top > 0) {
+            int last = stack[--top];
+            int first = stack[--top];
+            double ax = line[2 * first];
+            double ay = line[2 * first + 1];
+            double dx = line[2 * last] - ax;
+            double dy = line[2 * last + 1] - ay;
+            double length = Math.hypot(dx, dy);
+            int farthest = -1;
+            double max = tolerance;
+            for (int i = first + 1; i < last; i++) {
+                double px = line[2 * i] - ax;
+                double py = line[2 * i + 1] - ay;
+                double distance = length > 0 ? Math.abs(px * dy - py * dx) / length
+                        : Math.hypot(px, py);
+                if (distance > max) {
+                    max = distance;
+                    farthest = i;
+                }
+            }
+            if (farthest >= 0) {
+                keep[farthest] = true;
+                stack[top++] = first;
+                stack[top++] = farthest;
+                stack[top++] = farthest;
+                stack[top++] = last;
+            }
+        }
+        return keep;
+    }
+
+    /**
+     * Encodes a polyline in the format of Google's encoded polylines: for each point its
+     * latitude, then its longitude, rounded to precision decimals, as the difference from
+     * the point before, zigzag encoded in chunks of 5 bits from the lowest, each offset
+     * by 63 into a printable character and all but the last or'ed with 0x20.
+     * @param line The longitude and latitude of each point, alternating.
+     * @param keep Which points to encode, or null for all.
+     * @param precision The number of decimals to keep; Google uses 5.
+     * @return The encoded polyline.
+     */
+    static String encode(double[] line, boolean[] keep, int precision) {
+        double factor = Math.pow(10, precision);
+        StringBuilder encoded = new StringBuilder();
+        long lastLat = 0;
+        long lastLon = 0;
+        for (int i = 0; i < line.length / 2; i++) {
+            if (keep != null && !keep[i]) {
+                continue;
+            }
+            long lat = Math.round(line[2 * i + 1] * factor);
+            long lon = Math.round(line[2 * i] * factor);
+            encodeValue(lat - lastLat, encoded);
+            encodeValue(lon - lastLon, encoded);
+            lastLat = lat;
+            lastLon = lon;
+        }
+        return encoded.toString();
+    }
+
+    private static void encodeValue(long value, StringBuilder encoded) {
+        long zigzag = value < 0 ? ~(value << 1) : value << 1;
+        while (zigzag >= 0x20) {
+            encoded.append((char) ((0x20 | (zigzag & 0x1F)) + 63));
+            zigzag >>= 5;
+        }
+        encoded.append((char) (zigzag + 63));
+    }
+}
@@ -24,8 +24,22 @@ public class Rasterer {
                 };
     }
 
+    /** The deepest depth of the stored tile images. */
+    static final int STORED_MAX_DEPTH = 7;
+
+    /** The deepest depth rastering picks. */
+    private final int maxDepth;
+
     public Rasterer() {
+        this(STORED_MAX_DEPTH);
+    }
 
+    /**
+     * A rasterer that picks depths down to maxDepth, deeper than the stored images go,
+     * for when missing tiles are rendered, see TileRenderer.
+     */
+    public Rasterer(int maxDepth) {
+        this.maxDepth = maxDepth;
     }
 
     /**
@@ -64,7 +78,7 @@ public class Rasterer {
          */
 
         double currentLonDPP = getLonDPP(params.get("lrlon"), params.get("ullon"), params.get("w"));
-        int currentDepth = getDepthLevel(currentLonDPP);
+        int currentDepth = getDepthLevel(currentLonDPP, maxDepth);
 
 
         //  Get longitude bounds for the current depth
@@ -170,16 +184,31 @@ public class Rasterer {
         return results;
     }
 
-    private double getLonDPP(Double lrlon, Double ullon, Double w) {
+    static double getLonDPP(Double lrlon, Double ullon, Double w) {
         return (lrlon.doubleValue() - ullon.doubleValue()) / w.doubleValue();
     }
 
-    private int getDepthLevel(double currentLonDPP) {
-        for (int i = 0; i < lonDPPs.length; i++) {
-            if (lonDPPs[i] <= currentLonDPP)
+    /**
+     * @param currentLonDPP The longitudinal distance per pixel of a query box.
+     * @return The depth of the tiles that resolve a query box at that resolution.
+     */
+    static int getDepthLevel(double currentLonDPP) {
+        return getDepthLevel(currentLonDPP, STORED_MAX_DEPTH);
+    }
+
+    /**
+     * @param currentLonDPP The longitudinal distance per pixel of a query box.
+     * @param maxDepth The deepest depth to pick.
+     * @return The depth of the tiles that resolve a query box at that resolution, where
+     * every depth past the stored ones halves the distance per pixel again.
+     */
+    static int getDepthLevel(double currentLonDPP, int maxDepth) {
+        for (int i = 0; i <= maxDepth; i++) {
+            double lonDPP = i < lonDPPs.length ? lonDPPs[i] : lonDPPs[0] / (1L << i);
+            if (lonDPP <= currentLonDPP)
                 return i;
         }
-        return 7;
+        return maxDepth;
     }
 
     private double calculateNext(int currentDepth, double s, double e) {
@@ -0,0 +1,195 @@
+import java.awt.geom.Path2D;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * The coordinates of a route, looked up once when the route is found, for drawing it over
+ * rasters. Drawing only visits the parts of the route near the raster: the route is cut
+ * into chunks of CHUNK segments with a bounding box each, and chunks whose box misses the
+ * raster are skipped whole. What is visited is simplified to the raster's resolution
+ * and returned as a single path, so drawing costs what is visible rather than what the
+ * route's length is.
+ */
+public class RouteGeometry {
+
+    /** An empty route. */
+    static final RouteGeometry NONE = new RouteGeometry(new double[0], new double[0]);
+    /** Segments per chunk. */
+    static final int CHUNK = 64;
+    /** Simplification tolerance in pixels; less than a pixel does not show. */
+    static final double TOLERANCE_PX = 0.5;
+    /** Meters per degree of latitude. */
+    private static final double METERS_PER_DEGREE = 111_320;
+
+    private final double[] lons;
+    private final double[] lats;
+    /** Bounding box of chunk c, which is the segments from point c * CHUNK on. */
+    private final double[] minLons;
+    private final double[] maxLons;
+    private final double[] minLats;
+    private final double[] maxLats;
+
+    /**
+     * @param graph The graph the route was found in.
+     * @param ids The OSM ids of the vertices along the route.
+     */
+    RouteGeometry(GraphDB graph, List<Long> ids) {
+        this(new double[ids.size()], new double[ids.size()]);
+        int i = 0;
+        for (long id : ids) {
+            int v = graph.vertexOf(id);
+            lons[i] = graph.lonAt(v);
+            lats[i++] = graph.latAt(v);
+        }
+        bound();
+    }
+
+    private RouteGeometry(double[] lons, double[] lats) {
+        this.lons = lons;
+        this.lats = lats;
+        int chunks = lons.length < 2 ? 0 : (lons.length - 2) / CHUNK + 1;
+        minLons = new double[chunks];
+        maxLons = new double[chunks];
+        minLats = new double[chunks];
+        maxLats = new double[chunks];
+    }
+
+    private void bound() {
+        for (int c = 0; c < minLons.length; c++) {
+            int end = Math.min(lons.length, (c + 1) * CHUNK + 1);
+            minLons[c] = Double.POSITIVE_INFINITY;
+            maxLons[c] = Double.NEGATIVE_INFINITY;
+            minLats[c] = Double.POSITIVE_INFINITY;
+            maxLats[c] = Double.NEGATIVE_INFINITY;
+            for (int i = c * CHUNK; i < end; i++) {
+                minLons[c] = Math.min(minLons[c], lons[i]);
+                maxLons[c] = Math.max(maxLons[c], lons[i]);
+                minLats[c] = Math.min(minLats[c], lats[i]);
+                maxLats[c] = Math.max(maxLats[c], lats[i]);
+            }
+        }
+    }
+
+    /** Number of points of the route. */
+    int size() {
+        return lons.length;
+    }
+
+    /** The length of the route in miles. */
+    double length() {
+        double length = 0;
+        for (int i = 1; i < lons.length; i++) {
+            length += GraphDB.distance(lons[i - 1], lats[i - 1], lons[i], lats[i]);
+        }
+        return length;
+    }
+
+    /**
+     * Which points of the route to keep to stay within a distance of the route, see
+     * Polylines.douglasPeucker. Distances are measured in a plane tangent to the earth at
+     * the start of the route, which is exact enough at the scale of a city.
+     * @param toleranceMeters The largest distance in meters a dropped point may be from
+     *                        the route kept; 0 to keep every point.
+     * @return Whether each point is kept.
+     */
+    boolean[] simplified(double toleranceMeters) {
+        if (toleranceMeters <= 0 || lons.length < 2) {
+            boolean[] all = new boolean[lons.length];
+            Arrays.fill(all, true);
+            return all;
+        }
+        double xScale = Math.cos(Math.toRadians(lats[0])) * METERS_PER_DEGREE;
+        double[] line = new double[2 * lons.length];
+        for (int i = 0; i < lons.length; i++) {
+            line[2 * i] = lons[i] * xScale;
+            line[2 * i + 1] = lats[i] * METERS_PER_DEGREE;
+        }
+        return Polylines.douglasPeucker(line, lons.length, toleranceMeters);
+    }
+
+    /**
+     * The route as an encoded polyline, see Polylines.encode.
+     * @param keep Which points to encode, e.g. simplified(toleranceMeters).
+     * @param precision The number of decimals to keep of each coordinate.
+     * @return The encoded polyline.
+     */
+    String encoded(boolean[] keep, int precision) {
+        double[] line = new double[2 * lons.length];
+        for (int i = 0; i < lons.length; i++) {
+            line[2 * i] = lons[i];
+            line[2 * i + 1] = lats[i];
+        }
+        return Polylines.encode(line, keep, precision);
+    }
+
+    /**
+     * The route as a path in the pixels of a raster, with the parts that cannot show on
+     * it left out.
+     * @param ullon The longitude of the raster's left edge.
+     * @param ullat The latitude of the raster's top edge.
+     * @param lrlon The longitude of the raster's right edge.
+     * @param lrlat The latitude of the raster's bottom edge.
+     * @param width The width of the raster in pixels.
+     * @param height The height of the raster in pixels.
+     * @param margin How many pixels outside the raster still show, e.g. for wide strokes.
+     * @return The path.
+     */
+    Path2D path(double ullon, double ullat, double lrlon, double lrlat, int width,
+                int height, double margin) {
+        double wdpp = (lrlon - ullon) / width;
+        double hdpp = (ullat - lrlat) / height;
+        double minLon = ullon - margin * wdpp;
+        double maxLon = lrlon + margin * wdpp;
+        double minLat = lrlat - margin * hdpp;
+        double maxLat = ullat + margin * hdpp;
+
+        Path2D.Double path = new Path2D.Double();
+        double[] piece = new double[2 * (CHUNK + 1)];
+        int size = 0;
+        /* The last point in piece, or -1 if it is empty. */
+        int last = -1;
+        for (int c = 0; c < minLons.length; c++) {
+            if (minLons[c] > maxLon || maxLons[c] < minLon || minLats[c] > maxLat
+                    || maxLats[c] < minLat) {
+                continue;
+            }
+            int end = Math.min(lons.length - 1, (c + 1) * CHUNK);
+            for (int i = c * CHUNK; i < end; i++) {
+                if (Math.min(lons[i], lons[i + 1]) > maxLon
+                        || Math.max(lons[i], lons[i + 1]) < minLon
+                        || Math.min(lats[i], lats[i + 1]) > maxLat
+                        || Math.max(lats[i], lats[i + 1]) < minLat) {
+                    continue;
+                }
+                if (last != i) {
+                    append(path, piece, size);
+                    size = 0;
+                    piece[size++] = (lons[i] - ullon) / wdpp;
+                    piece[size++] = (ullat - lats[i]) / hdpp;
+                }
+                if (size == piece.length) {
+                    piece = Arrays.copyOf(piece, size * 2);
+                }
+                piece[size++] = (lons[i + 1] - ullon) / wdpp;
+                piece[size++] = (ullat - lats[i + 1]) / hdpp;
+                last = i + 1;
+            }
+        }
+        append(path, piece, size);
+        return path;
+    }
+
+    /** Appends the first size coordinates of piece to path, simplified, as a new subpath. */
+    private static void append(Path2D path, double[] piece, int size) {
+        if (size < 4) {
+            return;
+        }
+        boolean[] keep = Polylines.douglasPeucker(piece, size / 2, TOLERANCE_PX);
+        path.moveTo(piece[0], piece[1]);
+        for (int i = 1; i < size / 2; i++) {
+            if (keep[i]) {
+                path.lineTo(piece[2 * i], piece[2 * i + 1]);
+            }
+        }
+    }
+}
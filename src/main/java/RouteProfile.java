@@ -0,0 +1,196 @@
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A cost model for routing: a Router.Metric to minimize, with a multiplier on the cost
+ * of every edge by the highway class of its way. Multipliers above 1 make a class less
+ * attractive, e.g. 5 on motorways mostly avoids them; below 1 more attractive.
+ *
+ * A profile may also charge for turns, by their class: a NavigationDirection constant
+ * or ContractedGraph.U_TURN. Turn costs are in the unit of the metric, seconds for TIME,
+ * and are not multiplied. Only profiles with turn costs honour turn restrictions, as
+ * their searches follow edges rather than vertices, which is slower.
+ *
+ * A profile is applied to a graph by GraphDB.customize, which only re-weights the
+ * contracted graph the graph already has, so a new profile costs one pass over the
+ * edges rather than a new graph. Profiles are immutable; withMultiplier returns a new one.
+ */
+public class RouteProfile {
+
+    /** Minimizes distance; the profile routes have always used. */
+    static final RouteProfile SHORTEST = new RouteProfile("shortest", Router.Metric.DISTANCE);
+    /**
+     * Minimizes travel time, including a few seconds for slowing down at turns. Turns
+     * across traffic cost more; traffic drives on the right.
+     */
+    static final RouteProfile FASTEST = new RouteProfile("fastest", Router.Metric.TIME)
+            .withTurnCost(Router.NavigationDirection.SLIGHT_LEFT, 2)
+            .withTurnCost(Router.NavigationDirection.SLIGHT_RIGHT, 1)
+            .withTurnCost(Router.NavigationDirection.LEFT, 10)
+            .withTurnCost(Router.NavigationDirection.RIGHT, 5)
+            .withTurnCost(Router.NavigationDirection.SHARP_LEFT, 15)
+            .withTurnCost(Router.NavigationDirection.SHARP_RIGHT, 10)
+            .withTurnCost(ContractedGraph.U_TURN, 60);
+
+    /** Profiles by name, see named and register. */
+    private static final Map<String, RouteProfile> PROFILES = new ConcurrentHashMap<>();
+
+    static {
+        register(SHORTEST);
+        register(FASTEST);
+        register(FASTEST.renamed("avoid_motorways")
+                .withMultiplier("motorway", 5).withMultiplier("motorway_link", 5)
+                .withMultiplier("trunk", 2).withMultiplier("trunk_link", 2));
+        register(FASTEST.renamed("avoid_primary")
+                .withMultiplier("primary", 2).withMultiplier("primary_link", 2));
+        register(FASTEST.renamed("prefer_residential")
+                .withMultiplier("residential", 0.8).withMultiplier("living_street", 0.8));
+    }
+
+    private final String name;
+    private final Router.Metric metric;
+    /** Multiplier of each highway class, see GraphBuildingHandler.highwayClass. */
+    private final double[] multipliers;
+    /** Cost of each turn class, or null if turns are free and restrictions ignored. */
+    private final double[] turnCosts;
+
+    /**
+     * A profile minimizing metric with every multiplier 1 and no turn costs.
+     * @param name The name of the profile, e.g. for the profile parameter of /route.
+     * @param metric What the profile minimizes.
+     */
+    RouteProfile(String name, Router.Metric metric) {
+        this(name, metric, new double[GraphBuildingHandler.numHighwayClasses()], null);
+        Arrays.fill(multipliers, 1);
+    }
+
+    private RouteProfile(String name, Router.Metric metric, double[] multipliers,
+                         double[] turnCosts) {
+        this.name = name;
+        this.metric = metric;
+        this.multipliers = multipliers;
+        this.turnCosts = turnCosts;
+    }
+
+    /** The built-in profile minimizing metric: SHORTEST or FASTEST. */
+    static RouteProfile of(Router.Metric metric) {
+        return metric == Router.Metric.TIME ? FASTEST : SHORTEST;
+    }
+
+    /**
+     * @param name The name of a profile.
+     * @return The registered profile of that name, or null if there is none.
+     */
+    static RouteProfile named(String name) {
+        return PROFILES.get(name);
+    }
+
+    /** Makes profile available by its name, replacing any profile of the same name. */
+    static void register(RouteProfile profile) {
+        PROFILES.put(profile.name, profile);
+    }
+
+    /** This profile under another name. */
+    RouteProfile renamed(String newName) {
+        return new RouteProfile(newName, metric, multipliers, turnCosts);
+    }
+
+    /**
+     * This profile with the multiplier of one highway type changed.
+     * @param highway A highway type the graph allows, e.g. "motorway".
+     * @param multiplier The factor to apply to the cost of its edges; positive and finite.
+     * @return The changed profile.
+     * @throws IllegalArgumentException If the highway type is not allowed or the
+     * multiplier is out of range.
+     */
+    RouteProfile withMultiplier(String highway, double multiplier) {
+        int highwayClass = GraphBuildingHandler.highwayClass(highway);
+        if (highwayClass < 0) {
+            throw new IllegalArgumentException("Not a routable highway type: " + highway);
+        }
+        if (!(multiplier > 0) || Double.isInfinite(multiplier)) {
+            throw new IllegalArgumentException("Multiplier must be positive: " + multiplier);
+        }
+        double[] changed = multipliers.clone();
+        changed[highwayClass] = multiplier;
+        return new RouteProfile(name, metric, changed, turnCosts);
+    }
+
+    /**
+     * This profile with the cost of one turn class changed. The first turn cost makes
+     * every other turn free and turn restrictions apply.
+     * @param turnClass A NavigationDirection constant other than START, or
+     *                  ContractedGraph.U_TURN.
+     * @param cost The cost of such a turn; non-negative and finite.
+     * @return The changed profile.
+     * @throws IllegalArgumentException If the turn class or the cost is out of range.
+     */
+    RouteProfile withTurnCost(int turnClass, double cost) {
+        if (turnClass <= Router.NavigationDirection.START || turnClass > ContractedGraph.U_TURN) {
+            throw new IllegalArgumentException("Not a turn class: " + turnClass);
+        }
+        if (!(cost >= 0) || Double.isInfinite(cost)) {
+            throw new IllegalArgumentException("Turn cost must not be negative: " + cost);
+        }
+        double[] changed = turnCosts == null
+                ? new double[ContractedGraph.U_TURN + 1] : turnCosts.clone();
+        changed[turnClass] = cost;
+        return new RouteProfile(name, metric, multipliers, changed);
+    }
+
+    /** This profile with turns free and turn restrictions ignored. */
+    RouteProfile withoutTurnCosts() {
+        return new RouteProfile(name, metric, multipliers, null);
+    }
+
+    String name() {
+        return name;
+    }
+
+    Router.Metric metric() {
+        return metric;
+    }
+
+    /** The multiplier of highway class highwayClass. */
+    double multiplier(int highwayClass) {
+        return multipliers[highwayClass];
+    }
+
+    /** Whether turns cost anything and turn restrictions apply. */
+    boolean hasTurnCosts() {
+        return turnCosts != null;
+    }
+
+    /** The cost of a turn of class turnClass, see withTurnCost; 0 without turn costs. */
+    double turnCost(int turnClass) {
+        return turnCosts == null ? 0 : turnCosts[turnClass];
+    }
+
+    /** The cost of each turn class, indexed like turnCost, or null without turn costs. */
+    double[] turnCosts() {
+        return turnCosts == null ? null : turnCosts.clone();
+    }
+
+    /** Profiles are equal if they weigh every edge and turn the same, whatever their names. */
+    @Override
+    public boolean equals(Object o) {
+        if (!(o instanceof RouteProfile)) {
+            return false;
+        }
+        RouteProfile other = (RouteProfile) o;
+        return metric == other.metric && Arrays.equals(multipliers, other.multipliers)
+                && Arrays.equals(turnCosts, other.turnCosts);
+    }
+
+    @Override
+    public int hashCode() {
+        return (31 * metric.hashCode() + Arrays.hashCode(multipliers)) * 31
+                + Arrays.hashCode(turnCosts);
+    }
+
+    @Override
+    public String toString() {
+        return name;
+    }
+}
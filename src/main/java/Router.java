@@ -1,6 +1,8 @@
 import java.awt.*;
 import java.util.*;
 import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -14,16 +16,43 @@ import java.util.regex.Pattern;
  */
 public class Router {
 
-    static private Map<Long, Double> bestKnownDistance;
-    static private Map<Long, Long> parent;
-    static private PriorityQueue<Pair> fringe;
+    /** Parent edge of the start vertex itself. */
+    private static final int AT_START = -1;
+    /** Parent edge of a core vertex reached from the start along the start's chain. */
+    private static final int START_FORWARD = -2;
+    /** Parent edge of a core vertex reached from the start against the start's chain. */
+    private static final int START_BACKWARD = -3;
 
-    static  {
-        bestKnownDistance = new HashMap<>();
-        parent = new HashMap<>();
-        fringe = new PriorityQueue<>(1, new PairComparator());
+    /** What a shortest path minimizes. */
+    enum Metric {
+        /** The length of the path in miles. */
+        DISTANCE,
+        /** The time it takes to drive the path, in seconds, see GraphDB.edgeTime. */
+        TIME
     }
 
+    /** How a location is put onto the graph to route from or to it. */
+    enum Snapping {
+        /** At the nearest vertex, see GraphDB.closest. */
+        VERTEX,
+        /** At the nearest point on a road, see GraphDB.snap. */
+        SEGMENT
+    }
+
+    /** How a search went, see Budget. */
+    enum Outcome {
+        /** The search finished within its budget: its path is cheapest, or there is none. */
+        COMPLETE,
+        /** The budget ran out, and the weighted search after it found a path. */
+        APPROXIMATE,
+        /** The budget ran out before a path was found. */
+        EXCEEDED
+    }
+
+    /** Per-thread search state, reused between searches. */
+    private static final ThreadLocal<Search> SEARCH = ThreadLocal.withInitial(Search::new);
+    /** Number of searches that ended with each outcome, by ordinal. */
+    private static final AtomicLongArray OUTCOMES = new AtomicLongArray(Outcome.values().length);
 
     /**
      * Return a List of longs representing the shortest path from the node
@@ -38,67 +67,583 @@ public class Router {
      */
     public static List<Long> shortestPath(GraphDB g, double stlon, double stlat,
                                           double destlon, double destlat) {
+        return shortestPath(g, stlon, stlat, destlon, destlat, false);
+    }
 
-        ArrayList<Long> shortestPath = new ArrayList<>();
+    /**
+     * Like shortestPath, but optionally snaps both locations into the largest connected
+     * component of the graph, so that a route is found whenever the graph has one
+     * component that carries most of the roads.
+     * @param g The graph to use.
+     * @param stlon The longitude of the start location.
+     * @param stlat The latitude of the start location.
+     * @param destlon The longitude of the destination location.
+     * @param destlat The latitude of the destination location.
+     * @param largestComponent Whether to snap to the closest nodes in the largest
+     *                         component rather than the closest nodes overall.
+     * @return A list of node id's in the order visited on the shortest path.
+     */
+    public static List<Long> shortestPath(GraphDB g, double stlon, double stlat,
+                                          double destlon, double destlat,
+                                          boolean largestComponent) {
+        return shortestPath(g, stlon, stlat, destlon, destlat, largestComponent,
+                RouteProfile.SHORTEST);
+    }
 
-        Long startNodeId = g.closest(stlon, stlat);
-        Long endNodeId = g.closest(destlon, destlat);
+    /**
+     * Like shortestPath, but minimizing the cost of the given profile; all profiles are
+     * searched on the same graph.
+     * @param g The graph to use.
+     * @param stlon The longitude of the start location.
+     * @param stlat The latitude of the start location.
+     * @param destlon The longitude of the destination location.
+     * @param destlat The latitude of the destination location.
+     * @param largestComponent Whether to snap to the closest nodes in the largest
+     *                         component rather than the closest nodes overall.
+     * @param profile The cost model the path should be cheapest in.
+     * @return A list of node id's in the order visited on the cheapest path.
+     */
+    static List<Long> shortestPath(GraphDB g, double stlon, double stlat, double destlon,
+                                   double destlat, boolean largestComponent,
+                                   RouteProfile profile) {
+        return shortestPath(g, stlon, stlat, destlon, destlat, largestComponent, profile,
+                Snapping.VERTEX);
+    }
+
+    /**
+     * Like shortestPath, snapping both locations onto the graph as given. Snapping to
+     * segments starts and ends the path at the points on the roads nearest to the
+     * locations, which have no node ids; the path is then the nodes between them, and
+     * empty if no path connects them.
+     * @param g The graph to use.
+     * @param stlon The longitude of the start location.
+     * @param stlat The latitude of the start location.
+     * @param destlon The longitude of the destination location.
+     * @param destlat The latitude of the destination location.
+     * @param largestComponent Whether to snap into the largest component only.
+     * @param profile The cost model the path should be cheapest in.
+     * @param snapping Where to snap the locations to.
+     * @return A list of node id's in the order visited on the cheapest path.
+     */
+    static List<Long> shortestPath(GraphDB g, double stlon, double stlat, double destlon,
+                                   double destlat, boolean largestComponent,
+                                   RouteProfile profile, Snapping snapping) {
+        return shortestPath(g, stlon, stlat, destlon, destlat, largestComponent, profile,
+                snapping, Budget.unlimited());
+    }
 
-        //  Clear all the previous data
-        fringe.clear();
-        bestKnownDistance.clear();
-        parent.clear();
+    /**
+     * Like shortestPath, searching within budget. If the budget runs out, the path is
+     * the one its fallback search finds, or empty; budget.outcome() tells which.
+     * @param g The graph to use.
+     * @param stlon The longitude of the start location.
+     * @param stlat The latitude of the start location.
+     * @param destlon The longitude of the destination location.
+     * @param destlat The latitude of the destination location.
+     * @param largestComponent Whether to snap into the largest component only.
+     * @param profile The cost model the path should be cheapest in.
+     * @param snapping Where to snap the locations to.
+     * @param budget The limits of the search, for this search only.
+     * @return A list of node id's in the order visited on the path.
+     */
+    static List<Long> shortestPath(GraphDB g, double stlon, double stlat, double destlon,
+                                   double destlat, boolean largestComponent,
+                                   RouteProfile profile, Snapping snapping, Budget budget) {
+        if (snapping == Snapping.SEGMENT) {
+            SegmentIndex.Snap start = g.snap(stlon, stlat, largestComponent);
+            SegmentIndex.Snap end = g.snap(destlon, destlat, largestComponent);
+            List<Long> path = new ArrayList<>();
+            if (start != null && end != null) {
+                for (int v : shortestPath(g, start, end, profile, budget)) {
+                    path.add(g.osmId(v));
+                }
+            }
+            return path;
+        }
+        long startNodeId = g.closest(stlon, stlat, largestComponent);
+        long endNodeId = g.closest(destlon, destlat, largestComponent);
+        int start = g.vertexOf(startNodeId);
+        int end = g.vertexOf(endNodeId);
+        if (start < 0 || end < 0) {
+            return new ArrayList<>(Collections.singletonList(endNodeId));
+        }
+        int[] path = shortestPath(g, start, end, profile, budget);
+        if (budget.outcome() == Outcome.EXCEEDED) {
+            return new ArrayList<>();
+        }
+        List<Long> shortestPath = new ArrayList<>(path.length);
+        for (int v : path) {
+            shortestPath.add(g.osmId(v));
+        }
+        return shortestPath;
+    }
 
-        //  Initialize the fringe with the source vertex
-        fringe.add(new Pair(startNodeId, g.distance(startNodeId, endNodeId)));
-        bestKnownDistance.put(startNodeId, 0.0);
-        parent.put(startNodeId, null);
+    /**
+     * Finds a shortest path between two vertices with A* on the contracted graph, then
+     * expands the shortcuts on it back into the vertices they pass through.
+     * @param g The graph to use.
+     * @param start The start vertex.
+     * @param end The destination vertex.
+     * @return The vertices of the path from start to end, or just end if end cannot be
+     * reached from start.
+     */
+    static int[] shortestPath(GraphDB g, int start, int end) {
+        return shortestPath(g, start, end, RouteProfile.SHORTEST);
+    }
 
-        boolean found = false;
+    /**
+     * Finds a path between two vertices that is shortest in metric, like
+     * shortestPath(GraphDB, int, int).
+     * @param g The graph to use.
+     * @param start The start vertex.
+     * @param end The destination vertex.
+     * @param metric What the path should minimize.
+     * @return The vertices of the path from start to end, or just end if end cannot be
+     * reached from start.
+     */
+    static int[] shortestPath(GraphDB g, int start, int end, Metric metric) {
+        return shortestPath(g, start, end, RouteProfile.of(metric));
+    }
 
-        if (startNodeId != endNodeId) {
-            while (!fringe.isEmpty()) {
-                Pair p = fringe.poll();
-                Long currentId = p.id;
+    /**
+     * Finds a path between two vertices that is cheapest under profile, like
+     * shortestPath(GraphDB, int, int).
+     * @param g The graph to use.
+     * @param start The start vertex.
+     * @param end The destination vertex.
+     * @param profile The cost model the path should be cheapest in.
+     * @return The vertices of the path from start to end, or just end if end cannot be
+     * reached from start.
+     */
+    static int[] shortestPath(GraphDB g, int start, int end, RouteProfile profile) {
+        return shortestPath(g, start, end, profile, Budget.unlimited());
+    }
 
-                ArrayList<Long> adjacent = (ArrayList<Long>) g.adjacent(currentId);
+    /**
+     * Finds a path between two vertices that is cheapest under profile within budget.
+     * @param g The graph to use.
+     * @param start The start vertex.
+     * @param end The destination vertex.
+     * @param profile The cost model the path should be cheapest in.
+     * @param budget The limits of the search, for this search only.
+     * @return The vertices of the path from start to end, or just end if end cannot be
+     * reached from start or the budget ran out without a path.
+     */
+    static int[] shortestPath(GraphDB g, int start, int end, RouteProfile profile,
+                              Budget budget) {
+        if (start == end || !g.components().mayReach(start, end)) {
+            /* Without this check, an unreachable end is only known to be unreachable
+            after searching everything reachable from start. */
+            return new int[]{end};
+        }
+        ContractedGraph.Customization w = g.customize(profile);
+        int[] path = search(g, Position.at(g, w, start), Position.at(g, w, end), w, budget);
+        return path == null ? new int[]{end} : path;
+    }
 
-                for (Long vertex : adjacent) {
-                    if (vertex == endNodeId) {
-                        bestKnownDistance.put(vertex, bestKnownDistance.get(currentId) + g.distance(currentId, vertex));
-                        parent.put(vertex, currentId);
-                        found = true;
-                        break;
-                    }
-                    //  Relax the edge(/vertex)
+    /**
+     * Finds a path between two points on roads that is cheapest under profile, e.g. the
+     * points GraphDB.snap finds for two locations. The path starts and ends with the
+     * parts of the roads the points lie on, as if there were a vertex at each point.
+     * @param g The graph to use.
+     * @param start The start point.
+     * @param end The destination point.
+     * @param profile The cost model the path should be cheapest in.
+     * @return The vertices of the path, which includes the points themselves only where
+     * they are at vertices; empty if end cannot be reached from start.
+     */
+    static int[] shortestPath(GraphDB g, SegmentIndex.Snap start, SegmentIndex.Snap end,
+                              RouteProfile profile) {
+        return shortestPath(g, start, end, profile, Budget.unlimited());
+    }
+
+    /**
+     * Finds a path between two points on roads that is cheapest under profile within
+     * budget, like shortestPath(GraphDB, Snap, Snap, RouteProfile).
+     * @param budget The limits of the search, for this search only.
+     * @return The vertices of the path; empty if end cannot be reached from start or the
+     * budget ran out without a path.
+     */
+    static int[] shortestPath(GraphDB g, SegmentIndex.Snap start, SegmentIndex.Snap end,
+                              RouteProfile profile, Budget budget) {
+        if (!g.components().mayReach(start.source, end.source)) {
+            return new int[0];
+        }
+        ContractedGraph.Customization w = g.customize(profile);
+        int[] path = search(g, Position.on(g, w, start), Position.on(g, w, end), w, budget);
+        return path == null ? new int[0] : path;
+    }
+
+    /** The number of searches so far that ended with outcome, for monitoring. */
+    static long searches(Outcome outcome) {
+        return OUTCOMES.get(outcome.ordinal());
+    }
+
+    /**
+     * Finds a cheapest path from start to end on the contracted graph, with turn costs if
+     * w has them, and expands it back into the vertices it passes through. If budget runs
+     * out, searches again with its fallback weight, if it has one.
+     * @return The vertices, or null if there is no path or none was found in budget.
+     */
+    private static int[] search(GraphDB g, Position start, Position end,
+                                ContractedGraph.Customization w, Budget budget) {
+        if (start.vertex >= 0 && start.vertex == end.vertex) {
+            return new int[]{end.vertex};
+        }
+        int[] path = search(g, start, end, w, budget, 1);
+        if (budget.exhausted() && budget.fallbackWeight > 1) {
+            budget.restart();
+            path = search(g, start, end, w, budget, budget.fallbackWeight);
+            budget.outcome = budget.exhausted() ? Outcome.EXCEEDED : Outcome.APPROXIMATE;
+        } else {
+            budget.outcome = budget.exhausted() ? Outcome.EXCEEDED : Outcome.COMPLETE;
+        }
+        OUTCOMES.incrementAndGet(budget.outcome.ordinal());
+        return budget.outcome == Outcome.EXCEEDED ? null : path;
+    }
+
+    /**
+     * One A* search, with the lower bounds on the remaining cost multiplied by weight.
+     * A weight above 1 settles fewer vertices, for a path that costs at most weight times
+     * the cheapest.
+     */
+    private static int[] search(GraphDB g, Position start, Position end,
+                                ContractedGraph.Customization w, Budget budget,
+                                double weight) {
+        return w.hasTurnCosts() ? turnAwarePath(g, start, end, w, budget, weight)
+                : nodeBasedPath(g, start, end, w, budget, weight);
+    }
+
+    /** A* over the core vertices of the contracted graph. */
+    private static int[] nodeBasedPath(GraphDB g, Position start, Position end,
+                                       ContractedGraph.Customization w, Budget budget,
+                                       double weight) {
+        ContractedGraph cg = g.contracted();
+        double endX = cg.x(end.lon);
+        double endY = cg.y(end.lat);
+        /* Turns the lower bound on the distance into one on the cost. */
+        double perMile = w.costPerMile() * weight;
+        Search search = SEARCH.get();
+        search.reset(cg.numCore());
+
+        /* A start inside a chain enters the contracted graph at either end of it. */
+        if (start.core >= 0) {
+            search.reach(start.core, 0, AT_START, -1,
+                    perMile * cg.lowerBound(start.core, endX, endY));
+        } else {
+            int ahead = cg.target(start.edge);
+            int behind = cg.source(start.edge);
+            search.reach(ahead, w.weight(start.edge) - start.at, START_FORWARD, -1,
+                    perMile * cg.lowerBound(ahead, endX, endY));
+            if (start.at < search.distance(behind)) {
+                search.reach(behind, start.at, START_BACKWARD, -1,
+                        perMile * cg.lowerBound(behind, endX, endY));
+            }
+        }
+
+        /* Start and end on the same chain can also be connected along it directly. */
+        Position along = alongChain(cg, w, start, end);
+        double best = along == null ? Double.POSITIVE_INFINITY : Math.abs(along.at - start.at);
+        boolean direct = along != null;
+        int bestCore = -1;
+
+        /* Likewise, an end inside a chain is left for from either end of it. */
+        int endEdge = end.edge;
+        boolean endAhead = false;
+        while (!search.isEmpty()) {
+            if (search.peekKey() >= best) {
+                break;
+            }
+            int c = search.poll();
+            if (c < 0) {
+                continue;
+            }
+            if (!budget.settle()) {
+                return null;
+            }
+            double distance = search.distance(c);
+
+            if (c == end.core) {
+                best = distance;
+                bestCore = c;
+                direct = false;
+            } else if (endEdge >= 0) {
+                if (c == cg.source(endEdge) && distance + end.at < best) {
+                    best = distance + end.at;
+                    bestCore = c;
+                    endAhead = true;
+                    direct = false;
+                }
+                double rest = w.weight(endEdge) - end.at;
+                if (c == cg.target(endEdge) && distance + rest < best) {
+                    best = distance + rest;
+                    bestCore = c;
+                    endAhead = false;
+                    direct = false;
+                }
+            }
+
+            for (int e = cg.firstEdge(c); e < cg.endEdge(c); e++) {
+                int t = cg.target(e);
+                double candidate = distance + w.weight(e);
+                if (candidate < search.distance(t)) {
+                    search.reach(t, candidate, e, c, perMile * cg.lowerBound(t, endX, endY));
+                }
+            }
+        }
 
-                    if (bestKnownDistance.get(vertex) == null || bestKnownDistance.get(vertex) > bestKnownDistance.get(currentId) + g.distance(currentId, vertex)) {
-                        bestKnownDistance.put(vertex, bestKnownDistance.get(currentId) + g.distance(currentId, vertex));
-                        parent.put(vertex, currentId);
-                        fringe.add(new Pair(vertex, bestKnownDistance.get(currentId) + g.distance(currentId, vertex) + g.distance(vertex, endNodeId)));
+        if (direct) {
+            return directPath(cg, start, along);
+        }
+        if (bestCore < 0) {
+            return null;
+        }
+
+        /* Collect the path backwards from the end, expanding every shortcut on the way. */
+        IntList reversed = new IntList();
+        addEnd(cg, reversed, end, endAhead);
+        int c = bestCore;
+        while (true) {
+            reversed.add(cg.vertex(c));
+            int e = search.parentEdge(c);
+            if (e == AT_START) {
+                break;
+            } else if (e == START_FORWARD) {
+                addStart(cg, reversed, start);
+                break;
+            } else if (e == START_BACKWARD) {
+                addStart(cg, reversed, start.reversed(cg, w));
+                break;
+            }
+            for (int i = cg.viaCount(e) - 1; i >= 0; i--) {
+                reversed.add(cg.via(e, i));
+            }
+            c = search.parentCore(c);
+        }
+        return reversed.reverse();
+    }
+
+    /**
+     * A* for customizations with turn costs. A turn's cost depends on the edge a vertex is
+     * arrived on, so the search is over shortcuts rather than core vertices: the state of
+     * a shortcut is having just driven it, and its successors are the shortcuts leaving
+     * its target, each at the cost of the turn onto it.
+     */
+    private static int[] turnAwarePath(GraphDB g, Position start, Position end,
+                                       ContractedGraph.Customization w, Budget budget,
+                                       double weight) {
+        ContractedGraph cg = g.contracted();
+        double endX = cg.x(end.lon);
+        double endY = cg.y(end.lat);
+        double perMile = w.costPerMile() * weight;
+        Search search = SEARCH.get();
+        search.reset(cg.numEdges());
+
+        /* From inside a chain, either way along it; turning around is not possible. */
+        Position startBack = null;
+        if (start.core >= 0) {
+            for (int e = cg.firstEdge(start.core); e < cg.endEdge(start.core); e++) {
+                search.reach(e, w.weight(e), AT_START, -1,
+                        perMile * cg.lowerBound(cg.target(e), endX, endY));
+            }
+        } else {
+            startBack = start.reversed(cg, w);
+            search.reach(start.edge, w.weight(start.edge) - start.at, START_FORWARD, -1,
+                    perMile * cg.lowerBound(cg.target(start.edge), endX, endY));
+            search.reach(startBack.edge, start.at, START_BACKWARD, -1,
+                    perMile * cg.lowerBound(cg.target(startBack.edge), endX, endY));
+        }
+
+        /* The best path found: it ends with the shortcut bestEdge, or at the start if that is
+        -1, followed by the part of the end's shortcut or its reverse up to it, per
+        endAhead. */
+        int endEdge = end.edge;
+        Position along = alongChain(cg, w, start, end);
+        double best = along == null ? Double.POSITIVE_INFINITY : Math.abs(along.at - start.at);
+        boolean direct = along != null;
+        int bestEdge = -1;
+        boolean endAhead = false;
+        if (start.core >= 0 && endEdge >= 0) {
+            /* The end lies on a chain leaving the start, maybe a ring through it. */
+            if (start.core == cg.source(endEdge)) {
+                best = end.at;
+                endAhead = true;
+            }
+            double rest = w.weight(endEdge) - end.at;
+            if (start.core == cg.target(endEdge) && rest < best) {
+                best = rest;
+                endAhead = false;
+            }
+        }
+
+        while (!search.isEmpty()) {
+            if (search.peekKey() >= best) {
+                break;
+            }
+            int e = search.poll();
+            if (e < 0) {
+                continue;
+            }
+            if (!budget.settle()) {
+                return null;
+            }
+            double distance = search.distance(e);
+            int c = cg.target(e);
+            int in = cg.backIndex(e);
+            int first = cg.firstEdge(c);
+
+            if (c == end.core) {
+                best = distance;
+                bestEdge = e;
+                direct = false;
+            } else if (endEdge >= 0) {
+                if (c == cg.source(endEdge)) {
+                    double candidate = distance + w.turnCost(c, in, endEdge - first) + end.at;
+                    if (candidate < best) {
+                        best = candidate;
+                        bestEdge = e;
+                        endAhead = true;
+                        direct = false;
+                    }
+                }
+                if (c == cg.target(endEdge)) {
+                    int back = cg.reverse(endEdge);
+                    double candidate = distance + w.turnCost(c, in, back - first)
+                            + w.weight(endEdge) - end.at;
+                    if (candidate < best) {
+                        best = candidate;
+                        bestEdge = e;
+                        endAhead = false;
+                        direct = false;
                     }
                 }
+            }
 
-                if (found)
-                    break;
+            for (int f = first; f < cg.endEdge(c); f++) {
+                double candidate = distance + w.turnCost(c, in, f - first) + w.weight(f);
+                if (candidate < search.distance(f)) {
+                    search.reach(f, candidate, e, -1,
+                            perMile * cg.lowerBound(cg.target(f), endX, endY));
+                }
             }
         }
 
-        shortestPath.add(endNodeId);
-        Long temp = parent.get(endNodeId);
+        if (direct) {
+            return directPath(cg, start, along);
+        }
+        if (Double.isInfinite(best)) {
+            return null;
+        }
 
-        while (temp != null) {
-            shortestPath.add(temp);
-            temp = parent.get(temp);
+        IntList reversed = new IntList();
+        addEnd(cg, reversed, end, endAhead);
+        int e = bestEdge;
+        if (e < 0) {
+            reversed.add(start.vertex);
         }
+        while (e >= 0) {
+            reversed.add(cg.vertex(cg.target(e)));
+            int parent = search.parentEdge(e);
+            if (parent == START_FORWARD) {
+                addStart(cg, reversed, start);
+            } else if (parent == START_BACKWARD) {
+                addStart(cg, reversed, startBack);
+            } else {
+                for (int i = cg.viaCount(e) - 1; i >= 0; i--) {
+                    reversed.add(cg.via(e, i));
+                }
+                if (parent == AT_START) {
+                    reversed.add(start.vertex);
+                }
+            }
+            e = parent;
+        }
+        return reversed.reverse();
+    }
 
-        Collections.reverse(shortestPath);
+    /**
+     * If end lies on the same chain as start, returns it as a position on start's
+     * shortcut, which is either end's shortcut or the one running the opposite way.
+     * @return The position, or null if either is at a core vertex or they are on
+     * different chains.
+     */
+    private static Position alongChain(ContractedGraph cg, ContractedGraph.Customization w,
+                                       Position start, Position end) {
+        if (start.edge < 0 || end.edge < 0) {
+            return null;
+        } else if (end.edge == start.edge) {
+            return end;
+        } else if (end.edge == cg.reverse(start.edge)) {
+            return end.reversed(cg, w);
+        }
+        return null;
+    }
 
-        return shortestPath;
+    /** The vertices from start straight along its chain to end, see alongChain. */
+    private static int[] directPath(ContractedGraph cg, Position start, Position end) {
+        IntList path = new IntList();
+        if (start.vertex >= 0) {
+            path.add(start.vertex);
+        }
+        if (end.ahead > start.ahead || end.ahead == start.ahead && end.at >= start.at) {
+            for (int i = start.ahead; i < end.behind; i++) {
+                path.add(cg.via(start.edge, i));
+            }
+        } else {
+            for (int i = start.behind - 1; i >= end.ahead; i--) {
+                path.add(cg.via(start.edge, i));
+            }
+        }
+        if (end.vertex >= 0) {
+            path.add(end.vertex);
+        }
+        return path.toArray();
+    }
+
+    /**
+     * Adds the vertices from the target of start's shortcut back to start, but not the
+     * target itself, to a path being collected backwards.
+     */
+    private static void addStart(ContractedGraph cg, IntList reversed, Position start) {
+        for (int i = cg.viaCount(start.edge) - 1; i >= start.ahead; i--) {
+            reversed.add(cg.via(start.edge, i));
+        }
+        if (start.vertex >= 0) {
+            reversed.add(start.vertex);
+        }
+    }
+
+    /**
+     * Adds the vertices from end back to the core vertex it was reached from, but not that
+     * vertex itself, to a path being collected backwards: from the start of end's shortcut
+     * if ahead, else from its target.
+     */
+    private static void addEnd(ContractedGraph cg, IntList reversed, Position end,
+                               boolean ahead) {
+        if (end.edge < 0) {
+            return;
+        }
+        if (end.vertex >= 0) {
+            reversed.add(end.vertex);
+        }
+        if (ahead) {
+            for (int i = end.behind - 1; i >= 0; i--) {
+                reversed.add(cg.via(end.edge, i));
+            }
+        } else {
+            for (int i = end.ahead; i < cg.viaCount(end.edge); i++) {
+                reversed.add(cg.via(end.edge, i));
+            }
+        }
     }
 
     /**
-     * Create the list of directions corresponding to a route on the graph.
+     * Create the list of directions corresponding to a route on the graph, in one pass
+     * over the edges along it. Each edge's length counts toward the direction on the
+     * edge's way; a new direction starts where the way changes, turning by the angle
+     * between the edge arrived on and the edge left on. A direction covering no distance
+     * is left out, and the directions on either side of it merged if on the same way.
+     * Unnamed ways go by the empty string, as in directions_results.txt.
      * @param g The graph to use.
      * @param route The route to translate into directions. Each element
      *              corresponds to a node from the graph in the route.
@@ -106,89 +651,393 @@ public class Router {
      * route.
      */
     public static List<NavigationDirection> routeDirections(GraphDB g, List<Long> route) {
-
-        ArrayList<NavigationDirection> routeDirections = new ArrayList<>();
-
+        List<NavigationDirection> directions = new ArrayList<>();
+        if (route.isEmpty()) {
+            return directions;
+        }
+        GraphDB.EdgeIterator it = g.edges();
         NavigationDirection dir = new NavigationDirection();
-        dir.direction = 0;
-        dir.distance = 0;
-        dir.way = g.wayName(route.get(0));
+        dir.direction = NavigationDirection.START;
+        dir.way = route.size() > 1 ? null : g.wayName(route.get(0));
+        double heading = Double.NaN;
+        int previous = g.vertexOf(route.get(0));
+        for (int i = 1; i < route.size(); i++) {
+            int current = g.vertexOf(route.get(i));
+            int edge = previous >= 0 && current >= 0 ? edge(g, it, previous, current, dir.way)
+                    : -1;
+            /* Steps between vertices that are not adjacent are taken from coordinates. */
+            String way = edge >= 0 ? g.edgeWayName(edge) : g.wayName(route.get(i));
+            double bearing = edge >= 0 ? g.edgeBearing(edge)
+                    : g.bearing(route.get(i - 1), route.get(i));
+            double length = edge >= 0 ? g.edgeWeight(edge)
+                    : g.distance(route.get(i - 1), route.get(i));
 
+            if (dir.way == null) {
+                dir.way = way;
+            } else if (!way.equals(dir.way)) {
+                append(directions, dir);
+                dir = new NavigationDirection();
+                dir.way = way;
+                dir.direction = NavigationDirection.classify(turn(heading, bearing));
+            }
+            dir.distance += length;
+            heading = bearing;
+            previous = current;
+        }
+        append(directions, dir);
+        return directions;
+    }
 
-        int counter = 0;
+    /**
+     * The edge from vertex v to vertex w; of parallel edges, the one on way if any is.
+     * @return The edge, or -1 if v and w are not adjacent.
+     */
+    private static int edge(GraphDB g, GraphDB.EdgeIterator it, int v, int w, String way) {
+        int found = -1;
+        for (it.reset(v); it.next();) {
+            if (it.target() != w) {
+                continue;
+            }
+            if (g.edgeWayName(it.edge()).equals(way)) {
+                return it.edge();
+            }
+            found = found < 0 ? it.edge() : found;
+        }
+        return found;
+    }
 
-        for (int i = 1; i < route.size(); i++) {
-            double relativeBearing = g.bearing(route.get(i-1), route.get(i));
-            String currentWay = g.wayName(route.get(i));
+    /**
+     * The angle of a turn from one bearing onto another, in degrees between -180 and 180,
+     * negative to the left; 0 if there is no bearing to turn from.
+     */
+    static double turn(double from, double to) {
+        if (Double.isNaN(from)) {
+            return 0;
+        }
+        double turn = (to - from) % 360;
+        if (turn > 180) {
+            turn -= 360;
+        } else if (turn < -180) {
+            turn += 360;
+        }
+        return turn;
+    }
+
+    /**
+     * Appends a finished direction, merging it into the last one if on the same way and
+     * dropping it if it covers no distance, unless it is the only one.
+     */
+    private static void append(List<NavigationDirection> directions, NavigationDirection dir) {
+        if (directions.isEmpty()) {
+            directions.add(dir);
+            return;
+        }
+        if (dir.distance == 0) {
+            return;
+        }
+        NavigationDirection last = directions.get(directions.size() - 1);
+        if (last.way.equals(dir.way)) {
+            last.distance += dir.distance;
+        } else {
+            directions.add(dir);
+        }
+    }
 
-            if ( ! currentWay.equals(dir.way) ) {
 
-                if (dir.distance != 0)
-                    routeDirections.add(dir);
+    /**
+     * The state of one search over a contracted graph: tentative distances and parents of
+     * the core vertices, or of the shortcuts when searching with turn costs, and the fringe
+     * as a binary heap. Entries of earlier searches are
+     * recognized by their stamp, so starting a search does not clear the arrays.
+     */
+    private static class Search {
+        private int stamp;
+        private int[] stamps = new int[0];
+        private double[] distances = new double[0];
+        private int[] parentEdges = new int[0];
+        private int[] parentCores = new int[0];
 
-                dir = new NavigationDirection();
-                dir.way = g.wayName(route.get(i));
-                dir.distance = 0;
+        /* The fringe; a vertex may be in it several times, with outdated keys. */
+        private int size;
+        private double[] keys = new double[64];
+        private int[] items = new int[64];
+        private double[] itemDistances = new double[64];
 
-                if (relativeBearing >= -15 && relativeBearing <= 15)
-                    dir.direction = 1;
-                else if (relativeBearing < -15 && relativeBearing >= -30)
-                    dir.direction = 2;
-                else if (relativeBearing > 15 && relativeBearing <= 30)
-                    dir.direction = 3;
-                else if (relativeBearing < -30 && relativeBearing >= -100)
-                    dir.direction = 5;
-                else if (relativeBearing > 30 && relativeBearing <= 100)
-                    dir.direction = 4;
-                else if (relativeBearing < -100)
-                    dir.direction = 6;
-                else if (relativeBearing > 100)
-                    dir.direction = 7;
+        void reset(int numCore) {
+            if (stamps.length < numCore) {
+                stamps = new int[numCore];
+                distances = new double[numCore];
+                parentEdges = new int[numCore];
+                parentCores = new int[numCore];
+                stamp = 0;
             }
-            else {
-                dir.distance += g.distance(route.get(i), route.get(i-1));
+            stamp++;
+            if (stamp == 0) {
+                Arrays.fill(stamps, 0);
+                stamp = 1;
             }
+            size = 0;
         }
 
-        routeDirections.add(dir);
-        ArrayList<NavigationDirection> routeDirectionsCleaned = new ArrayList<>();
+        double distance(int c) {
+            return stamps[c] == stamp ? distances[c] : Double.POSITIVE_INFINITY;
+        }
 
-        for (int i = 0; i < routeDirections.size();) {
-            String currentName = routeDirections.get(i).way;
-            int j = i + 1;
-            while ( j < routeDirections.size() && routeDirections.get(j).way.equals(currentName)) {
-                routeDirections.get(i).distance += routeDirections.get(j).distance;
-                j++;
+        int parentEdge(int c) {
+            return parentEdges[c];
+        }
+
+        int parentCore(int c) {
+            return parentCores[c];
+        }
+
+        /** Records a shorter distance to c and adds c to the fringe. */
+        void reach(int c, double distance, int parentEdge, int parentCore, double heuristic) {
+            stamps[c] = stamp;
+            distances[c] = distance;
+            parentEdges[c] = parentEdge;
+            parentCores[c] = parentCore;
+            push(distance + heuristic, c, distance);
+        }
+
+        boolean isEmpty() {
+            return size == 0;
+        }
+
+        double peekKey() {
+            return keys[0];
+        }
+
+        /** Removes the smallest entry of the fringe; returns its vertex, or -1 if outdated. */
+        int poll() {
+            int c = items[0];
+            boolean current = itemDistances[0] == distances[c];
+            size--;
+            double key = keys[size];
+            int item = items[size];
+            double itemDistance = itemDistances[size];
+            int i = 0;
+            while (true) {
+                int child = 2 * i + 1;
+                if (child >= size) {
+                    break;
+                }
+                if (child + 1 < size && keys[child + 1] < keys[child]) {
+                    child++;
+                }
+                if (keys[child] >= key) {
+                    break;
+                }
+                keys[i] = keys[child];
+                items[i] = items[child];
+                itemDistances[i] = itemDistances[child];
+                i = child;
             }
-            routeDirectionsCleaned.add(routeDirections.get(i));
-            i = j;
+            keys[i] = key;
+            items[i] = item;
+            itemDistances[i] = itemDistance;
+            return current ? c : -1;
         }
 
-        return routeDirectionsCleaned;
+        private void push(double key, int item, double itemDistance) {
+            if (size == keys.length) {
+                keys = Arrays.copyOf(keys, size * 2);
+                items = Arrays.copyOf(items, size * 2);
+                itemDistances = Arrays.copyOf(itemDistances, size * 2);
+            }
+            int i = size++;
+            while (i > 0) {
+                int parent = (i - 1) / 2;
+                if (keys[parent] <= key) {
+                    break;
+                }
+                keys[i] = keys[parent];
+                items[i] = items[parent];
+                itemDistances[i] = itemDistances[parent];
+                i = parent;
+            }
+            keys[i] = key;
+            items[i] = item;
+            itemDistances[i] = itemDistance;
+        }
     }
 
+    /**
+     * Limits on the work of one search, so that no request can search the whole graph:
+     * the most vertices it may settle, and the time it may take, counted from when the
+     * budget is made. A search that runs out of either gives up, unless the budget has a
+     * fallback weight above 1; it then searches again with its lower bounds multiplied by
+     * that weight, for a path costing at most that many times the cheapest, as far as the
+     * same number of vertices and the time left allow. A budget is for one search, and
+     * records how it went.
+     */
+    static class Budget {
+        /** Vertices settled between looks at the clock. */
+        private static final int CLOCK_INTERVAL = 256;
+
+        final int maxSettled;
+        final long timeoutNanos;
+        final double fallbackWeight;
+        private final long started = System.nanoTime();
+        private int settled;
+        private boolean exhausted;
+        private Outcome outcome = Outcome.COMPLETE;
+
+        /**
+         * @param maxSettled The most vertices a search may settle.
+         * @param timeoutMillis The most milliseconds the search may take.
+         * @param fallbackWeight The weight to search again with if the budget runs out;
+         *                       1 or less to give up instead.
+         */
+        Budget(int maxSettled, long timeoutMillis, double fallbackWeight) {
+            this.maxSettled = maxSettled;
+            this.timeoutNanos = TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+            this.fallbackWeight = fallbackWeight;
+        }
+
+        /** A budget that never runs out. */
+        static Budget unlimited() {
+            return new Budget(Integer.MAX_VALUE, Long.MAX_VALUE, 1);
+        }
+
+        /** How the search went; COMPLETE until it has run. */
+        Outcome outcome() {
+            return outcome;
+        }
+
+        /** Number of vertices settled by the last search, fallback or not. */
+        int settled() {
+            return settled;
+        }
+
+        /** Counts one settled vertex; false once the budget has run out. */
+        private boolean settle() {
+            settled++;
+            if (settled > maxSettled || settled % CLOCK_INTERVAL == 0
+                    && System.nanoTime() - started > timeoutNanos) {
+                exhausted = true;
+            }
+            return !exhausted;
+        }
+
+        private boolean exhausted() {
+            return exhausted;
+        }
+
+        /** Gives the fallback search the same number of vertices, and what time is left. */
+        private void restart() {
+            settled = 0;
+            exhausted = false;
+        }
+    }
 
     /**
-     * Class to represent a pair associating an id with a priority for
-     * the fringe.
+     * Where a search starts or ends: core vertex core of the contracted graph, or else a
+     * point on shortcut edge, at cost at from its start. The shortcut passes through
+     * via(edge, 0) until via(edge, behind) before the point, and via(edge, ahead) until
+     * via(edge, viaCount(edge)) after it. A point at a vertex is that vertex, with ahead
+     * equal to behind + 1; a point between two vertices, such as one snapped onto a road,
+     * has ahead equal to behind and vertex -1.
      */
-    private static class Pair {
-        Long id;
-        Double priority;
+    private static class Position {
+        final int core;
+        final int edge;
+        final double at;
+        final int behind;
+        final int ahead;
+        final int vertex;
+        /** Where the point is, for the A* heuristic. */
+        final double lon;
+        final double lat;
+
+        private Position(int core, int edge, double at, int behind, int ahead, int vertex,
+                         double lon, double lat) {
+            this.core = core;
+            this.edge = edge;
+            this.at = at;
+            this.behind = behind;
+            this.ahead = ahead;
+            this.vertex = vertex;
+            this.lon = lon;
+            this.lat = lat;
+        }
+
+        /** The position of vertex v. */
+        static Position at(GraphDB g, ContractedGraph.Customization w, int v) {
+            ContractedGraph cg = g.contracted();
+            int c = cg.coreOf(v);
+            if (c >= 0) {
+                return new Position(c, -1, 0, 0, 0, v, g.lonAt(v), g.latAt(v));
+            }
+            int e = cg.edgeThrough(v);
+            int p = cg.positionIn(v);
+            return new Position(-1, e, w.viaCost(e, p), p, p + 1, v, g.lonAt(v), g.latAt(v));
+        }
+
+        /** The position of a point on a road; its cost is in proportion to its fraction. */
+        static Position on(GraphDB g, ContractedGraph.Customization w, SegmentIndex.Snap s) {
+            if (s.fraction <= 0) {
+                return at(g, w, s.source);
+            } else if (s.fraction >= 1) {
+                return at(g, w, s.target);
+            }
+            /* Find the shortcut the snapped edge is part of, and the edge's index on it. */
+            ContractedGraph cg = g.contracted();
+            int c = cg.coreOf(s.source);
+            int e;
+            int k;
+            if (c >= 0) {
+                e = cg.firstEdge(c) + s.edge - g.firstEdge(s.source);
+                k = 0;
+            } else {
+                e = cg.edgeThrough(s.source);
+                int p = cg.positionIn(s.source);
+                int count = cg.viaCount(e);
+                int next = p + 1 < count ? cg.via(e, p + 1) : cg.vertex(cg.target(e));
+                if (next == s.target) {
+                    k = p + 1;
+                } else {
+                    e = cg.reverse(e);
+                    k = count - p;
+                }
+            }
+            double from = k == 0 ? 0 : w.viaCost(e, k - 1);
+            double to = k == cg.viaCount(e) ? w.weight(e) : w.viaCost(e, k);
+            return new Position(-1, e, from + s.fraction * (to - from), k, k, -1, s.lon, s.lat);
+        }
 
-        Pair (Long id, Double priority) {
-            this.id = id;
-            this.priority = priority;
+        /** The same point, on the shortcut running the opposite way. */
+        Position reversed(ContractedGraph cg, ContractedGraph.Customization w) {
+            int count = cg.viaCount(edge);
+            return new Position(-1, cg.reverse(edge), w.weight(edge) - at, count - ahead,
+                    count - behind, vertex, lon, lat);
         }
     }
 
-    private static class PairComparator implements Comparator<Pair> {
-        public int compare(Pair p1, Pair p2) {
-            if (p1.priority > p2.priority)
-                return 1;
-            else if (p1.priority < p2.priority)
-                return -1;
-            return 0;
+    /** A growable list of ints. */
+    private static class IntList {
+        private int[] values = new int[64];
+        private int size;
+
+        void add(int value) {
+            if (size == values.length) {
+                values = Arrays.copyOf(values, size * 2);
+            }
+            values[size++] = value;
+        }
+
+        /** The values in order of addition. */
+        int[] toArray() {
+            return Arrays.copyOf(values, size);
+        }
+
+        /** The values in reverse order of addition. */
+        int[] reverse() {
+            int[] result = new int[size];
+            for (int i = 0; i < size; i++) {
+                result[i] = values[size - 1 - i];
+            }
+            return result;
         }
     }
 
@@ -245,6 +1094,30 @@ public class Router {
             this.distance = 0.0;
         }
 
+        /**
+         * The direction of a turn by the given angle.
+         * @param relativeBearing The angle in degrees, negative to the left.
+         * @return The direction, STRAIGHT if the angle is not a number.
+         */
+        static int classify(double relativeBearing) {
+            if (relativeBearing >= -15 && relativeBearing <= 15) {
+                return STRAIGHT;
+            } else if (relativeBearing < -15 && relativeBearing >= -30) {
+                return SLIGHT_LEFT;
+            } else if (relativeBearing > 15 && relativeBearing <= 30) {
+                return SLIGHT_RIGHT;
+            } else if (relativeBearing < -30 && relativeBearing >= -100) {
+                return LEFT;
+            } else if (relativeBearing > 30 && relativeBearing <= 100) {
+                return RIGHT;
+            } else if (relativeBearing < -100) {
+                return SHARP_LEFT;
+            } else if (relativeBearing > 100) {
+                return SHARP_RIGHT;
+            }
+            return STRAIGHT;
+        }
+
         public String toString() {
             return String.format("%s on %s and continue for %.3f miles.",
                     DIRECTIONS[direction], way, distance);
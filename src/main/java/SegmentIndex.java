@@ -0,0 +1,793 @@
+import java.awt.geom.Rectangle2D;
+import java.util.Arrays;
+import java.util.function.IntBinaryOperator;
+import java.util.function.IntPredicate;
+import java.util.function.IntToDoubleFunction;
+
+/**
+ * A spatial index over the road segments of a graph, i.e. its edges with each pair of
+ * opposite edges counted once. It answers which vertex, or which point on which segment,
+ * is nearest to a location, in time logarithmic in the size of the graph rather than
+ * linear as a scan over every vertex takes. The same index over a set of points, see
+ * ofPoints, finds the nearest point, e.g. of the named locations.
+ *
+ * The index is a packed R-tree: the segments are sorted along a Hilbert curve by their
+ * midpoints and grouped NODE_SIZE at a time into leaves, which are grouped NODE_SIZE at a
+ * time into the nodes of the next level, up to a single root. Each node stores the
+ * bounding box of what is below it; queries visit nodes in order of the distance to their
+ * boxes and stop once no box can hold anything nearer than what was found. An index is
+ * read-only once built, so any number of threads can query it; patch builds the index of
+ * a changed graph from it without sorting everything again, which leaves some leaves
+ * fuller than others.
+ */
+public class SegmentIndex {
+
+    /** Entries per node of the tree, and the most a leaf may hold. */
+    private static final int NODE_SIZE = 16;
+    /**
+     * Once more than 1 in OUTSIDE_LIMIT segments of a patched index reach outside the box
+     * its curve was laid over, where the curve no longer tells them apart, they are
+     * sorted again along a curve over a new box.
+     */
+    private static final int OUTSIDE_LIMIT = 64;
+    /** Miles per degree of a great circle, on the earth GraphDB.distance assumes. */
+    private static final double MILES_PER_DEGREE = 3963 * Math.PI / 180;
+
+    /** Coordinates of the points the segments run between, e.g. of graph vertices. */
+    private final IntToDoubleFunction lonOf;
+    private final IntToDoubleFunction latOf;
+    /** Start point, end point and edge of each segment, in Hilbert order. */
+    private final Columns.Ints sources;
+    private final Columns.Ints targets;
+    private final Columns.Ints edges;
+    /** The box the curve is laid over, as its minimum and maximum longitude and latitude. */
+    private final double[] frame;
+    /** The number of segments with an end outside frame. */
+    private final int outside;
+
+    /**
+     * Bounding boxes of the nodes of all levels, leaves first: the nodes of level l are
+     * levelOffsets[l] until levelOffsets[l + 1], and node levelOffsets[l] + i covers the
+     * nodes levelOffsets[l - 1] + i * NODE_SIZE on, or for leaves the segments
+     * leafOffsets[i] until leafOffsets[i + 1].
+     */
+    private final int[] levelOffsets;
+    private final Columns.Ints leafOffsets;
+    private final Columns.Doubles minLons;
+    private final Columns.Doubles maxLons;
+    private final Columns.Doubles minLats;
+    private final Columns.Doubles maxLats;
+
+    /**
+     * Indexes the segments of g. The edges of g are numbered in the order its vertices
+     * list their neighbors in, as GraphDB numbers them.
+     * @param g The graph to index. It is kept to read coordinates from.
+     * @param columns Where to keep the tree.
+     */
+    SegmentIndex(GraphStorage g, Columns columns) {
+        this(g::lon, g::lat, g.numVertices(), segments(g), columns);
+    }
+
+    /**
+     * Indexes a set of points, as segments of length zero from each point to itself, so
+     * nearestVertex finds the nearest point.
+     * @param count The number of points; they are numbered 0 until count.
+     * @param lonOf The longitude of each point. It is kept to read coordinates from.
+     * @param latOf The latitude of each point.
+     * @param columns Where to keep the tree.
+     * @return The index.
+     */
+    static SegmentIndex ofPoints(int count, IntToDoubleFunction lonOf,
+                                 IntToDoubleFunction latOf, Columns columns) {
+        int[] points = new int[count];
+        Arrays.setAll(points, i -> i);
+        return new SegmentIndex(lonOf, latOf, count, new int[][] {points, points, points},
+                columns);
+    }
+
+    /**
+     * The segments of g, as its sources, targets and edges. Of the two edges between a
+     * pair of vertices, the one from the lower vertex is kept; a loop from a vertex to
+     * itself is a segment of length zero.
+     */
+    private static int[][] segments(GraphStorage g) {
+        int n = g.numVertices();
+        int[] neighbors = new int[g.maxDegree()];
+        int count = 0;
+        for (int v = 0; v < n; v++) {
+            for (int i = g.neighbors(v, neighbors) - 1; i >= 0; i--) {
+                if (v <= neighbors[i]) {
+                    count++;
+                }
+            }
+        }
+        int[] sources = new int[count];
+        int[] targets = new int[count];
+        int[] edges = new int[count];
+        int s = 0;
+        int edge = 0;
+        for (int v = 0; v < n; v++) {
+            int degree = g.neighbors(v, neighbors);
+            for (int i = 0; i < degree; i++, edge++) {
+                if (v <= neighbors[i]) {
+                    sources[s] = v;
+                    targets[s] = neighbors[i];
+                    edges[s++] = edge;
+                }
+            }
+        }
+        return new int[][] {sources, targets, edges};
+    }
+
+    /**
+     * Indexes segments between points.
+     * @param numPoints The number of points; they are numbered 0 until numPoints.
+     * @param segments The start points, end points and edges of the segments.
+     */
+    private SegmentIndex(IntToDoubleFunction lonOf, IntToDoubleFunction latOf, int numPoints,
+                         int[][] segments, Columns columns) {
+        this(lonOf, latOf, Leaves.packed(lonOf, latOf, numPoints, segments), columns);
+    }
+
+    /** Builds the levels above leaves and keeps everything in columns. */
+    private SegmentIndex(IntToDoubleFunction lonOf, IntToDoubleFunction latOf, Leaves leaves,
+                         Columns columns) {
+        this.lonOf = lonOf;
+        this.latOf = latOf;
+        frame = leaves.frame;
+        outside = leaves.outside;
+
+        int numLevels = 1;
+        int numNodes = leaves.count;
+        int size = leaves.count;
+        while (size > 1) {
+            size = (size + NODE_SIZE - 1) / NODE_SIZE;
+            numNodes += size;
+            numLevels++;
+        }
+        levelOffsets = new int[numLevels + 1];
+        levelOffsets[1] = leaves.count;
+        double[][] boxes = new double[4][];
+        for (int k = 0; k < 4; k++) {
+            boxes[k] = Arrays.copyOf(leaves.boxes[k], numNodes);
+        }
+        for (int level = 1; level < numLevels; level++) {
+            int entries = levelOffsets[level] - levelOffsets[level - 1];
+            size = (entries + NODE_SIZE - 1) / NODE_SIZE;
+            levelOffsets[level + 1] = levelOffsets[level] + size;
+            for (int node = 0; node < size; node++) {
+                int at = levelOffsets[level] + node;
+                clear(boxes, at);
+                int end = Math.min(entries, (node + 1) * NODE_SIZE);
+                for (int i = node * NODE_SIZE; i < end; i++) {
+                    int child = levelOffsets[level - 1] + i;
+                    include(boxes, at, boxes[0][child], boxes[2][child]);
+                    include(boxes, at, boxes[1][child], boxes[3][child]);
+                }
+            }
+        }
+        sources = columns.ints(leaves.sources);
+        targets = columns.ints(leaves.targets);
+        edges = columns.ints(leaves.edges);
+        leafOffsets = columns.ints(Arrays.copyOf(leaves.offsets, leaves.count + 1));
+        minLons = columns.doubles(boxes[0]);
+        maxLons = columns.doubles(boxes[1]);
+        minLats = columns.doubles(boxes[2]);
+        maxLats = columns.doubles(boxes[3]);
+    }
+
+    /** The same tree as index, over points now read from lonOf and latOf. */
+    private SegmentIndex(SegmentIndex index, IntToDoubleFunction lonOf,
+                         IntToDoubleFunction latOf) {
+        this.lonOf = lonOf;
+        this.latOf = latOf;
+        sources = index.sources;
+        targets = index.targets;
+        edges = index.edges;
+        frame = index.frame;
+        outside = index.outside;
+        levelOffsets = index.levelOffsets;
+        leafOffsets = index.leafOffsets;
+        minLons = index.minLons;
+        maxLons = index.maxLons;
+        minLats = index.minLats;
+        maxLats = index.maxLats;
+    }
+
+    /**
+     * This index after a change to its points and segments, e.g. to the graph it indexes,
+     * built without sorting the segments again. Segments the change leaves alone keep
+     * their order, and each new one joins the leaf whose stretch of the curve holds its
+     * midpoint; only leaves that change get their boxes computed again, and those that
+     * grow past NODE_SIZE are split. The levels above the leaves are built anew. This
+     * index is not modified and can go on answering queries.
+     * @param lonOf The longitude of each point after the change. It is kept to read
+     *              coordinates from.
+     * @param latOf The latitude of each point after the change.
+     * @param numPoints The number of points after the change.
+     * @param newOf The number after the change of each point of this index, or -1 for
+     *              points that are gone.
+     * @param edgeOf Given the start point and edge of a segment of this index, its edge
+     *               after the change, or -1 if the segment is gone or either end moved.
+     * @param added The segments the change adds or moves, as their start points, end
+     *              points and edges after it.
+     * @param columns Where to keep the tree.
+     * @return The index after the change.
+     */
+    SegmentIndex patch(IntToDoubleFunction lonOf, IntToDoubleFunction latOf, int numPoints,
+                       int[] newOf, IntBinaryOperator edgeOf, int[][] added, Columns columns) {
+        int numLeaves = leafOffsets.length() - 1;
+        if (numLeaves == 0) {
+            return new SegmentIndex(lonOf, latOf, numPoints, added, columns);
+        }
+        /* Each added segment joins the last leaf starting at or before it on the curve. */
+        int numAdded = added[0].length;
+        long[] keys = new long[numAdded];
+        for (int j = 0; j < numAdded; j++) {
+            keys[j] = HilbertCurve.pack(position(frame, lonOf, latOf, added[0][j],
+                    added[1][j]), j);
+        }
+        Arrays.sort(keys);
+        long[] positions = new long[numAdded];
+        int[] joins = new int[numAdded];
+        for (int j = 0; j < numAdded; j++) {
+            int a = (int) keys[j];
+            positions[j] = position(frame, lonOf, latOf, added[0][a], added[1][a]);
+            int low = j > 0 ? joins[j - 1] : 0;
+            int high = numLeaves - 1;
+            while (low < high) {
+                int mid = (low + high + 1) >>> 1;
+                int first = leafOffsets.get(mid);
+                if (position(frame, this.lonOf, this.latOf, sources.get(first),
+                        targets.get(first)) <= positions[j]) {
+                    low = mid;
+                } else {
+                    high = mid - 1;
+                }
+            }
+            joins[j] = low;
+        }
+
+        /* Splitting a leaf adds at most one more leaf per segment added to it. */
+        Leaves leaves = new Leaves(frame, size() + numAdded, numLeaves + numAdded);
+        leaves.outside = outside;
+        boolean same = numAdded == 0;
+        int n = 0;
+        int j = 0;
+        for (int leaf = 0; leaf < numLeaves; leaf++) {
+            int start = n;
+            boolean changed = false;
+            for (int i = leafOffsets.get(leaf); i < leafOffsets.get(leaf + 1); i++) {
+                int v = sources.get(i);
+                int w = targets.get(i);
+                int edge = edgeOf.applyAsInt(v, edges.get(i));
+                if (edge < 0 || newOf[v] < 0 || newOf[w] < 0) {
+                    changed = true;
+                    same = false;
+                    leaves.outside -= outside(frame, this.lonOf, this.latOf, v, w) ? 1 : 0;
+                    continue;
+                }
+                same &= newOf[v] == v && newOf[w] == w && edge == edges.get(i);
+                leaves.set(n++, newOf[v], newOf[w], edge);
+            }
+            if (j < numAdded && joins[j] == leaf) {
+                /* Merge the segments joining the leaf in among those it keeps. */
+                changed = true;
+                int[][] kept = {Arrays.copyOfRange(leaves.sources, start, n),
+                        Arrays.copyOfRange(leaves.targets, start, n),
+                        Arrays.copyOfRange(leaves.edges, start, n)};
+                n = start;
+                int k = 0;
+                while (k < kept[0].length || j < numAdded && joins[j] == leaf) {
+                    if (k == kept[0].length || j < numAdded && joins[j] == leaf
+                            && position(frame, lonOf, latOf, kept[0][k], kept[1][k])
+                            > positions[j]) {
+                        int a = (int) keys[j++];
+                        leaves.set(n++, added[0][a], added[1][a], added[2][a]);
+                        leaves.outside += outside(frame, lonOf, latOf, added[0][a],
+                                added[1][a]) ? 1 : 0;
+                    } else {
+                        leaves.set(n++, kept[0][k], kept[1][k], kept[2][k]);
+                        k++;
+                    }
+                }
+            }
+            if (!changed) {
+                leaves.add(start, minLons.get(leaf), maxLons.get(leaf), minLats.get(leaf),
+                        maxLats.get(leaf));
+                continue;
+            }
+            int parts = (n - start + NODE_SIZE - 1) / NODE_SIZE;
+            for (int p = 0; p < parts; p++) {
+                leaves.add(start + (n - start) * p / parts);
+            }
+        }
+        if (same) {
+            return new SegmentIndex(this, lonOf, latOf);
+        }
+        leaves.finish(n, lonOf, latOf);
+        if ((long) leaves.outside * OUTSIDE_LIMIT > n) {
+            return new SegmentIndex(lonOf, latOf, numPoints,
+                    new int[][] {leaves.sources, leaves.targets, leaves.edges}, columns);
+        }
+        return new SegmentIndex(lonOf, latOf, leaves, columns);
+    }
+
+    /** The position on the curve over frame of the midpoint of the segment from v to w. */
+    private static long position(double[] frame, IntToDoubleFunction lonOf,
+                                 IntToDoubleFunction latOf, int v, int w) {
+        return HilbertCurve.index(
+                HilbertCurve.cell((lonOf.applyAsDouble(v) + lonOf.applyAsDouble(w)) / 2,
+                        frame[0], frame[1]),
+                HilbertCurve.cell((latOf.applyAsDouble(v) + latOf.applyAsDouble(w)) / 2,
+                        frame[2], frame[3]));
+    }
+
+    /** Whether the segment from v to w reaches outside frame. */
+    private static boolean outside(double[] frame, IntToDoubleFunction lonOf,
+                                   IntToDoubleFunction latOf, int v, int w) {
+        for (int p : new int[] {v, w}) {
+            double lon = lonOf.applyAsDouble(p);
+            double lat = latOf.applyAsDouble(p);
+            if (lon < frame[0] || lon > frame[1] || lat < frame[2] || lat > frame[3]) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * The segments of an index in order, cut into leaves with their boxes, before the
+     * levels above the leaves are built.
+     */
+    private static class Leaves {
+        final double[] frame;
+        int outside;
+        int[] sources;
+        int[] targets;
+        int[] edges;
+        /** Leaf i holds the segments offsets[i] until offsets[i + 1]. */
+        final int[] offsets;
+        /** The minLons, maxLons, minLats and maxLats of the leaves. */
+        final double[][] boxes;
+        int count;
+
+        Leaves(double[] frame, int numSegments, int numLeaves) {
+            this.frame = frame;
+            sources = new int[numSegments];
+            targets = new int[numSegments];
+            edges = new int[numSegments];
+            offsets = new int[numLeaves + 1];
+            boxes = new double[4][numLeaves];
+        }
+
+        /**
+         * Sorts segments along a curve over the bounding box of numPoints points and cuts
+         * them into leaves of NODE_SIZE.
+         */
+        static Leaves packed(IntToDoubleFunction lonOf, IntToDoubleFunction latOf,
+                             int numPoints, int[][] segments) {
+            double[] frame = {Double.POSITIVE_INFINITY, Double.NEGATIVE_INFINITY,
+                    Double.POSITIVE_INFINITY, Double.NEGATIVE_INFINITY};
+            for (int v = 0; v < numPoints; v++) {
+                frame[0] = Math.min(frame[0], lonOf.applyAsDouble(v));
+                frame[1] = Math.max(frame[1], lonOf.applyAsDouble(v));
+                frame[2] = Math.min(frame[2], latOf.applyAsDouble(v));
+                frame[3] = Math.max(frame[3], latOf.applyAsDouble(v));
+            }
+            int count = segments[0].length;
+            Leaves leaves = new Leaves(frame, count, (count + NODE_SIZE - 1) / NODE_SIZE);
+
+            /* Sort (curve position, segment) pairs packed into longs, as GraphDB does for
+            vertices. */
+            long[] keys = new long[count];
+            for (int s = 0; s < count; s++) {
+                keys[s] = HilbertCurve.pack(position(frame, lonOf, latOf, segments[0][s],
+                        segments[1][s]), s);
+            }
+            Arrays.parallelSort(keys);
+            for (int i = 0; i < count; i++) {
+                int from = (int) keys[i];
+                leaves.set(i, segments[0][from], segments[1][from], segments[2][from]);
+            }
+            for (int i = 0; i < count; i += NODE_SIZE) {
+                leaves.add(i);
+            }
+            leaves.finish(count, lonOf, latOf);
+            return leaves;
+        }
+
+        void set(int i, int source, int target, int edge) {
+            sources[i] = source;
+            targets[i] = target;
+            edges[i] = edge;
+        }
+
+        /** Starts a leaf at segment first with the given box. */
+        void add(int first, double minLon, double maxLon, double minLat, double maxLat) {
+            offsets[count] = first;
+            boxes[0][count] = minLon;
+            boxes[1][count] = maxLon;
+            boxes[2][count] = minLat;
+            boxes[3][count] = maxLat;
+            count++;
+        }
+
+        /** Starts a leaf at segment first, whose box finish computes. */
+        void add(int first) {
+            add(first, Double.NaN, Double.NaN, Double.NaN, Double.NaN);
+        }
+
+        /**
+         * Ends the last leaf at segment end, drops the segments after it and computes the
+         * boxes add left open.
+         */
+        void finish(int end, IntToDoubleFunction lonOf, IntToDoubleFunction latOf) {
+            offsets[count] = end;
+            sources = Arrays.copyOf(sources, end);
+            targets = Arrays.copyOf(targets, end);
+            edges = Arrays.copyOf(edges, end);
+            for (int leaf = 0; leaf < count; leaf++) {
+                if (!Double.isNaN(boxes[0][leaf])) {
+                    continue;
+                }
+                clear(boxes, leaf);
+                for (int i = offsets[leaf]; i < offsets[leaf + 1]; i++) {
+                    include(boxes, leaf, lonOf.applyAsDouble(sources[i]),
+                            latOf.applyAsDouble(sources[i]));
+                    include(boxes, leaf, lonOf.applyAsDouble(targets[i]),
+                            latOf.applyAsDouble(targets[i]));
+                }
+            }
+        }
+    }
+
+    private double lon(int v) {
+        return lonOf.applyAsDouble(v);
+    }
+
+    private double lat(int v) {
+        return latOf.applyAsDouble(v);
+    }
+
+    /** Empties the box of node, in the minLons, maxLons, minLats and maxLats of boxes. */
+    private static void clear(double[][] boxes, int node) {
+        boxes[0][node] = Double.POSITIVE_INFINITY;
+        boxes[1][node] = Double.NEGATIVE_INFINITY;
+        boxes[2][node] = Double.POSITIVE_INFINITY;
+        boxes[3][node] = Double.NEGATIVE_INFINITY;
+    }
+
+    /** Extends the box of node, in the minLons, maxLons, minLats and maxLats of boxes. */
+    private static void include(double[][] boxes, int node, double lon, double lat) {
+        boxes[0][node] = Math.min(boxes[0][node], lon);
+        boxes[1][node] = Math.max(boxes[1][node], lon);
+        boxes[2][node] = Math.min(boxes[2][node], lat);
+        boxes[3][node] = Math.max(boxes[3][node], lat);
+    }
+
+    /** Number of segments indexed. */
+    int size() {
+        return sources.length();
+    }
+
+    /**
+     * The vertex nearest to a location by GraphDB.distance, the same one a scan over all
+     * vertices finds: of several at the same distance, the lowest.
+     * @param lon The longitude of the location.
+     * @param lat The latitude of the location.
+     * @param accept Which vertices may be returned, or null for all.
+     * @return The vertex, or -1 if there is no acceptable vertex.
+     */
+    int nearestVertex(double lon, double lat, IntPredicate accept) {
+        if (sources.length() == 0) {
+            return -1;
+        }
+        /* Box distances are bounded with the projection ContractedGraph.lowerBound uses,
+        over the box of the root extended to the location, so they never exceed the
+        great-circle distance to anything in the box. */
+        int root = minLons.length() - 1;
+        double minLat = Math.min(lat, minLats.get(root));
+        double maxLat = Math.max(lat, maxLats.get(root));
+        double spanLon = Math.toRadians(Math.max(lon, maxLons.get(root))
+                - Math.min(lon, minLons.get(root)));
+        double spanLat = Math.toRadians(maxLat - minLat);
+        double shrink = Math.max(0, 1 - (spanLon * spanLon + spanLat * spanLat) / 8);
+        double cosMin = Math.max(0, Math.min(Math.cos(Math.toRadians(minLat)),
+                Math.cos(Math.toRadians(maxLat))));
+        double yScale = shrink * MILES_PER_DEGREE;
+        double xScale = yScale * cosMin;
+
+        double best = Double.POSITIVE_INFINITY;
+        int nearest = -1;
+        NodeQueue queue = new NodeQueue();
+        queue.push(0, root, levelOffsets.length - 2);
+        while (queue.size > 0 && queue.peekKey() <= best) {
+            int level = queue.peekLevel();
+            int node = queue.poll() - levelOffsets[level];
+            int first = firstEntry(level, node);
+            int end = endEntry(level, node);
+            for (int i = first; i < end; i++) {
+                if (level > 0) {
+                    int child = levelOffsets[level - 1] + i;
+                    queue.push(boxDistance(child, lon, lat, xScale, yScale), child, level - 1);
+                    continue;
+                }
+                for (int k = 0; k < 2; k++) {
+                    int v = k == 0 ? sources.get(i) : targets.get(i);
+                    if (accept != null && !accept.test(v)) {
+                        continue;
+                    }
+                    double distance = GraphDB.distance(lon, lat, lon(v), lat(v));
+                    if (distance < best || distance == best && v < nearest) {
+                        best = distance;
+                        nearest = v;
+                    }
+                }
+            }
+        }
+        return nearest;
+    }
+
+    /**
+     * The point on a road segment nearest to a location. Distances are measured in a
+     * plane tangent to the earth at the location, which is exact enough for the short
+     * distances snapping a click to a road covers. Of several segments at the same
+     * distance, the one of the lowest edge is taken, whichever leaf it is in.
+     * @param lon The longitude of the location.
+     * @param lat The latitude of the location.
+     * @param accept Which vertices the segment's start may be, or null for all.
+     * @return The point, or null if there is no acceptable segment.
+     */
+    Snap nearestSegment(double lon, double lat, IntPredicate accept) {
+        if (sources.length() == 0) {
+            return null;
+        }
+        double xScale = Math.cos(Math.toRadians(lat)) * MILES_PER_DEGREE;
+        double yScale = MILES_PER_DEGREE;
+
+        double best = Double.POSITIVE_INFINITY;
+        int nearest = -1;
+        double nearestFraction = 0;
+        NodeQueue queue = new NodeQueue();
+        queue.push(0, minLons.length() - 1, levelOffsets.length - 2);
+        while (queue.size > 0 && queue.peekKey() <= best) {
+            int level = queue.peekLevel();
+            int node = queue.poll() - levelOffsets[level];
+            int first = firstEntry(level, node);
+            int end = endEntry(level, node);
+            for (int i = first; i < end; i++) {
+                if (level > 0) {
+                    int child = levelOffsets[level - 1] + i;
+                    queue.push(boxDistance(child, lon, lat, xScale, yScale), child, level - 1);
+                    continue;
+                }
+                if (accept != null && !accept.test(sources.get(i))) {
+                    continue;
+                }
+                /* Project the location onto the segment, clamped to its ends. */
+                double ax = (lon(sources.get(i)) - lon) * xScale;
+                double ay = (lat(sources.get(i)) - lat) * yScale;
+                double dx = (lon(targets.get(i)) - lon) * xScale - ax;
+                double dy = (lat(targets.get(i)) - lat) * yScale - ay;
+                double squared = dx * dx + dy * dy;
+                double t = squared > 0 ? Math.max(0, Math.min(1, -(ax * dx + ay * dy) / squared))
+                        : 0;
+                double px = ax + t * dx;
+                double py = ay + t * dy;
+                double distance = Math.sqrt(px * px + py * py);
+                if (distance < best || distance == best && edges.get(i) < edges.get(nearest)) {
+                    best = distance;
+                    nearest = i;
+                    nearestFraction = t;
+                }
+            }
+        }
+        if (nearest < 0) {
+            return null;
+        }
+        int v = sources.get(nearest);
+        int w = targets.get(nearest);
+        double snappedLon = lon(v) + nearestFraction * (lon(w) - lon(v));
+        double snappedLat = lat(v) + nearestFraction * (lat(w) - lat(v));
+        return new Snap(edges.get(nearest), v, w, nearestFraction, snappedLon, snappedLat,
+                GraphDB.distance(lon, lat, snappedLon, snappedLat));
+    }
+
+    /**
+     * Visits the segments that cross a box, or for an index of points the points in it.
+     * If there are more than limit of them, only every k-th in Hilbert order is visited
+     * for the smallest k that leaves at most limit; as the order follows the map, what is
+     * visited is spread over the box like what is not.
+     * @param minLon The western edge of the box.
+     * @param minLat The southern edge of the box.
+     * @param maxLon The eastern edge of the box.
+     * @param maxLat The northern edge of the box.
+     * @param limit The most segments to visit; positive.
+     * @param visitor Receives each segment visited.
+     * @return The number of segments crossing the box, visited or not.
+     */
+    int within(double minLon, double minLat, double maxLon, double maxLat, int limit,
+               Visitor visitor) {
+        Rectangle2D box = new Rectangle2D.Double(minLon, minLat, maxLon - minLon,
+                maxLat - minLat);
+        int count = within(box, 1, null);
+        if (count > 0) {
+            within(box, (count - 1) / limit + 1, visitor);
+        }
+        return count;
+    }
+
+    /**
+     * Visits every stride-th segment crossing box, if visitor is not null.
+     * @return The number of segments crossing box.
+     */
+    private int within(Rectangle2D box, int stride, Visitor visitor) {
+        if (sources.length() == 0) {
+            return 0;
+        }
+        /* Depth first with children pushed last first, so segments are visited in
+        Hilbert order. */
+        int[] nodes = new int[levelOffsets.length * NODE_SIZE];
+        int[] levels = new int[nodes.length];
+        int size = 0;
+        nodes[size] = minLons.length() - 1;
+        levels[size++] = levelOffsets.length - 2;
+        int count = 0;
+        while (size > 0) {
+            int level = levels[--size];
+            int node = nodes[size] - levelOffsets[level];
+            int first = firstEntry(level, node);
+            int end = endEntry(level, node);
+            if (level == 0) {
+                for (int i = first; i < end; i++) {
+                    if (box.intersectsLine(lon(sources.get(i)), lat(sources.get(i)),
+                            lon(targets.get(i)), lat(targets.get(i)))) {
+                        if (visitor != null && count % stride == 0) {
+                            visitor.visit(edges.get(i), sources.get(i), targets.get(i));
+                        }
+                        count++;
+                    }
+                }
+                continue;
+            }
+            for (int i = end - 1; i >= first; i--) {
+                int child = levelOffsets[level - 1] + i;
+                if (minLons.get(child) <= box.getMaxX() && maxLons.get(child) >= box.getMinX()
+                        && minLats.get(child) <= box.getMaxY()
+                        && maxLats.get(child) >= box.getMinY()) {
+                    nodes[size] = child;
+                    levels[size++] = level - 1;
+                }
+            }
+        }
+        return count;
+    }
+
+    /**
+     * The first of what node of level covers: a segment for a leaf, else a node of the
+     * level below, counted from the first node of that level.
+     */
+    private int firstEntry(int level, int node) {
+        return level == 0 ? leafOffsets.get(node) : node * NODE_SIZE;
+    }
+
+    /** The end of what node of level covers, see firstEntry. */
+    private int endEntry(int level, int node) {
+        return level == 0 ? leafOffsets.get(node + 1)
+                : Math.min(levelOffsets[level] - levelOffsets[level - 1], (node + 1) * NODE_SIZE);
+    }
+
+    /** Receives the segments a query finds. */
+    interface Visitor {
+        /**
+         * @param edge The edge of the segment, or for an index of points the point.
+         * @param source The point the segment starts at.
+         * @param target The point the segment ends at.
+         */
+        void visit(int edge, int source, int target);
+    }
+
+    /** The distance in the plane scaled by xScale and yScale from a location to a box. */
+    private double boxDistance(int node, double lon, double lat, double xScale,
+                               double yScale) {
+        double dx = Math.max(0, Math.max(minLons.get(node) - lon, lon - maxLons.get(node)));
+        double dy = Math.max(0, Math.max(minLats.get(node) - lat, lat - maxLats.get(node)));
+        dx *= xScale;
+        dy *= yScale;
+        return Math.sqrt(dx * dx + dy * dy);
+    }
+
+    /**
+     * A point on a road segment: the fraction of the way along the edge from source to
+     * target, with its coordinates and its distance in miles from the location snapped.
+     */
+    static class Snap {
+        final int edge;
+        final int source;
+        final int target;
+        final double fraction;
+        final double lon;
+        final double lat;
+        final double distance;
+
+        Snap(int edge, int source, int target, double fraction, double lon, double lat,
+             double distance) {
+            this.edge = edge;
+            this.source = source;
+            this.target = target;
+            this.fraction = fraction;
+            this.lon = lon;
+            this.lat = lat;
+            this.distance = distance;
+        }
+    }
+
+    /** The nodes a query has yet to visit, as a binary heap by distance. */
+    private static class NodeQueue {
+        private int size;
+        private double[] keys = new double[64];
+        private int[] nodes = new int[64];
+        private int[] levels = new int[64];
+
+        double peekKey() {
+            return keys[0];
+        }
+
+        int peekLevel() {
+            return levels[0];
+        }
+
+        /** Removes the nearest node and returns it. */
+        int poll() {
+            int result = nodes[0];
+            size--;
+            double key = keys[size];
+            int node = nodes[size];
+            int level = levels[size];
+            int i = 0;
+            while (true) {
+                int child = 2 * i + 1;
+                if (child >= size) {
+                    break;
+                }
+                if (child + 1 < size && keys[child + 1] < keys[child]) {
+                    child++;
+                }
+                if (keys[child] >= key) {
+                    break;
+                }
+                keys[i] = keys[child];
+                nodes[i] = nodes[child];
+                levels[i] = levels[child];
+                i = child;
+            }
+            keys[i] = key;
+            nodes[i] = node;
+            levels[i] = level;
+            return result;
+        }
+
+        void push(double key, int node, int level) {
+            if (size == keys.length) {
+                keys = Arrays.copyOf(keys, size * 2);
+                nodes = Arrays.copyOf(nodes, size * 2);
+                levels = Arrays.copyOf(levels, size * 2);
+            }
+            int i = size++;
+            while (i > 0) {
+                int parent = (i - 1) / 2;
+                if (keys[parent] <= key) {
+                    break;
+                }
+                keys[i] = keys[parent];
+                nodes[i] = nodes[parent];
+                levels[i] = levels[parent];
+                i = parent;
+            }
+            keys[i] = key;
+            nodes[i] = node;
+            levels[i] = level;
+        }
+    }
+}
@@ -0,0 +1,144 @@
+import java.text.Normalizer;
+
+/**
+ * Table-driven replacement for the regex based name cleaning: keeps letters and spaces,
+ * lower-cases letters and drops everything else. This is what GraphDB.cleanString does,
+ * without compiling a regex or allocating intermediate strings on every call.
+ *
+ * The ASCII normalizer matches the original "[^a-zA-Z ]" behaviour exactly. The folding
+ * normalizer additionally folds accented Latin letters to their base letters
+ * (an e with an acute accent becomes "e", a sharp s becomes "ss") and spells "&amp;" as
+ * "and", so that searches need not match the exact accents of a name. GraphDB uses the
+ * one the graphdb.names system property names, e.g. -Dgraphdb.names=folding.
+ */
+public class StringNormalizer {
+
+    /** Keeps ASCII letters and spaces only; identical to the original regex. */
+    static final StringNormalizer ASCII = new StringNormalizer(false);
+    /** Also folds accented Latin letters and "&amp;". */
+    static final StringNormalizer FOLDING = new StringNormalizer(true);
+
+    /** Characters at or above this are dropped by both normalizers. */
+    private static final int FOLD_LIMIT = 0x250;
+    /** The most chars a single input char can expand to (e.g. '&amp;' to "and"). */
+    static final int MAX_EXPANSION = 3;
+
+    /** Replacement for each char below FOLD_LIMIT; a null entry means drop the char. */
+    private final char[][] table = new char[FOLD_LIMIT][];
+    /** Whether the char maps to exactly itself, i.e. is already normalized. */
+    private final boolean[] identity = new boolean[FOLD_LIMIT];
+
+    private final ThreadLocal<char[]> buffers = ThreadLocal.withInitial(() -> new char[64]);
+
+    private StringNormalizer(boolean fold) {
+        for (char c = 'a'; c <= 'z'; c++) {
+            table[c] = new char[]{c};
+            table[Character.toUpperCase(c)] = table[c];
+            identity[c] = true;
+        }
+        table[' '] = new char[]{' '};
+        identity[' '] = true;
+
+        if (fold) {
+            table['&'] = "and".toCharArray();
+            for (int c = 0x80; c < FOLD_LIMIT; c++) {
+                table[c] = fold((char) c);
+            }
+        }
+    }
+
+    /** Folds one non-ASCII char to its ASCII base letters, or null if it has none. */
+    private static char[] fold(char c) {
+        switch (Character.toLowerCase(c)) {
+            case '\u00df': return "ss".toCharArray();
+            case '\u00e6': return "ae".toCharArray();
+            case '\u0153': return "oe".toCharArray();
+            case '\u00f8': return "o".toCharArray();
+            case '\u0111': return "d".toCharArray();
+            case '\u0142': return "l".toCharArray();
+            case '\u00fe': return "th".toCharArray();
+            default: break;
+        }
+        String decomposed = Normalizer.normalize(String.valueOf(c), Normalizer.Form.NFD);
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < decomposed.length(); i++) {
+            char d = decomposed.charAt(i);
+            if ((d >= 'a' && d <= 'z') || (d >= 'A' && d <= 'Z')) {
+                sb.append(Character.toLowerCase(d));
+            }
+        }
+        return sb.length() == 0 ? null : sb.toString().toCharArray();
+    }
+
+    /**
+     * Normalizes s. Returns s itself when it is already normalized.
+     * @param s Input string.
+     * @return Normalized string.
+     */
+    String normalize(String s) {
+        int n = s.length();
+        int i = 0;
+        while (i < n && isIdentity(s.charAt(i))) {
+            i++;
+        }
+        if (i == n) {
+            return s;
+        }
+        char[] buf = buffers.get();
+        if (buf.length < n * MAX_EXPANSION) {
+            buf = new char[n * MAX_EXPANSION];
+            buffers.set(buf);
+        }
+        s.getChars(0, i, buf, 0);
+        int len = normalize(s, i, n, buf, i);
+        return new String(buf, 0, len);
+    }
+
+    /**
+     * Normalizes s into dst without allocating.
+     * @param s Input characters.
+     * @param dst Output buffer; must hold at least MAX_EXPANSION * s.length() chars.
+     * @return The number of chars written to dst.
+     */
+    int normalize(CharSequence s, char[] dst) {
+        return normalize(s, 0, s.length(), dst, 0);
+    }
+
+    private int normalize(CharSequence s, int from, int to, char[] dst, int pos) {
+        for (int i = from; i < to; i++) {
+            char c = s.charAt(i);
+            if (c >= FOLD_LIMIT) {
+                continue;
+            }
+            char[] r = table[c];
+            if (r == null) {
+                continue;
+            }
+            if (r.length == 1) {
+                dst[pos++] = r[0];
+            } else {
+                for (char x : r) {
+                    dst[pos++] = x;
+                }
+            }
+        }
+        return pos;
+    }
+
+    private boolean isIdentity(char c) {
+        return c < FOLD_LIMIT && identity[c];
+    }
+
+    /**
+     * @param cleaned A normalized string.
+     * @return True if it contains no letters, i.e. is empty or all spaces.
+     */
+    static boolean isBlank(String cleaned) {
+        for (int i = 0; i < cleaned.length(); i++) {
+            if (cleaned.charAt(i) != ' ') {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,284 @@
+import java.awt.BasicStroke;
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.geom.Line2D;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import javax.imageio.ImageIO;
+
+/**
+ * The tile images rastering draws, named as Rasterer names them. Images in the stored
+ * pyramid are read as they are. Any other tile, deeper than the pyramid goes or missing
+ * from it, is rendered on first request: the part of the nearest stored tile above it,
+ * scaled up, with the roads of the graph drawn over it at the tile's resolution.
+ *
+ * Rendered tiles are kept in a directory, the most recently used up to maxCacheBytes of
+ * them; the directory is emptied on first use, as it may hold tiles of other data, and
+ * deleted by discard once the renderer's graph is no longer served.
+ * Concurrent requests for a tile that is being rendered wait for that rendering rather
+ * than render it again. A TileRenderer is made per graph, like VectorTiles.
+ */
+public class TileRenderer {
+
+    /** The deepest tiles rendered. */
+    static final int MAX_DEPTH = 12;
+    /** Drawn where no stored tile lies above a tile. */
+    private static final Color BACKGROUND = new Color(242, 239, 233);
+    private static final Color ROAD_CASING = new Color(180, 175, 168);
+    private static final Color ROAD_FILL = Color.WHITE;
+    private static final Color MAJOR_ROAD_FILL = new Color(252, 214, 164);
+    /** Width of the roads of each highway class in meters, see highwayClass. */
+    private static final double[] ROAD_METERS = {20, 16, 14, 12, 10, 8, 8, 6, 10, 10, 8, 8, 8};
+    /** Roads of this highway class and the classes before it are drawn in MAJOR_ROAD_FILL. */
+    private static final int MAJOR_ROADS = GraphBuildingHandler.highwayClass("secondary");
+    private static final double METERS_PER_DEGREE = 111_320;
+    private static final Pattern TILE_NAME = Pattern.compile("d(\\d+)_x(\\d+)_y(\\d+)\\.png");
+
+    private final GraphDB graph;
+    private final File storedRoot;
+    private final File cacheDir;
+    private final long maxCacheBytes;
+    /** Size of each tile in cacheDir by name, least recently used first. */
+    private final Map<String, Long> cached = new LinkedHashMap<>(16, 0.75f, true);
+    private long cachedBytes;
+    private boolean cacheCleared;
+    /** Whether discard was called; nothing is cached after. */
+    private boolean discarded;
+    /** Tiles being rendered, by name. */
+    private final Map<String, CompletableFuture<BufferedImage>> rendering =
+            new ConcurrentHashMap<>();
+    private final AtomicInteger renders = new AtomicInteger();
+
+    /**
+     * @param graph The graph whose roads are drawn.
+     * @param storedRoot The directory of the stored tile images.
+     * @param cacheDir The directory to keep rendered tiles in; created on first use.
+     * @param maxCacheBytes The most bytes of rendered tiles to keep.
+     */
+    TileRenderer(GraphDB graph, File storedRoot, File cacheDir, long maxCacheBytes) {
+        this.graph = graph;
+        this.storedRoot = storedRoot;
+        this.cacheDir = cacheDir;
+        this.maxCacheBytes = maxCacheBytes;
+    }
+
+    /**
+     * The image of a tile.
+     * @param name The name of the tile, e.g. "d9_x3_y5.png".
+     * @return The image, or null if there is no such tile or it cannot be read.
+     */
+    BufferedImage tile(String name) {
+        File stored = new File(storedRoot, name);
+        if (stored.exists()) {
+            return read(stored);
+        }
+        Matcher m = TILE_NAME.matcher(name);
+        if (!m.matches()) {
+            return null;
+        }
+        int depth = Integer.parseInt(m.group(1));
+        int x = Integer.parseInt(m.group(2));
+        int y = Integer.parseInt(m.group(3));
+        if (depth > MAX_DEPTH || x >= 1 << depth || y >= 1 << depth) {
+            return null;
+        }
+
+        if (isCached(name)) {
+            BufferedImage image = read(new File(cacheDir, name));
+            if (image != null) {
+                return image;
+            }
+        }
+        CompletableFuture<BufferedImage> mine = new CompletableFuture<>();
+        CompletableFuture<BufferedImage> running = rendering.putIfAbsent(name, mine);
+        if (running != null) {
+            return running.join();
+        }
+        try {
+            BufferedImage image = render(depth, x, y);
+            store(name, image);
+            mine.complete(image);
+            return image;
+        } catch (RuntimeException e) {
+            mine.completeExceptionally(e);
+            throw e;
+        } finally {
+            rendering.remove(name, mine);
+        }
+    }
+
+    /** Number of tiles rendered so far. */
+    int renders() {
+        return renders.get();
+    }
+
+    private BufferedImage render(int depth, int x, int y) {
+        renders.incrementAndGet();
+        int size = MapServer.TILE_SIZE;
+        BufferedImage image = new BufferedImage(size, size, BufferedImage.TYPE_INT_RGB);
+        Graphics2D g = image.createGraphics();
+        g.setRenderingHint(RenderingHints.KEY_INTERPOLATION,
+                RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+        g.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+        g.setColor(BACKGROUND);
+        g.fillRect(0, 0, size, size);
+        for (int above = Math.min(depth - 1, Rasterer.STORED_MAX_DEPTH); above >= 0; above--) {
+            int shift = depth - above;
+            BufferedImage parent = storedTile(above, x >> shift, y >> shift);
+            if (parent != null) {
+                /* The part of the parent over this tile; at least a pixel of it. */
+                int part = Math.max(1, parent.getWidth() >> shift);
+                int sx = (x & ((1 << shift) - 1)) * parent.getWidth() >> shift;
+                int sy = (y & ((1 << shift) - 1)) * parent.getHeight() >> shift;
+                g.drawImage(parent, 0, 0, size, size, sx, sy, sx + part, sy + part, null);
+                break;
+            }
+        }
+
+        double lonWidth = (MapServer.ROOT_LRLON - MapServer.ROOT_ULLON) / (1 << depth);
+        double latHeight = (MapServer.ROOT_ULLAT - MapServer.ROOT_LRLAT) / (1 << depth);
+        double minLon = MapServer.ROOT_ULLON + x * lonWidth;
+        double maxLat = MapServer.ROOT_ULLAT - y * latHeight;
+        double metersPerPixel = lonWidth / size * METERS_PER_DEGREE
+                * Math.cos(Math.toRadians(maxLat - latHeight / 2));
+        /* Roads just outside the tile are partly in it, as they are drawn wide. */
+        double lonMargin = lonWidth * 0.1;
+        double latMargin = latHeight * 0.1;
+        int[][] segments = {new int[64], new int[64], new int[64]};
+        int[] count = {0};
+        graph.segmentsWithin(minLon - lonMargin, maxLat - latHeight - latMargin,
+                minLon + lonWidth + lonMargin, maxLat + latMargin, Integer.MAX_VALUE,
+                (e, v, w) -> {
+                    if (count[0] == segments[0].length) {
+                        for (int k = 0; k < 3; k++) {
+                            segments[k] = Arrays.copyOf(segments[k], count[0] * 2);
+                        }
+                    }
+                    segments[0][count[0]] = graph.edgeClass(e);
+                    segments[1][count[0]] = v;
+                    segments[2][count[0]++] = w;
+                });
+        /* Casings first, so roads join over them. */
+        Line2D line = new Line2D.Double();
+        for (int pass = 0; pass < 2; pass++) {
+            for (int i = 0; i < count[0]; i++) {
+                int highwayClass = segments[0][i];
+                int v = segments[1][i];
+                int w = segments[2][i];
+                float width = (float) Math.max(1, ROAD_METERS[highwayClass] / metersPerPixel);
+                if (pass == 0) {
+                    g.setColor(ROAD_CASING);
+                    width += 2;
+                } else {
+                    g.setColor(highwayClass <= MAJOR_ROADS ? MAJOR_ROAD_FILL : ROAD_FILL);
+                }
+                g.setStroke(new BasicStroke(width, BasicStroke.CAP_ROUND,
+                        BasicStroke.JOIN_ROUND));
+                line.setLine((graph.lonAt(v) - minLon) / lonWidth * size,
+                        (maxLat - graph.latAt(v)) / latHeight * size,
+                        (graph.lonAt(w) - minLon) / lonWidth * size,
+                        (maxLat - graph.latAt(w)) / latHeight * size);
+                g.draw(line);
+            }
+        }
+        g.dispose();
+        return image;
+    }
+
+    /** The stored image of a tile, or null if there is none. */
+    private BufferedImage storedTile(int depth, int x, int y) {
+        File file = new File(storedRoot, "d" + depth + "_x" + x + "_y" + y + ".png");
+        return file.exists() ? read(file) : null;
+    }
+
+    private boolean isCached(String name) {
+        synchronized (cached) {
+            return !discarded && cached.get(name) != null;
+        }
+    }
+
+    /**
+     * Deletes the cache directory with the tiles in it. Tiles can still be asked for, e.g.
+     * by requests that were running, but are rendered every time.
+     */
+    void discard() {
+        synchronized (cached) {
+            discarded = true;
+            cached.clear();
+            cachedBytes = 0;
+            File[] files = cacheDir.listFiles();
+            try {
+                for (File file : files == null ? new File[0] : files) {
+                    Files.deleteIfExists(file.toPath());
+                }
+                Files.deleteIfExists(cacheDir.toPath());
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Writes a rendered tile to the cache directory, then drops the least recently used
+     * tiles until the directory is within maxCacheBytes again. If the directory cannot be
+     * written to, the tile is only not cached.
+     */
+    private void store(String name, BufferedImage image) {
+        try {
+            synchronized (cached) {
+                if (discarded) {
+                    return;
+                }
+                if (!cacheCleared) {
+                    Files.createDirectories(cacheDir.toPath());
+                    for (File file : cacheDir.listFiles()) {
+                        Files.delete(file.toPath());
+                    }
+                    cacheCleared = true;
+                }
+            }
+            /* Written under another name first, so nothing ever reads a partial tile. */
+            File file = new File(cacheDir, name);
+            File partial = File.createTempFile(name, ".part", cacheDir);
+            ImageIO.write(image, "png", partial);
+            Files.move(partial.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+            synchronized (cached) {
+                if (discarded) {
+                    Files.deleteIfExists(file.toPath());
+                    return;
+                }
+                Long previous = cached.put(name, file.length());
+                cachedBytes += file.length() - (previous == null ? 0 : previous);
+                while (cachedBytes > maxCacheBytes && cached.size() > 1) {
+                    Map.Entry<String, Long> eldest = cached.entrySet().iterator().next();
+                    cached.remove(eldest.getKey());
+                    cachedBytes -= eldest.getValue();
+                    Files.deleteIfExists(new File(cacheDir, eldest.getKey()).toPath());
+                }
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private static BufferedImage read(File file) {
+        try {
+            return ImageIO.read(file);
+        } catch (IOException e) {
+            return null;
+        }
+    }
+}
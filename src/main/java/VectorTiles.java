@@ -0,0 +1,398 @@
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Vector tiles of a graph: the roads and named places of a tile, encoded compactly for
+ * clients to draw themselves. Tiles are addressed like the images Rasterer serves: tile
+ * (depth, x, y) is column x and row y, counted from the upper left, of the 2^depth by
+ * 2^depth tiles the root box of MapServer is divided into at that depth. Unlike the
+ * images, tiles exist at any depth up to MAX_DEPTH.
+ *
+ * Roads are polylines of edges of the same name and highway class. They are clipped to
+ * the tile with a margin of BUFFER, so lines drawn across tile edges join up, and then
+ * simplified with Douglas-Peucker to a tolerance of a pixel, i.e. the more the deeper the
+ * tile is. Coordinates are integers from 0 to EXTENT across the tile, y down.
+ *
+ * A tile is, with varint the unsigned LEB128 encoding and zigzag a signed varint:
+ * <pre>
+ * tile   := VERSION names lines points
+ * names  := count:varint (length:varint utf8)*
+ * lines  := count:varint (class:byte name:varint size:varint (dx:zigzag dy:zigzag)*)*
+ * points := count:varint (name:varint id:varint x:zigzag y:zigzag)*
+ * </pre>
+ * Names are indices into names; classes are highway classes, see
+ * GraphBuildingHandler.highwayType. The first point of a line is relative to (0, 0) and
+ * every other to the point before it.
+ *
+ * Encoded tiles are cached, the most recently used MAX_CACHED of them. A VectorTiles is
+ * made per graph, so the cache never outlives the data it was made from.
+ */
+public class VectorTiles {
+
+    /** Version of the encoding, the first byte of every tile. */
+    static final int VERSION = 1;
+    /** Coordinates run from 0 to EXTENT across a tile. */
+    static final int EXTENT = 4096;
+    /** Margin around a tile that geometry is kept in, in coordinates. */
+    static final int BUFFER = 64;
+    /** The deepest tiles served; deeper, coordinates would outgrow the map's precision. */
+    static final int MAX_DEPTH = 20;
+    /** Most named places per tile. */
+    static final int MAX_POINTS = 64;
+    /** Most tiles kept encoded. */
+    private static final int MAX_CACHED = 4096;
+    /** Simplification tolerance: one pixel of a tile drawn MapServer.TILE_SIZE wide. */
+    private static final double TOLERANCE = (double) EXTENT / MapServer.TILE_SIZE;
+
+    private final GraphDB graph;
+    /** Encoded tiles by key, least recently used first. */
+    private final Map<Long, byte[]> cache = new LinkedHashMap<Long, byte[]>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Long, byte[]> eldest) {
+            return size() > MAX_CACHED;
+        }
+    };
+
+    VectorTiles(GraphDB graph) {
+        this.graph = graph;
+    }
+
+    /** Whether (depth, x, y) addresses a tile. */
+    static boolean exists(int depth, int x, int y) {
+        return depth >= 0 && depth <= MAX_DEPTH && x >= 0 && y >= 0
+                && x < 1 << depth && y < 1 << depth;
+    }
+
+    /**
+     * The encoded tile (depth, x, y); built on the first request for it.
+     * @throws IllegalArgumentException If there is no such tile.
+     */
+    byte[] tile(int depth, int x, int y) {
+        if (!exists(depth, x, y)) {
+            throw new IllegalArgumentException("No tile d" + depth + "_x" + x + "_y" + y);
+        }
+        long key = (long) depth << 56 | (long) x << 28 | y;
+        synchronized (cache) {
+            byte[] tile = cache.get(key);
+            if (tile != null) {
+                return tile;
+            }
+        }
+        /* Built outside the lock, so tiles build in parallel; two requests for the same
+        new tile may both build it, which is harmless. */
+        byte[] tile = encode(depth, x, y);
+        synchronized (cache) {
+            cache.put(key, tile);
+        }
+        return tile;
+    }
+
+    /** Number of tiles cached. */
+    int cached() {
+        synchronized (cache) {
+            return cache.size();
+        }
+    }
+
+    private byte[] encode(int depth, int x, int y) {
+        double lonWidth = (MapServer.ROOT_LRLON - MapServer.ROOT_ULLON) / (1 << depth);
+        double latHeight = (MapServer.ROOT_ULLAT - MapServer.ROOT_LRLAT) / (1 << depth);
+        Tile tile = new Tile(MapServer.ROOT_ULLON + x * lonWidth,
+                MapServer.ROOT_ULLAT - y * latHeight, lonWidth, latHeight);
+
+        /* Collect the segments in the tile with their margin. */
+        double lonMargin = lonWidth * BUFFER / EXTENT;
+        double latMargin = latHeight * BUFFER / EXTENT;
+        Segments segments = new Segments();
+        graph.segmentsWithin(tile.minLon - lonMargin, tile.maxLat - latHeight - latMargin,
+                tile.minLon + lonWidth + lonMargin, tile.maxLat + latMargin,
+                Integer.MAX_VALUE, (e, v, w) -> {
+                    if (v != w) {
+                        int name = tile.name(graph.edgeWayName(e));
+                        segments.add(v, w, name * GraphBuildingHandler.numHighwayClasses()
+                                + graph.edgeClass(e));
+                    }
+                });
+        LocationRecords records = graph.locationRecords();
+        List<int[]> points = new ArrayList<>();
+        graph.locationsWithin(tile.minLon, tile.maxLat - latHeight, tile.minLon + lonWidth,
+                tile.maxLat, MAX_POINTS, r -> points.add(new int[] {
+                    tile.name(records.name(r)), r,
+                    tile.x(records.lon(r)), tile.y(records.lat(r))}));
+
+        List<int[]> lines = new ArrayList<>();
+        List<Integer> lineKeys = new ArrayList<>();
+        for (int[] chain : segments.chains()) {
+            int key = chain[0];
+            double[] lons = new double[chain.length - 1];
+            double[] lats = new double[chain.length - 1];
+            for (int i = 1; i < chain.length; i++) {
+                lons[i - 1] = graph.lonAt(chain[i]);
+                lats[i - 1] = graph.latAt(chain[i]);
+            }
+            for (int[] line : tile.clip(lons, lats)) {
+                line = simplify(line, TOLERANCE);
+                if (line.length >= 4) {
+                    lines.add(line);
+                    lineKeys.add(key);
+                }
+            }
+        }
+
+        Encoder out = new Encoder();
+        out.write(VERSION);
+        out.varint(tile.names.size());
+        for (String name : tile.names.keySet()) {
+            byte[] utf8 = name.getBytes(StandardCharsets.UTF_8);
+            out.varint(utf8.length);
+            out.write(utf8, 0, utf8.length);
+        }
+        out.varint(lines.size());
+        for (int i = 0; i < lines.size(); i++) {
+            int key = lineKeys.get(i);
+            int[] line = lines.get(i);
+            out.write(key % GraphBuildingHandler.numHighwayClasses());
+            out.varint(key / GraphBuildingHandler.numHighwayClasses());
+            out.varint(line.length / 2);
+            for (int k = 0; k < line.length; k += 2) {
+                out.zigzag(line[k] - (k == 0 ? 0 : line[k - 2]));
+                out.zigzag(line[k + 1] - (k == 0 ? 0 : line[k - 1]));
+            }
+        }
+        out.varint(points.size());
+        for (int[] point : points) {
+            out.varint(point[0]);
+            out.varint(records.id(point[1]));
+            out.zigzag(point[2]);
+            out.zigzag(point[3]);
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * Simplifies a line with Douglas-Peucker, see Polylines.douglasPeucker, and drops
+     * repeated points.
+     * @param line The x and y of each point, alternating.
+     * @param tolerance The largest distance a dropped point may be from the line kept.
+     * @return The points kept, in the same layout.
+     */
+    static int[] simplify(int[] line, double tolerance) {
+        double[] points = new double[line.length];
+        for (int i = 0; i < line.length; i++) {
+            points[i] = line[i];
+        }
+        return dropRepeats(line, Polylines.douglasPeucker(points, line.length / 2, tolerance));
+    }
+
+    /** The points of line that keep allows, without repeats. */
+    private static int[] dropRepeats(int[] line, boolean[] keep) {
+        int[] kept = new int[line.length];
+        int size = 0;
+        for (int i = 0; i < line.length / 2; i++) {
+            if (!keep[i]) {
+                continue;
+            }
+            if (size > 0 && kept[size - 2] == line[2 * i] && kept[size - 1] == line[2 * i + 1]) {
+                continue;
+            }
+            kept[size++] = line[2 * i];
+            kept[size++] = line[2 * i + 1];
+        }
+        return Arrays.copyOf(kept, size);
+    }
+
+    /** The box of a tile and the names used in it so far. */
+    private static class Tile {
+        final double minLon;
+        final double maxLat;
+        final double lonWidth;
+        final double latHeight;
+        /** The index of each name, in order of first use. */
+        final Map<String, Integer> names = new LinkedHashMap<>();
+
+        Tile(double minLon, double maxLat, double lonWidth, double latHeight) {
+            this.minLon = minLon;
+            this.maxLat = maxLat;
+            this.lonWidth = lonWidth;
+            this.latHeight = latHeight;
+        }
+
+        int name(String name) {
+            return names.computeIfAbsent(name, n -> names.size());
+        }
+
+        int x(double lon) {
+            return (int) Math.round((lon - minLon) / lonWidth * EXTENT);
+        }
+
+        int y(double lat) {
+            return (int) Math.round((maxLat - lat) / latHeight * EXTENT);
+        }
+
+        /**
+         * Clips a line to the tile with its margin, with Liang-Barsky per segment.
+         * @return The pieces of the line in the tile, in tile coordinates.
+         */
+        List<int[]> clip(double[] lons, double[] lats) {
+            double min = -BUFFER;
+            double max = EXTENT + BUFFER;
+            List<int[]> pieces = new ArrayList<>();
+            double[] piece = new double[2 * lons.length];
+            int size = 0;
+            for (int i = 1; i < lons.length; i++) {
+                double x0 = (lons[i - 1] - minLon) / lonWidth * EXTENT;
+                double y0 = (maxLat - lats[i - 1]) / latHeight * EXTENT;
+                double dx = (lons[i] - minLon) / lonWidth * EXTENT - x0;
+                double dy = (maxLat - lats[i]) / latHeight * EXTENT - y0;
+                double[] p = {-dx, dx, -dy, dy};
+                double[] q = {x0 - min, max - x0, y0 - min, max - y0};
+                double t0 = 0;
+                double t1 = 1;
+                for (int k = 0; k < 4 && t0 <= t1; k++) {
+                    if (p[k] == 0) {
+                        if (q[k] < 0) {
+                            t0 = 2;
+                        }
+                    } else if (p[k] < 0) {
+                        t0 = Math.max(t0, q[k] / p[k]);
+                    } else {
+                        t1 = Math.min(t1, q[k] / p[k]);
+                    }
+                }
+                if (t0 > t1) {
+                    size = flush(pieces, piece, size);
+                    continue;
+                }
+                if (t0 > 0) {
+                    size = flush(pieces, piece, size);
+                }
+                if (size == 0) {
+                    piece[size++] = x0 + t0 * dx;
+                    piece[size++] = y0 + t0 * dy;
+                }
+                piece[size++] = x0 + t1 * dx;
+                piece[size++] = y0 + t1 * dy;
+                if (t1 < 1) {
+                    size = flush(pieces, piece, size);
+                }
+            }
+            flush(pieces, piece, size);
+            return pieces;
+        }
+
+        /** Adds the piece of size coordinates to pieces, rounded, and returns 0. */
+        private static int flush(List<int[]> pieces, double[] piece, int size) {
+            if (size >= 4) {
+                int[] rounded = new int[size];
+                for (int i = 0; i < size; i++) {
+                    rounded[i] = (int) Math.round(piece[i]);
+                }
+                pieces.add(rounded);
+            }
+            return 0;
+        }
+    }
+
+    /** The segments of a tile, each with a key of its name and class. */
+    private static class Segments {
+        private int size;
+        private int[] sources = new int[64];
+        private int[] targets = new int[64];
+        private int[] keys = new int[64];
+
+        void add(int v, int w, int key) {
+            if (size == sources.length) {
+                sources = Arrays.copyOf(sources, size * 2);
+                targets = Arrays.copyOf(targets, size * 2);
+                keys = Arrays.copyOf(keys, size * 2);
+            }
+            sources[size] = v;
+            targets[size] = w;
+            keys[size++] = key;
+        }
+
+        /**
+         * Joins segments of the same key into chains: walks from every vertex where other
+         * than two segments of a key meet, through those where two do, then around what
+         * is left, which are cycles.
+         * @return Each chain as its key followed by its vertices.
+         */
+        List<int[]> chains() {
+            /* Segments of each key meeting at each vertex. */
+            Map<Long, int[]> incident = new HashMap<>();
+            for (int s = 0; s < size; s++) {
+                for (int end : new int[] {sources[s], targets[s]}) {
+                    incident.merge((long) keys[s] << 32 | end, new int[] {s},
+                        (a, b) -> {
+                            int[] both = Arrays.copyOf(a, a.length + 1);
+                            both[a.length] = b[0];
+                            return both;
+                        });
+                }
+            }
+            boolean[] used = new boolean[size];
+            List<int[]> chains = new ArrayList<>();
+            for (int pass = 0; pass < 2; pass++) {
+                for (int s = 0; s < size; s++) {
+                    for (int end : new int[] {sources[s], targets[s]}) {
+                        int meeting = incident.get((long) keys[s] << 32 | end).length;
+                        if (!used[s] && (pass == 1 || meeting != 2)) {
+                            chains.add(walk(s, end, incident, used));
+                        }
+                    }
+                }
+            }
+            return chains;
+        }
+
+        /** The chain from vertex start along segment s, marking its segments used. */
+        private int[] walk(int s, int start, Map<Long, int[]> incident, boolean[] used) {
+            int key = keys[s];
+            int[] chain = new int[8];
+            int length = 0;
+            chain[length++] = key;
+            chain[length++] = start;
+            int at = start;
+            while (s >= 0) {
+                used[s] = true;
+                at = sources[s] == at ? targets[s] : sources[s];
+                if (length == chain.length) {
+                    chain = Arrays.copyOf(chain, length * 2);
+                }
+                chain[length++] = at;
+                int[] next = incident.get((long) key << 32 | at);
+                s = -1;
+                if (next.length == 2) {
+                    for (int t : next) {
+                        if (!used[t]) {
+                            s = t;
+                        }
+                    }
+                }
+            }
+            return Arrays.copyOf(chain, length);
+        }
+    }
+
+    /** Writes bytes, varints and zigzag varints. */
+    private static class Encoder extends ByteArrayOutputStream {
+
+        void varint(long value) {
+            while ((value & ~0x7FL) != 0) {
+                write((int) (value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            write((int) value);
+        }
+
+        void zigzag(int value) {
+            varint((value << 1 ^ value >> 31) & 0xFFFFFFFFL);
+        }
+    }
+}
@@ -42,7 +42,7 @@ $(function() {
     /* Starting hyper-parameters #machinelearning */
     const zoom_delta = 0.04;
     const base_move_delta = 0.03;
-    const max_level = 7;
+    const max_level = 12; // Tiles past level 7 are rendered by the server, see TileRenderer
     const min_level = 2; // Level limits based on pulled data
     var wdpp = 0.00004291534423828125; // Starting wdpp for level 3
     var hdpp = 0.00003388335630702399; // Starting hdpp for level 3
@@ -324,8 +324,26 @@ $(function() {
     $('body').css('overflow', 'hidden');
 
     /* Make search bar do autocomplete things */
+    /* Each keystroke narrows from the cursor of the previous one. */
+    let searchCursor = null;
     $('#tags').autocomplete({
-          source: search,
+          source: function (request, response) {
+              $.get({
+                  async: true,
+                  url: search,
+                  dataType: 'json',
+                  data: searchCursor === null ? { term: request.term, session: true }
+                      : { term: request.term, session: true, cursor: searchCursor },
+                  success: function(data) {
+                      searchCursor = data.cursor;
+                      response(data.matches);
+                  },
+                  error: function() {
+                      searchCursor = null;
+                      response([]);
+                  }
+              });
+          },
           minLength: 2,
           select: function (event, ui) {
               $.get({
@@ -0,0 +1,171 @@
+import org.xml.sax.Attributes;
+import org.xml.sax.helpers.DefaultHandler;
+
+import javax.xml.parsers.SAXParserFactory;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Rough timings for GraphDB construction on the full OSM file. Not a test; run its main
+ * method by hand, optionally passing the OSM file to use.
+ */
+public class GraphDBBenchmark {
+    private static final String OSM_DB_PATH = "../library-sp18/data/berkeley-2018.osm.xml";
+    private static final int REPEATS = 5;
+
+    public static void main(String[] args) throws Exception {
+        String path = args.length > 0 ? args[0] : OSM_DB_PATH;
+        benchmarkCleaning(path);
+        benchmarkLoad(path);
+        benchmarkPbf(path);
+        benchmarkVertexOrder(path);
+        benchmarkStorage(path);
+    }
+
+    /** Cleans every name tag in the file with the old regex and with StringNormalizer. */
+    private static void benchmarkCleaning(String path) throws Exception {
+        List<String> names = new ArrayList<>();
+        SAXParserFactory.newInstance().newSAXParser().parse(new File(path), new DefaultHandler() {
+            @Override
+            public void startElement(String uri, String localName, String qName,
+                                     Attributes attributes) {
+                if (qName.equals("tag") && "name".equals(attributes.getValue("k"))) {
+                    names.add(attributes.getValue("v"));
+                }
+            }
+        });
+
+        for (int r = 0; r < REPEATS; r++) {
+            long start = System.nanoTime();
+            int sink = 0;
+            for (String s : names) {
+                sink += s.replaceAll("[^a-zA-Z ]", "").toLowerCase().length();
+            }
+            long regex = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            for (String s : names) {
+                sink -= StringNormalizer.ASCII.normalize(s).length();
+            }
+            long table = System.nanoTime() - start;
+            System.out.println(String.format("cleaning %d names: regex %.1f ms, table %.1f ms (%d)",
+                    names.size(), regex / 1e6, table / 1e6, sink));
+        }
+    }
+
+    private static void benchmarkLoad(String path) {
+        for (int r = 0; r < REPEATS; r++) {
+            long start = System.nanoTime();
+            new GraphDB(path);
+            System.out.println(String.format("GraphDB load: %.1f ms", (System.nanoTime() - start) / 1e6));
+        }
+    }
+
+    /** Converts the XML file to PBF and compares loading the two. */
+    private static void benchmarkPbf(String xmlPath) throws Exception {
+        File pbf = File.createTempFile("benchmark", ".osm.pbf");
+        pbf.deleteOnExit();
+        TestPbfReader.PbfWriter writer = new TestPbfReader.PbfWriter();
+        SAXParserFactory.newInstance().newSAXParser().parse(new File(xmlPath),
+                new GraphBuildingHandler(writer));
+        try (OutputStream out = new BufferedOutputStream(new FileOutputStream(pbf))) {
+            writer.write(out, 8000);
+        }
+        System.out.println(String.format("XML %.1f MB, PBF %.1f MB",
+                new File(xmlPath).length() / 1e6, pbf.length() / 1e6));
+
+        for (int r = 0; r < REPEATS; r++) {
+            long start = System.nanoTime();
+            new GraphDB(xmlPath);
+            long xml = System.nanoTime() - start;
+            start = System.nanoTime();
+            new GraphDB(pbf.getPath());
+            long binary = System.nanoTime() - start;
+            System.out.println(String.format("GraphDB load: XML %.1f ms, PBF %.1f ms",
+                    xml / 1e6, binary / 1e6));
+        }
+    }
+
+    /**
+     * Routes between the same random points with vertices in file order and in Hilbert
+     * order. The JVM cannot count cache misses; run under "perf stat -e cache-misses" for
+     * those. As a proxy, reports how far apart in the vertex columns the two ends of an
+     * edge are, and how many edges stay within 64 vertices (a few cache lines).
+     */
+    private static void benchmarkVertexOrder(String path) {
+        for (GraphDB.VertexOrder order : GraphDB.VertexOrder.values()) {
+            GraphDB.vertexOrder = order;
+            GraphDB g = new GraphDB(path);
+
+            long gap = 0;
+            long near = 0;
+            long edges = 0;
+            int[] neighbors = new int[g.maxDegree()];
+            for (int v = 0; v < g.numVertices(); v++) {
+                for (int i = g.neighbors(v, neighbors) - 1; i >= 0; i--) {
+                    int d = Math.abs(neighbors[i] - v);
+                    gap += d;
+                    near += d < 64 ? 1 : 0;
+                    edges++;
+                }
+            }
+            System.out.println(String.format("%s order: mean edge gap %.0f, %.1f%% of edges "
+                    + "within 64 vertices", order, (double) gap / edges, 100.0 * near / edges));
+
+            for (int r = 0; r < REPEATS; r++) {
+                Random random = new Random(42);
+                int[] ends = new int[2000];
+                for (int i = 0; i < ends.length; i++) {
+                    ends[i] = random.nextInt(g.numVertices());
+                }
+                long start = System.nanoTime();
+                long visited = 0;
+                for (int i = 0; i < ends.length; i += 2) {
+                    visited += Router.shortestPath(g, ends[i], ends[i + 1]).length;
+                }
+                System.out.println(String.format("%s order: %d routes in %.1f ms (%d)",
+                        order, ends.length / 2, (System.nanoTime() - start) / 1e6, visited));
+            }
+        }
+        GraphDB.vertexOrder = GraphDB.VertexOrder.HILBERT;
+    }
+
+    /** Compares the size of the storage layouts and routing on each. */
+    private static void benchmarkStorage(String path) {
+        for (GraphDB.StorageFormat format : GraphDB.StorageFormat.values()) {
+            GraphDB.storageFormat = format;
+            GraphDB g = new GraphDB(path);
+            System.out.println(String.format("%s storage: %.2f MB for %d vertices",
+                    format, g.storage().sizeInBytes() / 1e6, g.numVertices()));
+
+            int[] neighbors = new int[g.maxDegree()];
+            for (int r = 0; r < REPEATS; r++) {
+                long start = System.nanoTime();
+                long sum = 0;
+                for (int v = 0; v < g.numVertices(); v++) {
+                    int degree = g.neighbors(v, neighbors);
+                    for (int i = 0; i < degree; i++) {
+                        sum += neighbors[i];
+                    }
+                }
+                long scan = System.nanoTime() - start;
+
+                Random random = new Random(42);
+                start = System.nanoTime();
+                for (int i = 0; i < 1000; i++) {
+                    sum += Router.shortestPath(g, random.nextInt(g.numVertices()),
+                            random.nextInt(g.numVertices())).length;
+                }
+                System.out.println(String.format("%s storage: adjacency scan %.1f ms, "
+                        + "1000 routes %.1f ms (%d)", format, scan / 1e6,
+                        (System.nanoTime() - start) / 1e6, sum));
+            }
+        }
+        GraphDB.storageFormat = GraphDB.StorageFormat.ARRAYS;
+    }
+}
@@ -0,0 +1,91 @@
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Tests prefix matching and incremental search sessions on a handful of locations.
+ */
+public class TestAutocomplete {
+    private Autocomplete autocomplete;
+
+    @Before
+    public void setUp() {
+        NameDictionary names = new NameDictionary();
+        LocationRecords records = new LocationRecords(names);
+        String[] locations = {"Top Dog", "Toms Place", "Tom's Place", "Top Dog", "Trader Joe's",
+            "Berkeley Bowl", "Top Hat"};
+        for (int i = 0; i < locations.length; i++) {
+            records.add(i, 0, 0, names.intern(locations[i]));
+        }
+        autocomplete = new Autocomplete(names, records);
+    }
+
+    @Test
+    public void testMatches() {
+        assertEquals(Arrays.asList("Toms Place", "Tom's Place", "Top Dog", "Top Hat"),
+                autocomplete.matches("to"));
+        assertEquals(Arrays.asList("Top Dog"), autocomplete.matches("top d"));
+        assertEquals(Arrays.asList(), autocomplete.matches("x"));
+        assertEquals(Arrays.asList(), autocomplete.matches(""));
+    }
+
+    @Test
+    public void testSessionNarrowsFromCursor() {
+        Autocomplete.Result r = autocomplete.search("t", null, 0, 10);
+        assertEquals(5, r.total);
+        String cursor = r.cursor;
+        for (String prefix : new String[]{"to", "top", "top ", "top h"}) {
+            Autocomplete.Result next = autocomplete.search(prefix, cursor, 0, 10);
+            assertEquals(autocomplete.matches(prefix), next.matches);
+            cursor = next.cursor;
+        }
+    }
+
+    @Test
+    public void testCursorForOtherPrefixIsIgnored() {
+        String cursor = autocomplete.search("top", null, 0, 10).cursor;
+        List<String> matches = autocomplete.search("berk", cursor, 0, 10).matches;
+        assertEquals(Arrays.asList("Berkeley Bowl"), matches);
+        assertEquals(Arrays.asList("Berkeley Bowl"),
+                autocomplete.search("berk", "garbage", 0, 10).matches);
+    }
+
+    @Test
+    public void testWindow() {
+        Autocomplete.Result r = autocomplete.search("to", null, 1, 2);
+        assertEquals(4, r.total);
+        assertEquals(Arrays.asList("Tom's Place", "Top Dog"), r.matches);
+        r = autocomplete.search("tom", null, 5, 2);
+        assertEquals(Arrays.asList(), r.matches);
+    }
+
+    @Test
+    public void testWithNames() {
+        NameDictionary names = new NameDictionary();
+        LocationRecords records = new LocationRecords(names);
+        for (String name : new String[] {"Top Dog", "Toms Place", "Berkeley Bowl"}) {
+            records.add(records.size(), 0, 0, names.intern(name));
+        }
+        Autocomplete before = new Autocomplete(names, records);
+        String cursor = before.search("to", null, 0, 10).cursor;
+
+        NameDictionary changed = names.copy();
+        int[] removed = {names.intern("Toms Place"), names.intern("Berkeley Bowl")};
+        int[] added = {changed.intern("Tom's Place"), changed.intern("Acme"),
+            changed.intern("Zebra"), changed.intern("Top Hat")};
+        Autocomplete after = before.withNames(changed, removed, added);
+        assertEquals(Arrays.asList("Tom's Place", "Top Dog", "Top Hat"), after.matches("to"));
+        assertEquals(Arrays.asList("Acme"), after.matches("a"));
+        assertEquals(Arrays.asList("Zebra"), after.matches("z"));
+        assertEquals(Arrays.asList(), after.matches("b"));
+        assertEquals(after.matches("top"), after.search("top", cursor, 0, 10).matches);
+
+        /* The index it was made from is unchanged. */
+        assertEquals(Arrays.asList("Toms Place", "Top Dog"), before.matches("to"));
+        assertEquals(Arrays.asList("Berkeley Bowl"), before.matches("b"));
+    }
+}
@@ -0,0 +1,92 @@
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Tests that CompactGraphStorage holds the same graph as the plain layout it encodes, and
+ * that a compact graph's narrower edge columns route the same.
+ */
+public class TestCompactGraphStorage {
+    private static final String OSM_DB_PATH_TINY = "../library-sp18/data/tiny-clean.osm.xml";
+
+    @Test
+    public void testRoundTrip() {
+        Random random = new Random(3);
+        int n = 2000;
+        double[] lons = new double[n];
+        double[] lats = new double[n];
+        int[] offsets = new int[n + 1];
+        int[] degrees = new int[n];
+        for (int v = 0; v < n; v++) {
+            /* Seven decimals, like OSM coordinates; some far from the root tile. */
+            lons[v] = Math.round((random.nextDouble() * 360 - 180) * 1e7) / 1e7;
+            lats[v] = Math.round((random.nextDouble() * 180 - 90) * 1e7) / 1e7;
+            degrees[v] = v == 7 ? 600 : random.nextInt(6);
+            offsets[v + 1] = offsets[v] + degrees[v];
+        }
+        int[] targets = new int[offsets[n]];
+        for (int e = 0; e < targets.length; e++) {
+            targets[e] = random.nextInt(n);
+        }
+        lons[0] = 180;
+        lons[1] = -180;
+        lons[2] = 57.7441406;
+
+        ArrayGraphStorage plain = new ArrayGraphStorage(lons, lats, offsets, targets);
+        CompactGraphStorage compact = new CompactGraphStorage(plain);
+        assertEquals(n, compact.numVertices());
+        assertEquals(600, compact.maxDegree());
+
+        int[] expected = new int[plain.maxDegree()];
+        int[] actual = new int[compact.maxDegree()];
+        for (int v = 0; v < n; v++) {
+            assertEquals(lons[v] == 180 ? -180 : lons[v], compact.lon(v), 0);
+            assertEquals(lats[v], compact.lat(v), 0);
+            assertEquals(degrees[v], compact.degree(v));
+            int degree = plain.neighbors(v, expected);
+            assertEquals(degree, compact.neighbors(v, actual));
+            Arrays.sort(expected, 0, degree);
+            assertArrayEquals(Arrays.copyOf(expected, degree), Arrays.copyOf(actual, degree));
+        }
+    }
+
+    @Test
+    public void testQuantize() {
+        assertEquals(-122.2586523, CompactGraphStorage.quantizeLon(-122.25865234), 0);
+        assertEquals(37.8696284, CompactGraphStorage.quantizeLat(37.86962836), 0);
+    }
+
+    @Test
+    public void testCompactEdges() {
+        GraphDB plain = new GraphDB(OSM_DB_PATH_TINY);
+        GraphDB.storageFormat = GraphDB.StorageFormat.COMPACT;
+        GraphDB compact;
+        try {
+            compact = new GraphDB(OSM_DB_PATH_TINY);
+        } finally {
+            GraphDB.storageFormat = GraphDB.StorageFormat.ARRAYS;
+        }
+        assertEquals(plain.numVertices(), compact.numVertices());
+        for (int v = 0; v < plain.numVertices(); v++) {
+            for (int e = plain.firstEdge(v); e < plain.firstEdge(v) + plain.degree(v); e++) {
+                assertEquals(plain.edgeWeight(e), compact.edgeWeight(e),
+                        plain.edgeWeight(e) * 1e-6);
+                assertEquals(plain.edgeBearing(e), compact.edgeBearing(e), 0.005);
+            }
+        }
+        assertArrayEquals(Router.shortestPath(plain, 0.4, 38.1, 0.4, 38.6).toArray(),
+                Router.shortestPath(compact, 0.4, 38.1, 0.4, 38.6).toArray());
+    }
+
+    @Test
+    public void testParseStorageFormat() {
+        assertEquals(GraphDB.StorageFormat.ARRAYS, GraphDB.parseStorageFormat(null));
+        assertEquals(GraphDB.StorageFormat.OFF_HEAP, GraphDB.parseStorageFormat("off_heap"));
+        assertEquals(GraphDB.StorageFormat.COMPACT, GraphDB.parseStorageFormat(" Compact"));
+        assertEquals(GraphDB.StorageFormat.ARRAYS, GraphDB.parseStorageFormat("compcat"));
+    }
+}
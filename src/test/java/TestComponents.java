@@ -0,0 +1,76 @@
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Collections;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests component labelling on a graph of a long road and a separate short loop.
+ */
+public class TestComponents {
+    private static GraphDB graph;
+
+    private static final String OSM = "<?xml version='1.0' encoding='UTF-8'?>\n<osm>\n"
+            + "<node id=\"1\" lat=\"38.0\" lon=\"0.0\"/>\n"
+            + "<node id=\"2\" lat=\"38.0\" lon=\"0.1\"/>\n"
+            + "<node id=\"3\" lat=\"38.0\" lon=\"0.2\"/>\n"
+            + "<node id=\"4\" lat=\"38.0\" lon=\"0.3\"/>\n"
+            + "<node id=\"5\" lat=\"38.1\" lon=\"0.05\"/>\n"
+            + "<node id=\"6\" lat=\"38.1\" lon=\"0.06\"/>\n"
+            + "<node id=\"7\" lat=\"38.11\" lon=\"0.055\"/>\n"
+            + "<way id=\"10\"><nd ref=\"1\"/><nd ref=\"2\"/><nd ref=\"3\"/><nd ref=\"4\"/>"
+            + "<tag k=\"highway\" v=\"primary\"/></way>\n"
+            + "<way id=\"11\"><nd ref=\"5\"/><nd ref=\"6\"/><nd ref=\"7\"/><nd ref=\"5\"/>"
+            + "<tag k=\"highway\" v=\"residential\"/></way>\n"
+            + "</osm>\n";
+
+    @BeforeClass
+    public static void setUp() throws IOException {
+        File file = File.createTempFile("components", ".osm");
+        file.deleteOnExit();
+        Files.write(file.toPath(), OSM.getBytes(StandardCharsets.UTF_8));
+        graph = new GraphDB(file.getPath());
+    }
+
+    @Test
+    public void testLabels() {
+        Components c = graph.components();
+        assertEquals(2, c.numWeak());
+        assertEquals(2, c.numStrong());
+        int road = c.weak(graph.vertexOf(1));
+        int loop = c.weak(graph.vertexOf(5));
+        assertNotEquals(road, loop);
+        assertEquals(road, c.weak(graph.vertexOf(4)));
+        assertEquals(loop, c.weak(graph.vertexOf(7)));
+        assertEquals(road, c.largestWeak());
+        assertEquals(4, c.weakSize(road));
+        for (long v : graph.vertices()) {
+            int vertex = graph.vertexOf(v);
+            assertEquals(c.weak(vertex), c.strong(vertex));
+        }
+        assertTrue(c.mayReach(graph.vertexOf(1), graph.vertexOf(4)));
+        assertFalse(c.mayReach(graph.vertexOf(1), graph.vertexOf(6)));
+    }
+
+    @Test
+    public void testUnreachable() {
+        /* From the loop to the road; there is no path, so only the end is returned. */
+        assertEquals(Collections.singletonList(4L),
+                Router.shortestPath(graph, 0.06, 38.1, 0.3, 38.0));
+    }
+
+    @Test
+    public void testSnapToLargestComponent() {
+        assertEquals(6L, graph.closest(0.06, 38.1));
+        assertEquals(2L, graph.closest(0.06, 38.1, true));
+        assertEquals(3, Router.shortestPath(graph, 0.06, 38.1, 0.3, 38.0, true).size());
+    }
+}
@@ -0,0 +1,465 @@
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests that routing on the contracted graph finds paths as short and as quick as a
+ * plain Dijkstra over every vertex, on a small street grid whose blocks are drawn with
+ * shape points and some of whose streets have speed limits, plus a loose ring road. Two
+ * intersections have turn restrictions, which paths with turn costs have to honour.
+ */
+public class TestContractedGraph {
+    private static GraphDB graph;
+    /** Node ids of each way. */
+    private static final Map<Long, List<Long>> WAY_REFS = new HashMap<>();
+    /** Forbidden turns as "from via to" vertex triples, see forbid. */
+    private static final Set<String> FORBIDDEN = new HashSet<>();
+
+    @BeforeClass
+    public static void setUp() throws IOException {
+        Random random = new Random(7);
+        StringBuilder osm = new StringBuilder("<?xml version='1.0' encoding='UTF-8'?>\n<osm>\n");
+        StringBuilder ways = new StringBuilder();
+        int size = 6;
+        long nextShape = 1000;
+        long wayId = 1;
+        for (int i = 0; i < size; i++) {
+            for (int j = 0; j < size; j++) {
+                node(osm, i * size + j, 37.8 + i * 0.002, -122.3 + j * 0.002);
+            }
+        }
+        /* Horizontal and vertical streets, each block broken into a few shape points. */
+        for (int i = 0; i < size; i++) {
+            for (int j = 0; j + 1 < size; j++) {
+                for (int dir = 0; dir < 2; dir++) {
+                    long a = dir == 0 ? i * size + j : j * size + i;
+                    long b = dir == 0 ? i * size + j + 1 : (j + 1) * size + i;
+                    List<Long> refs = new ArrayList<>();
+                    WAY_REFS.put(wayId, refs);
+                    refs.add(a);
+                    ways.append("<way id=\"").append(wayId++).append("\"><nd ref=\"")
+                            .append(a).append("\"/>");
+                    int shapes = random.nextInt(4);
+                    for (int k = 1; k <= shapes; k++) {
+                        double t = (double) k / (shapes + 1);
+                        double lat = 37.8 + 0.002 * (dir == 0 ? i : j + t)
+                                + random.nextDouble() * 0.0003;
+                        double lon = -122.3 + 0.002 * (dir == 0 ? j + t : i)
+                                + random.nextDouble() * 0.0003;
+                        node(osm, nextShape, lat, lon);
+                        refs.add(nextShape);
+                        ways.append("<nd ref=\"").append(nextShape++).append("\"/>");
+                    }
+                    ways.append("<nd ref=\"").append(b).append("\"/>");
+                    refs.add(b);
+                    if (random.nextInt(3) == 0) {
+                        ways.append("<tag k=\"maxspeed\" v=\"")
+                                .append(10 + 5 * random.nextInt(8)).append(" mph\"/>");
+                    }
+                    ways.append("<tag k=\"highway\" v=\"residential\"/></way>\n");
+                }
+            }
+        }
+        /* A ring road that touches nothing, so it has no intersection to keep. */
+        ways.append("<way id=\"").append(wayId).append("\">");
+        long ringStart = nextShape;
+        for (int k = 0; k < 8; k++) {
+            node(osm, nextShape, 37.85 + 0.001 * Math.sin(k * Math.PI / 4),
+                    -122.25 + 0.001 * Math.cos(k * Math.PI / 4));
+            ways.append("<nd ref=\"").append(nextShape++).append("\"/>");
+        }
+        ways.append("<nd ref=\"").append(ringStart).append("\"/>")
+                .append("<tag k=\"highway\" v=\"primary\"/></way>\n");
+        /* Eastbound on the street through node 14, no left turn north onto the next; and
+        eastbound through node 21, only straight on. */
+        ways.append(restriction(900, wayId(2, 1, 0), 14, wayId(2, 2, 1), "no_left_turn"))
+                .append(restriction(901, wayId(3, 2, 0), 21, wayId(3, 3, 0), "only_straight_on"));
+        osm.append(ways).append("</osm>\n");
+
+        File file = File.createTempFile("grid", ".osm");
+        file.deleteOnExit();
+        Files.write(file.toPath(), osm.toString().getBytes(StandardCharsets.UTF_8));
+        graph = new GraphDB(file.getPath());
+        forbid(wayId(2, 1, 0), 14, wayId(2, 2, 1), false);
+        forbid(wayId(3, 2, 0), 21, wayId(3, 3, 0), true);
+    }
+
+    /** The id of the street from grid point (i, j) east if dir is 0, else from (j, i) north. */
+    private static long wayId(int i, int j, int dir) {
+        return 1 + 2 * (i * 5 + j) + dir;
+    }
+
+    private static String restriction(long id, long from, long via, long to, String type) {
+        return "<relation id=\"" + id + "\"><member type=\"way\" ref=\"" + from
+                + "\" role=\"from\"/><member type=\"node\" ref=\"" + via
+                + "\" role=\"via\"/><member type=\"way\" ref=\"" + to
+                + "\" role=\"to\"/><tag k=\"type\" v=\"restriction\"/><tag k=\"restriction\" v=\""
+                + type + "\"/></relation>\n";
+    }
+
+    /** Adds the turns a restriction forbids to FORBIDDEN. */
+    private static void forbid(long fromWay, long via, long toWay, boolean only) {
+        int v = graph.vertexOf(via);
+        long from = neighborAlong(fromWay, via);
+        long to = neighborAlong(toWay, via);
+        int[] neighbors = new int[graph.maxDegree()];
+        for (int j = graph.neighbors(v, neighbors) - 1; j >= 0; j--) {
+            if ((neighbors[j] == graph.vertexOf(to)) != only) {
+                FORBIDDEN.add(graph.vertexOf(from) + " " + v + " " + neighbors[j]);
+            }
+        }
+    }
+
+    private static long neighborAlong(long way, long node) {
+        List<Long> refs = WAY_REFS.get(way);
+        return refs.get(0) == node ? refs.get(1) : refs.get(refs.size() - 2);
+    }
+
+    private static void node(StringBuilder osm, long id, double lat, double lon) {
+        osm.append("<node id=\"").append(id).append("\" lat=\"").append(lat)
+                .append("\" lon=\"").append(lon).append("\"/>\n");
+    }
+
+    @Test
+    public void testContraction() {
+        ContractedGraph cg = graph.contracted();
+        /* The 32 grid points where three or four streets meet, the 4 corners being plain
+        bends, plus one vertex of the ring. */
+        assertEquals(33, cg.numCore());
+        assertTrue(cg.numCore() < graph.numVertices());
+    }
+
+    @Test
+    public void testShortestPaths() {
+        checkPaths(RouteProfile.SHORTEST);
+    }
+
+    @Test
+    public void testQuickestPaths() {
+        checkPaths(RouteProfile.FASTEST.withoutTurnCosts());
+    }
+
+    @Test
+    public void testProfiles() {
+        checkPaths(RouteProfile.FASTEST.withoutTurnCosts().renamed("avoid_ring")
+                .withMultiplier("primary", 3));
+        checkPaths(RouteProfile.SHORTEST.renamed("prefer_residential")
+                .withMultiplier("residential", 0.5));
+        assertTrue(graph.customize(RouteProfile.named("fastest"))
+                == graph.customize(RouteProfile.FASTEST));
+    }
+
+    @Test
+    public void testTurnCosts() {
+        checkPaths(RouteProfile.FASTEST);
+        checkPaths(RouteProfile.SHORTEST.renamed("no_left_turns")
+                .withTurnCost(Router.NavigationDirection.LEFT, 0.2)
+                .withTurnCost(Router.NavigationDirection.SHARP_LEFT, 0.3)
+                .withTurnCost(ContractedGraph.U_TURN, 0.5));
+    }
+
+    @Test
+    public void testSnappedPaths() {
+        checkSnappedPaths(RouteProfile.SHORTEST);
+        checkSnappedPaths(RouteProfile.FASTEST.withoutTurnCosts());
+    }
+
+    /**
+     * Routes between random points snapped onto the grid; the cheapest path between two
+     * such points leaves the start's edge at one of its ends and enters the end's edge at
+     * one of its ends, unless both are on the same edge.
+     */
+    private static void checkSnappedPaths(RouteProfile profile) {
+        Random random = new Random(13);
+        for (int q = 0; q < 300; q++) {
+            SegmentIndex.Snap start = graph.snap(-122.3 + random.nextDouble() * 0.012,
+                    37.8 + random.nextDouble() * 0.012, false);
+            SegmentIndex.Snap end = graph.snap(-122.3 + random.nextDouble() * 0.012,
+                    37.8 + random.nextDouble() * 0.012, false);
+            double startCost = graph.edgeCost(start.edge, profile);
+            double endCost = graph.edgeCost(end.edge, profile);
+            double[] fromSource = dijkstra(graph, start.source, profile);
+            double[] fromTarget = dijkstra(graph, start.target, profile);
+            double expected = Double.POSITIVE_INFINITY;
+            for (int k = 0; k < 4; k++) {
+                double[] from = k < 2 ? fromSource : fromTarget;
+                double before = k < 2 ? start.fraction : 1 - start.fraction;
+                int to = k % 2 == 0 ? end.source : end.target;
+                double after = k % 2 == 0 ? end.fraction : 1 - end.fraction;
+                expected = Math.min(expected,
+                        before * startCost + from[to] + after * endCost);
+            }
+            if (start.source == end.source && start.target == end.target) {
+                expected = Math.min(expected,
+                        Math.abs(start.fraction - end.fraction) * startCost);
+            }
+
+            int[] path = Router.shortestPath(graph, start, end, profile);
+            double actual;
+            if (path.length == 0) {
+                actual = Math.abs(start.fraction - end.fraction) * startCost;
+            } else {
+                actual = cost(graph, path, profile)
+                        + offset(start, path[0], startCost)
+                        + offset(end, path[path.length - 1], endCost);
+            }
+            assertEquals(expected, actual, 1e-9);
+        }
+    }
+
+    /** The cost between a snapped point and an end of its edge. */
+    private static double offset(SegmentIndex.Snap snap, int v, double edgeCost) {
+        if (v == snap.source && snap.fraction < 1) {
+            return snap.fraction * edgeCost;
+        }
+        assertEquals(snap.target, v);
+        return (1 - snap.fraction) * edgeCost;
+    }
+
+    @Test
+    public void testTurnRestrictions() {
+        ContractedGraph cg = graph.contracted();
+        int c = cg.coreOf(graph.vertexOf(14));
+        int west = position(cg, c, neighborAlong(wayId(2, 1, 0), 14));
+        int east = position(cg, c, neighborAlong(wayId(2, 2, 0), 14));
+        int north = position(cg, c, neighborAlong(wayId(2, 2, 1), 14));
+        int south = position(cg, c, neighborAlong(wayId(2, 1, 1), 14));
+        assertEquals(ContractedGraph.FORBIDDEN_TURN, cg.turnClass(c, west, north));
+        assertEquals(ContractedGraph.U_TURN, cg.turnClass(c, west, west));
+        int[] arms = {west, east, north, south};
+        for (int i : arms) {
+            for (int j : arms) {
+                if (i != west || j != north) {
+                    assertEquals(turnClass(graph, shortcutStart(cg, c, i), graph.vertexOf(14),
+                            shortcutStart(cg, c, j)), cg.turnClass(c, i, j));
+                }
+            }
+        }
+
+        /* The shortest path turns left at 14; with turn costs it has to go around. */
+        int from = graph.vertexOf(13);
+        int to = graph.vertexOf(20);
+        assertTrue(hasForbiddenTurn(Router.shortestPath(graph, from, to)));
+        RouteProfile restricted = RouteProfile.SHORTEST.withTurnCost(
+                Router.NavigationDirection.STRAIGHT, 0);
+        int[] path = Router.shortestPath(graph, from, to, restricted);
+        assertEquals(to, path[path.length - 1]);
+        assertTrue(!hasForbiddenTurn(path));
+    }
+
+    /** The index among the shortcuts leaving core vertex c of the one toward node. */
+    private static int position(ContractedGraph cg, int c, long node) {
+        int v = graph.vertexOf(node);
+        for (int i = 0; i < cg.endEdge(c) - cg.firstEdge(c); i++) {
+            if (shortcutStart(cg, c, i) == v) {
+                return i;
+            }
+        }
+        throw new AssertionError("No shortcut toward " + node);
+    }
+
+    /** The vertex right after core vertex c on its i-th shortcut. */
+    private static int shortcutStart(ContractedGraph cg, int c, int i) {
+        int e = cg.firstEdge(c) + i;
+        return cg.viaCount(e) > 0 ? cg.via(e, 0) : cg.vertex(cg.target(e));
+    }
+
+    private static boolean hasForbiddenTurn(int[] path) {
+        for (int i = 2; i < path.length; i++) {
+            if (FORBIDDEN.contains(path[i - 2] + " " + path[i - 1] + " " + path[i])) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static void checkPaths(RouteProfile profile) {
+        int n = graph.numVertices();
+        for (int start = 0; start < n; start++) {
+            double[] expected = profile.hasTurnCosts()
+                    ? turnDijkstra(graph, start, profile) : dijkstra(graph, start, profile);
+            for (int end = 0; end < n; end++) {
+                int[] path = Router.shortestPath(graph, start, end, profile);
+                if (Double.isInfinite(expected[end])) {
+                    assertEquals(1, path.length);
+                    continue;
+                }
+                assertEquals(start, path[0]);
+                assertEquals(end, path[path.length - 1]);
+                assertEquals(expected[end], cost(graph, path, profile), 1e-9);
+            }
+        }
+    }
+
+    @Test
+    public void testLowerBound() {
+        ContractedGraph cg = graph.contracted();
+        for (int v = 0; v < graph.numVertices(); v++) {
+            double x = cg.x(graph.lonAt(v));
+            double y = cg.y(graph.latAt(v));
+            for (int c = 0; c < cg.numCore(); c++) {
+                double bound = cg.lowerBound(c, x, y);
+                double exact = distance(graph, cg.vertex(c), v);
+                assertTrue(bound <= exact);
+                assertTrue(bound >= 0.99 * exact);
+            }
+        }
+    }
+
+    @Test
+    public void testEdgeIterator() {
+        GraphDB.EdgeIterator it = graph.edges();
+        int[] neighbors = new int[graph.maxDegree()];
+        for (int v = 0; v < graph.numVertices(); v++) {
+            int degree = graph.neighbors(v, neighbors);
+            int i = 0;
+            for (it.reset(v); it.next(); i++) {
+                int w = it.target();
+                assertEquals(neighbors[i], w);
+                assertEquals(it.edge(), graph.edge(v, w));
+                assertEquals(distance(graph, v, w), it.weight(), 0);
+                double bearing = GraphDB.bearing(graph.lonAt(v), graph.latAt(v),
+                        graph.lonAt(w), graph.latAt(w));
+                assertEquals(bearing, it.bearing(), 1e-4);
+                assertEquals(it.weight() * 1.609344 / it.speed() * 3600,
+                        graph.edgeTime(it.edge()), 1e-9);
+            }
+            assertEquals(degree, i);
+        }
+    }
+
+    /**
+     * The cost of path, checking that consecutive vertices are adjacent and that it only
+     * turns at core vertices.
+     */
+    private static double cost(GraphDB g, int[] path, RouteProfile profile) {
+        double cost = 0;
+        for (int i = 1; i < path.length; i++) {
+            int e = g.edge(path[i - 1], path[i]);
+            assertTrue(e >= 0);
+            cost += g.edgeCost(e, profile);
+            if (i >= 2 && profile.hasTurnCosts()) {
+                cost += turnCost(g, path[i - 2], path[i - 1], path[i], profile);
+            }
+        }
+        return cost;
+    }
+
+    /**
+     * The cost of going from u through v to w: free through chain vertices, which cannot
+     * be turned around in, and by the angle at core vertices.
+     */
+    private static double turnCost(GraphDB g, int u, int v, int w, RouteProfile profile) {
+        if (g.contracted().coreOf(v) < 0) {
+            return u == w ? Double.POSITIVE_INFINITY : 0;
+        } else if (FORBIDDEN.contains(u + " " + v + " " + w)) {
+            return Double.POSITIVE_INFINITY;
+        }
+        return profile.turnCost(turnClass(g, u, v, w));
+    }
+
+    /** The class of the turn from u through v to w, from the angle between the edges. */
+    private static int turnClass(GraphDB g, int u, int v, int w) {
+        if (u == w) {
+            return ContractedGraph.U_TURN;
+        }
+        double angle = g.edgeBearing(g.edge(v, w)) - g.edgeBearing(g.edge(v, u)) - 180;
+        while (angle <= -180) {
+            angle += 360;
+        }
+        return Router.NavigationDirection.classify(angle);
+    }
+
+    /** Cheapest costs from start with turn costs, by a Dijkstra over the edges of g. */
+    private static double[] turnDijkstra(GraphDB g, int start, RouteProfile profile) {
+        int n = g.numVertices();
+        List<int[]> edges = new ArrayList<>();
+        int[] neighbors = new int[g.maxDegree()];
+        for (int v = 0; v < n; v++) {
+            for (int j = g.neighbors(v, neighbors) - 1; j >= 0; j--) {
+                edges.add(new int[]{v, neighbors[j]});
+            }
+        }
+        int m = edges.size();
+        double[] costs = new double[m];
+        boolean[] done = new boolean[m];
+        Arrays.fill(costs, Double.POSITIVE_INFINITY);
+        for (int e = 0; e < m; e++) {
+            if (edges.get(e)[0] == start) {
+                costs[e] = g.edgeCost(g.edge(start, edges.get(e)[1]), profile);
+            }
+        }
+        double[] distances = new double[n];
+        Arrays.fill(distances, Double.POSITIVE_INFINITY);
+        distances[start] = 0;
+        while (true) {
+            int e = -1;
+            for (int f = 0; f < m; f++) {
+                if (!done[f] && (e < 0 || costs[f] < costs[e])) {
+                    e = f;
+                }
+            }
+            if (e < 0 || Double.isInfinite(costs[e])) {
+                break;
+            }
+            done[e] = true;
+            int u = edges.get(e)[0];
+            int v = edges.get(e)[1];
+            distances[v] = Math.min(distances[v], costs[e]);
+            for (int f = 0; f < m; f++) {
+                if (edges.get(f)[0] == v) {
+                    int w = edges.get(f)[1];
+                    costs[f] = Math.min(costs[f], costs[e] + turnCost(g, u, v, w, profile)
+                            + g.edgeCost(g.edge(v, w), profile));
+                }
+            }
+        }
+        return distances;
+    }
+
+    private static double[] dijkstra(GraphDB g, int start, RouteProfile profile) {
+        int n = g.numVertices();
+        double[] distances = new double[n];
+        boolean[] done = new boolean[n];
+        Arrays.fill(distances, Double.POSITIVE_INFINITY);
+        distances[start] = 0;
+        int[] neighbors = new int[g.maxDegree()];
+        for (int round = 0; round < n; round++) {
+            int v = -1;
+            for (int w = 0; w < n; w++) {
+                if (!done[w] && (v < 0 || distances[w] < distances[v])) {
+                    v = w;
+                }
+            }
+            if (Double.isInfinite(distances[v])) {
+                break;
+            }
+            done[v] = true;
+            for (int j = g.neighbors(v, neighbors) - 1; j >= 0; j--) {
+                int w = neighbors[j];
+                distances[w] = Math.min(distances[w],
+                        distances[v] + g.edgeCost(g.edge(v, w), profile));
+            }
+        }
+        return distances;
+    }
+
+    private static double distance(GraphDB g, int v, int w) {
+        return GraphDB.distance(g.lonAt(v), g.latAt(v), g.lonAt(w), g.latAt(w));
+    }
+}
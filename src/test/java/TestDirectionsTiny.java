@@ -0,0 +1,166 @@
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Tests directions at a crossing: Main Street runs east through node 2, where Oak Street
+ * crosses it from south to north, and an unnamed way leaves Main Street's east end
+ * back to the south west.
+ *
+ * The Berkeley map TestDirections checks directions_results.txt on is not in this tree,
+ * so testGoldenTurns rebuilds some stretches of the routes there on streets laid out
+ * like Berkeley's: their lengths differ, but their turns and names must read as in the
+ * file.
+ */
+public class TestDirectionsTiny {
+    private static GraphDB graph;
+
+    @BeforeClass
+    public static void setUp() throws IOException {
+        String osm = "<?xml version='1.0' encoding='UTF-8'?>\n<osm>\n"
+                + node(1, 37.870, -122.262) + node(2, 37.870, -122.261)
+                + node(3, 37.870, -122.260) + node(4, 37.871, -122.261)
+                + node(5, 37.869, -122.261) + node(6, 37.869, -122.2605)
+                + way(1, "Main Street", 1, 2, 3) + way(2, "Oak Street", 5, 2, 4)
+                + way(3, null, 3, 6) + "</osm>\n";
+        File file = File.createTempFile("directions", ".osm");
+        file.deleteOnExit();
+        Files.write(file.toPath(), osm.getBytes(StandardCharsets.UTF_8));
+        graph = new GraphDB(file.getPath());
+    }
+
+    @Test
+    public void testTurns() {
+        assertDirections(Arrays.asList(1L, 2L, 3L),
+                "Start on Main Street and continue for " + miles(1, 3) + " miles.");
+        assertDirections(Arrays.asList(1L, 2L, 4L),
+                "Start on Main Street and continue for " + miles(1, 2) + " miles.",
+                "Turn left on Oak Street and continue for " + miles(2, 4) + " miles.");
+        assertDirections(Arrays.asList(1L, 2L, 5L),
+                "Start on Main Street and continue for " + miles(1, 2) + " miles.",
+                "Turn right on Oak Street and continue for " + miles(2, 5) + " miles.");
+        /* Heading north, turning east onto Main Street is to the right. */
+        assertDirections(Arrays.asList(5L, 2L, 3L),
+                "Start on Oak Street and continue for " + miles(5, 2) + " miles.",
+                "Turn right on Main Street and continue for " + miles(2, 3) + " miles.");
+        assertDirections(Arrays.asList(2L, 3L, 6L),
+                "Start on Main Street and continue for " + miles(2, 3) + " miles.",
+                "Sharp right on  and continue for " + miles(3, 6) + " miles.");
+        assertDirections(Arrays.asList(5L, 2L, 4L),
+                "Start on Oak Street and continue for " + miles(5, 4) + " miles.");
+    }
+
+    @Test
+    public void testGoldenTurns() throws IOException {
+        String osm = "<?xml version='1.0' encoding='UTF-8'?>\n<osm>\n"
+                /* East on Channing Way, then left three times. */
+                + node(101, 37.86, -122.25) + node(102, 37.86, -122.248733)
+                + node(103, 37.862, -122.248733) + node(104, 37.862, -122.249366)
+                + node(105, 37.861, -122.249366)
+                + way(11, "Channing Way", 101, 102) + way(12, "Warring Street", 102, 103)
+                + way(13, null, 103, 104) + way(14, "Derby Street", 104, 105)
+                /* East, bearing off to the left onto Ashby Avenue, which becomes Tunnel
+                Road. */
+                + node(201, 37.86, -122.24) + node(202, 37.86, -122.238733)
+                + node(203, 37.860342, -122.237543) + node(204, 37.861187, -122.235247)
+                + way(21, null, 201, 202) + way(22, "Ashby Avenue", 202, 203)
+                + way(23, "Tunnel Road", 203, 204)
+                /* East on 45th Street, then south on San Pablo Avenue, which jogs east
+                along 43rd Street. */
+                + node(301, 37.835, -122.284) + node(302, 37.835, -122.282734)
+                + node(303, 37.834508, -122.282624) + node(304, 37.834508, -122.282497)
+                + node(305, 37.833917, -122.282365)
+                + way(31, "45th Street", 301, 302) + way(32, "San Pablo Avenue", 302, 303)
+                + way(33, "43rd Street", 303, 304) + way(34, "San Pablo Avenue", 304, 305)
+                + "</osm>\n";
+        File file = File.createTempFile("golden", ".osm");
+        file.deleteOnExit();
+        Files.write(file.toPath(), osm.getBytes(StandardCharsets.UTF_8));
+        GraphDB berkeley = new GraphDB(file.getPath());
+
+        List<List<Router.NavigationDirection>> golden = golden();
+        assertTurns(golden.get(0).subList(5, 9),
+                Router.routeDirections(berkeley, Arrays.asList(101L, 102L, 103L, 104L, 105L)));
+        assertTurns(golden.get(0).subList(12, 15),
+                Router.routeDirections(berkeley, Arrays.asList(201L, 202L, 203L, 204L)));
+        assertTurns(golden.get(5),
+                Router.routeDirections(berkeley, Arrays.asList(301L, 302L, 303L, 304L, 305L)));
+    }
+
+    @Test
+    public void testTurnAngles() {
+        assertEquals(20, Router.turn(170, -170), 1e-9);
+        assertEquals(-20, Router.turn(-170, 170), 1e-9);
+        assertEquals(-90, Router.turn(90, 0), 1e-9);
+        assertEquals(0, Router.turn(Double.NaN, 45), 1e-9);
+    }
+
+    private static void assertDirections(List<Long> route, String... expected) {
+        List<Router.NavigationDirection> actual = Router.routeDirections(graph, route);
+        assertEquals(expected.length, actual.size());
+        for (int i = 0; i < expected.length; i++) {
+            assertEquals(expected[i], actual.get(i).toString());
+        }
+    }
+
+    /**
+     * Asserts that actual starts on the way of the first of expected, then turns and
+     * names the ways like the rest of them; their lengths are not compared.
+     */
+    private static void assertTurns(List<Router.NavigationDirection> expected,
+                                    List<Router.NavigationDirection> actual) {
+        assertEquals(expected.size(), actual.size());
+        assertEquals(Router.NavigationDirection.START, actual.get(0).direction);
+        assertEquals(expected.get(0).way, actual.get(0).way);
+        for (int i = 1; i < expected.size(); i++) {
+            assertEquals(expected.get(i).direction, actual.get(i).direction);
+            assertEquals(expected.get(i).way, actual.get(i).way);
+        }
+    }
+
+    /** The directions of each route in directions_results.txt, read as TestDirections does. */
+    private static List<List<Router.NavigationDirection>> golden() throws IOException {
+        List<String> lines = Files.readAllLines(Paths.get("directions_results.txt"),
+                StandardCharsets.UTF_8);
+        List<List<Router.NavigationDirection>> routes = new ArrayList<>();
+        for (int i = 2; i < lines.size();) {
+            int count = Integer.parseInt(lines.get(i++));
+            List<Router.NavigationDirection> route = new ArrayList<>();
+            for (int j = 0; j < count; j++) {
+                route.add(Router.NavigationDirection.fromString(lines.get(i++)));
+            }
+            routes.add(route);
+        }
+        return routes;
+    }
+
+    /** The length of the straight line from node v to node w, as directions print it. */
+    private static String miles(long v, long w) {
+        return String.format("%.3f", graph.distance(v, w));
+    }
+
+    private static String node(long id, double lat, double lon) {
+        return "<node id=\"" + id + "\" lat=\"" + lat + "\" lon=\"" + lon + "\"/>\n";
+    }
+
+    private static String way(long id, String name, long... nodes) {
+        StringBuilder way = new StringBuilder("<way id=\"" + id + "\">");
+        for (long node : nodes) {
+            way.append("<nd ref=\"").append(node).append("\"/>");
+        }
+        if (name != null) {
+            way.append("<tag k=\"name\" v=\"").append(name).append("\"/>");
+        }
+        return way.append("<tag k=\"highway\" v=\"residential\"/></way>\n").toString();
+    }
+}
@@ -0,0 +1,42 @@
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests that HilbertCurve visits every cell once, moving between neighboring cells.
+ */
+public class TestHilbertCurve {
+
+    @Test
+    public void testCurveIsContinuous() {
+        /* The top-level quadrant of a corner block is a small Hilbert curve of its own. */
+        int side = 64;
+        long cells = (long) HilbertCurve.SIDE * HilbertCurve.SIDE;
+        int[] xs = new int[side * side];
+        int[] ys = new int[side * side];
+        boolean[] seen = new boolean[side * side];
+        for (int x = 0; x < side; x++) {
+            for (int y = 0; y < side; y++) {
+                long d = HilbertCurve.index(x, y);
+                assertTrue(d < cells);
+                assertTrue("corner block fills the start of the curve", d < side * side);
+                assertTrue(!seen[(int) d]);
+                seen[(int) d] = true;
+                xs[(int) d] = x;
+                ys[(int) d] = y;
+            }
+        }
+        for (int d = 1; d < side * side; d++) {
+            assertEquals(1, Math.abs(xs[d] - xs[d - 1]) + Math.abs(ys[d] - ys[d - 1]));
+        }
+    }
+
+    @Test
+    public void testCell() {
+        assertEquals(0, HilbertCurve.cell(-122.3, -122.3, -122.2));
+        assertEquals(HilbertCurve.SIDE - 1, HilbertCurve.cell(-122.2, -122.3, -122.2));
+        assertEquals(HilbertCurve.SIDE / 2, HilbertCurve.cell(0.5, 0, 1));
+        assertEquals(0, HilbertCurve.cell(5, 5, 5));
+    }
+}
@@ -0,0 +1,29 @@
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Tests parsing of maxspeed tags into km/h.
+ */
+public class TestMaxspeed {
+
+    @Test
+    public void testUnits() {
+        assertEquals(50, GraphBuildingHandler.parseMaxspeed("50"));
+        assertEquals(50, GraphBuildingHandler.parseMaxspeed("50 km/h"));
+        assertEquals(40, GraphBuildingHandler.parseMaxspeed("25 mph"));
+        assertEquals(40, GraphBuildingHandler.parseMaxspeed("25mph"));
+        assertEquals(19, GraphBuildingHandler.parseMaxspeed("10 knots"));
+        assertEquals(30, GraphBuildingHandler.parseMaxspeed("30;50"));
+    }
+
+    @Test
+    public void testUnusable() {
+        assertEquals(0, GraphBuildingHandler.parseMaxspeed(""));
+        assertEquals(0, GraphBuildingHandler.parseMaxspeed("none"));
+        assertEquals(0, GraphBuildingHandler.parseMaxspeed("DE:urban"));
+        assertEquals(0, GraphBuildingHandler.parseMaxspeed("50 furlongs"));
+        assertEquals(0, GraphBuildingHandler.parseMaxspeed("0"));
+        assertEquals(GraphBuildingHandler.MAX_SPEED, GraphBuildingHandler.parseMaxspeed("300"));
+    }
+}
@@ -0,0 +1,84 @@
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Tests that OffHeapGraphStorage holds the same graph as the plain layout it copies, and
+ * that a graph built on it routes the same and applies changes without keeping its raw
+ * data.
+ */
+public class TestOffHeapGraphStorage {
+    private static final String OSM_DB_PATH_TINY = "../library-sp18/data/tiny-clean.osm.xml";
+
+    @Test
+    public void testCopy() {
+        double[] lons = {0.1, 0.2, 0.3, -122.2586523};
+        double[] lats = {38.1, 38.2, 38.3, 37.8696284};
+        int[] offsets = {0, 2, 3, 3, 6};
+        int[] targets = {1, 3, 0, 0, 1, 2};
+        ArrayGraphStorage plain = new ArrayGraphStorage(lons, lats, offsets, targets);
+        OffHeapGraphStorage offHeap = new OffHeapGraphStorage(plain);
+
+        assertEquals(4, offHeap.numVertices());
+        assertEquals(3, offHeap.maxDegree());
+        assertEquals(plain.sizeInBytes(), offHeap.sizeInBytes());
+        int[] neighbors = new int[3];
+        for (int v = 0; v < 4; v++) {
+            assertEquals(lons[v], offHeap.lon(v), 0);
+            assertEquals(lats[v], offHeap.lat(v), 0);
+            assertEquals(offsets[v + 1] - offsets[v], offHeap.degree(v));
+            int degree = offHeap.neighbors(v, neighbors);
+            for (int i = 0; i < degree; i++) {
+                assertEquals(targets[offsets[v] + i], neighbors[i]);
+            }
+        }
+    }
+
+    @Test
+    public void testRouting() {
+        GraphDB.storageFormat = GraphDB.StorageFormat.OFF_HEAP;
+        try {
+            GraphDB g = new GraphDB(OSM_DB_PATH_TINY);
+            assertEquals(0.4, g.lon(46), 0);
+            assertArrayEquals(new Object[]{41L, 63L, 66L, 46L},
+                    Router.shortestPath(g, 0.4, 38.1, 0.4, 38.6).toArray());
+        } finally {
+            GraphDB.storageFormat = GraphDB.StorageFormat.ARRAYS;
+        }
+    }
+
+    @Test
+    public void testApplyChanges() throws IOException {
+        File change = File.createTempFile("change", ".osc");
+        change.deleteOnExit();
+        Files.write(change.toPath(), ("<osmChange version=\"0.6\"><modify>"
+                + "<node id=\"46\" lat=\"38.65\" lon=\"0.45\"/>"
+                + "</modify></osmChange>\n").getBytes(StandardCharsets.UTF_8));
+        File snapshot = File.createTempFile("snapshot", ".osm");
+        snapshot.deleteOnExit();
+
+        GraphDB.storageFormat = GraphDB.StorageFormat.OFF_HEAP;
+        GraphDB twice;
+        try {
+            GraphDB once = new GraphDB(OSM_DB_PATH_TINY).applyChanges(change.getPath());
+            assertEquals(0.45, once.lon(46), 0);
+            /* The second change is applied on top of the first, read again from its file. */
+            twice = once.applyChanges(change.getPath());
+            twice.writeSnapshot(snapshot.getPath());
+        } finally {
+            GraphDB.storageFormat = GraphDB.StorageFormat.ARRAYS;
+        }
+        GraphDB reloaded = new GraphDB(snapshot.getPath());
+        assertEquals(0.45, reloaded.lon(46), 0);
+        assertEquals(38.65, reloaded.lat(46), 0);
+        assertEquals(twice.numVertices(), reloaded.numVertices());
+        assertArrayEquals(Router.shortestPath(reloaded, 0.4, 38.1, 0.4, 38.6).toArray(),
+                Router.shortestPath(twice, 0.4, 38.1, 0.4, 38.6).toArray());
+    }
+}
@@ -0,0 +1,245 @@
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.HashSet;
+import java.util.Set;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests applying OSM change files to a graph, and writing snapshots of the result.
+ */
+public class TestOsmChange {
+    private static final String OSM_DB_PATH_TINY = "../library-sp18/data/tiny-clean.osm.xml";
+
+    private static final String CHANGE = "<?xml version='1.0' encoding='UTF-8'?>\n"
+            + "<osmChange version=\"0.6\">\n"
+            + "<create>\n"
+            + "  <node id=\"77\" lat=\"38.7\" lon=\"0.7\"><tag k=\"name\" v=\"Top Dog\"/></node>\n"
+            + "  <way id=\"404\"><nd ref=\"66\"/><nd ref=\"77\"/>"
+            + "<tag k=\"highway\" v=\"residential\"/></way>\n"
+            + "</create>\n"
+            + "<modify>\n"
+            + "  <node id=\"46\" lat=\"38.65\" lon=\"0.45\"/>\n"
+            + "  <way id=\"402\"><nd ref=\"22\"/><nd ref=\"11\"/>"
+            + "<tag k=\"highway\" v=\"footway\"/></way>\n"
+            + "</modify>\n"
+            + "<delete>\n"
+            + "  <way id=\"403\"/>\n"
+            + "  <node id=\"55\"/>\n"
+            + "</delete>\n"
+            + "</osmChange>\n";
+
+    @Test
+    public void testApplyChanges() throws IOException {
+        GraphDB before = new GraphDB(OSM_DB_PATH_TINY);
+        GraphDB after = before.applyChanges(write("change", ".osc", CHANGE));
+
+        /* 402 is no longer routable, so 11 drops out; 403 and 55 are gone; 77 joins. */
+        assertEquals(set(22, 41, 46, 63, 66, 77), set(after.vertices()));
+        assertEquals(set(46, 63, 77), set(after.adjacent(66)));
+        assertEquals(0.45, after.lon(46), 0);
+        assertNull(after.adjacent(11));
+        assertEquals(0, after.locations("Cafe Strada").length);
+        assertEquals(1, after.locations("top dog").length);
+
+        /* The original graph is untouched. */
+        assertEquals(set(11, 22, 41, 46, 55, 63, 66), set(before.vertices()));
+        assertEquals(set(22, 66), set(before.adjacent(46)));
+        assertEquals(0.4, before.lon(46), 0);
+        assertEquals(0, before.locations("top dog").length);
+    }
+
+    @Test
+    public void testSharedParts() throws IOException {
+        GraphDB before = new GraphDB(OSM_DB_PATH_TINY);
+        String rename = "<osmChange version=\"0.6\"><modify>"
+                + "<way id=\"401\"><nd ref=\"66\"/><nd ref=\"63\"/><nd ref=\"41\"/>"
+                + "<tag k=\"highway\" v=\"primary\"/><tag k=\"name\" v=\"Main Avenue\"/>"
+                + "</way></modify></osmChange>\n";
+        GraphDB renamed = before.applyChanges(write("change", ".osc", rename));
+
+        /* Only the name of a way changed, so everything but the names is shared. */
+        assertSame(before.storage(), renamed.storage());
+        assertSame(before.contracted(), renamed.contracted());
+        assertSame(before.components(), renamed.components());
+        assertSame(before.customize(RouteProfile.FASTEST),
+                renamed.customize(RouteProfile.FASTEST));
+        assertSame(before.autocomplete(), renamed.autocomplete());
+        int v = renamed.vertexOf(63);
+        assertEquals("Main Avenue", renamed.edgeWayName(renamed.edge(v, renamed.vertexOf(41))));
+        assertEquals("Side Avenue", before.edgeWayName(before.edge(v, before.vertexOf(41))));
+
+        /* A new maxspeed keeps the contracted graph, but weighs it anew for time. */
+        String speed = "<osmChange version=\"0.6\"><modify>"
+                + "<way id=\"400\"><nd ref=\"22\"/><nd ref=\"46\"/><nd ref=\"66\"/>"
+                + "<tag k=\"highway\" v=\"residential\"/><tag k=\"maxspeed\" v=\"50 mph\"/>"
+                + "</way></modify></osmChange>\n";
+        GraphDB faster = renamed.applyChanges(write("change", ".osc", speed));
+        assertSame(renamed.contracted(), faster.contracted());
+        assertNotSame(renamed.customize(RouteProfile.FASTEST),
+                faster.customize(RouteProfile.FASTEST));
+        int e = faster.edge(faster.vertexOf(22), faster.vertexOf(46));
+        assertEquals(80, faster.edgeSpeed(e));
+    }
+
+    @Test
+    public void testChangedEdges() throws IOException {
+        /* Like CHANGE, but everything stays within the box the vertices span. */
+        String inside = CHANGE.replace("lat=\"38.7\" lon=\"0.7\"",
+                "lat=\"38.35\" lon=\"0.35\"").replace("lat=\"38.65\"", "lat=\"38.55\"");
+        GraphDB before = new GraphDB(OSM_DB_PATH_TINY);
+        GraphDB after = before.applyChanges(write("change", ".osc", inside));
+        assertNotSame(before.storage(), after.storage());
+        assertNotSame(before.autocomplete(), after.autocomplete());
+        assertEquals(1, after.matchingLocations("top").size());
+        assertEquals(0, after.matchingLocations("caf").size());
+        assertEquals(1, before.matchingLocations("caf").size());
+
+        /* The vertices the graphs share keep their order, whatever else changed, and the
+        new one goes where the curve over the vertices before puts it among those that
+        did not move. */
+        for (long v : after.vertices()) {
+            for (long w : after.vertices()) {
+                if (before.vertexOf(v) >= 0 && before.vertexOf(w) >= 0) {
+                    assertEquals(before.vertexOf(v) < before.vertexOf(w),
+                            after.vertexOf(v) < after.vertexOf(w));
+                } else if (v == 77 && w != 46 && w != 77) {
+                    assertEquals(position(before, v, after) < position(before, w, after),
+                            after.vertexOf(v) < after.vertexOf(w));
+                }
+            }
+        }
+        /* Taken over or not, every edge is as long as the graph says it is. */
+        for (long v : after.vertices()) {
+            for (long w : after.adjacent(v)) {
+                int e = after.edge(after.vertexOf(v), after.vertexOf(w));
+                assertEquals(after.distance(v, w), after.edgeWeight(e), 1e-12);
+                assertEquals(after.bearing(v, w), after.edgeBearing(e), 1e-4);
+            }
+        }
+        /* The patched indexes find what is there now. */
+        assertEquals(77, after.closest(0.36, 38.36, false));
+        assertEquals(after.locations("top dog")[0], after.nearestLocation(0.36, 38.36));
+        SegmentIndex.Snap snap = after.snap(0.45, 38.55, false);
+        assertEquals(0, snap.distance, 1e-9);
+        assertTrue(snap.source == after.vertexOf(46) || snap.target == after.vertexOf(46));
+    }
+
+    @Test
+    public void testRenumbering() throws IOException {
+        /* CHANGE adds a vertex and moves another outside the box the six vertices span,
+        too many to leave at its edge, so the vertices are numbered along a curve over a
+        new box, as a graph read from the result numbers them. */
+        GraphDB after = new GraphDB(OSM_DB_PATH_TINY)
+                .applyChanges(write("change", ".osc", CHANGE));
+        GraphDB reloaded = new GraphDB(snapshot(after, ".osm"));
+        for (long v : after.vertices()) {
+            assertEquals(reloaded.vertexOf(v), after.vertexOf(v));
+        }
+        assertEquals(77, after.closest(0.7, 38.7, false));
+    }
+
+    @Test
+    public void testSnapshotRoundTrip() throws IOException {
+        GraphDB after = new GraphDB(OSM_DB_PATH_TINY)
+                .applyChanges(write("change", ".osc", CHANGE));
+        File snapshot = File.createTempFile("snapshot", ".osm.gz");
+        snapshot.deleteOnExit();
+        after.writeSnapshot(snapshot.getPath());
+
+        GraphDB reloaded = new GraphDB(snapshot.getPath());
+        assertEquals(set(after.vertices()), set(reloaded.vertices()));
+        for (long v : after.vertices()) {
+            assertEquals(set(after.adjacent(v)), set(reloaded.adjacent(v)));
+            assertEquals(after.lon(v), reloaded.lon(v), 0);
+            assertEquals(after.lat(v), reloaded.lat(v), 0);
+            assertEquals(after.wayName(v), reloaded.wayName(v));
+        }
+        assertArrayEquals(after.locations("top dog"), reloaded.locations("top dog"));
+    }
+
+    @Test
+    public void testRestrictionChanges() throws IOException {
+        String create = "<osmChange version=\"0.6\"><create>"
+                + "<relation id=\"900\"><member type=\"way\" ref=\"400\" role=\"from\"/>"
+                + "<member type=\"node\" ref=\"66\" role=\"via\"/>"
+                + "<member type=\"way\" ref=\"401\" role=\"to\"/>"
+                + "<tag k=\"type\" v=\"restriction\"/>"
+                + "<tag k=\"restriction\" v=\"no_left_turn\"/></relation>"
+                + "</create></osmChange>\n";
+        String delete = "<osmChange version=\"0.6\"><delete><relation id=\"900\"/></delete>"
+                + "</osmChange>\n";
+        GraphDB created = new GraphDB(OSM_DB_PATH_TINY)
+                .applyChanges(write("change", ".osc", create));
+        String snapshot = snapshot(new GraphDB(snapshot(created, ".osm")), ".osm");
+        String xml = new String(Files.readAllBytes(new File(snapshot).toPath()),
+                StandardCharsets.UTF_8);
+        assertTrue(xml.contains("<relation id=\"900\">"));
+        assertTrue(xml.contains("<tag k=\"restriction\" v=\"no_left_turn\"/>"));
+
+        GraphDB deleted = created.applyChanges(write("change", ".osc", delete));
+        xml = new String(Files.readAllBytes(new File(snapshot(deleted, ".osm")).toPath()),
+                StandardCharsets.UTF_8);
+        assertFalse(xml.contains("<relation"));
+    }
+
+    /**
+     * The position of vertex v, by OSM id, of g on the Hilbert curve over the box of the
+     * vertices of frame.
+     */
+    private static long position(GraphDB frame, long v, GraphDB g) {
+        double minLon = Double.POSITIVE_INFINITY;
+        double maxLon = Double.NEGATIVE_INFINITY;
+        double minLat = Double.POSITIVE_INFINITY;
+        double maxLat = Double.NEGATIVE_INFINITY;
+        for (long w : frame.vertices()) {
+            minLon = Math.min(minLon, frame.lon(w));
+            maxLon = Math.max(maxLon, frame.lon(w));
+            minLat = Math.min(minLat, frame.lat(w));
+            maxLat = Math.max(maxLat, frame.lat(w));
+        }
+        return HilbertCurve.index(HilbertCurve.cell(g.lon(v), minLon, maxLon),
+                HilbertCurve.cell(g.lat(v), minLat, maxLat));
+    }
+
+    private static String snapshot(GraphDB g, String suffix) throws IOException {
+        File file = File.createTempFile("snapshot", suffix);
+        file.deleteOnExit();
+        g.writeSnapshot(file.getPath());
+        return file.getPath();
+    }
+
+    private static String write(String prefix, String suffix, String content)
+            throws IOException {
+        File file = File.createTempFile(prefix, suffix);
+        file.deleteOnExit();
+        Files.write(file.toPath(), content.getBytes(StandardCharsets.UTF_8));
+        return file.getPath();
+    }
+
+    private static Set<Long> set(long... ids) {
+        Set<Long> result = new HashSet<>();
+        for (long id : ids) {
+            result.add(id);
+        }
+        return result;
+    }
+
+    private static Set<Long> set(Iterable<Long> ids) {
+        Set<Long> result = new HashSet<>();
+        for (long id : ids) {
+            result.add(id);
+        }
+        return result;
+    }
+}
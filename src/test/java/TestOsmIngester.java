@@ -0,0 +1,77 @@
+import org.junit.Test;
+
+import java.io.File;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+/**
+ * Tests that the threads reading an OSM file end when the thread they hand the file's
+ * elements to gives up.
+ */
+public class TestOsmIngester {
+    private static final int NODES = 200_000;
+
+    @Test
+    public void testAbandonedIngest() throws Exception {
+        File file = File.createTempFile("many", ".osm");
+        file.deleteOnExit();
+        try (Writer out = Files.newBufferedWriter(file.toPath(), StandardCharsets.UTF_8)) {
+            out.write("<?xml version='1.0' encoding='UTF-8'?>\n<osm>\n");
+            for (int i = 1; i <= NODES; i++) {
+                out.write("<node id=\"" + i + "\" lat=\"37.8\" lon=\"-122.2\"/>\n");
+            }
+            out.write("</osm>\n");
+        }
+
+        /* A sink that fails only once the parser has filled the queue to it. */
+        OsmSink failing = new OsmSink() {
+            @Override
+            public void node(long id, double lon, double lat, String name) {
+                try {
+                    Thread.sleep(500);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                throw new IllegalStateException("Sink failed");
+            }
+
+            @Override
+            public void way(long id, long[] refs, String highway, String name,
+                            String maxspeed) {
+            }
+
+            @Override
+            public void restriction(long id, long fromWay, long viaNode, long toWay,
+                                    String restriction) {
+            }
+        };
+        try {
+            OsmIngester.ingest(file.getPath(), failing);
+            fail("The sink's failure was not passed on");
+        } catch (IllegalStateException e) {
+            assertEquals("Sink failed", e.getMessage());
+        }
+
+        long deadline = System.currentTimeMillis() + 10_000;
+        while (pipelineRunning()) {
+            if (System.currentTimeMillis() > deadline) {
+                fail("The parser or reader thread is still running");
+            }
+            Thread.sleep(20);
+        }
+    }
+
+    private static boolean pipelineRunning() {
+        for (Thread thread : Thread.getAllStackTraces().keySet()) {
+            if (thread.isAlive() && (thread.getName().equals("osm-parser")
+                    || thread.getName().equals("osm-reader"))) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,361 @@
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.Deflater;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Tests PbfReader on small PBF files written by the PbfWriter below.
+ */
+public class TestPbfReader {
+
+    @Test
+    public void testNodesAndWays() throws IOException {
+        PbfWriter w = new PbfWriter();
+        w.node(11, 0.1, 38.1, "");
+        w.node(22, 0.2, 38.2, "Top Dog");
+        w.node(41, -122.2586523, 37.8696284, "Caf\u00e9 Strada");
+        w.way(400, new long[]{11, 22, 41}, "residential", "Top Street", "25 mph");
+        w.way(401, new long[]{22, 41}, "footway", "Path", "");
+        w.way(402, new long[]{41, 11}, "primary", "", "");
+
+        Recorder r = read(w.toByteArray(2));
+        assertEquals(Arrays.asList(11L, 22L, 41L), r.nodeIds);
+        assertEquals(-122.2586523, r.lons.get(2), 0);
+        assertEquals(37.8696284, r.lats.get(2), 0);
+        assertEquals(Arrays.asList("", "Top Dog", "Caf\u00e9 Strada"), r.nodeNames);
+
+        assertEquals(Arrays.asList(400L, 402L), new ArrayList<>(r.ways.keySet()));
+        assertArrayEquals(new long[]{11, 22, 41}, r.ways.get(400L));
+        assertEquals(Arrays.asList("residential", "primary"), r.wayHighways);
+        assertEquals(Arrays.asList("Top Street", ""), r.wayNames);
+        assertEquals(Arrays.asList("25 mph", ""), r.wayMaxspeeds);
+    }
+
+    @Test
+    public void testRestrictions() throws IOException {
+        PbfWriter w = new PbfWriter();
+        w.node(11, 0.1, 38.1, "");
+        w.node(22, 0.2, 38.2, "");
+        w.node(33, 0.3, 38.3, "");
+        w.way(400, new long[]{11, 22}, "residential", "", "");
+        w.way(401, new long[]{22, 33}, "residential", "", "");
+        w.restriction(900, 400, 22, 401, "no_left_turn");
+        w.restriction(901, 401, 22, 400, "only_straight_on");
+        w.restriction(902, 401, 22, 400, "no_parking");
+
+        Recorder r = read(w.toByteArray(2));
+        assertEquals(Arrays.asList("900 400 22 401 no_left_turn",
+                "901 401 22 400 only_straight_on"), r.restrictions);
+    }
+
+    @Test
+    public void testManyBlocksStayInOrder() throws IOException {
+        PbfWriter w = new PbfWriter();
+        for (int i = 0; i < 1000; i++) {
+            w.node(i * 3, i * 0.001, 37 + i * 0.001, i % 7 == 0 ? "n" + i : "");
+        }
+        for (int i = 0; i < 300; i++) {
+            w.way(5000 + i, new long[]{i * 3, i * 3 + 3}, "tertiary", "w" + i, "");
+        }
+        Recorder r = read(w.toByteArray(64));
+        assertEquals(1000, r.nodeIds.size());
+        for (int i = 0; i < 1000; i++) {
+            assertEquals(i * 3L, (long) r.nodeIds.get(i));
+        }
+        assertEquals(300, r.ways.size());
+        assertEquals("w299", r.wayNames.get(299));
+    }
+
+    private static Recorder read(byte[] pbf) throws IOException {
+        Recorder r = new Recorder();
+        PbfReader.read(new ByteArrayInputStream(pbf), r, 4);
+        return r;
+    }
+
+    /** Remembers everything it is given. */
+    private static class Recorder implements OsmSink {
+        final List<Long> nodeIds = new ArrayList<>();
+        final List<Double> lons = new ArrayList<>();
+        final List<Double> lats = new ArrayList<>();
+        final List<String> nodeNames = new ArrayList<>();
+        final Map<Long, long[]> ways = new LinkedHashMap<>();
+        final List<String> wayHighways = new ArrayList<>();
+        final List<String> wayNames = new ArrayList<>();
+        final List<String> wayMaxspeeds = new ArrayList<>();
+        final List<String> restrictions = new ArrayList<>();
+
+        @Override
+        public void node(long id, double lon, double lat, String name) {
+            nodeIds.add(id);
+            lons.add(lon);
+            lats.add(lat);
+            nodeNames.add(name);
+        }
+
+        @Override
+        public void way(long id, long[] refs, String highway, String name, String maxspeed) {
+            ways.put(id, refs);
+            wayHighways.add(highway);
+            wayNames.add(name);
+            wayMaxspeeds.add(maxspeed);
+        }
+
+        @Override
+        public void restriction(long id, long fromWay, long viaNode, long toWay,
+                                String restriction) {
+            restrictions.add(id + " " + fromWay + " " + viaNode + " " + toWay + " "
+                    + restriction);
+        }
+    }
+
+    /**
+     * Writes a minimal OSM PBF file: dense nodes, ways and restriction relations, a few per
+     * block, zlib compressed.
+     * Also usable as an OsmSink, e.g. to convert XML files for benchmarking.
+     */
+    static class PbfWriter implements OsmSink {
+        private static final long GRANULARITY = 100;
+
+        private final List<Object[]> nodes = new ArrayList<>();
+        private final List<Object[]> ways = new ArrayList<>();
+        private final List<Object[]> relations = new ArrayList<>();
+
+        @Override
+        public void node(long id, double lon, double lat, String name) {
+            nodes.add(new Object[]{id, Math.round(lon * 1e7), Math.round(lat * 1e7), name});
+        }
+
+        @Override
+        public void way(long id, long[] refs, String highway, String name, String maxspeed) {
+            ways.add(new Object[]{id, refs, highway, name, maxspeed});
+        }
+
+        @Override
+        public void restriction(long id, long fromWay, long viaNode, long toWay,
+                                String restriction) {
+            relations.add(new Object[]{id, fromWay, viaNode, toWay, restriction});
+        }
+
+        byte[] toByteArray(int perBlock) throws IOException {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            write(out, perBlock);
+            return out.toByteArray();
+        }
+
+        void write(OutputStream out, int perBlock) throws IOException {
+            DataOutputStream data = new DataOutputStream(out);
+            Proto header = new Proto();
+            header.string(4, "OsmSchema-V0.6");
+            header.string(4, "DenseNodes");
+            blob(data, "OSMHeader", header.toByteArray());
+            for (int i = 0; i < nodes.size(); i += perBlock) {
+                blob(data, "OSMData", nodeBlock(nodes.subList(i, Math.min(nodes.size(), i + perBlock))));
+            }
+            for (int i = 0; i < ways.size(); i += perBlock) {
+                blob(data, "OSMData", wayBlock(ways.subList(i, Math.min(ways.size(), i + perBlock))));
+            }
+            for (int i = 0; i < relations.size(); i += perBlock) {
+                int end = Math.min(relations.size(), i + perBlock);
+                List<Object[]> block = relations.subList(i, end);
+                blob(data, "OSMData", relationBlock(block));
+            }
+            data.flush();
+        }
+
+        private static byte[] nodeBlock(List<Object[]> block) {
+            List<String> strings = new ArrayList<>(Arrays.asList("", "name"));
+            Proto ids = new Proto();
+            Proto lats = new Proto();
+            Proto lons = new Proto();
+            Proto keysVals = new Proto();
+            long id = 0;
+            long lat = 0;
+            long lon = 0;
+            for (Object[] n : block) {
+                long nlat = (Long) n[2];
+                ids.sint((Long) n[0] - id);
+                lons.sint((Long) n[1] - lon);
+                lats.sint(nlat - lat);
+                id = (Long) n[0];
+                lon = (Long) n[1];
+                lat = nlat;
+                if (!((String) n[3]).isEmpty()) {
+                    keysVals.varint(1);
+                    keysVals.varint(index(strings, (String) n[3]));
+                }
+                keysVals.varint(0);
+            }
+            Proto dense = new Proto();
+            dense.bytes(1, ids.toByteArray());
+            dense.bytes(8, lats.toByteArray());
+            dense.bytes(9, lons.toByteArray());
+            dense.bytes(10, keysVals.toByteArray());
+            Proto group = new Proto();
+            group.bytes(2, dense.toByteArray());
+            return primitiveBlock(strings, group);
+        }
+
+        private static byte[] wayBlock(List<Object[]> block) {
+            List<String> strings = new ArrayList<>(Arrays.asList("", "highway", "name", "maxspeed"));
+            Proto group = new Proto();
+            for (Object[] w : block) {
+                Proto keys = new Proto();
+                Proto vals = new Proto();
+                String[] tags = {(String) w[2], (String) w[3], (String) w[4]};
+                for (int k = 0; k < tags.length; k++) {
+                    if (!tags[k].isEmpty()) {
+                        keys.varint(k + 1);
+                        vals.varint(index(strings, tags[k]));
+                    }
+                }
+                Proto refs = new Proto();
+                long prev = 0;
+                for (long ref : (long[]) w[1]) {
+                    refs.sint(ref - prev);
+                    prev = ref;
+                }
+                Proto way = new Proto();
+                way.field(1, 0);
+                way.varint((Long) w[0]);
+                way.bytes(2, keys.toByteArray());
+                way.bytes(3, vals.toByteArray());
+                way.bytes(8, refs.toByteArray());
+                group.bytes(3, way.toByteArray());
+            }
+            return primitiveBlock(strings, group);
+        }
+
+        private static byte[] relationBlock(List<Object[]> block) {
+            List<String> strings = new ArrayList<>(Arrays.asList("", "type", "restriction",
+                    "from", "via", "to"));
+            Proto group = new Proto();
+            for (Object[] r : block) {
+                Proto keys = new Proto();
+                Proto vals = new Proto();
+                keys.varint(1);
+                vals.varint(2);
+                keys.varint(2);
+                vals.varint(index(strings, (String) r[4]));
+                Proto roles = new Proto();
+                Proto memids = new Proto();
+                Proto types = new Proto();
+                long prev = 0;
+                for (int m = 0; m < 3; m++) {
+                    long ref = (Long) r[m + 1];
+                    roles.varint(m + 3);
+                    memids.sint(ref - prev);
+                    prev = ref;
+                    types.varint(m == 1 ? 0 : 1);
+                }
+                Proto relation = new Proto();
+                relation.field(1, 0);
+                relation.varint((Long) r[0]);
+                relation.bytes(2, keys.toByteArray());
+                relation.bytes(3, vals.toByteArray());
+                relation.bytes(8, roles.toByteArray());
+                relation.bytes(9, memids.toByteArray());
+                relation.bytes(10, types.toByteArray());
+                group.bytes(4, relation.toByteArray());
+            }
+            return primitiveBlock(strings, group);
+        }
+
+        private static byte[] primitiveBlock(List<String> strings, Proto group) {
+            Proto table = new Proto();
+            for (String s : strings) {
+                table.string(1, s);
+            }
+            Proto block = new Proto();
+            block.bytes(1, table.toByteArray());
+            block.bytes(2, group.toByteArray());
+            block.field(17, 0);
+            block.varint(GRANULARITY);
+            return block.toByteArray();
+        }
+
+        private static int index(List<String> strings, String s) {
+            int i = strings.indexOf(s);
+            if (i < 0) {
+                strings.add(s);
+                i = strings.size() - 1;
+            }
+            return i;
+        }
+
+        private static void blob(DataOutputStream out, String type, byte[] raw) throws IOException {
+            Deflater deflater = new Deflater();
+            deflater.setInput(raw);
+            deflater.finish();
+            ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+            byte[] buf = new byte[4096];
+            while (!deflater.finished()) {
+                compressed.write(buf, 0, deflater.deflate(buf));
+            }
+            deflater.end();
+
+            Proto blob = new Proto();
+            blob.field(2, 0);
+            blob.varint(raw.length);
+            blob.bytes(3, compressed.toByteArray());
+            byte[] blobBytes = blob.toByteArray();
+
+            Proto header = new Proto();
+            header.string(1, type);
+            header.field(3, 0);
+            header.varint(blobBytes.length);
+            byte[] headerBytes = header.toByteArray();
+
+            out.writeInt(headerBytes.length);
+            out.write(headerBytes);
+            out.write(blobBytes);
+        }
+    }
+
+    /** Minimal protobuf wire format writer. */
+    private static class Proto {
+        private final ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+        void field(int field, int wireType) {
+            varint((long) field << 3 | wireType);
+        }
+
+        void varint(long v) {
+            while ((v & ~0x7fL) != 0) {
+                out.write((int) ((v & 0x7f) | 0x80));
+                v >>>= 7;
+            }
+            out.write((int) v);
+        }
+
+        void sint(long v) {
+            varint((v << 1) ^ (v >> 63));
+        }
+
+        void bytes(int field, byte[] b) {
+            field(field, 2);
+            varint(b.length);
+            out.write(b, 0, b.length);
+        }
+
+        void string(int field, String s) {
+            bytes(field, s.getBytes(StandardCharsets.UTF_8));
+        }
+
+        byte[] toByteArray() {
+            return out.toByteArray();
+        }
+    }
+}
@@ -47,6 +47,29 @@ public class TestRasterer {
         }
     }
 
+    @Test
+    public void testDeeperDepths() {
+        /* A box a few hundred meters wide, finer than the stored tiles resolve. */
+        Map<String, Double> params = new HashMap<>();
+        params.put("ullon", -122.2560);
+        params.put("ullat", 37.8600);
+        params.put("lrlon", -122.2540);
+        params.put("lrlat", 37.8590);
+        params.put("w", 1000.0);
+        params.put("h", 500.0);
+        assertEquals(7, rasterer.getMapRaster(params).get("depth"));
+
+        Map<String, Object> deeper = new Rasterer(TileRenderer.MAX_DEPTH).getMapRaster(params);
+        assertEquals(8, deeper.get("depth"));
+        double lonWidth = (MapServer.ROOT_LRLON - MapServer.ROOT_ULLON) / (1 << 8);
+        assertTrue((double) deeper.get("raster_ul_lon") <= params.get("ullon"));
+        assertTrue((double) deeper.get("raster_lr_lon") >= params.get("lrlon"));
+        assertTrue((double) deeper.get("raster_lr_lon") - (double) deeper.get("raster_ul_lon")
+                <= params.get("lrlon") - params.get("ullon") + 2 * lonWidth + DOUBLE_THRESHOLD);
+        String[][] grid = (String[][]) deeper.get("render_grid");
+        assertTrue(grid[0][0].startsWith("d8_x"));
+    }
+
     private List<Map<String, Double>> paramsFromFile() throws Exception {
         List<String> lines = Files.readAllLines(Paths.get(PARAMS_FILE), Charset.defaultCharset());
         List<Map<String, Double>> testParams = new ArrayList<>();
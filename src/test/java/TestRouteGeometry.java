@@ -0,0 +1,160 @@
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.awt.geom.Path2D;
+import java.awt.geom.PathIterator;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests drawing and encoding a route that runs east along a slight zigzag, then back west
+ * a little further north.
+ */
+public class TestRouteGeometry {
+    private static final int POINTS = 300;
+    private static GraphDB graph;
+    private static List<Long> route = new ArrayList<>();
+
+    @BeforeClass
+    public static void setUp() throws IOException {
+        StringBuilder osm = new StringBuilder("<?xml version='1.0' encoding='UTF-8'?>\n<osm>\n");
+        StringBuilder way = new StringBuilder("<way id=\"1\">");
+        for (int i = 0; i < 2 * POINTS; i++) {
+            int along = i < POINTS ? i : 2 * POINTS - 1 - i;
+            double lat = (i < POINTS ? 37.85 : 37.86) + (i % 2) * 1e-7;
+            osm.append("<node id=\"").append(i).append("\" lat=\"").append(lat)
+                    .append("\" lon=\"").append(-122.30 + along * 0.1 / POINTS).append("\"/>\n");
+            way.append("<nd ref=\"").append(i).append("\"/>");
+            route.add((long) i);
+        }
+        osm.append(way).append("<tag k=\"highway\" v=\"residential\"/></way>\n</osm>\n");
+        File file = File.createTempFile("route", ".osm");
+        file.deleteOnExit();
+        Files.write(file.toPath(), osm.toString().getBytes(StandardCharsets.UTF_8));
+        graph = new GraphDB(file.getPath());
+    }
+
+    @Test
+    public void testSimplified() {
+        RouteGeometry geometry = new RouteGeometry(graph, route);
+        assertEquals(2 * POINTS, geometry.size());
+        /* The zigzag is far below a pixel, so each leg is a straight line. */
+        List<List<double[]>> subpaths = subpaths(geometry.path(-122.31, 37.87, -122.19,
+                37.84, 1000, 250, 5));
+        assertEquals(1, subpaths.size());
+        assertEquals(4, subpaths.get(0).size());
+    }
+
+    @Test
+    public void testClipped() {
+        RouteGeometry geometry = new RouteGeometry(graph, route);
+        /* A raster over the middle of both legs sees two pieces of the route. */
+        List<List<double[]>> subpaths = subpaths(geometry.path(-122.26, 37.87, -122.24,
+                37.84, 200, 300, 5));
+        assertEquals(2, subpaths.size());
+        for (List<double[]> subpath : subpaths) {
+            for (double[] point : subpath) {
+                /* Within the margin plus the one segment reaching beyond it. */
+                assertTrue(point[0] > -5 - 200.0 / 0.02 * 0.1 / POINTS);
+                assertTrue(point[0] < 205 + 200.0 / 0.02 * 0.1 / POINTS);
+            }
+        }
+        /* A raster away from the route sees nothing of it. */
+        assertEquals(0, subpaths(geometry.path(-122.26, 37.80, -122.24, 37.79, 200, 100,
+                5)).size());
+        assertEquals(0, subpaths(RouteGeometry.NONE.path(-122.26, 37.87, -122.24, 37.84,
+                200, 300, 5)).size());
+    }
+
+    @Test
+    public void testEncode() {
+        /* The example of Google's documentation of the format. */
+        double[] line = {-120.2, 38.5, -120.95, 40.7, -126.453, 43.252};
+        assertEquals("_p~iF~ps|U_ulLnnqC_mqNvxq`@", Polylines.encode(line, null, 5));
+        double[] decoded = decode(Polylines.encode(line, new boolean[] {true, false, true},
+                5), 5);
+        assertEquals(4, decoded.length);
+        assertEquals(43.252, decoded[2], 1e-9);
+        assertEquals(-126.453, decoded[3], 1e-9);
+    }
+
+    @Test
+    public void testEncodedRoute() {
+        RouteGeometry geometry = new RouteGeometry(graph, route);
+        boolean[] all = geometry.simplified(0);
+        assertEquals(2 * POINTS, all.length);
+        double[] decoded = decode(geometry.encoded(all, 6), 6);
+        assertEquals(4 * POINTS, decoded.length);
+        for (int i = 0; i < 2 * POINTS; i++) {
+            long id = route.get(i);
+            assertEquals(graph.lat(id), decoded[2 * i], 1e-6);
+            assertEquals(graph.lon(id), decoded[2 * i + 1], 1e-6);
+        }
+
+        /* The zigzag is about a centimeter, so a meter leaves the corners. */
+        boolean[] kept = geometry.simplified(1);
+        decoded = decode(geometry.encoded(kept, 5), 5);
+        assertEquals(8, decoded.length);
+        assertEquals(37.86, decoded[6], 1e-5);
+        assertEquals(-122.30, decoded[7], 1e-5);
+        /* Two legs of a tenth of a degree of longitude and the step between them. */
+        double leg = GraphDB.distance(-122.30, 37.85, -122.30 + 0.1 * (POINTS - 1) / POINTS,
+                37.85);
+        assertEquals(2 * leg + GraphDB.distance(0, 37.85, 0, 37.86), geometry.length(), 1e-3);
+    }
+
+    @Test
+    public void testEncodedEmptyRoute() {
+        assertEquals(0, RouteGeometry.NONE.simplified(10).length);
+        assertEquals("", RouteGeometry.NONE.encoded(RouteGeometry.NONE.simplified(10), 5));
+        assertEquals(0, RouteGeometry.NONE.length(), 0);
+        RouteGeometry single = new RouteGeometry(graph, route.subList(0, 1));
+        assertEquals(1, single.simplified(10).length);
+        assertEquals(2, decode(single.encoded(single.simplified(10), 5), 5).length);
+    }
+
+    /** Decodes an encoded polyline into its latitudes and longitudes, alternating. */
+    private static double[] decode(String encoded, int precision) {
+        List<Double> values = new ArrayList<>();
+        double factor = Math.pow(10, precision);
+        long[] last = new long[2];
+        int i = 0;
+        while (i < encoded.length()) {
+            long zigzag = 0;
+            int shift = 0;
+            int chunk;
+            do {
+                chunk = encoded.charAt(i++) - 63;
+                zigzag |= (long) (chunk & 0x1F) << shift;
+                shift += 5;
+            } while (chunk >= 0x20);
+            int k = values.size() % 2;
+            last[k] += (zigzag & 1) != 0 ? ~(zigzag >> 1) : zigzag >> 1;
+            values.add(last[k] / factor);
+        }
+        double[] decoded = new double[values.size()];
+        for (int k = 0; k < decoded.length; k++) {
+            decoded[k] = values.get(k);
+        }
+        return decoded;
+    }
+
+    private static List<List<double[]>> subpaths(Path2D path) {
+        List<List<double[]>> subpaths = new ArrayList<>();
+        double[] coords = new double[6];
+        for (PathIterator it = path.getPathIterator(null); !it.isDone(); it.next()) {
+            if (it.currentSegment(coords) == PathIterator.SEG_MOVETO) {
+                subpaths.add(new ArrayList<>());
+            }
+            subpaths.get(subpaths.size() - 1).add(new double[] {coords[0], coords[1]});
+        }
+        return subpaths;
+    }
+}
@@ -0,0 +1,114 @@
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests searching within budgets from corner to corner of a grid of streets, where A*
+ * settles most of the grid.
+ */
+public class TestRouterBudget {
+    private static final int SIZE = 30;
+    private static final double SPACING = 0.001;
+    private static GraphDB graph;
+
+    @BeforeClass
+    public static void setUp() throws IOException {
+        StringBuilder osm = new StringBuilder("<?xml version='1.0' encoding='UTF-8'?>\n<osm>\n");
+        for (int r = 0; r < SIZE; r++) {
+            for (int c = 0; c < SIZE; c++) {
+                osm.append("<node id=\"").append(id(r, c)).append("\" lat=\"")
+                        .append(37.85 + r * SPACING).append("\" lon=\"")
+                        .append(-122.28 + c * SPACING).append("\"/>\n");
+            }
+        }
+        for (int i = 0; i < SIZE; i++) {
+            StringBuilder row = new StringBuilder();
+            StringBuilder column = new StringBuilder();
+            for (int j = 0; j < SIZE; j++) {
+                row.append("<nd ref=\"").append(id(i, j)).append("\"/>");
+                column.append("<nd ref=\"").append(id(j, i)).append("\"/>");
+            }
+            osm.append("<way id=\"").append(2 * i + 1).append("\">").append(row)
+                    .append("<tag k=\"highway\" v=\"residential\"/></way>\n");
+            osm.append("<way id=\"").append(2 * i + 2).append("\">").append(column)
+                    .append("<tag k=\"highway\" v=\"residential\"/></way>\n");
+        }
+        osm.append("</osm>\n");
+        File file = File.createTempFile("grid", ".osm");
+        file.deleteOnExit();
+        Files.write(file.toPath(), osm.toString().getBytes(StandardCharsets.UTF_8));
+        graph = new GraphDB(file.getPath());
+    }
+
+    @Test
+    public void testUnlimited() {
+        Router.Budget budget = Router.Budget.unlimited();
+        List<Long> path = route(budget);
+        assertEquals(Router.Outcome.COMPLETE, budget.outcome());
+        assertEquals(2 * SIZE - 1, path.size());
+        assertTrue(budget.settled() > 2 * SIZE);
+    }
+
+    @Test
+    public void testExceeded() {
+        long exceeded = Router.searches(Router.Outcome.EXCEEDED);
+        Router.Budget budget = new Router.Budget(SIZE, Long.MAX_VALUE, 1);
+        assertTrue(route(budget).isEmpty());
+        assertEquals(Router.Outcome.EXCEEDED, budget.outcome());
+        assertEquals(exceeded + 1, Router.searches(Router.Outcome.EXCEEDED));
+
+        /* No time at all runs out at the first look at the clock. */
+        budget = new Router.Budget(Integer.MAX_VALUE, 0, 1);
+        assertTrue(route(budget).isEmpty());
+        assertEquals(Router.Outcome.EXCEEDED, budget.outcome());
+    }
+
+    @Test
+    public void testFallback() {
+        Router.Budget unlimited = Router.Budget.unlimited();
+        double cheapest = length(route(unlimited));
+        long approximate = Router.searches(Router.Outcome.APPROXIMATE);
+
+        /* Too few vertices for A*, but enough for a search pulled towards the end. */
+        double epsilon = 2;
+        Router.Budget budget = new Router.Budget(unlimited.settled() / 2, Long.MAX_VALUE,
+                epsilon);
+        List<Long> path = route(budget);
+        assertEquals(Router.Outcome.APPROXIMATE, budget.outcome());
+        assertEquals(approximate + 1, Router.searches(Router.Outcome.APPROXIMATE));
+        assertEquals(id(0, 0), (long) path.get(0));
+        assertEquals(id(SIZE - 1, SIZE - 1), (long) path.get(path.size() - 1));
+        assertTrue(length(path) <= epsilon * cheapest);
+
+        /* The fallback gets no more vertices than the search before it. */
+        budget = new Router.Budget(2, Long.MAX_VALUE, epsilon);
+        assertTrue(route(budget).isEmpty());
+        assertEquals(Router.Outcome.EXCEEDED, budget.outcome());
+    }
+
+    private static List<Long> route(Router.Budget budget) {
+        return Router.shortestPath(graph, -122.28, 37.85, -122.28 + (SIZE - 1) * SPACING,
+                37.85 + (SIZE - 1) * SPACING, false, RouteProfile.SHORTEST,
+                Router.Snapping.VERTEX, budget);
+    }
+
+    private static double length(List<Long> path) {
+        double length = 0;
+        for (int i = 1; i < path.size(); i++) {
+            length += graph.distance(path.get(i - 1), path.get(i));
+        }
+        return length;
+    }
+
+    private static long id(int row, int column) {
+        return row * SIZE + column + 1;
+    }
+}
@@ -0,0 +1,367 @@
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.awt.geom.Rectangle2D;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests that the segment index finds the same nearest vertices, road points and named
+ * locations, and the same features in a box, as a scan over the whole graph, on a random
+ * map of short ways.
+ */
+public class TestSegmentIndex {
+    private static GraphDB graph;
+    /** Names of the ways between each pair of nodes, keyed by the lower id times 10000. */
+    private static final Map<Long, Set<String>> WAY_NAMES = new HashMap<>();
+
+    @BeforeClass
+    public static void setUp() throws IOException {
+        Random random = new Random(11);
+        StringBuilder osm = new StringBuilder("<?xml version='1.0' encoding='UTF-8'?>\n<osm>\n");
+        int nodes = 2000;
+        for (int i = 0; i < nodes; i++) {
+            osm.append("<node id=\"").append(i).append("\" lat=\"")
+                    .append(37.8 + random.nextDouble() * 0.1).append("\" lon=\"")
+                    .append(-122.3 + random.nextDouble() * 0.1).append("\">");
+            if (i % 7 == 0) {
+                osm.append("<tag k=\"name\" v=\"Place ").append(i).append("\"/>");
+            }
+            osm.append("</node>\n");
+        }
+        for (int w = 0; w < 1500; w++) {
+            osm.append("<way id=\"").append(w).append("\">");
+            int length = 2 + random.nextInt(3);
+            int previous = -1;
+            for (int k = 0; k < length; k++) {
+                int ref = random.nextInt(nodes);
+                osm.append("<nd ref=\"").append(ref).append("\"/>");
+                if (k > 0) {
+                    WAY_NAMES.computeIfAbsent(pair(previous, ref), p -> new HashSet<>())
+                            .add("Way " + w);
+                }
+                previous = ref;
+            }
+            osm.append("<tag k=\"highway\" v=\"residential\"/>")
+                    .append("<tag k=\"name\" v=\"Way ").append(w).append("\"/></way>\n");
+        }
+        osm.append("</osm>\n");
+        File file = File.createTempFile("segments", ".osm");
+        file.deleteOnExit();
+        Files.write(file.toPath(), osm.toString().getBytes(StandardCharsets.UTF_8));
+        graph = new GraphDB(file.getPath());
+    }
+
+    @Test
+    public void testNearestVertex() {
+        SegmentIndex index = new SegmentIndex(graph.storage(), Columns.HEAP);
+        Random random = new Random(3);
+        int n = graph.numVertices();
+        for (int q = 0; q < 500; q++) {
+            /* Some queries lie outside the map. */
+            double lon = -122.35 + random.nextDouble() * 0.2;
+            double lat = 37.75 + random.nextDouble() * 0.2;
+            int expected = -1;
+            int expectedEven = -1;
+            for (int v = 0; v < n; v++) {
+                double d = distance(v, lon, lat);
+                if (expected < 0 || d < distance(expected, lon, lat)) {
+                    expected = v;
+                }
+                if (v % 2 == 0 && (expectedEven < 0 || d < distance(expectedEven, lon, lat))) {
+                    expectedEven = v;
+                }
+            }
+            assertEquals(expected, index.nearestVertex(lon, lat, null));
+            assertEquals(expectedEven, index.nearestVertex(lon, lat, v -> v % 2 == 0));
+            assertEquals(graph.osmId(expected), graph.closest(lon, lat));
+        }
+        assertEquals(-1, index.nearestVertex(-122.3, 37.8, v -> false));
+    }
+
+    @Test
+    public void testNearestSegment() {
+        SegmentIndex index = new SegmentIndex(graph.storage(), Columns.HEAP);
+        Random random = new Random(5);
+        int n = graph.numVertices();
+        int[] neighbors = new int[graph.maxDegree()];
+        for (int q = 0; q < 500; q++) {
+            double lon = -122.35 + random.nextDouble() * 0.2;
+            double lat = 37.75 + random.nextDouble() * 0.2;
+            double expected = Double.POSITIVE_INFINITY;
+            for (int v = 0; v < n; v++) {
+                for (int i = graph.neighbors(v, neighbors) - 1; i >= 0; i--) {
+                    expected = Math.min(expected, planarDistance(v, neighbors[i], lon, lat));
+                }
+            }
+            SegmentIndex.Snap snap = index.nearestSegment(lon, lat, null);
+            assertEquals(expected, planarDistance(snap.source, snap.target, lon, lat), 1e-12);
+            assertEquals(snap.edge, graph.edge(snap.source, snap.target));
+            assertTrue(snap.fraction >= 0 && snap.fraction <= 1);
+            assertEquals(GraphDB.distance(lon, lat, snap.lon, snap.lat), snap.distance, 1e-12);
+        }
+        assertNull(index.nearestSegment(-122.3, 37.8, v -> false));
+    }
+
+    @Test
+    public void testNearestLocation() {
+        LocationRecords records = graph.locationRecords();
+        assertTrue(records.size() > 0);
+        Random random = new Random(7);
+        for (int q = 0; q < 500; q++) {
+            double lon = -122.35 + random.nextDouble() * 0.2;
+            double lat = 37.75 + random.nextDouble() * 0.2;
+            int expected = -1;
+            for (int r = 0; r < records.size(); r++) {
+                double d = GraphDB.distance(lon, lat, records.lon(r), records.lat(r));
+                if (expected < 0 || d < GraphDB.distance(lon, lat, records.lon(expected),
+                        records.lat(expected))) {
+                    expected = r;
+                }
+            }
+            assertEquals(expected, graph.nearestLocation(lon, lat));
+        }
+    }
+
+    @Test
+    public void testEdgeWayNames() {
+        int[] neighbors = new int[graph.maxDegree()];
+        for (int v = 0; v < graph.numVertices(); v++) {
+            int degree = graph.neighbors(v, neighbors);
+            for (int i = 0; i < degree; i++) {
+                String name = graph.edgeWayName(graph.firstEdge(v) + i);
+                Set<String> expected = WAY_NAMES.get(pair((int) graph.osmId(v),
+                        (int) graph.osmId(neighbors[i])));
+                assertTrue(name, expected.contains(name));
+            }
+        }
+    }
+
+    @Test
+    public void testWithin() {
+        Random random = new Random(9);
+        int[] neighbors = new int[graph.maxDegree()];
+        LocationRecords records = graph.locationRecords();
+        for (int q = 0; q < 100; q++) {
+            double minLon = -122.32 + random.nextDouble() * 0.1;
+            double minLat = 37.78 + random.nextDouble() * 0.1;
+            Rectangle2D box = new Rectangle2D.Double(minLon, minLat,
+                    random.nextDouble() * 0.05, random.nextDouble() * 0.05);
+            Set<Integer> expected = new HashSet<>();
+            for (int v = 0; v < graph.numVertices(); v++) {
+                int degree = graph.neighbors(v, neighbors);
+                for (int i = 0; i < degree; i++) {
+                    int w = neighbors[i];
+                    if (v <= w && box.intersectsLine(graph.lonAt(v), graph.latAt(v),
+                            graph.lonAt(w), graph.latAt(w))) {
+                        expected.add(graph.firstEdge(v) + i);
+                    }
+                }
+            }
+            Set<Integer> found = new HashSet<>();
+            assertEquals(expected.size(), graph.segmentsWithin(box.getMinX(), box.getMinY(),
+                    box.getMaxX(), box.getMaxY(), Integer.MAX_VALUE, (e, v, w) -> {
+                        graph.neighbors(v, neighbors);
+                        assertEquals(w, neighbors[e - graph.firstEdge(v)]);
+                        found.add(e);
+                    }));
+            assertEquals(expected, found);
+
+            Set<Integer> thinned = new HashSet<>();
+            graph.segmentsWithin(box.getMinX(), box.getMinY(), box.getMaxX(), box.getMaxY(),
+                    10, (e, v, w) -> thinned.add(e));
+            assertTrue(thinned.size() <= 10);
+            assertTrue(expected.containsAll(thinned));
+            assertEquals(Math.min(10, expected.size()) > 0, thinned.size() > 0);
+
+            Set<Integer> expectedPlaces = new HashSet<>();
+            for (int r = 0; r < records.size(); r++) {
+                if (box.contains(records.lon(r), records.lat(r))) {
+                    expectedPlaces.add(r);
+                }
+            }
+            Set<Integer> places = new HashSet<>();
+            assertEquals(expectedPlaces.size(), graph.locationsWithin(box.getMinX(),
+                    box.getMinY(), box.getMaxX(), box.getMaxY(), Integer.MAX_VALUE, places::add));
+            assertEquals(expectedPlaces, places);
+        }
+    }
+
+    @Test
+    public void testPatch() throws IOException {
+        /* New nodes and ways all over the map, a dense cluster that overfills its leaves,
+        moved, renamed and deleted nodes, and deleted ways; then the same on top of that,
+        and last enough far outside the map to lay the curves anew. */
+        GraphDB g = graph;
+        Random random = new Random(13);
+        int id = 10000;
+        for (int round = 0; round < 3; round++) {
+            double spread = round < 2 ? 0.1 : 0.5;
+            StringBuilder osc = new StringBuilder("<osmChange version=\"0.6\">\n<create>\n");
+            int first = id;
+            for (int i = 0; i < 300; i++, id++) {
+                boolean cluster = i < 40;
+                double lat = cluster ? 37.85 + random.nextDouble() * 0.001
+                        : 37.8 + random.nextDouble() * spread;
+                double lon = cluster ? -122.25 + random.nextDouble() * 0.001
+                        : -122.3 + random.nextDouble() * spread;
+                osc.append("<node id=\"").append(id).append("\" lat=\"").append(lat)
+                        .append("\" lon=\"").append(lon).append("\">");
+                if (i % 5 == 0) {
+                    osc.append("<tag k=\"name\" v=\"New ").append(i % 3).append(" ")
+                            .append(id).append("\"/>");
+                }
+                osc.append("</node>\n");
+            }
+            for (int w = 0; w < 300; w++) {
+                osc.append("<way id=\"").append(id++).append("\">");
+                for (int k = 0; k < 3; k++) {
+                    int ref = w < 40 ? first + (w + k) % 40 : random.nextInt(4) == 0
+                            ? first + random.nextInt(300) : random.nextInt(2000);
+                    osc.append("<nd ref=\"").append(ref).append("\"/>");
+                }
+                osc.append("<tag k=\"highway\" v=\"residential\"/></way>\n");
+            }
+            osc.append("</create>\n<modify>\n");
+            for (int i = 0; i < 100; i++) {
+                int node = random.nextInt(2000);
+                osc.append("<node id=\"").append(node).append("\" lat=\"")
+                        .append(37.8 + random.nextDouble() * 0.1).append("\" lon=\"")
+                        .append(-122.3 + random.nextDouble() * 0.1).append("\">");
+                if (node % 7 == 0) {
+                    osc.append("<tag k=\"name\" v=\"Renamed ").append(node).append("\"/>");
+                }
+                osc.append("</node>\n");
+            }
+            osc.append("</modify>\n<delete>\n");
+            for (int i = 0; i < 100; i++) {
+                osc.append("<way id=\"").append(random.nextInt(1500)).append("\"/>\n");
+            }
+            for (int i = 0; i < 20; i++) {
+                osc.append("<node id=\"").append(random.nextInt(300) * 7).append("\"/>\n");
+            }
+            osc.append("</delete>\n</osmChange>\n");
+            File file = File.createTempFile("segments", ".osc");
+            file.deleteOnExit();
+            Files.write(file.toPath(), osc.toString().getBytes(StandardCharsets.UTF_8));
+            g = g.applyChanges(file.getPath());
+            checkIndexes(g, random);
+        }
+    }
+
+    /** Checks the indexes of g against scans over all of it. */
+    private static void checkIndexes(GraphDB g, Random random) {
+        int n = g.numVertices();
+        int[] neighbors = new int[g.maxDegree()];
+        LocationRecords records = g.locationRecords();
+        for (int q = 0; q < 200; q++) {
+            double lon = -122.35 + random.nextDouble() * 0.2;
+            double lat = 37.75 + random.nextDouble() * 0.2;
+            int nearest = 0;
+            double segment = Double.POSITIVE_INFINITY;
+            for (int v = 0; v < n; v++) {
+                if (distance(g, v, lon, lat) < distance(g, nearest, lon, lat)) {
+                    nearest = v;
+                }
+                for (int i = g.neighbors(v, neighbors) - 1; i >= 0; i--) {
+                    segment = Math.min(segment, planarDistance(g, v, neighbors[i], lon, lat));
+                }
+            }
+            assertEquals(g.osmId(nearest), g.closest(lon, lat));
+            SegmentIndex.Snap snap = g.snap(lon, lat, false);
+            assertEquals(segment, planarDistance(g, snap.source, snap.target, lon, lat), 1e-12);
+            assertEquals(snap.edge, g.edge(snap.source, snap.target));
+
+            int place = 0;
+            for (int r = 1; r < records.size(); r++) {
+                if (GraphDB.distance(lon, lat, records.lon(r), records.lat(r))
+                        < GraphDB.distance(lon, lat, records.lon(place), records.lat(place))) {
+                    place = r;
+                }
+            }
+            assertEquals(place, g.nearestLocation(lon, lat));
+
+            Rectangle2D box = new Rectangle2D.Double(lon, lat, random.nextDouble() * 0.05,
+                    random.nextDouble() * 0.05);
+            Set<Integer> expected = new HashSet<>();
+            for (int v = 0; v < n; v++) {
+                int degree = g.neighbors(v, neighbors);
+                for (int i = 0; i < degree; i++) {
+                    int w = neighbors[i];
+                    if (v <= w && box.intersectsLine(g.lonAt(v), g.latAt(v), g.lonAt(w),
+                            g.latAt(w))) {
+                        expected.add(g.firstEdge(v) + i);
+                    }
+                }
+            }
+            Set<Integer> found = new HashSet<>();
+            assertEquals(expected.size(), g.segmentsWithin(box.getMinX(), box.getMinY(),
+                    box.getMaxX(), box.getMaxY(), Integer.MAX_VALUE, (e, v, w) -> found.add(e)));
+            assertEquals(expected, found);
+            Set<Integer> expectedPlaces = new HashSet<>();
+            for (int r = 0; r < records.size(); r++) {
+                if (box.contains(records.lon(r), records.lat(r))) {
+                    expectedPlaces.add(r);
+                }
+            }
+            Set<Integer> places = new HashSet<>();
+            g.locationsWithin(box.getMinX(), box.getMinY(), box.getMaxX(), box.getMaxY(),
+                    Integer.MAX_VALUE, places::add);
+            assertEquals(expectedPlaces, places);
+        }
+        for (String prefix : new String[] {"new", "new 1", "renamed", "place", "p"}) {
+            Set<String> names = new HashSet<>();
+            for (int r = 0; r < records.size(); r++) {
+                if (GraphDB.cleanString(records.name(r))
+                        .startsWith(GraphDB.cleanString(prefix))) {
+                    names.add(records.name(r));
+                }
+            }
+            List<String> matches = g.matchingLocations(prefix);
+            assertEquals(names, new HashSet<>(matches));
+            assertEquals(names.size(), matches.size());
+        }
+    }
+
+    private static long pair(int a, int b) {
+        return Math.min(a, b) * 10000L + Math.max(a, b);
+    }
+
+    private static double distance(int v, double lon, double lat) {
+        return distance(graph, v, lon, lat);
+    }
+
+    private static double distance(GraphDB g, int v, double lon, double lat) {
+        return GraphDB.distance(lon, lat, g.lonAt(v), g.latAt(v));
+    }
+
+    private static double planarDistance(int v, int w, double lon, double lat) {
+        return planarDistance(graph, v, w, lon, lat);
+    }
+
+    /** Distance from (lon, lat) to the segment from v to w of g, in degrees of latitude. */
+    private static double planarDistance(GraphDB g, int v, int w, double lon, double lat) {
+        double cos = Math.cos(Math.toRadians(lat));
+        double ax = (g.lonAt(v) - lon) * cos;
+        double ay = g.latAt(v) - lat;
+        double bx = (g.lonAt(w) - lon) * cos;
+        double by = g.latAt(w) - lat;
+        double dx = bx - ax;
+        double dy = by - ay;
+        double squared = dx * dx + dy * dy;
+        double t = squared > 0 ? Math.max(0, Math.min(1, -(ax * dx + ay * dy) / squared)) : 0;
+        return Math.hypot(ax + t * dx, ay + t * dy) * 3963 * Math.PI / 180;
+    }
+}
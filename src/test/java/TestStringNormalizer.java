@@ -0,0 +1,62 @@
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.assertFalse;
+
+/**
+ * Tests that StringNormalizer agrees with the original regex based cleanString, and that
+ * the folding variant folds accents and ampersands.
+ */
+public class TestStringNormalizer {
+
+    private static String regexClean(String s) {
+        return s.replaceAll("[^a-zA-Z ]", "").toLowerCase();
+    }
+
+    @Test
+    public void testMatchesRegex() {
+        String[] inputs = {"", " ", "Top Dog", "Peet's Coffee & Tea", "7-Eleven",
+            "CAF\u00c9 STRADA", "Saul's Deli (North)", "\u65e5\u672c", "already clean"};
+        for (String s : inputs) {
+            assertEquals(regexClean(s), StringNormalizer.ASCII.normalize(s));
+            assertEquals(regexClean(s), GraphDB.cleanString(s));
+        }
+    }
+
+    @Test
+    public void testCleanInputIsReturnedAsIs() {
+        String s = "telegraph avenue";
+        assertSame(s, StringNormalizer.ASCII.normalize(s));
+    }
+
+    @Test
+    public void testFolding() {
+        assertEquals("cafe strada", StringNormalizer.FOLDING.normalize("Caf\u00e9 Strada"));
+        assertEquals("strasse", StringNormalizer.FOLDING.normalize("Stra\u00dfe"));
+        assertEquals("toms and co", StringNormalizer.FOLDING.normalize("Tom's & Co"));
+    }
+
+    @Test
+    public void testIntoBuffer() {
+        char[] buf = new char[32];
+        int len = StringNormalizer.FOLDING.normalize("A&B", buf);
+        assertEquals("aandb", new String(buf, 0, len));
+    }
+
+    @Test
+    public void testParseNameNormalizer() {
+        assertSame(StringNormalizer.ASCII, GraphDB.parseNameNormalizer(null));
+        assertSame(StringNormalizer.ASCII, GraphDB.parseNameNormalizer("ascii"));
+        assertSame(StringNormalizer.FOLDING, GraphDB.parseNameNormalizer(" Folding "));
+        assertSame(StringNormalizer.ASCII, GraphDB.parseNameNormalizer("unicode"));
+    }
+
+    @Test
+    public void testIsBlank() {
+        assertTrue(StringNormalizer.isBlank(""));
+        assertTrue(StringNormalizer.isBlank("  "));
+        assertFalse(StringNormalizer.isBlank(" a "));
+    }
+}
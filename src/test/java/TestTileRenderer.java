@@ -0,0 +1,133 @@
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import javax.imageio.ImageIO;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests rendering tiles over a stored root tile of one color, with one road across the
+ * middle of the map.
+ */
+public class TestTileRenderer {
+    private static final Color STORED = new Color(200, 30, 30);
+    private static GraphDB graph;
+    private File stored;
+    private File cache;
+
+    @BeforeClass
+    public static void setUpGraph() throws IOException {
+        double lat = (MapServer.ROOT_ULLAT + MapServer.ROOT_LRLAT) / 2;
+        String osm = "<?xml version='1.0' encoding='UTF-8'?>\n<osm>\n"
+                + "<node id=\"1\" lat=\"" + lat + "\" lon=\"" + MapServer.ROOT_ULLON + "\"/>\n"
+                + "<node id=\"2\" lat=\"" + lat + "\" lon=\"" + MapServer.ROOT_LRLON + "\"/>\n"
+                + "<way id=\"1\"><nd ref=\"1\"/><nd ref=\"2\"/>"
+                + "<tag k=\"highway\" v=\"residential\"/></way>\n</osm>\n";
+        File file = File.createTempFile("tiles", ".osm");
+        file.deleteOnExit();
+        Files.write(file.toPath(), osm.getBytes(StandardCharsets.UTF_8));
+        graph = new GraphDB(file.getPath());
+    }
+
+    @Before
+    public void setUp() throws IOException {
+        stored = Files.createTempDirectory("stored").toFile();
+        cache = new File(Files.createTempDirectory("cache").toFile(), "v1");
+        BufferedImage root = new BufferedImage(MapServer.TILE_SIZE, MapServer.TILE_SIZE,
+                BufferedImage.TYPE_INT_RGB);
+        Graphics2D g = root.createGraphics();
+        g.setColor(STORED);
+        g.fillRect(0, 0, MapServer.TILE_SIZE, MapServer.TILE_SIZE);
+        g.dispose();
+        ImageIO.write(root, "png", new File(stored, "d0_x0_y0.png"));
+    }
+
+    @Test
+    public void testRender() {
+        TileRenderer renderer = new TileRenderer(graph, stored, cache, 1 << 20);
+        assertEquals(STORED.getRGB(), renderer.tile("d0_x0_y0.png").getRGB(5, 5));
+        assertEquals(0, renderer.renders());
+
+        /* Tile 9 of 16 down the map at depth 4 has the road through its top. */
+        BufferedImage tile = renderer.tile("d4_x3_y8.png");
+        assertEquals(1, renderer.renders());
+        assertEquals(STORED.getRGB(), tile.getRGB(128, 128));
+        assertNotEquals(STORED.getRGB(), tile.getRGB(128, 0));
+        assertTrue(new File(cache, "d4_x3_y8.png").exists());
+
+        /* Deeper than the stored pyramid goes. */
+        tile = renderer.tile("d9_x100_y256.png");
+        assertNotEquals(STORED.getRGB(), tile.getRGB(128, 0));
+        assertEquals(STORED.getRGB(), tile.getRGB(128, 200));
+
+        renderer.tile("d4_x3_y8.png");
+        assertEquals(2, renderer.renders());
+        assertNull(renderer.tile("d4_x16_y0.png"));
+        assertNull(renderer.tile("d" + (TileRenderer.MAX_DEPTH + 1) + "_x0_y0.png"));
+        assertNull(renderer.tile("route.png"));
+    }
+
+    @Test
+    public void testEviction() {
+        TileRenderer renderer = new TileRenderer(graph, stored, cache, 1);
+        renderer.tile("d4_x3_y8.png");
+        renderer.tile("d4_x4_y8.png");
+        assertFalse(new File(cache, "d4_x3_y8.png").exists());
+        assertTrue(new File(cache, "d4_x4_y8.png").exists());
+        renderer.tile("d4_x3_y8.png");
+        assertEquals(3, renderer.renders());
+    }
+
+    @Test
+    public void testDiscard() {
+        TileRenderer renderer = new TileRenderer(graph, stored, cache, 1 << 20);
+        renderer.tile("d4_x3_y8.png");
+        assertTrue(new File(cache, "d4_x3_y8.png").exists());
+        renderer.discard();
+        assertFalse(cache.exists());
+
+        /* Still served, but no longer cached. */
+        assertNotEquals(STORED.getRGB(), renderer.tile("d4_x3_y8.png").getRGB(128, 0));
+        assertEquals(2, renderer.renders());
+        assertFalse(cache.exists());
+    }
+
+    @Test
+    public void testConcurrentRequests() throws Exception {
+        TileRenderer renderer = new TileRenderer(graph, stored, cache, 1 << 20);
+        ExecutorService pool = Executors.newFixedThreadPool(8);
+        CountDownLatch start = new CountDownLatch(1);
+        List<Future<BufferedImage>> tiles = new ArrayList<>();
+        for (int i = 0; i < 8; i++) {
+            tiles.add(pool.submit((Callable<BufferedImage>) () -> {
+                start.await();
+                return renderer.tile("d6_x20_y32.png");
+            }));
+        }
+        start.countDown();
+        for (Future<BufferedImage> tile : tiles) {
+            assertEquals(MapServer.TILE_SIZE, tile.get().getWidth());
+        }
+        pool.shutdown();
+        assertEquals(1, renderer.renders());
+    }
+}
@@ -0,0 +1,183 @@
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests vector tiles by decoding them, on a random map of short ways over the root box.
+ */
+public class TestVectorTiles {
+    private static GraphDB graph;
+
+    @BeforeClass
+    public static void setUp() throws IOException {
+        Random random = new Random(13);
+        StringBuilder osm = new StringBuilder("<?xml version='1.0' encoding='UTF-8'?>\n<osm>\n");
+        int nodes = 1000;
+        for (int i = 0; i < nodes; i++) {
+            osm.append("<node id=\"").append(i).append("\" lat=\"")
+                    .append(MapServer.ROOT_LRLAT + random.nextDouble()
+                            * (MapServer.ROOT_ULLAT - MapServer.ROOT_LRLAT))
+                    .append("\" lon=\"").append(MapServer.ROOT_ULLON + random.nextDouble()
+                            * (MapServer.ROOT_LRLON - MapServer.ROOT_ULLON)).append("\">");
+            if (i % 5 == 0) {
+                osm.append("<tag k=\"name\" v=\"Place ").append(i).append("\"/>");
+            }
+            osm.append("</node>\n");
+        }
+        for (int w = 0; w < 600; w++) {
+            osm.append("<way id=\"").append(w).append("\">");
+            int length = 2 + random.nextInt(4);
+            for (int k = 0; k < length; k++) {
+                osm.append("<nd ref=\"").append(random.nextInt(nodes)).append("\"/>");
+            }
+            osm.append("<tag k=\"highway\" v=\"").append(w % 3 == 0 ? "primary" : "residential")
+                    .append("\"/><tag k=\"name\" v=\"Way ").append(w % 50).append("\"/></way>\n");
+        }
+        osm.append("</osm>\n");
+        File file = File.createTempFile("tiles", ".osm");
+        file.deleteOnExit();
+        Files.write(file.toPath(), osm.toString().getBytes(StandardCharsets.UTF_8));
+        graph = new GraphDB(file.getPath());
+    }
+
+    @Test
+    public void testSimplify() {
+        /* Collinear points go, a spike stays, repeats go. */
+        assertArrayEquals(new int[] {0, 0, 30, 0},
+                VectorTiles.simplify(new int[] {0, 0, 10, 0, 20, 0, 30, 0}, 1));
+        assertArrayEquals(new int[] {0, 0, 10, 50, 20, 0},
+                VectorTiles.simplify(new int[] {0, 0, 2, 9, 10, 50, 20, 0}, 2));
+        assertArrayEquals(new int[] {0, 0, 5, 5},
+                VectorTiles.simplify(new int[] {0, 0, 0, 0, 5, 5}, 1));
+        assertArrayEquals(new int[] {3, 3}, VectorTiles.simplify(new int[] {3, 3, 3, 3}, 1));
+    }
+
+    @Test
+    public void testTiles() {
+        VectorTiles tiles = new VectorTiles(graph);
+        for (int depth = 0; depth <= 3; depth++) {
+            for (int x = 0; x < 1 << depth; x++) {
+                for (int y = 0; y < 1 << depth; y++) {
+                    checkTile(tiles, depth, x, y);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testCache() {
+        VectorTiles tiles = new VectorTiles(graph);
+        byte[] tile = tiles.tile(2, 1, 3);
+        assertSame(tile, tiles.tile(2, 1, 3));
+        assertEquals(1, tiles.cached());
+        assertTrue(VectorTiles.exists(VectorTiles.MAX_DEPTH, 0, 0));
+        assertFalse(VectorTiles.exists(VectorTiles.MAX_DEPTH + 1, 0, 0));
+        assertFalse(VectorTiles.exists(2, 4, 0));
+        assertFalse(VectorTiles.exists(2, 0, -1));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testNoSuchTile() {
+        new VectorTiles(graph).tile(1, 2, 0);
+    }
+
+    /**
+     * Checks the names, coordinates and places of a tile, and that every dead end in it
+     * ends a line, as chains of roads are never simplified away at their ends.
+     */
+    private static void checkTile(VectorTiles tiles, int depth, int x, int y) {
+        Decoder in = new Decoder(tiles.tile(depth, x, y));
+        assertEquals(VectorTiles.VERSION, in.read());
+        List<String> names = new ArrayList<>();
+        for (int i = (int) in.varint(); i > 0; i--) {
+            byte[] utf8 = new byte[(int) in.varint()];
+            in.read(utf8, 0, utf8.length);
+            names.add(new String(utf8, StandardCharsets.UTF_8));
+        }
+        double lonWidth = (MapServer.ROOT_LRLON - MapServer.ROOT_ULLON) / (1 << depth);
+        double latHeight = (MapServer.ROOT_ULLAT - MapServer.ROOT_LRLAT) / (1 << depth);
+        double minLon = MapServer.ROOT_ULLON + x * lonWidth;
+        double maxLat = MapServer.ROOT_ULLAT - y * latHeight;
+
+        Set<Long> ends = new HashSet<>();
+        for (int lines = (int) in.varint(); lines > 0; lines--) {
+            int highwayClass = in.read();
+            assertTrue(highwayClass < GraphBuildingHandler.numHighwayClasses());
+            assertTrue(names.get((int) in.varint()).startsWith("Way "));
+            int size = (int) in.varint();
+            assertTrue(size >= 2);
+            int px = 0;
+            int py = 0;
+            for (int i = 0; i < size; i++) {
+                px += in.zigzag();
+                py += in.zigzag();
+                assertTrue(px >= -VectorTiles.BUFFER && px <= VectorTiles.EXTENT
+                        + VectorTiles.BUFFER);
+                assertTrue(py >= -VectorTiles.BUFFER && py <= VectorTiles.EXTENT
+                        + VectorTiles.BUFFER);
+                if (i == 0 || i == size - 1) {
+                    ends.add((long) px << 32 | py & 0xFFFFFFFFL);
+                }
+            }
+        }
+        int points = (int) in.varint();
+        assertTrue(points <= VectorTiles.MAX_POINTS);
+        for (int i = 0; i < points; i++) {
+            String name = names.get((int) in.varint());
+            long id = in.varint();
+            assertEquals("Place " + id, name);
+            int px = in.zigzag();
+            int py = in.zigzag();
+            assertTrue(px >= 0 && px <= VectorTiles.EXTENT && py >= 0 && py <= VectorTiles.EXTENT);
+        }
+        assertEquals(-1, in.read());
+
+        for (int v = 0; v < graph.numVertices(); v++) {
+            double vx = (graph.lonAt(v) - minLon) / lonWidth * VectorTiles.EXTENT;
+            double vy = (maxLat - graph.latAt(v)) / latHeight * VectorTiles.EXTENT;
+            if (graph.degree(v) == 1 && vx >= 0 && vx <= VectorTiles.EXTENT && vy >= 0
+                    && vy <= VectorTiles.EXTENT) {
+                assertTrue(ends.contains(Math.round(vx) << 32 | Math.round(vy) & 0xFFFFFFFFL));
+            }
+        }
+    }
+
+    /** Reads what VectorTiles writes. */
+    private static class Decoder extends ByteArrayInputStream {
+        Decoder(byte[] bytes) {
+            super(bytes);
+        }
+
+        long varint() {
+            long value = 0;
+            for (int shift = 0; ; shift += 7) {
+                int b = read();
+                value |= (long) (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) {
+                    return value;
+                }
+            }
+        }
+
+        int zigzag() {
+            int value = (int) varint();
+            return value >>> 1 ^ -(value & 1);
+        }
+    }
+}